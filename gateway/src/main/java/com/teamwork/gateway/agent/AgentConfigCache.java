@@ -0,0 +1,216 @@
+package com.teamwork.gateway.agent;
+
+import com.teamwork.gateway.ai.ChatModelFactory;
+import com.teamwork.gateway.entity.AgentProfile;
+import com.teamwork.gateway.entity.AiModel;
+import com.teamwork.gateway.event.AgentConfigChangedEvent;
+import com.teamwork.gateway.repository.AgentProfileRepository;
+import com.teamwork.gateway.repository.AiModelRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+
+/**
+ * 任務設定解析快取：啟用中的 AiModel 清單與 AgentProfile 常駐記憶體，穩定狀態下每個任務的設定解析不查詢資料庫。
+ * <p>失效來源：</p>
+ * <ul>
+ *   <li>本節點經 JPA 寫入 ai_models / agent_profiles 時，交易提交後收到 {@link AgentConfigChangedEvent}；</li>
+ *   <li>其他節點的變更經 Redis channel {@value #CHANNEL} 廣播（訊息為 {@code 類型:id}）；</li>
+ *   <li>直接改資料庫等沒有事件的情況，由 ttl-ms 到期重新載入兜底。</li>
+ * </ul>
+ * <p>AiModel 變更同時讓 {@link ChatModelFactory} 丟棄該模型的 ChatModel。</p>
+ */
+@Slf4j
+@Service
+public class AgentConfigCache implements MessageListener {
+
+    public static final String CHANNEL = "gateway:agent-config:changed";
+
+    private final AiModelRepository aiModelRepository;
+    private final AgentProfileRepository agentProfileRepository;
+    private final ChatModelFactory chatModelFactory;
+    private final StringRedisTemplate redisTemplate;
+    private final long ttlMillis;
+    private final LongSupplier clock;
+    private final Map<String, CachedProfile> profiles;
+    private volatile ActiveModels activeModels;
+    /** 每次失效遞增；載入期間有失效時不寫回快取，避免舊資料蓋掉失效結果 */
+    private final AtomicLong generation = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder localInvalidations = new LongAdder();
+    private final LongAdder remoteInvalidations = new LongAdder();
+
+    @Autowired
+    public AgentConfigCache(
+            AiModelRepository aiModelRepository,
+            AgentProfileRepository agentProfileRepository,
+            ChatModelFactory chatModelFactory,
+            StringRedisTemplate redisTemplate,
+            @Value("${gateway.agent-config-cache.ttl-ms:300000}") long ttlMillis,
+            @Value("${gateway.agent-config-cache.max-profiles:10000}") int maxProfiles) {
+        this(aiModelRepository, agentProfileRepository, chatModelFactory, redisTemplate, ttlMillis, maxProfiles,
+                System::currentTimeMillis);
+    }
+
+    /** 測試用建構子：可替換時鐘；redisTemplate 為 null 時不廣播。 */
+    AgentConfigCache(
+            AiModelRepository aiModelRepository,
+            AgentProfileRepository agentProfileRepository,
+            ChatModelFactory chatModelFactory,
+            StringRedisTemplate redisTemplate,
+            long ttlMillis,
+            int maxProfiles,
+            LongSupplier clock) {
+        this.aiModelRepository = aiModelRepository;
+        this.agentProfileRepository = agentProfileRepository;
+        this.chatModelFactory = chatModelFactory;
+        this.redisTemplate = redisTemplate;
+        this.ttlMillis = Math.max(1000L, ttlMillis);
+        this.clock = clock;
+        int capacity = Math.max(1, maxProfiles);
+        this.profiles = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedProfile> eldest) {
+                return size() > capacity;
+            }
+        });
+    }
+
+    /**
+     * 取得 AgentProfile；找不到的結果同樣快取，新增 profile 時由變更事件清除。
+     */
+    public Optional<AgentProfile> findProfile(String profileId) {
+        if (profileId == null || profileId.isBlank()) {
+            return Optional.empty();
+        }
+        long now = clock.getAsLong();
+        CachedProfile cached = profiles.get(profileId);
+        if (cached != null && now - cached.loadedAt() < ttlMillis) {
+            hits.increment();
+            return Optional.ofNullable(cached.profile());
+        }
+        loads.increment();
+        long loadGeneration = generation.get();
+        AgentProfile profile = agentProfileRepository.findById(profileId).orElse(null);
+        if (generation.get() == loadGeneration) {
+            profiles.put(profileId, new CachedProfile(profile, now));
+        }
+        return Optional.ofNullable(profile);
+    }
+
+    /**
+     * 決定任務使用的模型：profile 設定了 defaultModelId 且該模型啟用時使用之，否則使用第一個啟用的模型。
+     */
+    public AiModel resolveModel(String profileId) {
+        ActiveModels models = activeModels();
+        String defaultModelId = findProfile(profileId).map(AgentProfile::getDefaultModelId).orElse(null);
+        if (defaultModelId != null) {
+            AiModel preferred = models.byId().get(defaultModelId);
+            if (preferred != null) {
+                return preferred;
+            }
+            log.debug("Profile default model is not active, falling back. profileId={}, defaultModelId={}",
+                    profileId, defaultModelId);
+        }
+        if (models.models().isEmpty()) {
+            throw new IllegalStateException("No active AI model found in DB");
+        }
+        return models.models().getFirst();
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onAgentConfigChanged(AgentConfigChangedEvent event) {
+        invalidate(event.getEntityType(), event.getEntityId());
+        localInvalidations.increment();
+        if (redisTemplate == null) {
+            return;
+        }
+        try {
+            redisTemplate.convertAndSend(CHANNEL, event.getEntityType() + ":" + event.getEntityId());
+        } catch (Exception ex) {
+            // 其他節點在 ttl 到期後仍會重新載入
+            log.warn("Failed to broadcast agent config change. type={}, id={}",
+                    event.getEntityType(), event.getEntityId(), ex);
+        }
+    }
+
+    /**
+     * 其他節點廣播的變更。本節點自己發出的訊息也會收到，重複失效無副作用。
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int separator = body.indexOf(':');
+        if (separator <= 0) {
+            log.warn("Ignoring malformed agent config change message: {}", body);
+            return;
+        }
+        invalidate(body.substring(0, separator), body.substring(separator + 1));
+        remoteInvalidations.increment();
+    }
+
+    public AgentConfigCacheMetricsSnapshot getMetricsSnapshot() {
+        ActiveModels models = activeModels;
+        return new AgentConfigCacheMetricsSnapshot(
+                profiles.size(),
+                models == null ? 0 : models.models().size(),
+                hits.sum(),
+                loads.sum(),
+                localInvalidations.sum(),
+                remoteInvalidations.sum());
+    }
+
+    private void invalidate(String entityType, String entityId) {
+        generation.incrementAndGet();
+        if (AgentConfigChangedEvent.AI_MODEL.equals(entityType)) {
+            activeModels = null;
+            chatModelFactory.invalidate(entityId);
+        } else if (AgentConfigChangedEvent.AGENT_PROFILE.equals(entityType)) {
+            profiles.remove(entityId);
+        }
+    }
+
+    private ActiveModels activeModels() {
+        long now = clock.getAsLong();
+        ActiveModels current = activeModels;
+        if (current != null && now - current.loadedAt() < ttlMillis) {
+            hits.increment();
+            return current;
+        }
+        loads.increment();
+        long loadGeneration = generation.get();
+        List<AiModel> models = List.copyOf(aiModelRepository.findByActiveTrue());
+        Map<String, AiModel> byId = models.stream()
+                .collect(Collectors.toUnmodifiableMap(AiModel::getId, model -> model));
+        current = new ActiveModels(models, byId, now);
+        if (generation.get() == loadGeneration) {
+            activeModels = current;
+        }
+        return current;
+    }
+
+    private record ActiveModels(List<AiModel> models, Map<String, AiModel> byId, long loadedAt) {
+    }
+
+    /** profile 為 null 代表資料庫中不存在。 */
+    private record CachedProfile(AgentProfile profile, long loadedAt) {
+    }
+}
@@ -0,0 +1,10 @@
+package com.teamwork.gateway.agent;
+
+public record AgentConfigCacheMetricsSnapshot(
+        int cachedProfiles,
+        int activeModels,
+        long hits,
+        long loads,
+        long localInvalidations,
+        long remoteInvalidations) {
+}
@@ -42,7 +42,30 @@ public record AgentExecutionContext(
          * Docker/E2B 鏡像或模板名稱；null 時各實作使用自身預設值。
          * sandboxType=DOCKER → Docker image；sandboxType=E2B → E2B template。
          */
-        String sandboxDockerImage) {
+        String sandboxDockerImage,
+        /** AgentProfile 的 system prompt；null 代表不送 system message，作為每輪相同的 prompt 前綴 */
+        String systemPrompt) {
+
+    /** 相容建構子：不帶 system prompt。 */
+    public AgentExecutionContext(
+            String taskId,
+            String inputPayload,
+            AiModel aiModel,
+            ChatModel chatModel,
+            String selectedSubAgentName,
+            String selectedSubAgentReferencePath,
+            String selectedSubAgentOwnerProvider,
+            boolean routeFallbackUsed,
+            boolean sandboxEnabled,
+            String sandboxLanguage,
+            String sandboxSourceCode,
+            long sandboxTimeoutMs,
+            String sandboxType,
+            String sandboxDockerImage) {
+        this(taskId, inputPayload, aiModel, chatModel, selectedSubAgentName, selectedSubAgentReferencePath,
+                selectedSubAgentOwnerProvider, routeFallbackUsed, sandboxEnabled, sandboxLanguage, sandboxSourceCode,
+                sandboxTimeoutMs, sandboxType, sandboxDockerImage, null);
+    }
 
     /** 返回沙盒超時是否啟用 */
     public boolean hasSandboxTimeout() {
@@ -1,5 +1,6 @@
 package com.teamwork.gateway.agent;
 
+import com.teamwork.gateway.exception.TaskAdmissionRejectedException;
 import lombok.extern.slf4j.Slf4j;
 import org.slf4j.MDC;
 import org.springframework.stereotype.Service;
@@ -55,6 +56,9 @@ public class AgentObservabilityService {
         if (throwable instanceof IllegalStateException) {
             return "CONFIGURATION";
         }
+        if (throwable instanceof TaskAdmissionRejectedException) {
+            return "ADMISSION";
+        }
         if (throwable instanceof RuntimeException) {
             String message = throwable.getMessage();
             if (message != null && message.toLowerCase().contains("timeout")) {
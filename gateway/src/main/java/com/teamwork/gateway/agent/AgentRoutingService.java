@@ -2,7 +2,6 @@ package com.teamwork.gateway.agent;
 
 import com.teamwork.gateway.entity.AgentProfile;
 import com.teamwork.gateway.entity.AiModel;
-import com.teamwork.gateway.repository.AgentProfileRepository;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.ai.chat.model.ChatModel;
@@ -20,7 +19,7 @@ public class AgentRoutingService {
 
     private final SubAgentDescriptorRepository subAgentDescriptorRepository;
     private final SubAgentRouter subAgentRouter;
-    private final AgentProfileRepository agentProfileRepository;
+    private final AgentConfigCache agentConfigCache;
     private final UnifiedAgentRegistry unifiedAgentRegistry;
 
     /**
@@ -41,6 +40,7 @@ public class AgentRoutingService {
         String sandboxType = (profile != null && profile.getSandboxType() != null)
                 ? profile.getSandboxType() : "LOCAL";
         String dockerImage = (profile != null) ? profile.getDockerImage() : null;
+        String systemPrompt = (profile != null) ? profile.getSystemPrompt() : null;
 
         AgentExecutionContext executionContext = new AgentExecutionContext(
                 taskId,
@@ -56,7 +56,8 @@ public class AgentRoutingService {
                 inputPayload,
                 0L,
                 sandboxType,
-                dockerImage
+                dockerImage,
+                systemPrompt
         );
 
         UnifiedAgentProvider provider = unifiedAgentRegistry.resolve(executionContext);
@@ -75,10 +76,7 @@ public class AgentRoutingService {
      * 載入 AgentProfile，若 profileId 為空或找不到則回傳 null（降級為非沙盒模式）。
      */
     private AgentProfile loadAgentProfile(String profileId) {
-        if (profileId == null || profileId.isBlank()) {
-            return null;
-        }
-        return agentProfileRepository.findById(profileId).orElse(null);
+        return agentConfigCache.findProfile(profileId).orElse(null);
     }
 
     /**
@@ -2,17 +2,17 @@ package com.teamwork.gateway.agent;
 
 import com.teamwork.gateway.entity.TaskRecord;
 import com.teamwork.gateway.event.TaskStatusChangeEvent;
+import com.teamwork.gateway.exception.TaskAdmissionRejectedException;
 import com.teamwork.gateway.repository.TaskRecordRepository;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import com.teamwork.gateway.ai.ChatModelFactory;
 import com.teamwork.gateway.entity.AiModel;
-import com.teamwork.gateway.repository.AiModelRepository;
 import org.springframework.ai.chat.model.ChatModel;
 
 @Service
@@ -23,14 +23,21 @@ public class MasterAgent {
     private final TaskRecordRepository taskRecordRepository;
     private final ApplicationEventPublisher eventPublisher;
     // -- Phase 2 Components --
-    private final AiModelRepository aiModelRepository;
+    private final AgentConfigCache agentConfigCache;
     private final ChatModelFactory chatModelFactory;
     private final AgentRoutingService agentRoutingService;
     private final AgentObservabilityService agentObservabilityService;
-
+    private final TaskAdmissionController taskAdmissionController;
+
+    /**
+     * 非同步處理任務。整個流程不包在交易內：讀取任務、標記 RUNNING 與寫回最終狀態各自是 repository 的短交易，
+     * 呼叫 LLM 的執行階段不持有資料庫連線，同時執行的任務數只受 LLM 回應時間限制，不會耗盡連線池。
+     * 狀態事件在各步驟提交後才發出，訂閱者讀到的一定是已提交的狀態。
+     * 回傳的 future 正常完成代表任務已有終態；以例外完成代表任務已退回 PENDING，佇列應重新派發。
+     * 呼叫 LLM 前先向 {@link TaskAdmissionController} 取得租戶與模型名額，名額在執行結束（含失敗）後歸還。
+     */
     @Async
-    @Transactional
-    public void processTask(String taskId, String inputPayload) {
+    public CompletableFuture<Void> processTask(String taskId, String inputPayload) {
         log.info("MasterAgent starts processing Task ID: {}", taskId);
         long startedAt = System.currentTimeMillis();
         agentObservabilityService.recordTaskStarted(taskId);
@@ -38,23 +45,25 @@ public class MasterAgent {
         Optional<TaskRecord> recordOpt = taskRecordRepository.findById(taskId);
         if (recordOpt.isEmpty()) {
             log.error("TaskRecord not found for ID: {}. Aborting process.", taskId);
-            return;
+            return CompletableFuture.completedFuture(null);
         }
 
         TaskRecord record = recordOpt.get();
         try {
-            updateTaskStatus(record, "RUNNING");
+            // 1. 解析任務使用的 AI Model（profile 的 defaultModelId 優先，穩定狀態下不查詢資料庫）
+            AiModel aiModel = agentConfigCache.resolveModel(record.getProfileId());
 
-            // 1. 從 DB 取得啟用的 AI Model (這裡先簡單取第一筆 Active 測試)
-            AiModel aiModel = aiModelRepository.findAll().stream()
-                    .filter(AiModel::isActive)
-                    .findFirst()
-                    .orElseThrow(() -> new IllegalStateException("No active AI model found in DB"));
+            // 2. 取得租戶與模型的執行名額，超過上限的任務維持 PENDING 排隊，取得名額後才標記 RUNNING
+            String aiResponse;
+            TaskAdmissionController.Permit permit =
+                    taskAdmissionController.acquire(record.getProfileId(), aiModel.getId());
+            try {
+                updateTaskStatus(record, "RUNNING");
 
-            // 2. 透過 Factory 初始化真正的 ChatModel
-            ChatModel chatModel = chatModelFactory.createChatModel(aiModel);
+                // 3. 透過 Factory 初始化真正的 ChatModel
+                ChatModel chatModel = chatModelFactory.createChatModel(aiModel);
 
-                // 3. 路由決策（T18-4）：由 AgentRoutingService 集中處理
+                // 4. 路由決策（T18-4）：由 AgentRoutingService 集中處理
                 RoutingPlan routingPlan = agentRoutingService.plan(
                     taskId,
                     inputPayload,
@@ -71,10 +80,14 @@ public class MasterAgent {
                     routingPlan.subAgentRoutingDecision().fallbackUsed(),
                     routingPlan.subAgentRoutingDecision().reason());
 
-            log.info("MasterAgent starts AI reasoning with model: {}, provider: {}, sandboxEnabled: {}",
-                    aiModel.getName(), aiModel.getProvider(), ctx.sandboxEnabled());
+                log.info("MasterAgent starts AI reasoning with model: {}, provider: {}, sandboxEnabled: {}",
+                        aiModel.getName(), aiModel.getProvider(), ctx.sandboxEnabled());
 
-            String aiResponse = provider.execute(ctx);
+                // 5. 執行階段不在交易內，LLM 呼叫期間不佔用資料庫連線
+                aiResponse = provider.execute(ctx);
+            } finally {
+                permit.close();
+            }
 
             log.info("Agent Output: \n{}", aiResponse);
 
@@ -82,14 +95,30 @@ public class MasterAgent {
             updateTaskStatus(record, "COMPLETED");
             agentObservabilityService.recordTaskCompleted(taskId, System.currentTimeMillis() - startedAt);
             log.info("MasterAgent completed processing Task ID: {}", taskId);
+            return CompletableFuture.completedFuture(null);
 
         } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            if (isRequeueable(e)) {
+                // 關閉中尚未開始呼叫 LLM：退回 PENDING，由佇列交給其他節點
+                log.warn("MasterAgent returns Task ID: {} to the queue: {}", taskId, e.getMessage());
+                updateTaskStatus(record, "PENDING");
+                return CompletableFuture.failedFuture(e);
+            }
             log.error("MasterAgent encountered an error while processing Task ID: {}", taskId, e);
             agentObservabilityService.recordTaskFailed(taskId, e);
             updateTaskStatus(record, "FAILED");
+            return CompletableFuture.completedFuture(null);
         }
     }
 
+    private boolean isRequeueable(Exception e) {
+        return e instanceof InterruptedException
+                || (e instanceof TaskAdmissionRejectedException rejected && rejected.isRetryable());
+    }
+
     private void updateTaskStatus(TaskRecord record, String newStatus) {
         record.setStatus(newStatus);
         taskRecordRepository.save(record);
@@ -0,0 +1,24 @@
+package com.teamwork.gateway.agent;
+
+import org.springframework.ai.tool.ToolCallback;
+
+/**
+ * 每輪相同的 prompt 前綴：system prompt 與依名稱排序的工具定義，以及預先估算的 token 數。
+ * <p>同一組輸入共用同一個實例，字串與工具陣列不會每輪重建；順序固定，供應商端的 prompt cache 才能比對到相同前綴。</p>
+ */
+public record PromptPrefix(
+        /** system prompt；null 代表不送 system message */
+        String systemText,
+        /** 依工具名稱排序的工具（本地工具與 sub-agent task 工具） */
+        ToolCallback[] toolCallbacks,
+        long systemTokens,
+        long toolTokens) {
+
+    public boolean hasSystemText() {
+        return systemText != null && !systemText.isBlank();
+    }
+
+    public long totalTokens() {
+        return systemTokens + toolTokens;
+    }
+}
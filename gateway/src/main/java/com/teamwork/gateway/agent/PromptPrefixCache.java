@@ -0,0 +1,218 @@
+package com.teamwork.gateway.agent;
+
+import com.teamwork.gateway.ai.TokenEstimator;
+import com.teamwork.gateway.ai.TokenEstimatorRegistry;
+import com.teamwork.gateway.entity.AiModel;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.support.ToolCallbacks;
+import org.springframework.ai.tool.ToolCallback;
+import org.springframework.ai.tool.ToolCallbackProvider;
+import org.springframework.ai.tool.definition.ToolDefinition;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Prompt 前綴快取：同一個 system prompt、工具集合與 sub-agent 設定只組裝一次，
+ * 之後每輪直接重用相同的 {@link PromptPrefix}（工具 schema 反射、sub-agent markdown 解析與 token 估算都不再重做）。
+ * <p>供應商端的 prompt cache 跨請求共用：同一模型在 provider-cache-ttl-ms 內送過相同前綴時，
+ * 本次前綴的 token 記為可命中快取（cached），否則記為 uncached；統計同時累計到任務與全域指標。
+ * 一個任務只執行一次，因此以「模型 + 前綴」的最近送出時間判斷，而不是比對同一任務的上一輪。
+ * 各表都以 LRU 限制大小。</p>
+ */
+@Slf4j
+@Service
+public class PromptPrefixCache {
+
+    private static final Comparator<ToolCallback> BY_TOOL_NAME =
+            Comparator.comparing(callback -> callback.getToolDefinition().name());
+
+    private final TokenEstimatorRegistry tokenEstimatorRegistry;
+    private final Map<PrefixKey, PromptPrefix> prefixes;
+    private final Map<String, TaskState> tasks;
+    /** 模型 + 前綴最近一次送出的時間 */
+    private final Map<SentKey, Long> lastSentAt;
+    private final long providerCacheTtlMillis;
+    private final LongSupplier clock;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder cachedPrefixTokens = new LongAdder();
+    private final LongAdder uncachedPrefixTokens = new LongAdder();
+
+    @Autowired
+    public PromptPrefixCache(
+            TokenEstimatorRegistry tokenEstimatorRegistry,
+            @Value("${gateway.prompt-prefix.max-entries:256}") int maxEntries,
+            @Value("${gateway.prompt-prefix.max-tracked-tasks:10000}") int maxTrackedTasks,
+            @Value("${gateway.prompt-prefix.provider-cache-ttl-ms:300000}") long providerCacheTtlMillis) {
+        this(tokenEstimatorRegistry, maxEntries, maxTrackedTasks, providerCacheTtlMillis, System::currentTimeMillis);
+    }
+
+    /** 測試用建構子（可替換時鐘） */
+    PromptPrefixCache(
+            TokenEstimatorRegistry tokenEstimatorRegistry,
+            int maxEntries,
+            int maxTrackedTasks,
+            long providerCacheTtlMillis,
+            LongSupplier clock) {
+        this.tokenEstimatorRegistry = tokenEstimatorRegistry;
+        this.prefixes = lruMap(maxEntries);
+        this.tasks = lruMap(maxTrackedTasks);
+        this.lastSentAt = lruMap(maxEntries);
+        this.providerCacheTtlMillis = Math.max(0L, providerCacheTtlMillis);
+        this.clock = clock;
+    }
+
+    /**
+     * 取得本輪的 prompt 前綴並記錄任務統計。
+     *
+     * @param subAgentKey   決定 sub-agent 工具內容的值（例如 ChatModel 與 markdown 路徑）；相同時重用已建立的工具
+     * @param subAgentTools 未命中時建立 sub-agent 工具；可為 null
+     */
+    public PromptPrefix resolve(
+            String taskId,
+            AiModel aiModel,
+            String systemPrompt,
+            Object[] toolObjects,
+            Object subAgentKey,
+            Supplier<ToolCallbackProvider> subAgentTools) {
+        PrefixKey key = new PrefixKey(systemPrompt, List.of(toolObjects), subAgentKey);
+        PromptPrefix prefix = prefixes.get(key);
+        if (prefix == null) {
+            misses.increment();
+            prefix = build(aiModel, systemPrompt, toolObjects, subAgentTools);
+            PromptPrefix existing = prefixes.putIfAbsent(key, prefix);
+            if (existing != null) {
+                prefix = existing;
+            }
+        } else {
+            hits.increment();
+        }
+        recordTurn(taskId, new SentKey(aiModel == null ? null : aiModel.getId(), key), prefix.totalTokens());
+        return prefix;
+    }
+
+    public PromptPrefixTaskMetrics getTaskMetrics(String taskId) {
+        TaskState state = tasks.get(taskId);
+        if (state == null) {
+            return PromptPrefixTaskMetrics.EMPTY;
+        }
+        synchronized (state) {
+            return new PromptPrefixTaskMetrics(state.turns, state.cachedTokens, state.uncachedTokens);
+        }
+    }
+
+    public PromptPrefixMetricsSnapshot getMetricsSnapshot() {
+        return new PromptPrefixMetricsSnapshot(
+                prefixes.size(),
+                hits.sum(),
+                misses.sum(),
+                cachedPrefixTokens.sum(),
+                uncachedPrefixTokens.sum());
+    }
+
+    private PromptPrefix build(
+            AiModel aiModel,
+            String systemPrompt,
+            Object[] toolObjects,
+            Supplier<ToolCallbackProvider> subAgentTools) {
+        TokenEstimator estimator = tokenEstimatorRegistry.forModel(aiModel);
+        ToolCallback[] localTools = toolObjects.length == 0 ? new ToolCallback[0] : ToolCallbacks.from(toolObjects);
+        ToolCallback[] taskTools = subAgentTools == null ? new ToolCallback[0] : subAgentTools.get().getToolCallbacks();
+        ToolCallback[] callbacks = Arrays.copyOf(localTools, localTools.length + taskTools.length);
+        System.arraycopy(taskTools, 0, callbacks, localTools.length, taskTools.length);
+        // 反射取得的方法順序不固定，排序後每輪送出的工具定義才會逐字相同
+        Arrays.sort(callbacks, BY_TOOL_NAME);
+
+        long toolTokens = 0L;
+        for (ToolCallback callback : callbacks) {
+            ToolDefinition definition = callback.getToolDefinition();
+            toolTokens += estimator.estimate(definition.name())
+                    + estimator.estimate(definition.description())
+                    + estimator.estimate(definition.inputSchema());
+        }
+        String systemText = systemPrompt == null || systemPrompt.isBlank() ? null : systemPrompt.intern();
+        long systemTokens = systemText == null ? 0L : estimator.estimate(systemText);
+        log.debug("Prompt prefix built. tools={}, systemTokens={}, toolTokens={}", callbacks.length, systemTokens, toolTokens);
+        return new PromptPrefix(systemText, callbacks, systemTokens, toolTokens);
+    }
+
+    /**
+     * 同一模型在 TTL 內送過相同前綴即視為可命中；TTL 從最近一次送出起算，與供應商延長快取的方式一致。
+     */
+    private void recordTurn(String taskId, SentKey key, long prefixTokens) {
+        long now = clock.getAsLong();
+        Long previous = lastSentAt.put(key, now);
+        boolean cached = previous != null && now - previous < providerCacheTtlMillis;
+        (cached ? cachedPrefixTokens : uncachedPrefixTokens).add(prefixTokens);
+        if (taskId == null) {
+            return;
+        }
+        TaskState state = tasks.computeIfAbsent(taskId, ignored -> new TaskState());
+        synchronized (state) {
+            state.turns++;
+            if (cached) {
+                state.cachedTokens += prefixTokens;
+            } else {
+                state.uncachedTokens += prefixTokens;
+            }
+        }
+    }
+
+    private static <K, V> Map<K, V> lruMap(int maxSize) {
+        int capacity = Math.max(1, maxSize);
+        return Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > capacity;
+            }
+        });
+    }
+
+    /** 工具物件以 identity 比對（皆為 singleton bean），system prompt 以內容比對。 */
+    private record PrefixKey(String systemPrompt, List<Object> toolObjects, Object subAgentKey) {
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof PrefixKey that) || toolObjects.size() != that.toolObjects.size()) {
+                return false;
+            }
+            for (int index = 0; index < toolObjects.size(); index++) {
+                if (toolObjects.get(index) != that.toolObjects.get(index)) {
+                    return false;
+                }
+            }
+            return Objects.equals(systemPrompt, that.systemPrompt) && Objects.equals(subAgentKey, that.subAgentKey);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = Objects.hashCode(systemPrompt);
+            for (Object toolObject : toolObjects) {
+                hash = 31 * hash + System.identityHashCode(toolObject);
+            }
+            return 31 * hash + Objects.hashCode(subAgentKey);
+        }
+    }
+
+    private record SentKey(String modelId, PrefixKey prefixKey) {
+    }
+
+    private static final class TaskState {
+        private long turns;
+        private long cachedTokens;
+        private long uncachedTokens;
+    }
+}
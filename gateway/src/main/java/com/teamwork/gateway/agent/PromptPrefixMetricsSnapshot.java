@@ -0,0 +1,9 @@
+package com.teamwork.gateway.agent;
+
+public record PromptPrefixMetricsSnapshot(
+        long cachedEntries,
+        long hits,
+        long misses,
+        long cachedPrefixTokens,
+        long uncachedPrefixTokens) {
+}
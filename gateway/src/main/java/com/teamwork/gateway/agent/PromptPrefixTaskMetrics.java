@@ -0,0 +1,10 @@
+package com.teamwork.gateway.agent;
+
+/**
+ * 單一任務的 prompt 前綴統計：同一模型在供應商快取期限內已送過相同前綴時，前綴 token 記為 cached
+ * （供應商端可命中快取），否則記為 uncached。
+ */
+public record PromptPrefixTaskMetrics(long turns, long cachedPrefixTokens, long uncachedPrefixTokens) {
+
+    public static final PromptPrefixTaskMetrics EMPTY = new PromptPrefixTaskMetrics(0L, 0L, 0L);
+}
@@ -2,6 +2,8 @@ package com.teamwork.gateway.agent;
 
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.teamwork.gateway.ai.ChatModelFactory;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.ai.chat.client.ChatClient;
 import org.springframework.ai.chat.model.ChatModel;
@@ -12,13 +14,15 @@ import java.util.List;
 import java.util.Map;
 
 /**
- * 使用 Spring AI 對 sub-agent 進行語意打分。
+ * 使用 Spring AI 對 sub-agent 進行語意打分。ChatClient 取自 {@link ChatModelFactory} 的快取，不再每次建立。
  */
 @Component
+@RequiredArgsConstructor
 @Slf4j
 public class SpringAiSubAgentSemanticScorer implements SubAgentSemanticScorer {
 
     private final ObjectMapper objectMapper = new ObjectMapper();
+    private final ChatModelFactory chatModelFactory;
 
     @Override
     public Map<String, Double> score(String userInput, List<SubAgentDescriptor> descriptors, ChatModel chatModel) {
@@ -27,7 +31,7 @@ public class SpringAiSubAgentSemanticScorer implements SubAgentSemanticScorer {
         }
 
         try {
-            ChatClient chatClient = ChatClient.create(chatModel);
+            ChatClient chatClient = chatModelFactory.chatClient(chatModel);
             String descriptorJson = objectMapper.writeValueAsString(descriptors);
             String result = chatClient.prompt()
                     .system("""
@@ -1,31 +1,61 @@
 package com.teamwork.gateway.agent;
 
+import com.teamwork.gateway.ai.TokenEstimatorRegistry;
 import com.teamwork.gateway.entity.AiModel;
+import com.teamwork.gateway.memory.LongTermMemoryAdvisor;
+import com.teamwork.gateway.memory.LongTermMemoryService;
 import com.teamwork.gateway.memory.RedisChatMemory;
-import lombok.RequiredArgsConstructor;
 import org.springframework.ai.chat.client.ChatClient;
 import org.springframework.ai.chat.client.ChatClient.ChatClientRequestSpec;
 import org.springframework.ai.chat.client.advisor.MessageChatMemoryAdvisor;
+import org.springframework.ai.chat.client.advisor.api.Advisor;
 import org.springframework.ai.tool.ToolCallbackProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.annotation.Order;
 import org.springframework.stereotype.Component;
 import org.springaicommunity.agent.tools.task.TaskToolCallbackProvider;
 import org.springaicommunity.agent.tools.task.subagent.SubagentReference;
 import reactor.core.scheduler.Schedulers;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 
 /**
  * 內建 Spring AI Provider，封裝目前既有 ChatClient + Tool Calling 執行流程。
  */
 @Component
 @Order(100)
-@RequiredArgsConstructor
 public class SpringAiUnifiedAgentProvider implements UnifiedAgentProvider {
 
     private final RedisChatMemory redisChatMemory;
     private final DynamicToolRegistry dynamicToolRegistry;
+    /** 長期記憶檢索；null 代表不掛上長期記憶 advisor。 */
+    private final LongTermMemoryService longTermMemoryService;
+    private final PromptPrefixCache promptPrefixCache;
+    private final long memoryTokenBudget;
+
+    @Autowired
+    public SpringAiUnifiedAgentProvider(
+            RedisChatMemory redisChatMemory,
+            DynamicToolRegistry dynamicToolRegistry,
+            LongTermMemoryService longTermMemoryService,
+            PromptPrefixCache promptPrefixCache,
+            @Value("${gateway.chat-memory.prompt-token-budget:8000}") long memoryTokenBudget) {
+        this.redisChatMemory = redisChatMemory;
+        this.dynamicToolRegistry = dynamicToolRegistry;
+        this.longTermMemoryService = longTermMemoryService;
+        this.promptPrefixCache = promptPrefixCache;
+        this.memoryTokenBudget = memoryTokenBudget;
+    }
+
+    /** 測試用建構子（使用預設 token 預算，不啟用長期記憶） */
+    SpringAiUnifiedAgentProvider(RedisChatMemory redisChatMemory, DynamicToolRegistry dynamicToolRegistry) {
+        this(redisChatMemory, dynamicToolRegistry, null,
+                new PromptPrefixCache(new TokenEstimatorRegistry("heuristic"), 16, 16, 300_000L), 8000L);
+    }
 
     /**
      * 除了明確標記為 Claude SDK 的 provider，其餘皆由 Spring AI Provider 處理。
@@ -42,28 +72,45 @@ public class SpringAiUnifiedAgentProvider implements UnifiedAgentProvider {
 
     /**
      * 執行標準 Spring AI 對話流程，並掛上記憶體、動態工具與 sub-agent callbacks。
+     * 歷史訊息以 token 預算讀取，單筆過大的工具輸出不會讓 prompt 無限制成長；
+     * 已被壓縮的較早內容由長期記憶 advisor 依本次問題檢索後補回。
+     * <p>system prompt 與工具定義取自 {@link PromptPrefixCache}，每輪以相同順序放在最前面；
+     * 每輪變動的長期記憶片段只附加在 system prompt 之後，歷史與使用者訊息接在後面，
+     * 供應商端的 prompt cache 才能命中固定前綴。</p>
      */
     @Override
     public String execute(AgentExecutionContext context) {
-        ChatClient chatClient = ChatClient.create(context.chatModel()).mutate()
-                .defaultAdvisors(MessageChatMemoryAdvisor.builder(redisChatMemory)
-                        .conversationId(context.taskId())
-                        .order(10)
-                        .scheduler(Schedulers.boundedElastic())
-                        .build())
+        List<Advisor> advisors = new ArrayList<>(2);
+        if (longTermMemoryService != null && longTermMemoryService.isEnabled()) {
+            advisors.add(new LongTermMemoryAdvisor(longTermMemoryService, context.taskId(), 5));
+        }
+        advisors.add(MessageChatMemoryAdvisor.builder(redisChatMemory.withTokenBudget(memoryTokenBudget))
+                .conversationId(context.taskId())
+                .order(10)
+                .scheduler(Schedulers.boundedElastic())
+                .build());
+        ChatClient chatClient = ChatClient.builder(context.chatModel())
+                .defaultAdvisors(advisors)
                 .build();
 
-        Object[] activeTools = dynamicToolRegistry.getActiveToolObjects();
-    ToolCallbackProvider taskToolProvider = buildTaskToolProvider(
-        context.chatModel(),
-        context.selectedSubAgentReferencePath(),
-        context.selectedSubAgentOwnerProvider());
+        PromptPrefix prefix = promptPrefixCache.resolve(
+                context.taskId(),
+                context.aiModel(),
+                context.systemPrompt(),
+                dynamicToolRegistry.getActiveToolObjects(),
+                List.of(context.chatModel(),
+                        Objects.toString(context.selectedSubAgentReferencePath(), ""),
+                        Objects.toString(context.selectedSubAgentOwnerProvider(), "")),
+                () -> buildTaskToolProvider(
+                        context.chatModel(),
+                        context.selectedSubAgentReferencePath(),
+                        context.selectedSubAgentOwnerProvider()));
         ChatClientRequestSpec requestSpec = chatClient.prompt();
-        if (activeTools.length > 0) {
-            requestSpec = requestSpec.tools(activeTools);
+        if (prefix.hasSystemText()) {
+            requestSpec = requestSpec.system(prefix.systemText());
         }
         return requestSpec
-                .toolCallbacks(taskToolProvider)
+                .toolCallbacks(prefix.toolCallbacks())
                 .user(context.inputPayload())
                 .call()
                 .content();
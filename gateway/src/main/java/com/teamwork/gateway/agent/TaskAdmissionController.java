@@ -0,0 +1,209 @@
+package com.teamwork.gateway.agent;
+
+import com.teamwork.gateway.exception.TaskAdmissionRejectedException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 任務執行的准入控制：每個租戶（AgentProfile）與每個 AiModel 各有固定數量的名額，
+ * 任務在呼叫 LLM 前依序取得租戶、模型名額（固定順序避免互相等待），用完即歸還。
+ * <p>任務以 virtual thread 執行時等待名額幾乎沒有成本，名額就是背壓：超過上限的任務在這裡排隊，
+ * 不會把同一個模型或租戶的請求一次全部打出去；等待超過 acquire-timeout 則以失敗結束。</p>
+ * <p>關閉時（SmartLifecycle stop）先停止准入、讓排隊中的任務放棄，再等待執行中的任務在 drain-timeout 內結束。</p>
+ */
+@Slf4j
+@Service
+public class TaskAdmissionController implements SmartLifecycle {
+
+    /** 等待名額時檢查是否開始關閉的間隔。 */
+    private static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    private final int maxConcurrentPerTenant;
+    private final int maxConcurrentPerModel;
+    private final long acquireTimeoutMs;
+    private final long drainTimeoutMs;
+    private final ConcurrentHashMap<String, Semaphore> tenantPermits = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Semaphore> modelPermits = new ConcurrentHashMap<>();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile boolean running;
+    private volatile boolean draining;
+
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private final LongAdder rejectedWhileDraining = new LongAdder();
+    private final LongAdder totalWaitMs = new LongAdder();
+    private final AtomicLong maxWaitMs = new AtomicLong();
+
+    @Autowired
+    public TaskAdmissionController(
+            @Value("${gateway.async.admission.max-concurrent-per-tenant:50}") int maxConcurrentPerTenant,
+            @Value("${gateway.async.admission.max-concurrent-per-model:200}") int maxConcurrentPerModel,
+            @Value("${gateway.async.admission.acquire-timeout-ms:600000}") long acquireTimeoutMs,
+            @Value("${gateway.async.drain-timeout-ms:30000}") long drainTimeoutMs) {
+        this.maxConcurrentPerTenant = Math.max(0, maxConcurrentPerTenant);
+        this.maxConcurrentPerModel = Math.max(0, maxConcurrentPerModel);
+        this.acquireTimeoutMs = Math.max(1L, acquireTimeoutMs);
+        this.drainTimeoutMs = Math.max(0L, drainTimeoutMs);
+    }
+
+    /**
+     * 取得租戶與模型名額，呼叫端以 try-with-resources 歸還。上限為 0 代表不限制。
+     *
+     * @throws TaskAdmissionRejectedException 等待逾時或服務關閉中
+     */
+    public Permit acquire(String tenant, String model) throws InterruptedException {
+        if (draining) {
+            rejectedWhileDraining.increment();
+            throw new TaskAdmissionRejectedException("Task admission closed: gateway is shutting down", true);
+        }
+        Semaphore tenantSemaphore = permitsFor(tenantPermits, tenant, maxConcurrentPerTenant);
+        Semaphore modelSemaphore = permitsFor(modelPermits, model, maxConcurrentPerModel);
+        long startNanos = System.nanoTime();
+        long deadline = startNanos + TimeUnit.MILLISECONDS.toNanos(acquireTimeoutMs);
+
+        waiting.incrementAndGet();
+        boolean tenantAcquired = false;
+        boolean modelAcquired = false;
+        try {
+            tenantAcquired = acquireUntil(tenantSemaphore, deadline);
+            modelAcquired = tenantAcquired && acquireUntil(modelSemaphore, deadline);
+        } finally {
+            waiting.decrementAndGet();
+            if (tenantAcquired && !modelAcquired) {
+                release(tenantSemaphore);
+            }
+        }
+
+        long waitedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        if (!modelAcquired) {
+            if (draining) {
+                rejectedWhileDraining.increment();
+                throw new TaskAdmissionRejectedException("Task admission closed: gateway is shutting down", true);
+            }
+            timedOut.increment();
+            throw new TaskAdmissionRejectedException(
+                    "Task admission timeout after " + waitedMs + "ms. tenant=" + tenant + ", model=" + model);
+        }
+        inFlight.incrementAndGet();
+        admitted.increment();
+        totalWaitMs.add(waitedMs);
+        maxWaitMs.accumulateAndGet(waitedMs, Math::max);
+        return new Permit(tenantSemaphore, modelSemaphore);
+    }
+
+    public TaskAdmissionMetricsSnapshot getMetricsSnapshot() {
+        long admittedCount = admitted.sum();
+        return new TaskAdmissionMetricsSnapshot(
+                waiting.get(),
+                inFlight.get(),
+                admittedCount,
+                timedOut.sum(),
+                rejectedWhileDraining.sum(),
+                admittedCount == 0 ? 0.0 : (double) totalWaitMs.sum() / admittedCount,
+                maxWaitMs.get());
+    }
+
+    @Override
+    public void start() {
+        draining = false;
+        running = true;
+    }
+
+    /**
+     * 停止准入並等待執行中的任務結束；超過 drain-timeout 仍未結束的任務交由執行緒池關閉處理。
+     */
+    @Override
+    public void stop() {
+        draining = true;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainTimeoutMs);
+        try {
+            while ((inFlight.get() > 0 || waiting.get() > 0) && System.nanoTime() < deadline) {
+                Thread.sleep(100L);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if (inFlight.get() > 0) {
+            log.warn("Task drain timed out. inFlight={}, waiting={}", inFlight.get(), waiting.get());
+        } else {
+            log.info("Task admission drained.");
+        }
+        running = false;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    /** 在 TaskQueueService 停止認領之後才開始 drain。 */
+    @Override
+    public int getPhase() {
+        return DEFAULT_PHASE - 1024;
+    }
+
+    private boolean acquireUntil(Semaphore semaphore, long deadlineNanos) throws InterruptedException {
+        if (semaphore == null) {
+            return true;
+        }
+        while (!draining) {
+            long remaining = deadlineNanos - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            if (semaphore.tryAcquire(Math.min(remaining, POLL_NANOS), TimeUnit.NANOSECONDS)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Semaphore permitsFor(ConcurrentHashMap<String, Semaphore> permits, String key, int limit) {
+        if (limit <= 0) {
+            return null;
+        }
+        return permits.computeIfAbsent(key == null ? "default" : key, ignored -> new Semaphore(limit));
+    }
+
+    private static void release(Semaphore semaphore) {
+        if (semaphore != null) {
+            semaphore.release();
+        }
+    }
+
+    /**
+     * 已取得的名額；close 只會生效一次。
+     */
+    public final class Permit implements AutoCloseable {
+        private final Semaphore tenantSemaphore;
+        private final Semaphore modelSemaphore;
+        private boolean closed;
+
+        private Permit(Semaphore tenantSemaphore, Semaphore modelSemaphore) {
+            this.tenantSemaphore = tenantSemaphore;
+            this.modelSemaphore = modelSemaphore;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            release(modelSemaphore);
+            release(tenantSemaphore);
+            inFlight.decrementAndGet();
+        }
+    }
+}
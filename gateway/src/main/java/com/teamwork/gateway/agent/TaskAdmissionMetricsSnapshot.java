@@ -0,0 +1,11 @@
+package com.teamwork.gateway.agent;
+
+public record TaskAdmissionMetricsSnapshot(
+        int waiting,
+        int inFlight,
+        long admitted,
+        long timedOut,
+        long rejectedWhileDraining,
+        double averageWaitMs,
+        long maxWaitMs) {
+}
@@ -0,0 +1,185 @@
+package com.teamwork.gateway.ai;
+
+/**
+ * 依字元類別估算 token 數的估算器；不是真正的 tokenizer，沒有詞表也不做合併。
+ * <p>以單次字元掃描把文字切成片段（英文字詞、數字、CJK、標點、空白），
+ * 再依各類片段的平均 token 成本累加，不建立子字串也不使用 regex。
+ * CJK 成本以千分比累加後無條件進位，反映繁體中文在常見 tokenizer 中較低的合併率。</p>
+ */
+public final class CharClassTokenEstimator implements TokenEstimator {
+
+    /**
+     * 成本參數：每個 token 平均涵蓋的英文字母數與每個 CJK 字元的 token 成本（千分比）。
+     * STANDARD 對應一般模型；COMPACT 對應合併率較高的新一代 OpenAI 模型（gpt-4o 等）。
+     */
+    public enum Profile {
+        STANDARD("standard", 6, 1400),
+        COMPACT("compact", 7, 1000);
+
+        private final String id;
+        private final int lettersPerToken;
+        private final int cjkPermille;
+
+        Profile(String id, int lettersPerToken, int cjkPermille) {
+            this.id = id;
+            this.lettersPerToken = lettersPerToken;
+            this.cjkPermille = cjkPermille;
+        }
+
+        public String id() {
+            return id;
+        }
+    }
+
+    private static final int DIGITS_PER_TOKEN = 3;
+    private static final int OTHER_LETTERS_PER_TOKEN = 3;
+    private static final int PUNCTUATION_PER_TOKEN = 2;
+
+    private static final int CLASS_NONE = 0;
+    private static final int CLASS_LATIN = 1;
+    private static final int CLASS_DIGIT = 2;
+    private static final int CLASS_OTHER_LETTER = 3;
+    private static final int CLASS_PUNCTUATION = 4;
+    private static final int CLASS_NEWLINE = 5;
+
+    private static final byte[] ASCII_CLASSES = new byte[128];
+
+    static {
+        for (int ch = 0; ch < ASCII_CLASSES.length; ch++) {
+            ASCII_CLASSES[ch] = (byte) classify(ch);
+        }
+    }
+
+    private final Profile profile;
+
+    public CharClassTokenEstimator(Profile profile) {
+        this.profile = profile;
+    }
+
+    public Profile profile() {
+        return profile;
+    }
+
+    @Override
+    public long estimate(CharSequence text) {
+        if (text == null || text.isEmpty()) {
+            return 0L;
+        }
+
+        long tokens = 0L;
+        long cjkPermille = 0L;
+        int runClass = CLASS_NONE;
+        int runLength = 0;
+        boolean nonBlank = false;
+
+        int index = 0;
+        int length = text.length();
+        while (index < length) {
+            char ch = text.charAt(index++);
+            int charClass;
+            if (ch < ASCII_CLASSES.length) {
+                // ASCII 快速路徑：查表分類，不呼叫 Character 的 Unicode 判斷
+                charClass = ASCII_CLASSES[ch];
+            } else {
+                int codePoint = ch;
+                boolean supplementary = false;
+                if (Character.isHighSurrogate(ch) && index < length && Character.isLowSurrogate(text.charAt(index))) {
+                    codePoint = Character.toCodePoint(ch, text.charAt(index++));
+                    supplementary = true;
+                }
+                if (isCjk(codePoint)) {
+                    tokens += runTokens(runClass, runLength);
+                    runClass = CLASS_NONE;
+                    runLength = 0;
+                    cjkPermille += profile.cjkPermille;
+                    nonBlank = true;
+                    continue;
+                }
+                charClass = classify(codePoint);
+                if (supplementary && charClass == CLASS_PUNCTUATION) {
+                    // emoji 等補充平面符號在 byte-level tokenizer 通常拆為多個 token
+                    tokens += runTokens(runClass, runLength) + 2;
+                    runClass = CLASS_NONE;
+                    runLength = 0;
+                    nonBlank = true;
+                    continue;
+                }
+            }
+
+            if (charClass == CLASS_NONE) {
+                // 一般空白會與下一個字詞合併（" word" 為單一 token），只結束目前片段
+                tokens += runTokens(runClass, runLength);
+                runClass = CLASS_NONE;
+                runLength = 0;
+                continue;
+            }
+            nonBlank |= charClass != CLASS_NEWLINE;
+            if (charClass != runClass) {
+                tokens += runTokens(runClass, runLength);
+                runClass = charClass;
+                runLength = 0;
+            }
+            runLength++;
+        }
+        tokens += runTokens(runClass, runLength);
+        tokens += (cjkPermille + 999L) / 1000L;
+
+        if (!nonBlank) {
+            return 0L;
+        }
+        return Math.max(1L, tokens);
+    }
+
+    @Override
+    public String name() {
+        return "char-class-" + profile.id;
+    }
+
+    private long runTokens(int runClass, int runLength) {
+        if (runLength == 0) {
+            return 0L;
+        }
+        return switch (runClass) {
+            case CLASS_LATIN -> ceilDiv(runLength, profile.lettersPerToken);
+            case CLASS_DIGIT -> ceilDiv(runLength, DIGITS_PER_TOKEN);
+            case CLASS_OTHER_LETTER -> ceilDiv(runLength, OTHER_LETTERS_PER_TOKEN);
+            case CLASS_PUNCTUATION -> ceilDiv(runLength, PUNCTUATION_PER_TOKEN);
+            case CLASS_NEWLINE -> 1L;
+            default -> 0L;
+        };
+    }
+
+    private static int classify(int codePoint) {
+        if (codePoint == '\n' || codePoint == '\r') {
+            return CLASS_NEWLINE;
+        }
+        if (Character.isWhitespace(codePoint)) {
+            return CLASS_NONE;
+        }
+        if ((codePoint >= 'a' && codePoint <= 'z') || (codePoint >= 'A' && codePoint <= 'Z') || codePoint == '\'') {
+            return CLASS_LATIN;
+        }
+        if (codePoint >= '0' && codePoint <= '9') {
+            return CLASS_DIGIT;
+        }
+        if (Character.isLetter(codePoint)) {
+            return codePoint < 0x250 ? CLASS_LATIN : CLASS_OTHER_LETTER;
+        }
+        return CLASS_PUNCTUATION;
+    }
+
+    private static boolean isCjk(int codePoint) {
+        return (codePoint >= 0x4E00 && codePoint <= 0x9FFF)      // CJK Unified Ideographs
+                || (codePoint >= 0x3400 && codePoint <= 0x4DBF)  // Extension A
+                || (codePoint >= 0x20000 && codePoint <= 0x2FA1F) // Extension B+ / Compatibility Supplement
+                || (codePoint >= 0xF900 && codePoint <= 0xFAFF)  // Compatibility Ideographs
+                || (codePoint >= 0x3040 && codePoint <= 0x30FF)  // Hiragana / Katakana
+                || (codePoint >= 0xAC00 && codePoint <= 0xD7AF)  // Hangul
+                || (codePoint >= 0x3000 && codePoint <= 0x303F)  // CJK 標點
+                || (codePoint >= 0xFF00 && codePoint <= 0xFFEF); // 全形字元
+    }
+
+    private static long ceilDiv(int value, int divisor) {
+        return (value + divisor - 1L) / divisor;
+    }
+}
@@ -0,0 +1,9 @@
+package com.teamwork.gateway.ai;
+
+public record ChatModelCacheMetricsSnapshot(
+        int cachedModels,
+        long hits,
+        long builds,
+        long invalidations,
+        long endpointPermitTimeouts) {
+}
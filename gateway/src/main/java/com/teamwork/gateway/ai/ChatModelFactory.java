@@ -1,36 +1,178 @@
 package com.teamwork.gateway.ai;
 
 import com.teamwork.gateway.entity.AiModel;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.client.ChatClient;
 import org.springframework.ai.chat.model.ChatModel;
 import org.springframework.ai.openai.OpenAiChatModel;
 import org.springframework.ai.openai.OpenAiChatOptions;
 import org.springframework.ai.openai.api.OpenAiApi;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.http.client.JdkClientHttpRequestFactory;
+import org.springframework.http.client.reactive.JdkClientHttpConnector;
 import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestClient;
+import org.springframework.web.reactive.function.client.ExchangeFilterFunction;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 依 {@link AiModel} 建立 ChatModel，並以 AiModel id 快取已建立的實例（同時快取包裝它的 ChatClient）。
+ * <p>快取項目記錄建立時的設定雜湊（provider、模型名稱、API key、endpoint），ai_models 資料列改變後雜湊不同，
+ * 下一次取得時重建並取代舊實例；也可由呼叫端以 {@link #invalidate(String)} 主動移除。</p>
+ * <p>所有模型共用兩個 JDK HttpClient：https endpoint 使用 HTTP/2（ALPN 協商，同一 endpoint 的請求多工在少數連線上），
+ * http endpoint 使用 HTTP/1.1（避免對不支援 h2c 的自架服務送出 Upgrade）；連線保持 keep-alive 重用，
+ * 不再每個任務重做 TLS handshake。每個 endpoint 同時送出的請求數另有上限，RestClient（同步呼叫）與
+ * WebClient（串流）共用同一組 permit，串流請求在回應內容讀完前持續佔用。</p>
+ * <p>真正的排隊發生在 {@code TaskAdmissionController}；endpoint 上限只是防止單一 host 被打爆的保險，
+ * 預設值高於每模型 admission 上限，等待 permit 超過 acquire timeout 即讓該次呼叫失敗，不會無限期卡住。</p>
+ */
+@Slf4j
 @Component
 public class ChatModelFactory {
 
+    static final String DEFAULT_OPENAI_BASE_URL = "https://api.openai.com";
+
+    private final HttpClient http2Client;
+    private final HttpClient http1Client;
+    private final JdkClientHttpRequestFactory http2RequestFactory;
+    private final JdkClientHttpRequestFactory http1RequestFactory;
+    private final int maxConcurrentRequestsPerEndpoint;
+    private final long endpointAcquireTimeoutMs;
+    private final Map<String, CachedChatModel> models;
+    private final Map<String, Semaphore> endpointPermits = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder builds = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder endpointPermitTimeouts = new LongAdder();
+
+    @Autowired
+    public ChatModelFactory(
+            @Value("${gateway.ai.http.connect-timeout-ms:10000}") long connectTimeoutMs,
+            @Value("${gateway.ai.http.read-timeout-ms:300000}") long readTimeoutMs,
+            @Value("${gateway.ai.http.max-concurrent-requests-per-endpoint:256}") int maxConcurrentRequestsPerEndpoint,
+            @Value("${gateway.ai.http.endpoint-acquire-timeout-ms:30000}") long endpointAcquireTimeoutMs,
+            @Value("${gateway.ai.chat-model-cache.max-entries:32}") int maxEntries) {
+        Duration connectTimeout = Duration.ofMillis(Math.max(1L, connectTimeoutMs));
+        Duration readTimeout = Duration.ofMillis(Math.max(1L, readTimeoutMs));
+        this.http2Client = newHttpClient(HttpClient.Version.HTTP_2, connectTimeout);
+        this.http1Client = newHttpClient(HttpClient.Version.HTTP_1_1, connectTimeout);
+        this.http2RequestFactory = new JdkClientHttpRequestFactory(http2Client);
+        this.http2RequestFactory.setReadTimeout(readTimeout);
+        this.http1RequestFactory = new JdkClientHttpRequestFactory(http1Client);
+        this.http1RequestFactory.setReadTimeout(readTimeout);
+        this.maxConcurrentRequestsPerEndpoint = maxConcurrentRequestsPerEndpoint;
+        this.endpointAcquireTimeoutMs = Math.max(1L, endpointAcquireTimeoutMs);
+        int capacity = Math.max(1, maxEntries);
+        this.models = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedChatModel> eldest) {
+                return size() > capacity;
+            }
+        });
+    }
+
     public ChatModel createChatModel(AiModel aiModel) {
         if (!aiModel.isActive()) {
             throw new IllegalArgumentException("AI Model " + aiModel.getName() + " is currently inactive.");
         }
 
-        return switch (aiModel.getProvider().toUpperCase()) {
+        String configHash = configHash(aiModel);
+        CachedChatModel cached = models.get(aiModel.getId());
+        if (cached != null && cached.configHash().equals(configHash)) {
+            hits.increment();
+            return cached.chatModel();
+        }
+
+        ChatModel chatModel = switch (aiModel.getProvider().toUpperCase()) {
             case "OPENAI" -> createOpenAiModel(aiModel);
             // Future providers like ANTHROPIC, OLLAMA can be added here
             default -> throw new UnsupportedOperationException("Unsupported AI Provider: " + aiModel.getProvider());
         };
+        builds.increment();
+        if (cached != null) {
+            invalidations.increment();
+            log.info("AI model config changed, rebuilding ChatModel. aiModelId={}, name={}", aiModel.getId(), aiModel.getName());
+        }
+        models.put(aiModel.getId(), new CachedChatModel(configHash, chatModel, ChatClient.create(chatModel)));
+        return chatModel;
+    }
+
+    /**
+     * 取得包裝此 ChatModel 的預設 ChatClient；ChatModel 由本工廠建立時重用快取的實例。
+     */
+    public ChatClient chatClient(ChatModel chatModel) {
+        synchronized (models) {
+            for (CachedChatModel cached : models.values()) {
+                if (cached.chatModel() == chatModel) {
+                    return cached.chatClient();
+                }
+            }
+        }
+        return ChatClient.create(chatModel);
+    }
+
+    /**
+     * 移除指定 AiModel 的快取（資料列刪除或停用時呼叫）。
+     */
+    public void invalidate(String aiModelId) {
+        if (aiModelId != null && models.remove(aiModelId) != null) {
+            invalidations.increment();
+        }
+    }
+
+    public ChatModelCacheMetricsSnapshot getMetricsSnapshot() {
+        return new ChatModelCacheMetricsSnapshot(
+                models.size(), hits.sum(), builds.sum(), invalidations.sum(), endpointPermitTimeouts.sum());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        models.clear();
+        http2Client.shutdownNow();
+        http1Client.shutdownNow();
     }
 
     private ChatModel createOpenAiModel(AiModel aiModel) {
         // Fallback to OpenAI's default API URL if not specified
         String baseUrl = (aiModel.getEndpointUrl() != null && !aiModel.getEndpointUrl().trim().isEmpty())
                 ? aiModel.getEndpointUrl()
-                : "https://api.openai.com";
+                : DEFAULT_OPENAI_BASE_URL;
 
+        boolean secure = isHttps(baseUrl);
         OpenAiApi openAiApi = OpenAiApi.builder()
                 .baseUrl(baseUrl)
                 .apiKey(aiModel.getApiKey())
+                .restClientBuilder(RestClient.builder()
+                        .requestFactory(secure ? http2RequestFactory : http1RequestFactory)
+                        .requestInterceptor(endpointLimiter()))
+                .webClientBuilder(WebClient.builder()
+                        .clientConnector(new JdkClientHttpConnector(httpClientFor(baseUrl)))
+                        .filter(reactiveEndpointLimiter()))
                 .build();
 
         OpenAiChatOptions options = OpenAiChatOptions.builder()
@@ -43,4 +185,124 @@ public class ChatModelFactory {
                 .defaultOptions(options)
                 .build();
     }
+
+    /**
+     * https 使用 HTTP/2 client，其餘（http）使用 HTTP/1.1 client。
+     */
+    HttpClient httpClientFor(String baseUrl) {
+        return isHttps(baseUrl) ? http2Client : http1Client;
+    }
+
+    /**
+     * 限制每個 endpoint（scheme + host + port）同時送出的請求數；上限為 0 代表不限制。
+     * 等待超過 acquire timeout 時丟出 {@link HttpTimeoutException}，由 RestClient 包成 ResourceAccessException。
+     */
+    ClientHttpRequestInterceptor endpointLimiter() {
+        return (request, body, execution) -> {
+            if (maxConcurrentRequestsPerEndpoint <= 0) {
+                return execution.execute(request, body);
+            }
+            String endpoint = endpointOf(request.getURI());
+            Semaphore permits = permitsFor(endpoint);
+            try {
+                if (!permits.tryAcquire(endpointAcquireTimeoutMs, TimeUnit.MILLISECONDS)) {
+                    throw permitTimeout(endpoint);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for endpoint permit: " + endpoint);
+            }
+            try {
+                return execution.execute(request, body);
+            } finally {
+                permits.release();
+            }
+        };
+    }
+
+    /**
+     * WebClient 版的 endpoint 上限，與 {@link #endpointLimiter()} 共用 permit：
+     * 有空位時直接取得，否則在 boundedElastic 上等待（不阻塞 event loop），超過 acquire timeout 以
+     * {@link HttpTimeoutException} 結束；permit 在回應內容結束（完成、錯誤或取消）或請求失敗時歸還。
+     */
+    ExchangeFilterFunction reactiveEndpointLimiter() {
+        return (request, next) -> {
+            if (maxConcurrentRequestsPerEndpoint <= 0) {
+                return next.exchange(request);
+            }
+            String endpoint = endpointOf(request.url());
+            Semaphore permits = permitsFor(endpoint);
+            Mono<Runnable> acquired = permits.tryAcquire()
+                    ? Mono.just(releaseOnce(permits))
+                    : Mono.fromCallable(() -> {
+                        if (!permits.tryAcquire(endpointAcquireTimeoutMs, TimeUnit.MILLISECONDS)) {
+                            throw permitTimeout(endpoint);
+                        }
+                        return releaseOnce(permits);
+                    }).subscribeOn(Schedulers.boundedElastic());
+            return acquired.flatMap(release -> next.exchange(request)
+                    .map(response -> response.mutate()
+                            .body(body -> body.doFinally(signal -> release.run()))
+                            .build())
+                    .doOnError(ex -> release.run())
+                    .doOnCancel(release));
+        };
+    }
+
+    private Semaphore permitsFor(String endpoint) {
+        return endpointPermits.computeIfAbsent(endpoint, ignored -> new Semaphore(maxConcurrentRequestsPerEndpoint));
+    }
+
+    private HttpTimeoutException permitTimeout(String endpoint) {
+        endpointPermitTimeouts.increment();
+        log.warn("Endpoint permit timeout after {}ms. endpoint={}, maxConcurrent={}",
+                endpointAcquireTimeoutMs, endpoint, maxConcurrentRequestsPerEndpoint);
+        return new HttpTimeoutException("Endpoint permit timeout after " + endpointAcquireTimeoutMs
+                + "ms: " + endpoint);
+    }
+
+    private static Runnable releaseOnce(Semaphore permits) {
+        AtomicBoolean released = new AtomicBoolean();
+        return () -> {
+            if (released.compareAndSet(false, true)) {
+                permits.release();
+            }
+        };
+    }
+
+    private static String endpointOf(URI uri) {
+        return uri.getScheme() + "://" + uri.getAuthority();
+    }
+
+    private static boolean isHttps(String baseUrl) {
+        return baseUrl.regionMatches(true, 0, "https:", 0, "https:".length());
+    }
+
+    private static HttpClient newHttpClient(HttpClient.Version version, Duration connectTimeout) {
+        return HttpClient.newBuilder()
+                .version(version)
+                .connectTimeout(connectTimeout)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build();
+    }
+
+    static String configHash(AiModel aiModel) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String part : List.of(
+                    String.valueOf(aiModel.getProvider()),
+                    String.valueOf(aiModel.getName()),
+                    String.valueOf(aiModel.getApiKey()),
+                    String.valueOf(aiModel.getEndpointUrl()))) {
+                digest.update(part.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 not available", ex);
+        }
+    }
+
+    private record CachedChatModel(String configHash, ChatModel chatModel, ChatClient chatClient) {
+    }
 }
@@ -0,0 +1,34 @@
+package com.teamwork.gateway.ai;
+
+/**
+ * 以「每 4 個字元約 1 token」粗估，保留作為相容與對照用的估算器。
+ */
+public final class HeuristicTokenEstimator implements TokenEstimator {
+
+    public static final HeuristicTokenEstimator INSTANCE = new HeuristicTokenEstimator();
+
+    private HeuristicTokenEstimator() {
+    }
+
+    @Override
+    public long estimate(CharSequence text) {
+        if (text == null || isBlank(text)) {
+            return 0L;
+        }
+        return Math.max(1, (text.length() + 3L) / 4L);
+    }
+
+    @Override
+    public String name() {
+        return "heuristic";
+    }
+
+    static boolean isBlank(CharSequence text) {
+        for (int index = 0; index < text.length(); index++) {
+            if (!Character.isWhitespace(text.charAt(index))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
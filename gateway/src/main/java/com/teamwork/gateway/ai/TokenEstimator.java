@@ -0,0 +1,18 @@
+package com.teamwork.gateway.ai;
+
+/**
+ * Token 數估算 SPI，供壓縮閾值、記憶體預算與排程 context 上限共用。
+ * <p>實作必須是 thread-safe 且無狀態（或只持有唯讀快取），會在 chat 熱路徑上被頻繁呼叫。</p>
+ */
+public interface TokenEstimator {
+
+    /**
+     * 估算文字的 token 數；null 或空白回傳 0，其餘至少為 1。
+     */
+    long estimate(CharSequence text);
+
+    /**
+     * 估算器識別名稱（用於設定與觀測）。
+     */
+    String name();
+}
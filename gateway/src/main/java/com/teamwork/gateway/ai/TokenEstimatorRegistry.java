@@ -0,0 +1,91 @@
+package com.teamwork.gateway.ai;
+
+import com.teamwork.gateway.entity.AiModel;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 依設定與 AiModel 選擇 TokenEstimator；估算器實例在啟動時建立並重複使用。
+ */
+@Component
+public class TokenEstimatorRegistry {
+
+    /** 使用 COMPACT 成本參數的 OpenAI 模型名稱前綴。 */
+    private static final List<String> COMPACT_MODEL_PREFIXES = List.of("gpt-4o", "gpt-4.1", "gpt-5", "o1", "o3", "o4");
+
+    private final boolean heuristic;
+    private final TokenEstimator defaultEstimator;
+    private final Map<CharClassTokenEstimator.Profile, TokenEstimator> charClassEstimators =
+            new EnumMap<>(CharClassTokenEstimator.Profile.class);
+    private final Map<String, TokenEstimator> modelEstimators = new ConcurrentHashMap<>();
+
+    @Autowired
+    public TokenEstimatorRegistry(
+            @Value("${gateway.token-estimator.type:char-class}") String type,
+            @Value("${gateway.token-estimator.default-profile:standard}") String defaultProfile) {
+        for (CharClassTokenEstimator.Profile profile : CharClassTokenEstimator.Profile.values()) {
+            charClassEstimators.put(profile, new CharClassTokenEstimator(profile));
+        }
+        this.heuristic = "heuristic".equalsIgnoreCase(type.trim());
+        this.defaultEstimator = heuristic
+                ? HeuristicTokenEstimator.INSTANCE
+                : charClassEstimators.get(resolveProfile(defaultProfile));
+    }
+
+    /** 以指定類型建立，成本參數使用 STANDARD。 */
+    public TokenEstimatorRegistry(String type) {
+        this(type, "standard");
+    }
+
+    /**
+     * 未綁定特定模型時（例如 Redis 中的對話 token 計數）使用的估算器。
+     */
+    public TokenEstimator defaultEstimator() {
+        return defaultEstimator;
+    }
+
+    /**
+     * 依模型名稱選擇成本參數；heuristic 模式或無法辨識時回傳預設估算器。
+     */
+    public TokenEstimator forModel(AiModel aiModel) {
+        if (heuristic || aiModel == null || aiModel.getName() == null) {
+            return defaultEstimator;
+        }
+        return modelEstimators.computeIfAbsent(aiModel.getName().trim().toLowerCase(Locale.ROOT), this::resolveForModelName);
+    }
+
+    /**
+     * 以預設估算器估算 token 數。
+     */
+    public long estimate(CharSequence text) {
+        return defaultEstimator.estimate(text);
+    }
+
+    private TokenEstimator resolveForModelName(String modelName) {
+        for (String prefix : COMPACT_MODEL_PREFIXES) {
+            if (modelName.startsWith(prefix)) {
+                return charClassEstimators.get(CharClassTokenEstimator.Profile.COMPACT);
+            }
+        }
+        if (modelName.startsWith("gpt-")) {
+            return charClassEstimators.get(CharClassTokenEstimator.Profile.STANDARD);
+        }
+        return defaultEstimator;
+    }
+
+    private CharClassTokenEstimator.Profile resolveProfile(String value) {
+        for (CharClassTokenEstimator.Profile profile : CharClassTokenEstimator.Profile.values()) {
+            if (profile.id().equalsIgnoreCase(value.trim())) {
+                return profile;
+            }
+        }
+        throw new IllegalArgumentException("Unsupported token estimator profile: " + value);
+    }
+}
@@ -0,0 +1,25 @@
+package com.teamwork.gateway.config;
+
+import com.teamwork.gateway.agent.AgentConfigCache;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+/**
+ * 訂閱其他節點廣播的 AiModel / AgentProfile 變更，讓各節點的 {@link AgentConfigCache} 一起失效。
+ */
+@Configuration
+public class AgentConfigSyncConfig {
+
+    @Bean
+    public RedisMessageListenerContainer agentConfigListenerContainer(
+            RedisConnectionFactory connectionFactory,
+            AgentConfigCache agentConfigCache) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        container.addMessageListener(agentConfigCache, new ChannelTopic(AgentConfigCache.CHANNEL));
+        return container;
+    }
+}
@@ -3,7 +3,11 @@ package com.teamwork.gateway.config;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.aop.interceptor.AsyncUncaughtExceptionHandler;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
 import org.springframework.scheduling.annotation.AsyncConfigurer;
 import org.springframework.scheduling.annotation.EnableAsync;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
@@ -11,20 +15,48 @@ import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import java.lang.reflect.Method;
 import java.util.concurrent.Executor;
 
+/**
+ * {@code @Async} 執行緒設定。
+ * <p>預設 {@code gateway.async.mode=virtual}：每個任務一條 virtual thread，任務大多在等待 LLM 回應，
+ * 不再受固定執行緒數與佇列容量限制；並行上限改由 {@link com.teamwork.gateway.agent.TaskAdmissionController}
+ * 依租戶與模型控制。{@code platform} 保留原本的固定執行緒池。</p>
+ * <p>關閉時等待執行中的任務最多 drain-timeout，逾時才中斷。</p>
+ */
 @Configuration
 @EnableAsync
-public class AsyncConfig implements AsyncConfigurer {
+public class AsyncConfig implements AsyncConfigurer, DisposableBean {
 
     private static final Logger logger = LoggerFactory.getLogger(AsyncConfig.class);
 
+    static final String THREAD_NAME_PREFIX = "MasterAgent-Worker-";
+
+    private final String mode;
+    private final int corePoolSize;
+    private final int maxPoolSize;
+    private final int queueCapacity;
+    private final long drainTimeoutMs;
+    private Executor executor;
+
+    @Autowired
+    public AsyncConfig(
+            @Value("${gateway.async.mode:virtual}") String mode,
+            @Value("${gateway.async.platform.core-pool-size:5}") int corePoolSize,
+            @Value("${gateway.async.platform.max-pool-size:20}") int maxPoolSize,
+            @Value("${gateway.async.platform.queue-capacity:100}") int queueCapacity,
+            @Value("${gateway.async.drain-timeout-ms:30000}") long drainTimeoutMs) {
+        this.mode = mode == null ? "virtual" : mode.trim().toLowerCase();
+        this.corePoolSize = corePoolSize;
+        this.maxPoolSize = maxPoolSize;
+        this.queueCapacity = queueCapacity;
+        this.drainTimeoutMs = Math.max(0L, drainTimeoutMs);
+    }
+
     @Override
-    public Executor getAsyncExecutor() {
-        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
-        executor.setCorePoolSize(5); // 核心執行緒數
-        executor.setMaxPoolSize(20); // 最大執行緒數
-        executor.setQueueCapacity(100); // 佇列等待容量
-        executor.setThreadNamePrefix("MasterAgent-Worker-");
-        executor.initialize();
+    public synchronized Executor getAsyncExecutor() {
+        if (executor == null) {
+            executor = "platform".equals(mode) ? platformExecutor() : virtualExecutor();
+            logger.info("Async executor initialized. mode={}", mode);
+        }
         return executor;
     }
 
@@ -33,6 +65,38 @@ public class AsyncConfig implements AsyncConfigurer {
         return new CustomAsyncExceptionHandler();
     }
 
+    /**
+     * executor 不是 Spring bean（避免取代 Boot 的 applicationTaskExecutor），由這裡負責關閉。
+     * 執行於 SmartLifecycle stop 之後，此時准入控制已停止接收新任務。
+     */
+    @Override
+    public synchronized void destroy() {
+        if (executor instanceof SimpleAsyncTaskExecutor simple) {
+            simple.close();
+        } else if (executor instanceof ThreadPoolTaskExecutor pool) {
+            pool.shutdown();
+        }
+    }
+
+    private Executor virtualExecutor() {
+        SimpleAsyncTaskExecutor virtual = new SimpleAsyncTaskExecutor(THREAD_NAME_PREFIX);
+        virtual.setVirtualThreads(true);
+        virtual.setTaskTerminationTimeout(drainTimeoutMs);
+        return virtual;
+    }
+
+    private Executor platformExecutor() {
+        ThreadPoolTaskExecutor pool = new ThreadPoolTaskExecutor();
+        pool.setCorePoolSize(corePoolSize); // 核心執行緒數
+        pool.setMaxPoolSize(maxPoolSize); // 最大執行緒數
+        pool.setQueueCapacity(queueCapacity); // 佇列等待容量
+        pool.setThreadNamePrefix(THREAD_NAME_PREFIX);
+        pool.setWaitForTasksToCompleteOnShutdown(true);
+        pool.setAwaitTerminationMillis(drainTimeoutMs);
+        pool.initialize();
+        return pool;
+    }
+
     public static class CustomAsyncExceptionHandler implements AsyncUncaughtExceptionHandler {
         @Override
         public void handleUncaughtException(Throwable ex, Method method, Object... params) {
@@ -0,0 +1,25 @@
+package com.teamwork.gateway.config;
+
+import com.teamwork.gateway.memory.ConversationNearCache;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+/**
+ * 訂閱其他節點廣播的對話失效，讓各節點的 {@link ConversationNearCache} 一起丟棄該對話的快取。
+ */
+@Configuration
+public class ConversationNearCacheSyncConfig {
+
+    @Bean
+    public RedisMessageListenerContainer conversationNearCacheListenerContainer(
+            RedisConnectionFactory connectionFactory,
+            ConversationNearCache conversationNearCache) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        container.addMessageListener(conversationNearCache, new ChannelTopic(ConversationNearCache.CHANNEL));
+        return container;
+    }
+}
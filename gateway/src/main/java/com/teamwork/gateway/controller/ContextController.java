@@ -7,6 +7,8 @@ import com.teamwork.gateway.dto.ContextDeleteResponse;
 import com.teamwork.gateway.service.ContextMutationService;
 import com.teamwork.gateway.service.ContextQueryService;
 import lombok.RequiredArgsConstructor;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
@@ -14,6 +16,7 @@ import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 @RestController
 @RequestMapping("/agents/context")
@@ -27,8 +30,10 @@ public class ContextController {
     public AgentContextUsageResponse getContextUsage(
             @RequestParam(required = false) String agentName,
             @RequestParam(required = false) String taskId,
-            @RequestParam(required = false) String status) {
-        return new AgentContextUsageResponse(contextQueryService.findUsage(agentName, taskId, status));
+            @RequestParam(required = false) String status,
+            @RequestParam(defaultValue = "0") int page,
+            @RequestParam(defaultValue = "50") int size) {
+        return contextQueryService.findUsage(agentName, taskId, status, page, size);
     }
 
     @GetMapping("/{taskId}")
@@ -36,6 +41,19 @@ public class ContextController {
         return contextQueryService.getFullContext(taskId);
     }
 
+    /**
+     * 以 NDJSON 串流匯出上下文訊息，支援 offset/limit，適合檢視超長對話。
+     */
+    @GetMapping(value = "/{taskId}/messages", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> streamContextMessages(
+            @PathVariable String taskId,
+            @RequestParam(defaultValue = "0") long offset,
+            @RequestParam(required = false) Long limit) {
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .body(contextQueryService.streamFullContext(taskId, offset, limit));
+    }
+
     @DeleteMapping("/{taskId}")
     public ContextDeleteResponse deleteContext(@PathVariable String taskId, @RequestBody ContextDeleteRequest request) {
         return contextMutationService.deleteContext(taskId, request);
@@ -2,5 +2,10 @@ package com.teamwork.gateway.dto;
 
 import java.util.List;
 
-public record AgentContextUsageResponse(List<AgentContextUsageItem> items) {
+public record AgentContextUsageResponse(
+        List<AgentContextUsageItem> items,
+        int page,
+        int size,
+        boolean hasNext
+) {
 }
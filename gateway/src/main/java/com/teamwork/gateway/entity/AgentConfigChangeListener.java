@@ -0,0 +1,32 @@
+package com.teamwork.gateway.entity;
+
+import com.teamwork.gateway.event.AgentConfigChangedEvent;
+import jakarta.persistence.PostPersist;
+import jakarta.persistence.PostRemove;
+import jakarta.persistence.PostUpdate;
+import lombok.RequiredArgsConstructor;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.stereotype.Component;
+
+/**
+ * {@link AiModel} 與 {@link AgentProfile} 的 JPA 實體監聽器：寫入後發出 {@link AgentConfigChangedEvent}。
+ * <p>由 Spring 建立（Hibernate 透過 SpringBeanContainer 取得 bean），事件在交易提交後才被快取處理。</p>
+ */
+@Component
+@RequiredArgsConstructor
+public class AgentConfigChangeListener {
+
+    private final ApplicationEventPublisher eventPublisher;
+
+    @PostPersist
+    @PostUpdate
+    @PostRemove
+    public void onChange(Object entity) {
+        if (entity instanceof AiModel model) {
+            eventPublisher.publishEvent(new AgentConfigChangedEvent(this, AgentConfigChangedEvent.AI_MODEL, model.getId()));
+        } else if (entity instanceof AgentProfile profile) {
+            eventPublisher.publishEvent(
+                    new AgentConfigChangedEvent(this, AgentConfigChangedEvent.AGENT_PROFILE, profile.getId()));
+        }
+    }
+}
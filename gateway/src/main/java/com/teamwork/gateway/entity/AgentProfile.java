@@ -2,6 +2,7 @@ package com.teamwork.gateway.entity;
 
 import jakarta.persistence.Column;
 import jakarta.persistence.Entity;
+import jakarta.persistence.EntityListeners;
 import jakarta.persistence.Id;
 import jakarta.persistence.Table;
 import lombok.Data;
@@ -12,6 +13,7 @@ import java.util.UUID;
 @Data
 @NoArgsConstructor
 @Entity
+@EntityListeners(AgentConfigChangeListener.class)
 @Table(name = "agent_profiles")
 public class AgentProfile {
 
@@ -0,0 +1,64 @@
+package com.teamwork.gateway.entity;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.PrePersist;
+import jakarta.persistence.Table;
+import jakarta.persistence.UniqueConstraint;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * 對話訊息冷儲存：壓縮時被摘要取代的原始訊息，以及閒置後移出 Redis 的整段對話。
+ * <p>payload 保存 Redis 中的原始編碼，回填時原封不動寫回；id 由 Hibernate 產生，批次寫入不需先查詢。</p>
+ * <p>(conversation_id, seq) 唯一：兩個封存者算出相同的起始 seq 時，後提交者失敗並整批回滾，不會交錯寫入。
+ * 同一次寫入的所有列帶相同 batch_id，撤銷或回填後只刪除自己的那一批。</p>
+ */
+@Data
+@NoArgsConstructor
+@Entity
+@Table(name = "chat_message_archives",
+        uniqueConstraints = @UniqueConstraint(
+                name = "uk_chat_message_archives_conversation_seq", columnNames = {"conversation_id", "seq"}),
+        indexes = @Index(name = "idx_chat_message_archives_conversation_batch", columnList = "conversation_id, batch_id"))
+public class ChatMessageArchive {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.UUID)
+    private String id;
+
+    @Column(name = "conversation_id", nullable = false)
+    private String conversationId;
+
+    /** 同一對話內的封存順序 */
+    @Column(name = "seq", nullable = false)
+    private Long seq;
+
+    /** 同一次寫入共用的批次 id；加入批次 id 前的舊資料為 null */
+    @Column(name = "batch_id", length = 36)
+    private String batchId;
+
+    /** COMPACTED: 壓縮時移出；IDLE: 閒置封存，可回填 */
+    @Column(name = "reason", nullable = false, length = 20)
+    private String reason;
+
+    @Column(name = "tokens")
+    private Long tokens;
+
+    @Column(name = "payload", nullable = false, columnDefinition = "TEXT")
+    private String payload;
+
+    @Column(name = "archived_at", updatable = false)
+    private LocalDateTime archivedAt;
+
+    @PrePersist
+    protected void onCreate() {
+        archivedAt = LocalDateTime.now();
+    }
+}
@@ -0,0 +1,53 @@
+package com.teamwork.gateway.entity;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.PrePersist;
+import jakarta.persistence.Table;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * 持久化任務佇列：每個待執行的 task_records 一筆，與任務在同一交易寫入，重啟或部署不會遺失。
+ * <p>節點以 {@code FOR UPDATE SKIP LOCKED} 批次認領，認領後持有 lease 直到執行結束刪除；
+ * lease 逾期（節點當機或心跳中斷）後任何節點都可重新認領。時間欄位為 epoch 毫秒，避免節點時區不同。</p>
+ */
+@Data
+@NoArgsConstructor
+@Entity
+@Table(name = "task_queue", indexes = {
+        @Index(name = "idx_task_queue_available_at", columnList = "available_at")
+})
+public class TaskQueueEntry {
+
+    @Id
+    @Column(name = "task_id")
+    private String taskId;
+
+    /** 已被認領的次數，超過上限即不再派發 */
+    @Column(name = "attempts", nullable = false)
+    private int attempts;
+
+    /** 可被認領的最早時間 */
+    @Column(name = "available_at", nullable = false)
+    private long availableAt;
+
+    /** 持有 lease 的節點；null 代表尚未認領 */
+    @Column(name = "lease_owner")
+    private String leaseOwner;
+
+    @Column(name = "lease_expires_at")
+    private Long leaseExpiresAt;
+
+    @Column(name = "enqueued_at", updatable = false)
+    private LocalDateTime enqueuedAt;
+
+    @PrePersist
+    protected void onCreate() {
+        enqueuedAt = LocalDateTime.now();
+    }
+}
@@ -0,0 +1,29 @@
+package com.teamwork.gateway.event;
+
+import org.springframework.context.ApplicationEvent;
+
+/**
+ * ai_models 或 agent_profiles 資料列新增、修改或刪除；快取據此失效。
+ */
+public class AgentConfigChangedEvent extends ApplicationEvent {
+
+    public static final String AI_MODEL = "AI_MODEL";
+    public static final String AGENT_PROFILE = "AGENT_PROFILE";
+
+    private final String entityType;
+    private final String entityId;
+
+    public AgentConfigChangedEvent(Object source, String entityType, String entityId) {
+        super(source);
+        this.entityType = entityType;
+        this.entityId = entityId;
+    }
+
+    public String getEntityType() {
+        return entityType;
+    }
+
+    public String getEntityId() {
+        return entityId;
+    }
+}
@@ -0,0 +1,30 @@
+package com.teamwork.gateway.event;
+
+import com.teamwork.gateway.memory.ChatMessageDto;
+import org.springframework.context.ApplicationEvent;
+
+import java.util.List;
+
+/**
+ * 壓縮時一段原始訊息被摘要取代並移入冷儲存；長期記憶據此建立檢索索引。
+ */
+public class ContextSegmentCompactedEvent extends ApplicationEvent {
+
+    private final String taskId;
+    /** ChatMessageDto 不可序列化，與 EventObject 的 source 一樣不隨事件序列化 */
+    private final transient List<ChatMessageDto> messages;
+
+    public ContextSegmentCompactedEvent(Object source, String taskId, List<ChatMessageDto> messages) {
+        super(source);
+        this.taskId = taskId;
+        this.messages = List.copyOf(messages);
+    }
+
+    public String getTaskId() {
+        return taskId;
+    }
+
+    public List<ChatMessageDto> getMessages() {
+        return messages;
+    }
+}
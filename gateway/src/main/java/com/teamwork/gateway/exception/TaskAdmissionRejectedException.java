@@ -0,0 +1,23 @@
+package com.teamwork.gateway.exception;
+
+/**
+ * 任務等待執行名額逾時，或服務關閉中不再接受新任務時拋出。
+ * retryable 代表任務尚未開始執行，可退回佇列由其他節點處理。
+ */
+public class TaskAdmissionRejectedException extends RuntimeException {
+
+    private final boolean retryable;
+
+    public TaskAdmissionRejectedException(String message) {
+        this(message, false);
+    }
+
+    public TaskAdmissionRejectedException(String message, boolean retryable) {
+        super(message);
+        this.retryable = retryable;
+    }
+
+    public boolean isRetryable() {
+        return retryable;
+    }
+}
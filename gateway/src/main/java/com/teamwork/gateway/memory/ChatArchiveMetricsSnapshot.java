@@ -0,0 +1,8 @@
+package com.teamwork.gateway.memory;
+
+public record ChatArchiveMetricsSnapshot(
+        long archivedMessages,
+        long archivedConversations,
+        long rehydratedConversations,
+        long failures) {
+}
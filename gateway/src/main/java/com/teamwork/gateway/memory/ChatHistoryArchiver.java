@@ -0,0 +1,314 @@
+package com.teamwork.gateway.memory;
+
+import com.teamwork.gateway.entity.ChatMessageArchive;
+import com.teamwork.gateway.repository.ChatMessageArchiveRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionOperations;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * 對話歷史的冷儲存管線：把壓縮移出的原始訊息與閒置對話分批寫入 PostgreSQL，
+ * 讓 Redis 記憶體只隨活躍對話成長。
+ * <p>閒置對話封存後 Redis 只留下標記；RedisChatMemory 讀寫遇到標記時呼叫 {@link #rehydrate(String)} 回填。</p>
+ * <p>同一次封存的所有批次在單一交易內寫入，中途失敗整批回滾，重試時不會留下重複的片段。
+ * 每次寫入帶一個 batch id；(conversation_id, seq) 唯一，並行封存算出相同 seq 時後提交者回滾後重新取號，
+ * 撤銷與回填後的刪除都只針對自己的批次，不會刪到其他封存者的資料。</p>
+ */
+@Slf4j
+@Service
+public class ChatHistoryArchiver {
+
+    static final String REASON_COMPACTED = "COMPACTED";
+    static final String REASON_IDLE = "IDLE";
+
+    private static final int SCAN_BATCH = 200;
+    /** seq 衝突（其他封存者同時寫入同一對話）時重新取號的次數上限 */
+    private static final int MAX_SEQ_ATTEMPTS = 3;
+
+    private final ChatMemoryStore messageStore;
+    private final ChatMessageArchiveRepository archiveRepository;
+    private final ChatMessageCodec messageCodec;
+    private final ConversationNearCache nearCache;
+    private final TransactionOperations transactionOperations;
+    private final boolean enabled;
+    private final int batchSize;
+    private final long idleTtlMillis;
+    private final int maxConversationsPerSweep;
+    private final LongSupplier clock;
+
+    private final LongAdder archivedMessages = new LongAdder();
+    private final LongAdder archivedConversations = new LongAdder();
+    private final LongAdder rehydratedConversations = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    @Autowired
+    public ChatHistoryArchiver(
+            ChatMemoryStore messageStore,
+            ChatMessageArchiveRepository archiveRepository,
+            ChatMessageCodec messageCodec,
+            ConversationNearCache nearCache,
+            PlatformTransactionManager transactionManager,
+            @Value("${gateway.chat-memory.archive.enabled:true}") boolean enabled,
+            @Value("${gateway.chat-memory.archive.batch-size:200}") int batchSize,
+            @Value("${gateway.chat-memory.archive.idle-ttl-minutes:1440}") long idleTtlMinutes,
+            @Value("${gateway.chat-memory.archive.max-conversations-per-sweep:100}") int maxConversationsPerSweep) {
+        this(messageStore, archiveRepository, messageCodec, nearCache, new TransactionTemplate(transactionManager),
+                enabled, batchSize,
+                idleTtlMinutes * 60_000L, maxConversationsPerSweep, System::currentTimeMillis);
+    }
+
+    /** 測試用建構子（可替換交易與時鐘） */
+    ChatHistoryArchiver(
+            ChatMemoryStore messageStore,
+            ChatMessageArchiveRepository archiveRepository,
+            ChatMessageCodec messageCodec,
+            ConversationNearCache nearCache,
+            TransactionOperations transactionOperations,
+            boolean enabled,
+            int batchSize,
+            long idleTtlMillis,
+            int maxConversationsPerSweep,
+            LongSupplier clock) {
+        this.messageStore = messageStore;
+        this.archiveRepository = archiveRepository;
+        this.messageCodec = messageCodec;
+        this.nearCache = nearCache;
+        this.transactionOperations = transactionOperations;
+        this.enabled = enabled;
+        this.batchSize = Math.max(1, batchSize);
+        this.idleTtlMillis = Math.max(0L, idleTtlMillis);
+        this.maxConversationsPerSweep = Math.max(1, maxConversationsPerSweep);
+        this.clock = clock;
+    }
+
+    /**
+     * 保存壓縮時被摘要取代的原始訊息；失敗只記錄，不影響壓縮結果。
+     */
+    public void archiveCompacted(String conversationId, List<String> rawEntries) {
+        if (!enabled || rawEntries.isEmpty()) {
+            return;
+        }
+        try {
+            writeBatches(conversationId, REASON_COMPACTED, rawEntries);
+        } catch (RuntimeException ex) {
+            failures.increment();
+            log.warn("Failed to archive compacted history. conversationId={}, messages={}",
+                    conversationId, rawEntries.size(), ex);
+        }
+    }
+
+    /**
+     * 定期以 SCAN 走訪對話，把超過閒置時間的對話移出 Redis；每輪封存數量有上限，避免長時間占用資料庫。
+     */
+    @Scheduled(
+            initialDelayString = "${gateway.chat-memory.archive.sweep-interval-ms:300000}",
+            fixedDelayString = "${gateway.chat-memory.archive.sweep-interval-ms:300000}")
+    public void sweepIdleConversations() {
+        if (!enabled) {
+            return;
+        }
+        long now = clock.getAsLong();
+        int[] archived = {0};
+        messageStore.scanConversationIds(SCAN_BATCH, conversationId -> {
+            try {
+                if (archiveIfIdle(conversationId, now)) {
+                    archived[0]++;
+                }
+            } catch (RuntimeException ex) {
+                failures.increment();
+                log.warn("Failed to archive idle conversation. conversationId={}", conversationId, ex);
+            }
+            return archived[0] < maxConversationsPerSweep;
+        });
+        if (archived[0] > 0) {
+            log.info("Archived idle conversations. count={}", archived[0]);
+        }
+    }
+
+    /**
+     * 對話閒置超過設定時間時整段封存：先寫入資料庫，再以最後活動時間為快照清除 Redis；
+     * 期間若有新寫入則刪除本次寫入的封存並放棄。
+     */
+    boolean archiveIfIdle(String conversationId, long nowMillis) {
+        Long lastActiveAt = messageStore.getLastActiveAt(conversationId);
+        if (lastActiveAt == null || nowMillis - lastActiveAt < idleTtlMillis) {
+            return false;
+        }
+        return archive(conversationId, lastActiveAt);
+    }
+
+    /**
+     * 不論閒置時間立即封存（保留策略淘汰對話時使用），同樣以最後活動時間為快照，期間有新寫入即放棄。
+     *
+     * @return true 代表已封存並清除
+     */
+    public boolean evict(String conversationId) {
+        if (!enabled) {
+            return false;
+        }
+        Long lastActiveAt = messageStore.getLastActiveAt(conversationId);
+        if (lastActiveAt == null) {
+            // 升級前的對話剛補上時間，重新讀取作為快照
+            lastActiveAt = messageStore.getLastActiveAt(conversationId);
+        }
+        return lastActiveAt != null && archive(conversationId, lastActiveAt);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    private boolean archive(String conversationId, long lastActiveAt) {
+        List<String> rawEntries = messageStore.readAll(conversationId);
+        if (rawEntries.isEmpty()) {
+            return false;
+        }
+
+        String batchId = writeBatches(conversationId, REASON_IDLE, rawEntries);
+        if (!messageStore.evictArchived(conversationId, lastActiveAt, rawEntries.size())) {
+            archiveRepository.deleteBatches(conversationId, List.of(batchId));
+            archivedMessages.add(-rawEntries.size());
+            return false;
+        }
+        nearCache.invalidate(conversationId);
+        archivedConversations.increment();
+        return true;
+    }
+
+    /**
+     * 將閒置封存的對話寫回 Redis；並行回填時只有一個呼叫者會寫入。
+     * <p>只回填最後一批（seq 最大者所屬的批次）：先前回填後、刪除封存前中斷所殘留的舊批次，
+     * 內容已包含在之後重新封存的批次中，回填成功後連同本批一起依 batch id 刪除。</p>
+     *
+     * @return true 代表本次完成回填
+     */
+    public boolean rehydrate(String conversationId) {
+        List<ChatMessageArchive> archives =
+                archiveRepository.findByConversationIdAndReasonOrderBySeqAsc(conversationId, REASON_IDLE);
+        String latestBatch = archives.isEmpty() ? null : archives.getLast().getBatchId();
+        List<String> rawEntries = new ArrayList<>(archives.size());
+        Set<String> batchIds = new LinkedHashSet<>();
+        boolean legacy = false;
+        Long tokens = 0L;
+        for (ChatMessageArchive archive : archives) {
+            if (archive.getBatchId() == null) {
+                legacy = true;
+            } else {
+                batchIds.add(archive.getBatchId());
+            }
+            if (!Objects.equals(archive.getBatchId(), latestBatch)) {
+                continue;
+            }
+            rawEntries.add(archive.getPayload());
+            tokens = tokens == null || archive.getTokens() == null ? null : tokens + archive.getTokens();
+        }
+
+        if (!messageStore.restoreArchived(conversationId, rawEntries, tokens)) {
+            return false;
+        }
+        if (!batchIds.isEmpty()) {
+            archiveRepository.deleteBatches(conversationId, batchIds);
+        }
+        if (legacy) {
+            archiveRepository.deleteLegacyArchived(conversationId, REASON_IDLE);
+        }
+        rehydratedConversations.increment();
+        log.info("Rehydrated archived conversation. conversationId={}, messages={}", conversationId, rawEntries.size());
+        return true;
+    }
+
+    /**
+     * 清除對話的所有封存。
+     */
+    public void purge(String conversationId) {
+        archiveRepository.deleteByConversation(conversationId);
+    }
+
+    /**
+     * 清除內容與 rawEntries 相同的壓縮封存（部分刪除時呼叫，讓長期記憶重建後不再包含被刪的內容）。
+     */
+    public void purgeEntries(String conversationId, List<String> rawEntries) {
+        if (rawEntries.isEmpty()) {
+            return;
+        }
+        for (int from = 0; from < rawEntries.size(); from += batchSize) {
+            archiveRepository.deleteByPayloads(conversationId, REASON_COMPACTED,
+                    rawEntries.subList(from, Math.min(rawEntries.size(), from + batchSize)));
+        }
+    }
+
+    public ChatArchiveMetricsSnapshot getMetricsSnapshot() {
+        return new ChatArchiveMetricsSnapshot(
+                archivedMessages.sum(),
+                archivedConversations.sum(),
+                rehydratedConversations.sum(),
+                failures.sum());
+    }
+
+    /**
+     * 依 batch-size 分批 saveAll，搭配 hibernate.jdbc.batch_size 以批次 INSERT 寫入；所有批次同一交易提交。
+     * seq 與其他封存者衝突時整批回滾，以新的 batch id 重新取號。
+     *
+     * @return 本次寫入的 batch id
+     */
+    private String writeBatches(String conversationId, String reason, List<String> rawEntries) {
+        for (int attempt = 1; ; attempt++) {
+            String batchId = UUID.randomUUID().toString();
+            try {
+                transactionOperations.executeWithoutResult(
+                        status -> insertBatches(conversationId, reason, batchId, rawEntries));
+            } catch (DataIntegrityViolationException ex) {
+                if (attempt >= MAX_SEQ_ATTEMPTS) {
+                    throw ex;
+                }
+                log.debug("Archive seq collided, retrying. conversationId={}, attempt={}", conversationId, attempt);
+                continue;
+            }
+            archivedMessages.add(rawEntries.size());
+            return batchId;
+        }
+    }
+
+    private void insertBatches(String conversationId, String reason, String batchId, List<String> rawEntries) {
+        long firstSeq = archiveRepository.findTopByConversationIdOrderBySeqDesc(conversationId)
+                .map(last -> last.getSeq() + 1)
+                .orElse(0L);
+        long seq = firstSeq;
+        List<ChatMessageArchive> batch = new ArrayList<>(Math.min(batchSize, rawEntries.size()));
+        for (String raw : rawEntries) {
+            ChatMessageDto dto = messageCodec.decode(raw);
+            ChatMessageArchive archive = new ChatMessageArchive();
+            archive.setConversationId(conversationId);
+            archive.setSeq(seq++);
+            archive.setBatchId(batchId);
+            archive.setReason(reason);
+            archive.setTokens(dto == null ? null : dto.getTokens());
+            archive.setPayload(raw);
+            batch.add(archive);
+            if (batch.size() == batchSize) {
+                archiveRepository.saveAll(batch);
+                batch = new ArrayList<>(batchSize);
+            }
+        }
+        if (!batch.isEmpty()) {
+            archiveRepository.saveAll(batch);
+        }
+        // 在交易內送出 INSERT，seq 衝突以 DataIntegrityViolationException 回報給 writeBatches
+        archiveRepository.flush();
+    }
+}
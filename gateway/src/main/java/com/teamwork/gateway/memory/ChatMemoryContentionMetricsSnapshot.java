@@ -0,0 +1,7 @@
+package com.teamwork.gateway.memory;
+
+public record ChatMemoryContentionMetricsSnapshot(
+        long guardedWrites,
+        long conflicts,
+        double conflictRate) {
+}
@@ -0,0 +1,12 @@
+package com.teamwork.gateway.memory;
+
+public record ChatMemoryRetentionMetricsSnapshot(
+        long sweeps,
+        long scannedConversations,
+        long idleEvictions,
+        long tenantEvictions,
+        long trimmedConversations,
+        long trimmedMessages,
+        long bytesReclaimed,
+        long failures) {
+}
@@ -0,0 +1,361 @@
+package com.teamwork.gateway.memory;
+
+import com.teamwork.gateway.entity.TaskRecord;
+import com.teamwork.gateway.event.ContextSegmentCompactedEvent;
+import com.teamwork.gateway.repository.TaskRecordRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * 對話記憶的保留策略：定期以 SCAN 分批走訪儲存中的對話，讓記憶體用量有上限。
+ * <ul>
+ *   <li>閒置超過 idle-ttl（最後活動時間於寫入與節流後的讀取時更新）的對話淘汰；冷儲存啟用時閒置封存
+ *       由 {@link ChatHistoryArchiver} 依 archive.idle-ttl-minutes 負責，這裡的 idle-ttl 不生效；</li>
+ *   <li>單一對話超過 max-bytes（取自對話統計的位元組計數）時先要求壓縮；仍超過時才把摘要之後最舊的原始訊息
+ *       移入冷儲存直到降到上限的 {@value #TRIM_TARGET_PERCENT}%，被移出的片段同樣交給長期記憶索引；</li>
+ *   <li>每個租戶（AgentProfile）存活的對話數超過上限時，依最後活動時間淘汰最久未使用者（LRU）。</li>
+ * </ul>
+ * <p>淘汰在冷儲存啟用時走封存流程（之後讀取會自動回填），停用時整段刪除。所有改寫都以快照比對，
+ * 與聊天寫入或封存 sweeper 並行時放棄本次處理、下一輪再判斷。每輪淘汰數有上限，避免長時間占用資料庫。</p>
+ */
+@Slf4j
+@Service
+public class ChatMemoryRetentionService {
+
+    static final int TRIM_TARGET_PERCENT = 75;
+    /** 單次裁切最多讀取的訊息數；不足以降到目標時下一輪繼續。 */
+    static final int TRIM_WINDOW = 500;
+
+    private final ChatMemoryStore messageStore;
+    private final ChatHistoryArchiver historyArchiver;
+    private final RedisChatMemory chatMemory;
+    private final ChatMessageCodec messageCodec;
+    private final ConversationNearCache nearCache;
+    private final ContextCompressionService compressionService;
+    private final TaskRecordRepository taskRecordRepository;
+    private final ApplicationEventPublisher eventPublisher;
+    private final boolean enabled;
+    private final long idleTtlMillis;
+    private final long maxBytesPerConversation;
+    private final int maxConversationsPerTenant;
+    private final int scanBatchSize;
+    private final int maxEvictionsPerSweep;
+    private final LongSupplier clock;
+
+    private final LongAdder sweeps = new LongAdder();
+    private final LongAdder scannedConversations = new LongAdder();
+    private final LongAdder idleEvictions = new LongAdder();
+    private final LongAdder tenantEvictions = new LongAdder();
+    private final LongAdder trimmedConversations = new LongAdder();
+    private final LongAdder trimmedMessages = new LongAdder();
+    private final LongAdder bytesReclaimed = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    @Autowired
+    public ChatMemoryRetentionService(
+            ChatMemoryStore messageStore,
+            ChatHistoryArchiver historyArchiver,
+            RedisChatMemory chatMemory,
+            ChatMessageCodec messageCodec,
+            ConversationNearCache nearCache,
+            ContextCompressionService compressionService,
+            TaskRecordRepository taskRecordRepository,
+            ApplicationEventPublisher eventPublisher,
+            @Value("${gateway.chat-memory.retention.enabled:true}") boolean enabled,
+            @Value("${gateway.chat-memory.retention.idle-ttl-minutes:10080}") long idleTtlMinutes,
+            @Value("${gateway.chat-memory.retention.max-bytes-per-conversation:4194304}") long maxBytesPerConversation,
+            @Value("${gateway.chat-memory.retention.max-conversations-per-tenant:5000}") int maxConversationsPerTenant,
+            @Value("${gateway.chat-memory.retention.scan-batch-size:200}") int scanBatchSize,
+            @Value("${gateway.chat-memory.retention.max-evictions-per-sweep:200}") int maxEvictionsPerSweep) {
+        this(messageStore, historyArchiver, chatMemory, messageCodec, nearCache, compressionService,
+                taskRecordRepository, eventPublisher,
+                enabled, idleTtlMinutes * 60_000L, maxBytesPerConversation, maxConversationsPerTenant,
+                scanBatchSize, maxEvictionsPerSweep, System::currentTimeMillis);
+    }
+
+    /** 測試用建構子（可注入時鐘；上限為 0 代表不限制） */
+    ChatMemoryRetentionService(
+            ChatMemoryStore messageStore,
+            ChatHistoryArchiver historyArchiver,
+            RedisChatMemory chatMemory,
+            ChatMessageCodec messageCodec,
+            ConversationNearCache nearCache,
+            ContextCompressionService compressionService,
+            TaskRecordRepository taskRecordRepository,
+            ApplicationEventPublisher eventPublisher,
+            boolean enabled,
+            long idleTtlMillis,
+            long maxBytesPerConversation,
+            int maxConversationsPerTenant,
+            int scanBatchSize,
+            int maxEvictionsPerSweep,
+            LongSupplier clock) {
+        this.messageStore = messageStore;
+        this.historyArchiver = historyArchiver;
+        this.chatMemory = chatMemory;
+        this.messageCodec = messageCodec;
+        this.nearCache = nearCache;
+        this.compressionService = compressionService;
+        this.taskRecordRepository = taskRecordRepository;
+        this.eventPublisher = eventPublisher;
+        this.enabled = enabled;
+        this.idleTtlMillis = Math.max(0L, idleTtlMillis);
+        this.maxBytesPerConversation = Math.max(0L, maxBytesPerConversation);
+        this.maxConversationsPerTenant = Math.max(0, maxConversationsPerTenant);
+        this.scanBatchSize = Math.max(1, scanBatchSize);
+        this.maxEvictionsPerSweep = Math.max(1, maxEvictionsPerSweep);
+        this.clock = clock;
+        if (enabled && this.idleTtlMillis > 0 && historyArchiver.isEnabled()) {
+            log.info("Chat memory retention idle-ttl is ignored, "
+                    + "idle conversations are archived by the archive sweeper");
+        }
+    }
+
+    @Scheduled(
+            initialDelayString = "${gateway.chat-memory.retention.sweep-interval-ms:600000}",
+            fixedDelayString = "${gateway.chat-memory.retention.sweep-interval-ms:600000}")
+    public void sweep() {
+        if (!enabled) {
+            return;
+        }
+        sweeps.increment();
+        SweepState state = new SweepState(clock.getAsLong(), historyArchiver.isEnabled() ? 0L : idleTtlMillis);
+        List<String> batch = new ArrayList<>(scanBatchSize);
+        messageStore.scanConversationIds(scanBatchSize, conversationId -> {
+            batch.add(conversationId);
+            if (batch.size() >= scanBatchSize) {
+                processBatch(batch, state);
+                batch.clear();
+            }
+            return true;
+        });
+        if (!batch.isEmpty()) {
+            processBatch(batch, state);
+        }
+        enforceTenantLimits(state);
+        if (state.evictions > 0 || state.trimmed > 0) {
+            log.info("Chat memory retention sweep finished. evicted={}, trimmed={}", state.evictions, state.trimmed);
+        }
+    }
+
+    public ChatMemoryRetentionMetricsSnapshot getMetricsSnapshot() {
+        return new ChatMemoryRetentionMetricsSnapshot(
+                sweeps.sum(),
+                scannedConversations.sum(),
+                idleEvictions.sum(),
+                tenantEvictions.sum(),
+                trimmedConversations.sum(),
+                trimmedMessages.sum(),
+                bytesReclaimed.sum(),
+                failures.sum());
+    }
+
+    /**
+     * 一批對話只各查一次統計與租戶：已封存或空的略過，閒置的淘汰，過大的裁切，其餘記入租戶清單。
+     */
+    private void processBatch(List<String> conversationIds, SweepState state) {
+        scannedConversations.add(conversationIds.size());
+        Map<String, ChatMemoryStore.ConversationStats> stats = messageStore.getStats(conversationIds);
+        Map<String, String> tenants = maxConversationsPerTenant > 0 ? resolveTenants(conversationIds) : Map.of();
+        for (String conversationId : conversationIds) {
+            ChatMemoryStore.ConversationStats conversationStats = stats.get(conversationId);
+            if (conversationStats == null || conversationStats.archived() || conversationStats.messageCount() == 0) {
+                continue;
+            }
+            try {
+                Long lastActiveAt = messageStore.getLastActiveAt(conversationId);
+                long lastActive = lastActiveAt == null ? state.now : lastActiveAt;
+                if (state.idleTtlMillis > 0 && state.now - lastActive >= state.idleTtlMillis) {
+                    if (state.evictions < maxEvictionsPerSweep && evict(conversationId, conversationStats.bytes())) {
+                        state.evictions++;
+                        idleEvictions.increment();
+                    }
+                    continue;
+                }
+                long bytes = conversationStats.bytes();
+                if (maxBytesPerConversation > 0) {
+                    // 舊資料沒有位元組計數時才向後端計算（並補上計數）
+                    bytes = bytes >= 0 ? bytes : messageStore.estimateBytes(conversationId);
+                    if (bytes > maxBytesPerConversation && shrink(conversationId, bytes)) {
+                        state.trimmed++;
+                    }
+                }
+                if (maxConversationsPerTenant > 0) {
+                    state.liveByTenant
+                            .computeIfAbsent(tenants.getOrDefault(conversationId, ContextSummarizationService.DEFAULT_TENANT),
+                                    ignored -> new ArrayList<>())
+                            .add(new LiveConversation(conversationId, lastActive, bytes));
+                }
+            } catch (RuntimeException ex) {
+                failures.increment();
+                log.warn("Chat memory retention failed. conversationId={}", conversationId, ex);
+            }
+        }
+    }
+
+    private void enforceTenantLimits(SweepState state) {
+        for (Map.Entry<String, List<LiveConversation>> entry : state.liveByTenant.entrySet()) {
+            List<LiveConversation> live = entry.getValue();
+            int excess = live.size() - maxConversationsPerTenant;
+            if (excess <= 0) {
+                continue;
+            }
+            live.sort(Comparator.comparingLong(LiveConversation::lastActiveAt));
+            for (int index = 0; index < excess && state.evictions < maxEvictionsPerSweep; index++) {
+                LiveConversation conversation = live.get(index);
+                String conversationId = conversation.conversationId();
+                try {
+                    if (evict(conversationId, conversation.bytes())) {
+                        state.evictions++;
+                        tenantEvictions.increment();
+                    }
+                } catch (RuntimeException ex) {
+                    failures.increment();
+                    log.warn("Chat memory tenant eviction failed. tenant={}, conversationId={}",
+                            entry.getKey(), conversationId, ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * 冷儲存啟用時封存（之後可回填），否則整段刪除。
+     *
+     * @param bytes 淘汰前的位元組數，負值代表未知（淘汰前向後端計算）
+     */
+    private boolean evict(String conversationId, long bytes) {
+        long reclaimed = bytes >= 0 ? bytes : messageStore.estimateBytes(conversationId);
+        boolean evicted;
+        if (historyArchiver.isEnabled()) {
+            evicted = historyArchiver.evict(conversationId);
+        } else {
+            chatMemory.clear(conversationId);
+            evicted = true;
+        }
+        if (evicted) {
+            bytesReclaimed.add(reclaimed);
+        }
+        return evicted;
+    }
+
+    /**
+     * 過大的對話先要求壓縮（摘要取代舊訊息，歷史仍可由摘要追溯）；壓縮後仍超過上限才裁切原始訊息。
+     */
+    private boolean shrink(String conversationId, long bytes) {
+        try {
+            compressionService.compressIfNeeded(conversationId);
+        } catch (RuntimeException ex) {
+            log.warn("Compression before trim failed, trimming raw messages. conversationId={}", conversationId, ex);
+        }
+        long remaining = messageStore.estimateBytes(conversationId);
+        if (remaining < bytes) {
+            bytesReclaimed.add(bytes - remaining);
+        }
+        if (remaining <= maxBytesPerConversation) {
+            return remaining < bytes;
+        }
+        return trim(conversationId, remaining);
+    }
+
+    /**
+     * 略過開頭的壓縮摘要（L1/L2），由摘要之後最舊的原始訊息開始移除，直到低於上限的
+     * {@value #TRIM_TARGET_PERCENT}%；至少保留最新一筆。以讀取時的版本與首尾元素作為快照，期間若有改寫則放棄。
+     * 無法解碼的訊息同樣移除，但 token 數未知，計數器交由壓縮服務重算。
+     */
+    private boolean trim(String conversationId, long bytes) {
+        long excess = bytes - maxBytesPerConversation * TRIM_TARGET_PERCENT / 100;
+        ChatMemoryStore.VersionedRange range = messageStore.readRangeVersioned(conversationId, 0L, TRIM_WINDOW);
+        long size = messageStore.size(conversationId);
+        List<String> entries = range.entries();
+        int limit = (int) Math.min(entries.size(), size - 1);
+
+        int start = 0;
+        ChatMessageDto message = null;
+        while (start < limit) {
+            message = messageCodec.decode(entries.get(start));
+            if (ContextCompressionService.summaryLevel(message) == 0) {
+                break;
+            }
+            start++;
+        }
+
+        List<String> removed = new ArrayList<>();
+        List<ChatMessageDto> removedMessages = new ArrayList<>();
+        long removedBytes = 0L;
+        Long tokenDelta = 0L;
+        for (int index = start; index < limit && removedBytes < excess; index++) {
+            String raw = entries.get(index);
+            if (index > start) {
+                message = messageCodec.decode(raw);
+            }
+            removed.add(raw);
+            removedBytes += raw.getBytes(StandardCharsets.UTF_8).length;
+            if (message == null) {
+                tokenDelta = null;
+                continue;
+            }
+            removedMessages.add(message);
+            tokenDelta = tokenDelta == null || message.getTokens() == null ? null : tokenDelta - message.getTokens();
+        }
+        if (removed.isEmpty()) {
+            return false;
+        }
+
+        boolean applied = messageStore.removeRange(
+                conversationId, start, removed.size(), removed.getFirst(), removed.getLast(), tokenDelta, range.version());
+        if (!applied) {
+            log.debug("Chat memory trim skipped, history changed concurrently. conversationId={}", conversationId);
+            return false;
+        }
+        nearCache.invalidate(conversationId);
+        historyArchiver.archiveCompacted(conversationId, removed);
+        eventPublisher.publishEvent(new ContextSegmentCompactedEvent(this, conversationId, removedMessages));
+        trimmedConversations.increment();
+        trimmedMessages.add(removed.size());
+        bytesReclaimed.add(removedBytes);
+        log.info("Trimmed oversized conversation. conversationId={}, messages={}, bytes={}",
+                conversationId, removed.size(), removedBytes);
+        return true;
+    }
+
+    private Map<String, String> resolveTenants(List<String> conversationIds) {
+        Map<String, String> tenants = new HashMap<>(conversationIds.size() * 2);
+        for (TaskRecord record : taskRecordRepository.findAllById(conversationIds)) {
+            if (record.getProfileId() != null && !record.getProfileId().isBlank()) {
+                tenants.put(record.getId(), record.getProfileId());
+            }
+        }
+        return tenants;
+    }
+
+    private record LiveConversation(String conversationId, long lastActiveAt, long bytes) {
+    }
+
+    /** 單輪 sweep 的狀態：存活對話依租戶分組（租戶上限在整輪走訪後才能判斷）。 */
+    private static final class SweepState {
+        private final long now;
+        /** 本輪生效的閒置期限；0 代表不做閒置淘汰 */
+        private final long idleTtlMillis;
+        private final Map<String, List<LiveConversation>> liveByTenant = new HashMap<>();
+        private int evictions;
+        private int trimmed;
+
+        private SweepState(long now, long idleTtlMillis) {
+            this.now = now;
+            this.idleTtlMillis = idleTtlMillis;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package com.teamwork.gateway.memory;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * 對話記憶的儲存後端：以原始編碼字串為單位提供附加、尾端讀取、區段讀取與改寫。
+ * <p>由 {@code gateway.chat-memory.store} 選擇實作：{@code redis}（預設，{@link RedisChatMessageStore}）
+ * 或 {@code embedded}（單節點部署用的本機 mmap segment，{@link EmbeddedChatMessageStore}）。
+ * 呼叫端只依賴本介面，兩種後端的語意一致：改寫以結構版本與快照元素比對，衝突時回傳 false；
+ * 對話封存後讀取與附加回報 archived，由呼叫端先回填再重試。</p>
+ */
+public interface ChatMemoryStore {
+
+    /** 回傳值代表 token 計數未知（舊資料尚未建立計數器）。 */
+    long UNKNOWN_TOKENS = -1L;
+
+    /** 回傳值代表位元組計數未知（舊資料尚未建立計數器）。 */
+    long UNKNOWN_BYTES = -1L;
+
+    /** 回傳值代表對話已封存至冷儲存，需先回填。 */
+    long ARCHIVED = -1L;
+
+    /** 改寫時不比對結構版本，只以快照元素判斷。 */
+    long ANY_VERSION = -1L;
+
+    /**
+     * 附加訊息並回傳附加後的總筆數與 token 計數；對話已封存時回傳 size 為 {@link #ARCHIVED} 的結果且不寫入。
+     */
+    AppendResult append(String conversationId, List<String> entries, long tokenDelta);
+
+    /**
+     * 取得最近 lastN 筆原始資料與總筆數。
+     */
+    TailSlice tail(String conversationId, int lastN);
+
+    /**
+     * 由尾端往前取訊息直到 token 預算用盡，只傳回預算內的資料。
+     */
+    BudgetSlice tailWithinTokenBudget(String conversationId, long maxTokens);
+
+    /**
+     * 讀取 [fromIndex, fromIndex + limit) 範圍的原始資料。
+     */
+    default List<String> readRange(String conversationId, long fromIndex, int limit) {
+        return readRangeVersioned(conversationId, fromIndex, limit).entries();
+    }
+
+    /**
+     * 同 {@link #readRange}，並回傳讀取當下的結構版本，供之後的改寫操作比對。
+     */
+    VersionedRange readRangeVersioned(String conversationId, long fromIndex, int limit);
+
+    /**
+     * 讀取整個對話（僅供舊資料重算 token 計數、整段刪除等低頻路徑使用）。
+     */
+    default List<String> readAll(String conversationId) {
+        return readRange(conversationId, 0L, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 對話總筆數。
+     */
+    long size(String conversationId);
+
+    /**
+     * 對話訊息佔用的位元組數（編碼後的原始資料，不含後端自身的結構開銷）；不存在或已封存時回傳 0。
+     * 取自寫入時維護的計數；舊資料沒有計數時才分批計算並補上，僅供保留策略等背景工作使用。
+     */
+    long estimateBytes(String conversationId);
+
+    /**
+     * 讀取 running token 計數；計數器不存在時回傳 -1。
+     */
+    long getTokenCount(String conversationId);
+
+    void setTokenCount(String conversationId, long tokens);
+
+    /**
+     * 以 replacement 原子替換先前讀取到的前段 prefix，之後的訊息（包含讀取後才附加的）保持不變。
+     *
+     * @param prefix      先前讀到的前段原始資料（必須是 list 的開頭）
+     * @param replacement 取代前段的新資料，可為空
+     * @param tokenDelta  token 計數變化量；null 代表清除計數器待下次重算
+     * @return false 代表前段已被其他寫入改寫（快照失效），未做任何變更
+     */
+    default boolean replacePrefix(String conversationId, List<String> prefix, List<String> replacement, Long tokenDelta) {
+        return replaceRange(conversationId, 0L, prefix, replacement, tokenDelta);
+    }
+
+    /**
+     * 以 replacement 原子替換自 fromIndex 起、先前讀取到的區段。
+     *
+     * @param current     先前讀到的區段原始資料，位於 [fromIndex, fromIndex + current.size())
+     * @param replacement 取代區段的新資料，可為空
+     * @param tokenDelta  token 計數變化量；null 代表清除計數器待下次重算
+     * @return false 代表區段已被其他寫入改寫（快照失效），未做任何變更
+     */
+    default boolean replaceRange(
+            String conversationId,
+            long fromIndex,
+            List<String> current,
+            List<String> replacement,
+            Long tokenDelta) {
+        return replaceRange(conversationId, fromIndex, current, replacement, tokenDelta, ANY_VERSION);
+    }
+
+    /**
+     * 同 {@link #replaceRange(String, long, List, List, Long)}，另以 expectedVersion 比對結構版本。
+     *
+     * @param expectedVersion 讀取時取得的版本；{@link #ANY_VERSION} 代表只比對首尾元素
+     */
+    boolean replaceRange(
+            String conversationId,
+            long fromIndex,
+            List<String> current,
+            List<String> replacement,
+            Long tokenDelta,
+            long expectedVersion);
+
+    /**
+     * 刪除 [fromIndex, fromIndex + count) 區段，只需區段首尾元素與讀取時的版本作為快照，不必讀回整段內容。
+     *
+     * @return false 代表讀取後已有其他改寫，未做任何變更
+     */
+    boolean removeRange(
+            String conversationId,
+            long fromIndex,
+            long count,
+            String firstEntry,
+            String lastEntry,
+            Long tokenDelta,
+            long expectedVersion);
+
+    /**
+     * 刪除散落的多個位置（例如壓縮摘要）。
+     *
+     * @param positions 要刪除的位置（0 起算）
+     * @param expected  各位置的快照值，依位置遞增排列
+     * @return false 代表讀取後已有其他改寫，未做任何變更
+     */
+    boolean deletePositions(
+            String conversationId, BitSet positions, List<String> expected, Long tokenDelta, long expectedVersion);
+
+    ChatMemoryContentionMetricsSnapshot getContentionMetricsSnapshot();
+
+    /**
+     * 最後活動時間（毫秒）；尚未記錄時補上現在時間並回傳 null，讓升級前的對話從現在開始計算閒置。
+     */
+    Long getLastActiveAt(String conversationId);
+
+    /**
+     * 讀取時延後最後活動時間：只在對話存在、未封存且記錄的時間較舊時寫入，不會建立對話。
+     */
+    void touch(String conversationId, long activeAt);
+
+    /**
+     * 封存完成後清除對話資料並留下封存標記。
+     *
+     * @param lastActiveAt 讀取封存內容前取得的最後活動時間
+     * @param size         封存的筆數
+     * @return false 代表期間有新寫入，未做任何變更
+     */
+    boolean evictArchived(String conversationId, long lastActiveAt, long size);
+
+    /**
+     * 將封存內容寫回並移除封存標記。
+     *
+     * @param tokens token 總數；null 代表未知
+     * @return false 代表標記已被其他呼叫者移除（已回填或已清除），未寫入
+     */
+    boolean restoreArchived(String conversationId, List<String> entries, Long tokens);
+
+    /**
+     * 取得多個對話的筆數、token 計數與位元組數，不讀取任何訊息內容。回傳順序與輸入一致。
+     */
+    Map<String, ConversationStats> getStats(List<String> conversationIds);
+
+    /**
+     * 逐一走訪已儲存的對話 id；visitor 回傳 false 即停止。
+     */
+    void scanConversationIds(int batchHint, Predicate<String> visitor);
+
+    void clear(String conversationId);
+
+    /**
+     * 區段讀取結果與讀取當下的結構版本。
+     */
+    record VersionedRange(long version, List<String> entries) {
+        static final VersionedRange EMPTY = new VersionedRange(0L, List.of());
+    }
+
+    /**
+     * 對話統計：總筆數、token 計數與位元組數（-1 代表未知）與是否已封存；已封存時位元組數為 0。
+     */
+    record ConversationStats(long messageCount, long tokens, long bytes, boolean archived) {
+    }
+
+    /**
+     * 附加結果：總筆數與 token 計數（-1 代表未知）。
+     */
+    record AppendResult(long size, long tokens) {
+
+        public boolean archived() {
+            return size == ARCHIVED;
+        }
+    }
+
+    /**
+     * 尾端切片：原始資料、總筆數與讀取當下的結構版本（供 near-cache 判斷新舊）。
+     */
+    record TailSlice(long totalSize, List<String> entries, long version) {
+        static final TailSlice EMPTY = new TailSlice(0L, List.of(), 0L);
+        static final TailSlice ARCHIVED_SLICE = new TailSlice(ARCHIVED, List.of(), 0L);
+
+        public boolean archived() {
+            return totalSize == ARCHIVED;
+        }
+    }
+
+    /**
+     * token budget 切片：預算內的原始資料、總筆數、已使用的 token 數與讀取當下的結構版本。
+     */
+    record BudgetSlice(long totalSize, List<String> entries, long usedTokens, long version) {
+        static final BudgetSlice EMPTY = new BudgetSlice(0L, List.of(), 0L, 0L);
+        static final BudgetSlice ARCHIVED_SLICE = new BudgetSlice(ARCHIVED, List.of(), 0L, 0L);
+
+        public boolean archived() {
+            return totalSize == ARCHIVED;
+        }
+    }
+}
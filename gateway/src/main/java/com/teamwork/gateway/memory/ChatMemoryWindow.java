@@ -0,0 +1,15 @@
+package com.teamwork.gateway.memory;
+
+import org.springframework.ai.chat.messages.Message;
+
+import java.util.List;
+
+/**
+ * 對話尾端視窗：單次 round trip 取得的最近 N 筆訊息與該對話總筆數。
+ */
+public record ChatMemoryWindow(List<Message> messages, long totalSize) {
+
+    public static ChatMemoryWindow empty() {
+        return new ChatMemoryWindow(List.of(), 0L);
+    }
+}
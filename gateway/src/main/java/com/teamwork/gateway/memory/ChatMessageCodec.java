@@ -0,0 +1,170 @@
+package com.teamwork.gateway.memory;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 對話訊息在 Redis 中的編解碼器，所有讀寫 chat list 的元件共用同一個實例。
+ * <p>compact 格式（v2）：{@code \u0001} + 版本 + 型別字元 + token 數 + {@code ;} + 內容長度 + {@code :}
+ * + 內容 + 選用的 metadata JSON，省去 JSON 欄位名稱與跳脫；token 數位於固定前綴，
+ * Redis 端的 Lua script 可不解碼內容直接讀取。解碼時依首字元自動辨識，v1 與舊的 JSON 資料仍可讀取。</p>
+ */
+@Slf4j
+@Component
+public class ChatMessageCodec {
+
+    static final char COMPACT_MARKER = '\u0001';
+    static final char COMPACT_VERSION = '2';
+    private static final char COMPACT_VERSION_V1 = '1';
+
+    /** Spring AI 會在 metadata 帶入 messageType，與型別欄位重複，不需保存。 */
+    private static final String METADATA_MESSAGE_TYPE = "messageType";
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+            .setDefaultPropertyInclusion(
+                    JsonInclude.Value.construct(JsonInclude.Include.NON_NULL, JsonInclude.Include.NON_NULL));
+    private static final ObjectReader DTO_READER = OBJECT_MAPPER.readerFor(ChatMessageDto.class);
+    private static final ObjectWriter DTO_WRITER = OBJECT_MAPPER.writerFor(ChatMessageDto.class);
+    private static final ObjectReader METADATA_READER = OBJECT_MAPPER.readerFor(new TypeReference<Map<String, Object>>() {
+    });
+    private static final ObjectWriter METADATA_WRITER = OBJECT_MAPPER.writerFor(new TypeReference<Map<String, Object>>() {
+    });
+
+    public enum Format {
+        COMPACT,
+        JSON
+    }
+
+    private final Format format;
+
+    public ChatMessageCodec(@Value("${gateway.chat-memory.codec:compact}") String format) {
+        this.format = Format.valueOf(format.trim().toUpperCase(Locale.ROOT));
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    /**
+     * 依設定格式編碼；失敗時回傳 null，由呼叫端略過該筆。
+     */
+    public String encode(ChatMessageDto dto) {
+        try {
+            return format == Format.COMPACT ? encodeCompact(dto) : DTO_WRITER.writeValueAsString(dto);
+        } catch (JsonProcessingException e) {
+            log.error("Failed to encode ChatMessageDto", e);
+            return null;
+        }
+    }
+
+    /**
+     * 自動辨識 compact 與舊版 JSON 格式；無法解析時回傳 null。
+     */
+    public ChatMessageDto decode(String raw) {
+        if (raw == null || raw.isEmpty()) {
+            return null;
+        }
+        try {
+            if (raw.charAt(0) == COMPACT_MARKER) {
+                return decodeCompact(raw);
+            }
+            return DTO_READER.readValue(raw);
+        } catch (JsonProcessingException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            log.error("Failed to decode ChatMessageDto", e);
+            return null;
+        }
+    }
+
+    private String encodeCompact(ChatMessageDto dto) throws JsonProcessingException {
+        String content = dto.getContent() == null ? "" : dto.getContent();
+        StringBuilder builder = new StringBuilder(content.length() + 16)
+                .append(COMPACT_MARKER)
+                .append(COMPACT_VERSION)
+                .append(typeCode(dto.getType()))
+                .append(dto.getTokens() == null ? "" : dto.getTokens())
+                .append(';')
+                .append(content.length())
+                .append(':')
+                .append(content);
+
+        Map<String, Object> metadata = compactMetadata(dto.getMetadata());
+        if (!metadata.isEmpty()) {
+            builder.append(METADATA_WRITER.writeValueAsString(metadata));
+        }
+        return builder.toString();
+    }
+
+    private ChatMessageDto decodeCompact(String raw) throws JsonProcessingException {
+        if (raw.length() < 5 || (raw.charAt(1) != COMPACT_VERSION && raw.charAt(1) != COMPACT_VERSION_V1)) {
+            throw new IllegalArgumentException("Unsupported chat message encoding version");
+        }
+        String type = typeName(raw.charAt(2));
+        int lengthStart = 3;
+        Long tokens = null;
+        if (raw.charAt(1) == COMPACT_VERSION) {
+            int tokenSeparator = raw.indexOf(';', 3);
+            if (tokenSeparator > 3) {
+                tokens = Long.parseLong(raw, 3, tokenSeparator, 10);
+            }
+            lengthStart = tokenSeparator + 1;
+        }
+        int separator = raw.indexOf(':', lengthStart);
+        int contentLength = Integer.parseInt(raw, lengthStart, separator, 10);
+        int contentStart = separator + 1;
+        int contentEnd = contentStart + contentLength;
+        String content = raw.substring(contentStart, contentEnd);
+
+        Map<String, Object> metadata = contentEnd < raw.length()
+                ? METADATA_READER.readValue(raw.substring(contentEnd))
+                : null;
+        return ChatMessageDto.builder()
+                .type(type)
+                .content(content)
+                .metadata(metadata)
+                .tokens(tokens)
+                .build();
+    }
+
+    private Map<String, Object> compactMetadata(Map<String, Object> metadata) {
+        if (metadata == null || metadata.isEmpty()) {
+            return Map.of();
+        }
+        Map<String, Object> compact = new LinkedHashMap<>(metadata);
+        compact.remove(METADATA_MESSAGE_TYPE);
+        return compact;
+    }
+
+    private char typeCode(String type) {
+        if (type == null) {
+            return '?';
+        }
+        return switch (type) {
+            case "SYSTEM" -> 'S';
+            case "USER" -> 'U';
+            case "ASSISTANT" -> 'A';
+            default -> '?';
+        };
+    }
+
+    private String typeName(char code) {
+        return switch (code) {
+            case 'S' -> "SYSTEM";
+            case 'U' -> "USER";
+            case 'A' -> "ASSISTANT";
+            default -> "UNKNOWN";
+        };
+    }
+}
@@ -23,6 +23,8 @@ public class ChatMessageDto {
     private String type; // SYSTEM, USER, ASSISTANT
     private String content;
     private Map<String, Object> metadata;
+    /** 寫入時估算的 token 數，供 token budget 讀取；舊資料可能為 null。 */
+    private Long tokens;
 
     public static ChatMessageDto fromMessage(Message message) {
         String type;
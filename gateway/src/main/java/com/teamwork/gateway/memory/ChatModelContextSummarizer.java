@@ -0,0 +1,165 @@
+package com.teamwork.gateway.memory;
+
+import com.teamwork.gateway.agent.AgentConfigCache;
+import com.teamwork.gateway.ai.ChatModelFactory;
+import org.springframework.ai.chat.messages.SystemMessage;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 以任務 profile 的預設模型（未設定時為第一個啟用的模型，經 {@link AgentConfigCache} 解析）執行兩階段壓縮：Stage A 抽取不可遺失資訊，Stage B 依固定章節產生可續跑摘要。
+ * <p>訊息直接以 SystemMessage / UserMessage 傳入，不經 prompt 範本渲染，對話內容中的大括號不會被誤判為變數。</p>
+ * <p>要壓縮的區段會整段被摘要取代，因此超過 max-input-chars 時不能捨棄任何訊息：
+ * 依字元上限切成多段分別執行 Stage A（map），抽取結果仍超過上限時再分組合併，最後以 Stage B 產生單一摘要（reduce）。</p>
+ */
+@Component
+public class ChatModelContextSummarizer implements ContextSummarizer {
+
+    static final String STAGE_A_INSTRUCTION = """
+            [STAGE_A]
+            你是 Context Compressor。請從以下對話抽取不可遺失資訊，分為六類並逐條列出：
+            facts、decisions、constraints、open_questions、errors_and_fixes、pending_todos。
+            規則：僅保留會影響後續執行的內容，不可杜撰；沒有資訊的類別寫「無」。
+            """;
+    static final String STAGE_B_INSTRUCTION = """
+            [STAGE_B]
+            根據 Stage A 抽取結果產生可續跑摘要，固定輸出以下章節，不要加入其他前言：
+            1. 目標與範圍
+            2. 已完成
+            3. 進行中
+            4. 風險與限制
+            5. 下一步
+            """;
+
+    private final AgentConfigCache agentConfigCache;
+    private final ChatModelFactory chatModelFactory;
+    private final int maxInputChars;
+    private final int summaryMaxTokens;
+
+    public ChatModelContextSummarizer(
+            AgentConfigCache agentConfigCache,
+            ChatModelFactory chatModelFactory,
+            @Value("${gateway.context-compression.summarizer.max-input-chars:48000}") int maxInputChars,
+            @Value("${gateway.context-compression.summarizer.summary-max-tokens:800}") int summaryMaxTokens) {
+        this.agentConfigCache = agentConfigCache;
+        this.chatModelFactory = chatModelFactory;
+        this.maxInputChars = Math.max(1000, maxInputChars);
+        this.summaryMaxTokens = Math.max(100, summaryMaxTokens);
+    }
+
+    @Override
+    public String summarize(ContextSummaryRequest request) {
+        ChatModel chatModel = chatModelFactory.createChatModel(agentConfigCache.resolveModel(request.profileId()));
+
+        List<String> extracts = new ArrayList<>();
+        for (String chunk : renderTranscriptChunks(request.messages())) {
+            extracts.add(call(chatModel, STAGE_A_INSTRUCTION, chunk).strip());
+        }
+        String stageA = reduceExtracts(chatModel, extracts);
+        String stageB = call(chatModel,
+                STAGE_B_INSTRUCTION + "摘要長度不可超過 " + Math.min(summaryMaxTokens, Math.max(1L, request.targetTokens()))
+                        + " tokens。\n",
+                stageA);
+
+        return request.header() + "\n" + stageB.strip();
+    }
+
+    /**
+     * 每段 Stage A 一次加上 Stage B 一次；抽取結果需要再分組合併時會略多，這裡不另行估計。
+     */
+    @Override
+    public int estimatedModelCalls(ContextSummaryRequest request) {
+        return renderTranscriptChunks(request.messages()).size() + 1;
+    }
+
+    @Override
+    public String name() {
+        return "llm";
+    }
+
+    private String call(ChatModel chatModel, String instruction, String input) {
+        ChatResponse response = chatModel.call(new Prompt(List.of(new SystemMessage(instruction), new UserMessage(input))));
+        String text = response == null || response.getResult() == null || response.getResult().getOutput() == null
+                ? null
+                : response.getResult().getOutput().getText();
+        if (text == null || text.isBlank()) {
+            throw new IllegalStateException("Context summarizer returned empty output");
+        }
+        return text;
+    }
+
+    /**
+     * 將要壓縮的訊息轉成逐行逐角色的文字稿，依字元上限切段；每一筆訊息都會完整出現，
+     * 單筆超過上限時拆成多個標註「續」的片段。
+     */
+    List<String> renderTranscriptChunks(List<ChatMessageDto> messages) {
+        List<String> lines = new ArrayList<>();
+        for (ChatMessageDto message : messages) {
+            if (message.getContent() == null || message.getContent().isBlank()) {
+                continue;
+            }
+            split("[" + message.getType() + "] ", message.getContent().strip(), lines);
+        }
+        return pack(lines);
+    }
+
+    /**
+     * 多段 Stage A 結果合計超過上限時，分組再執行一次 Stage A 合併，直到放得進單次輸入或無法再縮減。
+     */
+    private String reduceExtracts(ChatModel chatModel, List<String> extracts) {
+        List<String> current = extracts;
+        while (current.size() > 1) {
+            List<String> groups = pack(current);
+            if (groups.size() == 1) {
+                return groups.getFirst().strip();
+            }
+            if (groups.size() == current.size()) {
+                break;
+            }
+            List<String> merged = new ArrayList<>(groups.size());
+            for (String group : groups) {
+                merged.add(call(chatModel, STAGE_A_INSTRUCTION, group).strip());
+            }
+            current = merged;
+        }
+        return String.join("\n", current);
+    }
+
+    /**
+     * 依序把片段裝進不超過 max-input-chars 的區塊，片段之間以換行分隔。
+     */
+    private List<String> pack(List<String> parts) {
+        List<String> chunks = new ArrayList<>();
+        StringBuilder builder = new StringBuilder();
+        for (String part : parts) {
+            if (builder.length() > 0 && builder.length() + part.length() + 1 > maxInputChars) {
+                chunks.add(builder.toString());
+                builder.setLength(0);
+            }
+            builder.append(part).append("\n");
+        }
+        if (builder.length() > 0) {
+            chunks.add(builder.toString());
+        }
+        return chunks;
+    }
+
+    private void split(String prefix, String content, List<String> lines) {
+        if (prefix.length() + content.length() <= maxInputChars) {
+            lines.add(prefix + content);
+            return;
+        }
+        String continued = prefix + "(續) ";
+        int width = maxInputChars - continued.length();
+        for (int start = 0; start < content.length(); start += width) {
+            lines.add(continued + content.substring(start, Math.min(content.length(), start + width)));
+        }
+    }
+}
@@ -6,5 +6,12 @@ public record ContextCompressionMetricsSnapshot(
         long failures,
         long totalSavedTokens,
         double failureRate,
-        double averageSavedRatio) {
-}
\ No newline at end of file
+        double averageSavedRatio,
+        long queueDepth,
+        long pendingConversations,
+        long coalescedRequests,
+        long rejectedRequests,
+        double averageQueueLagMs,
+        long maxQueueLagMs,
+        long concurrentConflicts) {
+}
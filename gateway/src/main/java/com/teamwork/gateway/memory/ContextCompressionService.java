@@ -1,137 +1,232 @@
 package com.teamwork.gateway.memory;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.teamwork.gateway.ai.TokenEstimatorRegistry;
 import com.teamwork.gateway.event.ContextCompressedEvent;
+import com.teamwork.gateway.event.ContextSegmentCompactedEvent;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.core.task.TaskRejectedException;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.stereotype.Service;
 
-import java.time.LocalDateTime;
+import java.time.Duration;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.LinkedHashMap;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
-import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.LongAdder;
 
 @Service
 @Slf4j
 public class ContextCompressionService {
 
-    private static final String CHAT_KEY_PREFIX = "chat:memory:";
     private static final String COMPRESSION_COUNT_KEY_PREFIX = "chat:memory:compression-count:";
-        private static final String TEMPLATE_STAGE_A = """
-            [STAGE_A]
-            你是 Context Compressor。請抽取不可遺失資訊：
-            {facts, decisions, constraints, open_questions, errors_and_fixes, pending_todos}
-            規則：僅保留會影響後續執行內容，不可杜撰。
-            """;
-        private static final String TEMPLATE_STAGE_B = """
-            [STAGE_B]
-            根據 Stage A 產生可續跑摘要，固定輸出：
-            1. 目標與範圍
-            2. 已完成
-            3. 進行中
-            4. 風險與限制
-            5. 下一步
-            """;
+    /** 摘要層級上限：L1 為原始訊息的區段摘要，L2 為摘要的摘要。 */
+    static final int MAX_SUMMARY_LEVEL = 2;
+    static final int DEFAULT_SUMMARY_FAN_IN = 4;
 
     private final StringRedisTemplate redisTemplate;
+    private final ChatMemoryStore messageStore;
+    private final ChatMessageCodec messageCodec;
+    private final ConversationNearCache nearCache;
+    private final ChatHistoryArchiver historyArchiver;
+    private final ContextSummarizationService summarizationService;
+    private final TokenEstimatorRegistry tokenEstimatorRegistry;
         private final ApplicationEventPublisher eventPublisher;
-    private final ObjectMapper objectMapper = new ObjectMapper();
     private final boolean enabled;
     private final long thresholdTokens;
     private final long targetTokens;
     private final int retainRecentMessages;
+    private final int summaryFanIn;
+    /** 壓縮次數計數器的閒置 TTL，每次遞增時重設；null 代表不設 TTL。 */
+    private final Duration counterTtl;
         private final LongAdder compressionAttempts = new LongAdder();
         private final LongAdder compressionSuccess = new LongAdder();
         private final LongAdder compressionFailures = new LongAdder();
         private final LongAdder totalSavedTokens = new LongAdder();
         private final LongAdder totalSavedRatioPermille = new LongAdder();
 
+    /** 背景壓縮 worker；null 代表同步模式（直接在 add 呼叫端執行）。 */
+    private final ThreadPoolTaskExecutor compressionExecutor;
+    /** 每個對話的排程狀態，用於合併同一對話的多次壓縮請求。 */
+    private final ConcurrentHashMap<String, PendingCompression> pendingCompressions = new ConcurrentHashMap<>();
+    private final LongAdder coalescedRequests = new LongAdder();
+    private final LongAdder rejectedRequests = new LongAdder();
+    private final LongAdder concurrentConflicts = new LongAdder();
+    private final LongAdder dequeuedJobs = new LongAdder();
+    private final LongAdder totalQueueLagMs = new LongAdder();
+    private final AtomicLong maxQueueLagMs = new AtomicLong();
+
+    @Autowired
     public ContextCompressionService(
             StringRedisTemplate redisTemplate,
+            ChatMemoryStore messageStore,
+            ChatMessageCodec messageCodec,
+            ConversationNearCache nearCache,
+            ChatHistoryArchiver historyArchiver,
+            ContextSummarizationService summarizationService,
+            TokenEstimatorRegistry tokenEstimatorRegistry,
             ApplicationEventPublisher eventPublisher,
             @Value("${gateway.context-compression.enabled:true}") boolean enabled,
             @Value("${gateway.context-compression.threshold-tokens:12000}") long thresholdTokens,
             @Value("${gateway.context-compression.target-tokens:6000}") long targetTokens,
-            @Value("${gateway.context-compression.retain-recent-messages:8}") int retainRecentMessages) {
+            @Value("${gateway.context-compression.retain-recent-messages:8}") int retainRecentMessages,
+            @Value("${gateway.context-compression.summary-fan-in:4}") int summaryFanIn,
+            @Value("${gateway.context-compression.async.enabled:true}") boolean asyncEnabled,
+            @Value("${gateway.context-compression.async.workers:2}") int asyncWorkers,
+            @Value("${gateway.context-compression.async.queue-capacity:1000}") int asyncQueueCapacity,
+            @Value("${gateway.chat-memory.retention.idle-ttl-minutes:10080}") long counterTtlMinutes) {
         this.redisTemplate = redisTemplate;
+        this.messageStore = messageStore;
+        this.messageCodec = messageCodec;
+        this.nearCache = nearCache;
+        this.historyArchiver = historyArchiver;
+        this.summarizationService = summarizationService;
+        this.tokenEstimatorRegistry = tokenEstimatorRegistry;
         this.eventPublisher = eventPublisher;
         this.enabled = enabled;
         this.thresholdTokens = thresholdTokens;
         this.targetTokens = targetTokens;
         this.retainRecentMessages = Math.max(0, retainRecentMessages);
+        this.summaryFanIn = Math.max(2, summaryFanIn);
+        this.counterTtl = counterTtlMinutes > 0 ? Duration.ofMinutes(counterTtlMinutes) : null;
+        this.compressionExecutor = enabled && asyncEnabled
+                ? createCompressionExecutor(asyncWorkers, asyncQueueCapacity)
+                : null;
+    }
+
+    /** 測試用建構子（同步模式，不建立背景 worker） */
+    ContextCompressionService(
+            StringRedisTemplate redisTemplate,
+            ChatMemoryStore messageStore,
+            ChatMessageCodec messageCodec,
+            ConversationNearCache nearCache,
+            ChatHistoryArchiver historyArchiver,
+            ContextSummarizationService summarizationService,
+            TokenEstimatorRegistry tokenEstimatorRegistry,
+            ApplicationEventPublisher eventPublisher,
+            boolean enabled,
+            long thresholdTokens,
+            long targetTokens,
+            int retainRecentMessages) {
+        this(redisTemplate, messageStore, messageCodec, nearCache, historyArchiver, summarizationService, tokenEstimatorRegistry, eventPublisher,
+                enabled, thresholdTokens, targetTokens, retainRecentMessages, DEFAULT_SUMMARY_FAN_IN, false, 0, 0, 0L);
+    }
+
+    /**
+     * 由 chat 寫入路徑呼叫：未超過閾值時立即返回；超過時交給背景 worker，
+     * 同一對話在排隊或執行中的多次請求會合併成一次壓縮，讓回覆延遲不包含壓縮成本。
+     */
+    public void requestCompression(String conversationId, long currentTokens) {
+        if (!enabled) {
+            return;
+        }
+        if (currentTokens >= 0 && currentTokens <= thresholdTokens) {
+            compressionAttempts.increment();
+            return;
+        }
+        if (compressionExecutor == null) {
+            compressIfNeeded(conversationId, currentTokens);
+            return;
+        }
+
+        boolean[] submit = {false};
+        pendingCompressions.compute(conversationId, (key, pending) -> {
+            if (pending == null) {
+                submit[0] = true;
+                return new PendingCompression(System.currentTimeMillis(), false);
+            }
+            coalescedRequests.increment();
+            // 執行中又有新寫入：標記 dirty，完成後再跑一次
+            return pending.running() ? new PendingCompression(pending.enqueuedAtMillis(), true, true) : pending;
+        });
+        if (submit[0]) {
+            submitCompression(conversationId);
+        }
     }
 
     /**
      * 若上下文 token 估算超過閾值，將舊歷史壓縮為一筆 system summary。
+     * <p>先讀 running token 計數（O(1)）判斷；超過閾值時只讀取要壓縮的前段，計數未知時才整串讀取。</p>
      */
     public void compressIfNeeded(String conversationId) {
+        if (!enabled) {
+            return;
+        }
+        compressIfNeeded(conversationId, messageStore.getTokenCount(conversationId));
+    }
+
+    /**
+     * 以呼叫端已取得的 token 計數（例如 append 回傳值）判斷是否需要壓縮，
+     * 未超過閾值時不產生任何 Redis 讀取；計數為負值代表未知，需整串重算。
+     */
+    public void compressIfNeeded(String conversationId, long currentTokens) {
         if (!enabled) {
             return;
         }
         compressionAttempts.increment();
+        if (currentTokens >= 0 && currentTokens <= thresholdTokens) {
+            return;
+        }
 
         try {
-            String chatKey = CHAT_KEY_PREFIX + conversationId;
-            Long size = redisTemplate.opsForList().size(chatKey);
-            if (size == null || size <= 0) {
+            CompressionPlan plan = currentTokens >= 0
+                    ? planFromTokenCount(conversationId, currentTokens)
+                    : planFromFullScan(conversationId);
+            if (plan == null) {
                 return;
             }
-
-            List<String> rawMessages = redisTemplate.opsForList().range(chatKey, 0, size - 1);
-            if (rawMessages == null || rawMessages.isEmpty()) {
+            long estimatedTokens = plan.estimatedTokens();
+            List<SummaryEntry> summaries = plan.summaries();
+            List<String> rawMessages = plan.rawMessages();
+            if (rawMessages.isEmpty() && !needsRollUp(summaries)) {
                 return;
             }
 
-            List<ChatMessageDto> messageDtos = rawMessages.stream()
-                    .map(this::fromJson)
-                    .filter(Objects::nonNull)
-                    .toList();
-            if (messageDtos.isEmpty()) {
-                return;
-            }
-
-            long estimatedTokens = messageDtos.stream()
-                    .map(ChatMessageDto::getContent)
-                    .mapToLong(this::estimateTokens)
-                    .sum();
-            if (estimatedTokens <= thresholdTokens) {
-                return;
-            }
-
-            int splitIndex = Math.max(0, messageDtos.size() - retainRecentMessages);
-            List<ChatMessageDto> toCompress = messageDtos.subList(0, splitIndex);
-            List<ChatMessageDto> retained = messageDtos.subList(splitIndex, messageDtos.size());
-
-            ChatMessageDto summaryMessage = buildSummaryMessage(conversationId, toCompress, estimatedTokens);
-            List<ChatMessageDto> merged = new ArrayList<>();
-            merged.add(summaryMessage);
-            merged.addAll(retained);
-
-            List<String> jsonMessages = merged.stream()
-                    .map(this::toJson)
-                    .filter(Objects::nonNull)
-                    .toList();
+            long afterTokens = estimatedTokens;
+            // 每次成功改寫都會遞增結構版本，之後的改寫以遞增後的版本比對
+            long version = plan.version();
+            if (!rawMessages.isEmpty()) {
+                // L0 → L1：只摘要上一層摘要之後的原始訊息，既有摘要原樣保留，不會被重複解析
+                SummaryEntry segmentSummary = encodeSummary(
+                        conversationId, 1, plan.toCompress(), estimatedTokens);
+                if (segmentSummary == null) {
+                    return;
+                }
+                long tokenDelta = segmentSummary.tokens() - plan.compressedTokens();
+                // 只替換讀到的區段；讀取後才附加的訊息留在 list 尾端不受影響
+                boolean applied = messageStore.replaceRange(
+                        conversationId,
+                        summaries.size(),
+                        rawMessages,
+                        List.of(segmentSummary.raw()),
+                        tokenDelta,
+                        plan.version());
+                nearCache.invalidate(conversationId);
+                if (!applied) {
+                    // 摘要成本高，不重試；下一次寫入時計數仍超過閾值會再次提出
+                    concurrentConflicts.increment();
+                    log.info("Context compression skipped, history changed concurrently. conversationId={}", conversationId);
+                    return;
+                }
 
-            redisTemplate.delete(chatKey);
-            if (!jsonMessages.isEmpty()) {
-                redisTemplate.opsForList().rightPushAll(chatKey, jsonMessages);
+                // 被摘要取代的原始訊息移入冷儲存，需要時仍可追溯
+                historyArchiver.archiveCompacted(conversationId, rawMessages);
+                eventPublisher.publishEvent(new ContextSegmentCompactedEvent(this, conversationId, plan.toCompress()));
+                summaries.add(segmentSummary);
+                afterTokens += tokenDelta;
+                version++;
             }
+            afterTokens = rollUpSummaries(conversationId, summaries, afterTokens, version);
+            incrementCompressionCount(conversationId);
 
-            redisTemplate.opsForValue().increment(COMPRESSION_COUNT_KEY_PREFIX + conversationId);
-
-            long afterTokens = merged.stream()
-                    .map(ChatMessageDto::getContent)
-                    .mapToLong(this::estimateTokens)
-                    .sum();
             long savedTokens = Math.max(0L, estimatedTokens - afterTokens);
             double savedRatio = estimatedTokens == 0 ? 0.0 : (double) savedTokens / (double) estimatedTokens;
             compressionSuccess.increment();
@@ -140,14 +235,263 @@ public class ContextCompressionService {
 
             publishContextCompressedEvent(conversationId, estimatedTokens, afterTokens, savedTokens, savedRatio);
 
-            log.info("Context compressed. conversationId={}, beforeMessages={}, afterMessages={}, beforeTokens={}, afterTokens={}, savedTokens={}, savedRatio={}, targetTokens={}",
-                    conversationId, messageDtos.size(), merged.size(), estimatedTokens, afterTokens, savedTokens, savedRatio, targetTokens);
+            log.info("Context compressed. conversationId={}, beforeMessages={}, afterMessages={}, summaries={}, beforeTokens={}, afterTokens={}, savedTokens={}, savedRatio={}, targetTokens={}",
+                    conversationId, plan.totalMessages(), plan.totalMessages() - plan.rawPrefixSize() + summaries.size(),
+                    summaries.size(), estimatedTokens, afterTokens, savedTokens, savedRatio, targetTokens);
         } catch (RuntimeException ex) {
             compressionFailures.increment();
             throw ex;
         }
     }
 
+    /**
+     * 摘要層級上捲：同一層摘要超過 fan-in 時合併成一筆上一層摘要（L1 → L2）；
+     * 最高層超過 fan-in 時合併成單筆同層摘要。每次合併的輸入最多 fan-in + 1 筆摘要，
+     * 壓縮成本不隨對話長度成長。合併時發生並行修改即停止，留待下一次壓縮。
+     */
+    private long rollUpSummaries(
+            String conversationId, List<SummaryEntry> summaries, long currentTokens, long version) {
+        long tokens = currentTokens;
+        long expectedVersion = version;
+        for (int level = 1; level <= MAX_SUMMARY_LEVEL; level++) {
+            int start = firstIndexOfLevel(summaries, level);
+            if (start < 0) {
+                continue;
+            }
+            int end = start;
+            while (end < summaries.size() && summaries.get(end).level() == level) {
+                end++;
+            }
+            if (end - start <= summaryFanIn) {
+                continue;
+            }
+
+            List<SummaryEntry> block = summaries.subList(start, end);
+            List<ChatMessageDto> sources = new ArrayList<>(block.size());
+            List<String> rawBlock = new ArrayList<>(block.size());
+            long blockTokens = 0L;
+            for (SummaryEntry entry : block) {
+                sources.add(entry.message());
+                rawBlock.add(entry.raw());
+                blockTokens += entry.tokens();
+            }
+            SummaryEntry merged = encodeSummary(
+                    conversationId, Math.min(level + 1, MAX_SUMMARY_LEVEL), sources, tokens);
+            if (merged == null) {
+                break;
+            }
+            long tokenDelta = merged.tokens() - blockTokens;
+            boolean applied = messageStore.replaceRange(
+                    conversationId, start, rawBlock, List.of(merged.raw()), tokenDelta, expectedVersion);
+            nearCache.invalidate(conversationId);
+            if (!applied) {
+                concurrentConflicts.increment();
+                log.info("Summary roll-up skipped, history changed concurrently. conversationId={}, level={}", conversationId, level);
+                break;
+            }
+            block.clear();
+            summaries.add(start, merged);
+            tokens += tokenDelta;
+            expectedVersion++;
+            log.debug("Summaries rolled up. conversationId={}, level={}, merged={}", conversationId, level, rawBlock.size());
+        }
+        return tokens;
+    }
+
+    private boolean needsRollUp(List<SummaryEntry> summaries) {
+        int[] perLevel = new int[MAX_SUMMARY_LEVEL + 1];
+        for (SummaryEntry entry : summaries) {
+            if (++perLevel[entry.level()] > summaryFanIn) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int firstIndexOfLevel(List<SummaryEntry> summaries, int level) {
+        for (int index = 0; index < summaries.size(); index++) {
+            if (summaries.get(index).level() == level) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 計數已知：只讀取要壓縮的前段 segment，每筆 token 數取自編碼前綴，不必整串讀回。
+     */
+    private CompressionPlan planFromTokenCount(String conversationId, long currentTokens) {
+        long totalMessages = messageStore.size(conversationId);
+        int splitIndex = (int) Math.max(0L, totalMessages - retainRecentMessages);
+        ChatMemoryStore.VersionedRange prefix = messageStore.readRangeVersioned(conversationId, 0L, splitIndex);
+        List<String> rawPrefix = prefix.entries();
+        List<ChatMessageDto> decoded = new ArrayList<>(rawPrefix.size());
+        for (String raw : rawPrefix) {
+            decoded.add(messageCodec.decode(raw));
+        }
+        return buildPlan(totalMessages, prefix.version(), rawPrefix, decoded, currentTokens);
+    }
+
+    /**
+     * 計數未知（升級前的舊對話）：整串讀取重算；未超過閾值時順便補上計數器。
+     */
+    private CompressionPlan planFromFullScan(String conversationId) {
+        ChatMemoryStore.VersionedRange all =
+                messageStore.readRangeVersioned(conversationId, 0L, Integer.MAX_VALUE);
+        List<String> rawMessages = all.entries();
+        if (rawMessages.isEmpty()) {
+            return null;
+        }
+
+        int splitIndex = Math.max(0, rawMessages.size() - retainRecentMessages);
+        List<ChatMessageDto> decoded = new ArrayList<>(splitIndex);
+        long estimatedTokens = 0L;
+        int parsedMessages = 0;
+        for (int index = 0; index < rawMessages.size(); index++) {
+            ChatMessageDto dto = messageCodec.decode(rawMessages.get(index));
+            if (index < splitIndex) {
+                decoded.add(dto);
+            }
+            if (dto == null) {
+                continue;
+            }
+            parsedMessages++;
+            long tokens = estimateTokens(dto.getContent());
+            dto.setTokens(tokens);
+            estimatedTokens += tokens;
+        }
+        if (parsedMessages == 0) {
+            return null;
+        }
+
+        if (estimatedTokens <= thresholdTokens) {
+            // 以本次重算結果補上計數器，之後的判斷即回到 O(1)
+            messageStore.setTokenCount(conversationId, estimatedTokens);
+            return null;
+        }
+        return buildPlan(rawMessages.size(), all.version(), rawMessages.subList(0, splitIndex), decoded, estimatedTokens);
+    }
+
+    /**
+     * 將前段拆成開頭連續的既有摘要（L1/L2）與其後待摘要的原始訊息（L0）。
+     */
+    private CompressionPlan buildPlan(
+            long totalMessages,
+            long version,
+            List<String> rawPrefix,
+            List<ChatMessageDto> decoded,
+            long estimatedTokens) {
+        List<SummaryEntry> summaries = new ArrayList<>();
+        int index = 0;
+        while (index < rawPrefix.size()) {
+            ChatMessageDto dto = decoded.get(index);
+            int level = summaryLevel(dto);
+            if (level == 0) {
+                break;
+            }
+            summaries.add(new SummaryEntry(rawPrefix.get(index), dto, level, tokensOf(dto)));
+            index++;
+        }
+
+        List<ChatMessageDto> toCompress = new ArrayList<>(rawPrefix.size() - index);
+        long compressedTokens = 0L;
+        for (int rawIndex = index; rawIndex < rawPrefix.size(); rawIndex++) {
+            ChatMessageDto dto = decoded.get(rawIndex);
+            if (dto == null) {
+                continue;
+            }
+            toCompress.add(dto);
+            compressedTokens += tokensOf(dto);
+        }
+        return new CompressionPlan(
+                totalMessages,
+                version,
+                rawPrefix.size(),
+                summaries,
+                rawPrefix.subList(index, rawPrefix.size()),
+                toCompress,
+                estimatedTokens,
+                compressedTokens);
+    }
+
+    /**
+     * 壓縮摘要的層級：非摘要訊息為 0；舊版未標層級的摘要視為 L1。
+     */
+    static int summaryLevel(ChatMessageDto dto) {
+        if (dto == null || !"SYSTEM".equalsIgnoreCase(dto.getType()) || dto.getMetadata() == null
+                || !Boolean.TRUE.equals(dto.getMetadata().get("compressed"))) {
+            return 0;
+        }
+        Object level = dto.getMetadata().get("summaryLevel");
+        if (level instanceof Number number) {
+            return Math.clamp(number.intValue(), 1, MAX_SUMMARY_LEVEL);
+        }
+        return 1;
+    }
+
+    private long tokensOf(ChatMessageDto dto) {
+        return dto.getTokens() != null ? dto.getTokens() : estimateTokens(dto.getContent());
+    }
+
+    private void submitCompression(String conversationId) {
+        try {
+            compressionExecutor.execute(() -> runQueuedCompression(conversationId));
+        } catch (TaskRejectedException ex) {
+            // 佇列已滿：放棄本次排程，下一次寫入時計數仍超過閾值會再次提出
+            pendingCompressions.remove(conversationId);
+            rejectedRequests.increment();
+            log.warn("Context compression queue is full, request dropped. conversationId={}", conversationId);
+        }
+    }
+
+    private void runQueuedCompression(String conversationId) {
+        PendingCompression started = pendingCompressions.computeIfPresent(conversationId,
+                (key, pending) -> new PendingCompression(pending.enqueuedAtMillis(), true));
+        if (started != null) {
+            long lagMs = Math.max(0L, System.currentTimeMillis() - started.enqueuedAtMillis());
+            dequeuedJobs.increment();
+            totalQueueLagMs.add(lagMs);
+            maxQueueLagMs.accumulateAndGet(lagMs, Math::max);
+        }
+
+        try {
+            compressIfNeeded(conversationId);
+        } catch (RuntimeException ex) {
+            log.warn("Background context compression failed. conversationId={}", conversationId, ex);
+        } finally {
+            boolean[] resubmit = {false};
+            pendingCompressions.computeIfPresent(conversationId, (key, pending) -> {
+                if (pending.dirty()) {
+                    resubmit[0] = true;
+                    return new PendingCompression(System.currentTimeMillis(), false);
+                }
+                return null;
+            });
+            if (resubmit[0]) {
+                submitCompression(conversationId);
+            }
+        }
+    }
+
+    private ThreadPoolTaskExecutor createCompressionExecutor(int workers, int queueCapacity) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(Math.max(1, workers));
+        executor.setMaxPoolSize(Math.max(1, workers));
+        executor.setQueueCapacity(Math.max(1, queueCapacity));
+        executor.setThreadNamePrefix("context-compression-");
+        executor.setWaitForTasksToCompleteOnShutdown(true);
+        executor.setAwaitTerminationSeconds(10);
+        executor.initialize();
+        return executor;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (compressionExecutor != null) {
+            compressionExecutor.shutdown();
+        }
+    }
+
     public ContextCompressionMetricsSnapshot getMetricsSnapshot() {
         long attempts = compressionAttempts.sum();
         long compressed = compressionSuccess.sum();
@@ -156,20 +500,48 @@ public class ContextCompressionService {
         double averageSavedRatio = compressed == 0
                 ? 0.0
                 : ((double) totalSavedRatioPermille.sum() / 1000.0) / (double) compressed;
+        long dequeued = dequeuedJobs.sum();
         return new ContextCompressionMetricsSnapshot(
                 attempts,
                 compressed,
                 failures,
                 totalSavedTokens.sum(),
                 failureRate,
-                averageSavedRatio);
+                averageSavedRatio,
+                compressionExecutor == null ? 0L : compressionExecutor.getThreadPoolExecutor().getQueue().size(),
+                pendingCompressions.size(),
+                coalescedRequests.sum(),
+                rejectedRequests.sum(),
+                dequeued == 0 ? 0.0 : (double) totalQueueLagMs.sum() / (double) dequeued,
+                maxQueueLagMs.get(),
+                concurrentConflicts.sum());
     }
 
     /**
      * 取得該對話歷史累積壓縮次數。
      */
     public long getCompressionCount(String conversationId) {
-        String value = redisTemplate.opsForValue().get(COMPRESSION_COUNT_KEY_PREFIX + conversationId);
+        return parseCompressionCount(redisTemplate.opsForValue().get(COMPRESSION_COUNT_KEY_PREFIX + conversationId));
+    }
+
+    /**
+     * 以單次 MGET 取得多個對話的壓縮次數，回傳順序與輸入一致。
+     */
+    public Map<String, Long> getCompressionCounts(List<String> conversationIds) {
+        if (conversationIds.isEmpty()) {
+            return Map.of();
+        }
+        List<String> keys = conversationIds.stream().map(id -> COMPRESSION_COUNT_KEY_PREFIX + id).toList();
+        List<String> values = redisTemplate.opsForValue().multiGet(keys);
+        Map<String, Long> counts = new LinkedHashMap<>(conversationIds.size() * 2);
+        for (int index = 0; index < conversationIds.size(); index++) {
+            String value = values != null && index < values.size() ? values.get(index) : null;
+            counts.put(conversationIds.get(index), parseCompressionCount(value));
+        }
+        return counts;
+    }
+
+    private long parseCompressionCount(String value) {
         if (value == null || value.isBlank()) {
             return 0L;
         }
@@ -180,52 +552,51 @@ public class ContextCompressionService {
         }
     }
 
+    private void incrementCompressionCount(String conversationId) {
+        String key = COMPRESSION_COUNT_KEY_PREFIX + conversationId;
+        redisTemplate.opsForValue().increment(key);
+        if (counterTtl != null) {
+            redisTemplate.expire(key, counterTtl);
+        }
+    }
+
     public void clearCompressionCount(String conversationId) {
         redisTemplate.delete(COMPRESSION_COUNT_KEY_PREFIX + conversationId);
     }
 
-    private ChatMessageDto buildSummaryMessage(String conversationId, List<ChatMessageDto> compressedMessages, long beforeTokens) {
-        CompressionExtraction extraction = extractKeyInformation(compressedMessages);
-        String summary = buildStructuredSummary(conversationId, extraction, compressedMessages.size(), beforeTokens);
+    private SummaryEntry encodeSummary(String conversationId, int level, List<ChatMessageDto> sources, long beforeTokens) {
+        ChatMessageDto summaryMessage = buildSummaryMessage(conversationId, level, sources, beforeTokens);
+        long summaryTokens = estimateTokens(summaryMessage.getContent());
+        summaryMessage.setTokens(summaryTokens);
+        String encoded = messageCodec.encode(summaryMessage);
+        return encoded == null ? null : new SummaryEntry(encoded, summaryMessage, level, summaryTokens);
+    }
+
+    private ChatMessageDto buildSummaryMessage(
+            String conversationId, int level, List<ChatMessageDto> sources, long beforeTokens) {
+        ContextSummary summary = summarizationService.summarize(
+                new ContextSummaryRequest(conversationId, level, sources, beforeTokens, targetTokens));
 
         Map<String, Object> metadata = new HashMap<>();
         metadata.put("compressed", true);
-        metadata.put("sourceMessageCount", compressedMessages.size());
+        metadata.put("summaryLevel", level);
+        metadata.put("sourceMessageCount", sources.size());
         metadata.put("beforeTokens", beforeTokens);
         metadata.put("targetTokens", targetTokens);
-        metadata.put("templateStageA", TEMPLATE_STAGE_A);
-        metadata.put("templateStageB", TEMPLATE_STAGE_B);
+        metadata.put("summarizer", summary.summarizer());
 
         return ChatMessageDto.builder()
                 .type("SYSTEM")
-                .content(summary)
+                .content(summary.content())
                 .metadata(metadata)
                 .build();
     }
 
-    private long estimateTokens(String content) {
-        if (content == null || content.isBlank()) {
-            return 0L;
-        }
-        return Math.max(1, (content.length() + 3L) / 4L);
-    }
-
-    private String toJson(ChatMessageDto dto) {
-        try {
-            return objectMapper.writeValueAsString(dto);
-        } catch (JsonProcessingException e) {
-            log.error("Failed to serialize ChatMessageDto in compression", e);
-            return null;
-        }
-    }
-
-    private ChatMessageDto fromJson(String json) {
-        try {
-            return objectMapper.readValue(json, ChatMessageDto.class);
-        } catch (JsonProcessingException e) {
-            log.warn("Failed to deserialize context message for compression");
-            return null;
-        }
+    /**
+     * 估算單段文字的 token 數（使用預設 TokenEstimator）。
+     */
+    public long estimateTokens(String content) {
+        return tokenEstimatorRegistry.estimate(content);
     }
 
     private void publishContextCompressedEvent(
@@ -246,110 +617,29 @@ public class ContextCompressionService {
                 savedRatio));
     }
 
-    private CompressionExtraction extractKeyInformation(List<ChatMessageDto> messages) {
-        Map<String, List<String>> bucket = new LinkedHashMap<>();
-        bucket.put("facts", new ArrayList<>());
-        bucket.put("decisions", new ArrayList<>());
-        bucket.put("constraints", new ArrayList<>());
-        bucket.put("open_questions", new ArrayList<>());
-        bucket.put("errors_and_fixes", new ArrayList<>());
-        bucket.put("pending_todos", new ArrayList<>());
-
-        for (ChatMessageDto message : messages) {
-            if (message.getContent() == null || message.getContent().isBlank()) {
-                continue;
-            }
-            String[] lines = message.getContent().split("\\r?\\n");
-            for (String rawLine : lines) {
-                String line = rawLine == null ? "" : rawLine.trim();
-                if (line.isBlank()) {
-                    continue;
-                }
-                String lower = line.toLowerCase(Locale.ROOT);
-                if (lower.contains("todo") || lower.contains("待辦") || lower.contains("next")) {
-                    addLimited(bucket.get("pending_todos"), line, 4);
-                } else if (lower.contains("error") || lower.contains("exception") || lower.contains("修正") || lower.contains("fix")) {
-                    addLimited(bucket.get("errors_and_fixes"), line, 4);
-                } else if (lower.contains("?") || lower.contains("請問") || lower.contains("是否")) {
-                    addLimited(bucket.get("open_questions"), line, 4);
-                } else if (lower.contains("must") || lower.contains("限制") || lower.contains("required") || lower.contains("不可")) {
-                    addLimited(bucket.get("constraints"), line, 4);
-                } else if (lower.contains("決定") || lower.contains("adopt") || lower.contains("choose") || lower.contains("採用")) {
-                    addLimited(bucket.get("decisions"), line, 4);
-                } else {
-                    addLimited(bucket.get("facts"), line, 6);
-                }
-            }
-        }
-        return new CompressionExtraction(
-                bucket.get("facts"),
-                bucket.get("decisions"),
-                bucket.get("constraints"),
-                bucket.get("open_questions"),
-                bucket.get("errors_and_fixes"),
-                bucket.get("pending_todos"));
-    }
-
-    private String buildStructuredSummary(
-            String conversationId,
-            CompressionExtraction extraction,
-            int sourceMessages,
-            long beforeTokens) {
-        StringBuilder builder = new StringBuilder();
-        builder.append("[AUTO_COMPRESSED]")
-                .append(" conversationId=").append(conversationId)
-                .append(", sourceMessages=").append(sourceMessages)
-                .append(", beforeTokens=").append(beforeTokens)
-                .append(", targetTokens=").append(targetTokens)
-                .append(", at=").append(LocalDateTime.now())
-                .append("\n")
-                .append("stageA=facts=").append(extraction.facts().size())
-                .append(", decisions=").append(extraction.decisions().size())
-                .append(", constraints=").append(extraction.constraints().size())
-                .append(", open_questions=").append(extraction.openQuestions().size())
-                .append(", errors_and_fixes=").append(extraction.errorsAndFixes().size())
-                .append(", pending_todos=").append(extraction.pendingTodos().size())
-                .append("\n")
-                .append("1. 目標與範圍\n")
-                .append(formatList(extraction.facts(), "- 無可用目標資訊"))
-                .append("2. 已完成\n")
-                .append(formatList(extraction.decisions(), "- 無明確完成決策"))
-                .append("3. 進行中\n")
-                .append(formatList(extraction.pendingTodos(), "- 無待辦項目"))
-                .append("4. 風險與限制\n")
-                .append(formatList(extraction.constraints(), "- 無明確限制"))
-                .append(formatList(extraction.errorsAndFixes(), "- 無錯誤修正記錄"))
-                .append("5. 下一步\n")
-                .append(formatList(extraction.openQuestions(), "- 依既有任務流程續行"));
-        return builder.toString();
+    /**
+     * 壓縮計畫：summaries 為前段開頭既有的摘要，rawMessages / toCompress 為其後待摘要的原始訊息。
+     */
+    private record CompressionPlan(
+            long totalMessages,
+            long version,
+            int rawPrefixSize,
+            List<SummaryEntry> summaries,
+            List<String> rawMessages,
+            List<ChatMessageDto> toCompress,
+            long estimatedTokens,
+            long compressedTokens) {
     }
 
-    private String formatList(List<String> items, String fallback) {
-        if (items == null || items.isEmpty()) {
-            return fallback + "\n";
-        }
-        StringBuilder builder = new StringBuilder();
-        for (String item : items) {
-            builder.append("- ").append(item).append("\n");
-        }
-        return builder.toString();
+    private record SummaryEntry(String raw, ChatMessageDto message, int level, long tokens) {
     }
 
-    private void addLimited(List<String> bucket, String value, int maxItems) {
-        if (bucket.size() >= maxItems) {
-            return;
-        }
-        if (!bucket.contains(value)) {
-            bucket.add(value);
+    /**
+     * 對話的壓縮排程狀態：入列時間、是否執行中、執行中是否又有新請求。
+     */
+    private record PendingCompression(long enqueuedAtMillis, boolean running, boolean dirty) {
+        PendingCompression(long enqueuedAtMillis, boolean running) {
+            this(enqueuedAtMillis, running, false);
         }
     }
-
-    private record CompressionExtraction(
-            List<String> facts,
-            List<String> decisions,
-            List<String> constraints,
-            List<String> openQuestions,
-            List<String> errorsAndFixes,
-            List<String> pendingTodos) {
-    }
 }
@@ -0,0 +1,11 @@
+package com.teamwork.gateway.memory;
+
+public record ContextSummarizationMetricsSnapshot(
+        long modelSummaries,
+        long heuristicSummaries,
+        long timeouts,
+        long throttled,
+        long rejected,
+        long errors,
+        double averageModelLatencyMs) {
+}
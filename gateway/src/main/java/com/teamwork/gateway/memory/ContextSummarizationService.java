@@ -0,0 +1,245 @@
+package com.teamwork.gateway.memory;
+
+import com.teamwork.gateway.entity.TaskRecord;
+import com.teamwork.gateway.repository.TaskRecordRepository;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Service;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 壓縮摘要的執行入口：模型摘要在獨立的有界 executor 上執行，每個租戶同時只能佔用固定數量的名額；
+ * 名額用盡、佇列已滿、逾時或模型失敗時改用本機 heuristic 摘要，壓縮流程本身不會因模型而失敗或卡住。
+ * <p>timeout-ms 是單次模型呼叫的期限，等待時間依摘要器預估的呼叫次數（分段 map/reduce）放大；
+ * 逾時後呼叫端不再等待，但中斷無法停止進行中的 HTTP 呼叫，名額要等 worker 實際結束才歸還。</p>
+ */
+@Slf4j
+@Service
+public class ContextSummarizationService {
+
+    static final String DEFAULT_TENANT = "default";
+    /** 任務所屬 profile 不會改變，快取對話到 profile 的對應，穩定狀態下摘要不查詢資料庫 */
+    static final int MAX_CACHED_PROFILES = 10_000;
+
+    private final ContextSummarizer heuristicSummarizer;
+    /** 模型摘要器；null 代表只使用 heuristic。 */
+    private final ContextSummarizer modelSummarizer;
+    private final TaskRecordRepository taskRecordRepository;
+    private final int maxConcurrentPerTenant;
+    /** 單次模型呼叫的逾時 */
+    private final long timeoutMs;
+    private final ThreadPoolTaskExecutor summarizerExecutor;
+    private final ConcurrentHashMap<String, Semaphore> tenantPermits = new ConcurrentHashMap<>();
+    private final Map<String, String> profileByConversation = Collections.synchronizedMap(
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                    return size() > MAX_CACHED_PROFILES;
+                }
+            });
+
+    private final LongAdder modelSummaries = new LongAdder();
+    private final LongAdder heuristicSummaries = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder totalModelLatencyMs = new LongAdder();
+
+    @Autowired
+    public ContextSummarizationService(
+            HeuristicContextSummarizer heuristicSummarizer,
+            ChatModelContextSummarizer modelSummarizer,
+            TaskRecordRepository taskRecordRepository,
+            @Value("${gateway.context-compression.summarizer.type:llm}") String type,
+            @Value("${gateway.context-compression.summarizer.workers:2}") int workers,
+            @Value("${gateway.context-compression.summarizer.queue-capacity:50}") int queueCapacity,
+            @Value("${gateway.context-compression.summarizer.max-concurrent-per-tenant:1}") int maxConcurrentPerTenant,
+            @Value("${gateway.context-compression.summarizer.timeout-ms:20000}") long timeoutMs) {
+        this((ContextSummarizer) heuristicSummarizer,
+                "llm".equalsIgnoreCase(type) ? modelSummarizer : null,
+                taskRecordRepository, workers, queueCapacity, maxConcurrentPerTenant, timeoutMs);
+    }
+
+    /** 測試用建構子（modelSummarizer 為 null 時不建立 executor） */
+    ContextSummarizationService(
+            ContextSummarizer heuristicSummarizer,
+            ContextSummarizer modelSummarizer,
+            TaskRecordRepository taskRecordRepository,
+            int workers,
+            int queueCapacity,
+            int maxConcurrentPerTenant,
+            long timeoutMs) {
+        this.heuristicSummarizer = heuristicSummarizer;
+        this.modelSummarizer = modelSummarizer;
+        this.taskRecordRepository = taskRecordRepository;
+        this.maxConcurrentPerTenant = Math.max(1, maxConcurrentPerTenant);
+        this.timeoutMs = Math.max(1L, timeoutMs);
+        this.summarizerExecutor = modelSummarizer == null ? null : createSummarizerExecutor(workers, queueCapacity);
+    }
+
+    /**
+     * 產生摘要；優先使用模型，無法在期限內取得結果時回退 heuristic。
+     */
+    public ContextSummary summarize(ContextSummaryRequest request) {
+        if (summarizerExecutor == null) {
+            return summarizeWithHeuristic(request);
+        }
+
+        String profileId = resolveProfileId(request.conversationId());
+        String tenant = profileId == null ? DEFAULT_TENANT : profileId;
+        ContextSummaryRequest modelRequest = request.withProfileId(profileId);
+        Semaphore permits = tenantPermits.computeIfAbsent(tenant, key -> new Semaphore(maxConcurrentPerTenant));
+        if (!permits.tryAcquire()) {
+            throttled.increment();
+            log.debug("Context summarizer busy for tenant, using heuristic. tenant={}, conversationId={}",
+                    tenant, request.conversationId());
+            return summarizeWithHeuristic(request);
+        }
+
+        // worker 開始執行時取得名額的歸還責任；任務還在佇列中就被放棄時改由呼叫端歸還，且 worker 不再呼叫模型
+        AtomicBoolean claimed = new AtomicBoolean(false);
+        Future<String> future;
+        try {
+            future = summarizerExecutor.submit(() -> {
+                if (!claimed.compareAndSet(false, true)) {
+                    return null;
+                }
+                try {
+                    return modelSummarizer.summarize(modelRequest);
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (TaskRejectedException ex) {
+            permits.release();
+            rejected.increment();
+            log.warn("Context summarizer queue is full, using heuristic. conversationId={}", request.conversationId());
+            return summarizeWithHeuristic(request);
+        }
+
+        long waitMs = timeoutFor(modelRequest);
+        long startedAt = System.nanoTime();
+        try {
+            String content = future.get(waitMs, TimeUnit.MILLISECONDS);
+            modelSummaries.increment();
+            totalModelLatencyMs.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt));
+            return new ContextSummary(content, modelSummarizer.name());
+        } catch (TimeoutException ex) {
+            abandon(future, claimed, permits);
+            timeouts.increment();
+            log.warn("Context summarizer timed out after {} ms, using heuristic. conversationId={}",
+                    waitMs, request.conversationId());
+        } catch (InterruptedException ex) {
+            abandon(future, claimed, permits);
+            Thread.currentThread().interrupt();
+            errors.increment();
+        } catch (ExecutionException ex) {
+            errors.increment();
+            log.warn("Context summarizer failed, using heuristic. conversationId={}", request.conversationId(), ex.getCause());
+        }
+        return summarizeWithHeuristic(request);
+    }
+
+    /**
+     * 逾時依預估的模型呼叫次數放大，避免分段摘要在正常速度下也被單一期限截斷。
+     */
+    private long timeoutFor(ContextSummaryRequest request) {
+        int calls = Math.max(1, modelSummarizer.estimatedModelCalls(request));
+        return calls > Long.MAX_VALUE / timeoutMs ? Long.MAX_VALUE : timeoutMs * calls;
+    }
+
+    /**
+     * 放棄等待：任務尚未開始時由呼叫端歸還名額；已在執行時只送出中斷，名額留到 worker 結束時歸還。
+     */
+    private void abandon(Future<String> future, AtomicBoolean claimed, Semaphore permits) {
+        if (claimed.compareAndSet(false, true)) {
+            future.cancel(false);
+            permits.release();
+            return;
+        }
+        future.cancel(true);
+    }
+
+    /** 測試用：租戶目前可用的名額 */
+    int availablePermits(String tenant) {
+        Semaphore permits = tenantPermits.get(tenant);
+        return permits == null ? maxConcurrentPerTenant : permits.availablePermits();
+    }
+
+    private ContextSummary summarizeWithHeuristic(ContextSummaryRequest request) {
+        heuristicSummaries.increment();
+        return new ContextSummary(heuristicSummarizer.summarize(request), heuristicSummarizer.name());
+    }
+
+    /**
+     * 任務所屬的 profile 同時作為租戶與模型選擇依據；查不到時回傳 null（歸入預設租戶、使用第一個啟用的模型）。
+     */
+    private String resolveProfileId(String conversationId) {
+        if (taskRecordRepository == null || conversationId == null) {
+            return null;
+        }
+        String cached = profileByConversation.get(conversationId);
+        if (cached != null) {
+            return cached;
+        }
+        try {
+            String profileId = taskRecordRepository.findById(conversationId)
+                    .map(TaskRecord::getProfileId)
+                    .filter(id -> !id.isBlank())
+                    .orElse(null);
+            if (profileId != null) {
+                profileByConversation.put(conversationId, profileId);
+            }
+            return profileId;
+        } catch (RuntimeException ex) {
+            log.debug("Failed to resolve tenant for context summarizer. conversationId={}", conversationId, ex);
+            return null;
+        }
+    }
+
+    private ThreadPoolTaskExecutor createSummarizerExecutor(int workers, int queueCapacity) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(Math.max(1, workers));
+        executor.setMaxPoolSize(Math.max(1, workers));
+        executor.setQueueCapacity(Math.max(1, queueCapacity));
+        executor.setThreadNamePrefix("context-summarizer-");
+        executor.setWaitForTasksToCompleteOnShutdown(false);
+        executor.initialize();
+        return executor;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (summarizerExecutor != null) {
+            summarizerExecutor.shutdown();
+        }
+    }
+
+    public ContextSummarizationMetricsSnapshot getMetricsSnapshot() {
+        long modelCount = modelSummaries.sum();
+        return new ContextSummarizationMetricsSnapshot(
+                modelCount,
+                heuristicSummaries.sum(),
+                timeouts.sum(),
+                throttled.sum(),
+                rejected.sum(),
+                errors.sum(),
+                modelCount == 0 ? 0.0 : (double) totalModelLatencyMs.sum() / (double) modelCount);
+    }
+}
@@ -0,0 +1,24 @@
+package com.teamwork.gateway.memory;
+
+/**
+ * 上下文壓縮摘要器 SPI：把要壓縮的舊訊息濃縮成一段可續跑的 system summary。
+ */
+public interface ContextSummarizer {
+
+    /**
+     * 產生摘要內容；內容需以 {@link ContextSummaryRequest#header()} 開頭，供刪除摘要等功能辨識。
+     */
+    String summarize(ContextSummaryRequest request);
+
+    /**
+     * 完成這次摘要預估需要的模型呼叫次數，呼叫端以此放大單次呼叫的逾時；不呼叫模型的實作回傳 1。
+     */
+    default int estimatedModelCalls(ContextSummaryRequest request) {
+        return 1;
+    }
+
+    /**
+     * 摘要器名稱，記錄於摘要 metadata 與指標。
+     */
+    String name();
+}
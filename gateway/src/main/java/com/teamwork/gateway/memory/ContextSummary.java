@@ -0,0 +1,7 @@
+package com.teamwork.gateway.memory;
+
+/**
+ * 摘要結果與實際使用的摘要器名稱。
+ */
+public record ContextSummary(String content, String summarizer) {
+}
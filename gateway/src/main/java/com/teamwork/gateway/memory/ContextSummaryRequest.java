@@ -0,0 +1,39 @@
+package com.teamwork.gateway.memory;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * 一次壓縮的摘要輸入：要壓縮的訊息、摘要層級（1 為原始訊息的區段摘要、2 為摘要的摘要）、
+ * 壓縮前 token 數與目標 token 數；profileId 由摘要入口依任務補上，供模型摘要器選擇 profile 的預設模型。
+ */
+public record ContextSummaryRequest(
+        String conversationId,
+        int level,
+        List<ChatMessageDto> messages,
+        long beforeTokens,
+        long targetTokens,
+        String profileId) {
+
+    public ContextSummaryRequest(
+            String conversationId, int level, List<ChatMessageDto> messages, long beforeTokens, long targetTokens) {
+        this(conversationId, level, messages, beforeTokens, targetTokens, null);
+    }
+
+    public ContextSummaryRequest withProfileId(String profileId) {
+        return new ContextSummaryRequest(conversationId, level, messages, beforeTokens, targetTokens, profileId);
+    }
+
+    /**
+     * 摘要的固定首行，{@code [AUTO_COMPRESSED]} 標記供 SUMMARY 刪除模式辨識。
+     */
+    public String header() {
+        return "[AUTO_COMPRESSED]"
+                + " conversationId=" + conversationId
+                + ", level=L" + level
+                + ", sourceMessages=" + messages.size()
+                + ", beforeTokens=" + beforeTokens
+                + ", targetTokens=" + targetTokens
+                + ", at=" + LocalDateTime.now();
+    }
+}
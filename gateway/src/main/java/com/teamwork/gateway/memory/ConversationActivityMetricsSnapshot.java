@@ -0,0 +1,7 @@
+package com.teamwork.gateway.memory;
+
+/**
+ * 讀取活動追蹤統計：實際寫入最後活動時間的次數，以及因節流略過的次數。
+ */
+public record ConversationActivityMetricsSnapshot(long touches, long throttled) {
+}
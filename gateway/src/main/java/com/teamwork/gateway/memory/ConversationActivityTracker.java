@@ -0,0 +1,72 @@
+package com.teamwork.gateway.memory;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * 讀取對話時更新最後活動時間，只被讀取（查詢、匯出、agent 讀歷史）的對話不會被閒置封存或保留策略淘汰。
+ * <p>同一對話在 touch-interval 內只寫入一次（各節點各自節流），讀取路徑最多多一次 O(1) 寫入；
+ * 閒置判斷的誤差因此最多一個間隔，遠小於閒置期限。</p>
+ */
+@Service
+public class ConversationActivityTracker {
+
+    /** 節流表最多追蹤的對話數 */
+    static final int MAX_TRACKED_CONVERSATIONS = 10_000;
+
+    private final ChatMemoryStore messageStore;
+    private final long touchIntervalMillis;
+    private final LongSupplier clock;
+    private final Map<String, Long> lastTouched = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_TRACKED_CONVERSATIONS;
+        }
+    });
+
+    private final LongAdder touches = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+
+    @Autowired
+    public ConversationActivityTracker(
+            ChatMemoryStore messageStore,
+            @Value("${gateway.chat-memory.touch-interval-ms:60000}") long touchIntervalMillis) {
+        this(messageStore, touchIntervalMillis, System::currentTimeMillis);
+    }
+
+    /** 測試用建構子（可注入時鐘） */
+    ConversationActivityTracker(ChatMemoryStore messageStore, long touchIntervalMillis, LongSupplier clock) {
+        this.messageStore = messageStore;
+        this.touchIntervalMillis = Math.max(0L, touchIntervalMillis);
+        this.clock = clock;
+    }
+
+    /**
+     * 記錄一次讀取；距離本節點上次寫入未滿間隔時略過。
+     */
+    public void touch(String conversationId) {
+        if (conversationId == null) {
+            return;
+        }
+        long now = clock.getAsLong();
+        Long previous = lastTouched.get(conversationId);
+        if (previous != null && now - previous < touchIntervalMillis) {
+            throttled.increment();
+            return;
+        }
+        lastTouched.put(conversationId, now);
+        touches.increment();
+        messageStore.touch(conversationId, now);
+    }
+
+    public ConversationActivityMetricsSnapshot getMetricsSnapshot() {
+        return new ConversationActivityMetricsSnapshot(touches.sum(), throttled.sum());
+    }
+}
@@ -0,0 +1,310 @@
+package com.teamwork.gateway.memory;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * 對話尾端訊息的本機 near-cache，位於 RedisChatMemory 之前。
+ * <p>同一個 task 內 memory advisor 與工具會重複讀取同一段對話；快取已解碼的尾端訊息，
+ * 以筆數上限（LRU）與 TTL 控制大小。add 時 write-through，clear／壓縮／刪除時失效。</p>
+ * <p>一致性：</p>
+ * <ul>
+ *   <li>失效經 Redis channel {@value #CHANNEL} 廣播（訊息為對話 id），其他節點一起丟棄快取；</li>
+ *   <li>回源前以 {@link #readStamp} 取得失效序號，讀取期間若該對話被失效（本機或遠端），讀回的結果不寫入；</li>
+ *   <li>同一對話已有較新的結構版本（或相同版本但筆數較多）時，不以較舊的讀取結果覆蓋。</li>
+ * </ul>
+ */
+@Slf4j
+@Component
+public class ConversationNearCache implements MessageListener {
+
+    public static final String CHANNEL = "gateway:chat-memory:invalidated";
+
+    private final boolean enabled;
+    private final int maxConversations;
+    private final long ttlMillis;
+    private final int maxMessagesPerConversation;
+    private final LongSupplier clock;
+    private final StringRedisTemplate redisTemplate;
+
+    private final Map<String, CachedTail> entries;
+    /** 每次失效遞增的序號；tombstones 記錄各對話最後一次失效的序號 */
+    private final AtomicLong invalidationSequence = new AtomicLong();
+    private final Map<String, Long> tombstones;
+    /** 被擠出 tombstones 的最大序號；早於此序號開始的讀取一律不寫入 */
+    private long evictedTombstoneFloor;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder remoteInvalidations = new LongAdder();
+    private final LongAdder staleRejections = new LongAdder();
+
+    @Autowired
+    public ConversationNearCache(
+            StringRedisTemplate redisTemplate,
+            @Value("${gateway.chat-memory.near-cache.enabled:true}") boolean enabled,
+            @Value("${gateway.chat-memory.near-cache.max-conversations:1000}") int maxConversations,
+            @Value("${gateway.chat-memory.near-cache.ttl-seconds:30}") long ttlSeconds,
+            @Value("${gateway.chat-memory.near-cache.max-messages:200}") int maxMessagesPerConversation) {
+        this(redisTemplate, enabled, maxConversations, ttlSeconds * 1000L, maxMessagesPerConversation,
+                System::currentTimeMillis);
+    }
+
+    /** 測試用建構子：可注入時鐘；redisTemplate 為 null 時不廣播。 */
+    ConversationNearCache(
+            StringRedisTemplate redisTemplate,
+            boolean enabled,
+            int maxConversations,
+            long ttlMillis,
+            int maxMessagesPerConversation,
+            LongSupplier clock) {
+        this.redisTemplate = redisTemplate;
+        this.enabled = enabled;
+        this.maxConversations = Math.max(1, maxConversations);
+        this.ttlMillis = Math.max(0L, ttlMillis);
+        this.maxMessagesPerConversation = Math.max(1, maxMessagesPerConversation);
+        this.clock = clock;
+        this.tombstones = new LinkedHashMap<>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                if (size() > ConversationNearCache.this.maxConversations) {
+                    evictedTombstoneFloor = Math.max(evictedTombstoneFloor, eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedTail> eldest) {
+                if (size() > ConversationNearCache.this.maxConversations) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * 取得最近 lastN 筆；快取未涵蓋該範圍或已過期時回傳 null，由呼叫端回源 Redis。
+     */
+    public ChatMemoryWindow get(String conversationId, int lastN) {
+        CachedTail cached = lookup(conversationId);
+        if (cached == null || !cached.covers(lastN)) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        List<Message> messages = cached.messages();
+        int from = Math.max(0, messages.size() - lastN);
+        return new ChatMemoryWindow(List.copyOf(messages.subList(from, messages.size())), cached.totalSize());
+    }
+
+    /**
+     * 由尾端往前累加 token 直到預算用盡；快取的尾端在預算用盡前就耗盡（且非完整對話）時回傳 null。
+     */
+    public ChatMemoryWindow getWithinTokenBudget(String conversationId, long maxTokens, ToLongFunction<Message> tokenCounter) {
+        CachedTail cached = lookup(conversationId);
+        if (cached == null) {
+            misses.increment();
+            return null;
+        }
+        List<Message> messages = cached.messages();
+        long used = 0L;
+        int from = messages.size();
+        while (from > 0) {
+            long tokens = tokenCounter.applyAsLong(messages.get(from - 1));
+            if (used + tokens > maxTokens) {
+                break;
+            }
+            used += tokens;
+            from--;
+        }
+        if (from == 0 && !cached.complete()) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return new ChatMemoryWindow(List.copyOf(messages.subList(from, messages.size())), cached.totalSize());
+    }
+
+    /**
+     * 回源讀取前呼叫，取得目前的失效序號，之後連同讀回結果交給 {@link #put}。
+     */
+    public long readStamp() {
+        return invalidationSequence.get();
+    }
+
+    /**
+     * 以儲存後端讀回的結果填入快取；requestedN 為本次讀取的筆數範圍，version 為讀取當下的結構版本。
+     * 讀取開始後該對話曾被失效，或快取中已有較新的內容時不寫入。
+     */
+    public void put(String conversationId, int requestedN, ChatMemoryWindow window, long version, long readStamp) {
+        if (!enabled || window.totalSize() == 0) {
+            return;
+        }
+        List<Message> messages = window.messages();
+        boolean complete = requestedN >= window.totalSize();
+        if (messages.size() > maxMessagesPerConversation) {
+            messages = messages.subList(messages.size() - maxMessagesPerConversation, messages.size());
+            complete = false;
+        }
+        CachedTail cached = new CachedTail(List.copyOf(messages), window.totalSize(), version, complete, expiresAt());
+        synchronized (entries) {
+            if (invalidatedSince(conversationId, readStamp) || isNewer(entries.get(conversationId), cached)) {
+                staleRejections.increment();
+                return;
+            }
+            entries.put(conversationId, cached);
+        }
+    }
+
+    /**
+     * add 時 write-through：只有在快取的總筆數與 Redis 附加前的長度一致時才延伸，
+     * 否則代表有其他節點寫入，直接失效。
+     */
+    public void append(String conversationId, List<Message> appended, long sizeAfterAppend) {
+        if (!enabled) {
+            return;
+        }
+        synchronized (entries) {
+            CachedTail cached = entries.get(conversationId);
+            if (cached == null) {
+                return;
+            }
+            if (cached.totalSize() + appended.size() != sizeAfterAppend) {
+                entries.remove(conversationId);
+                invalidations.increment();
+                return;
+            }
+            List<Message> merged = new ArrayList<>(cached.messages().size() + appended.size());
+            merged.addAll(cached.messages());
+            merged.addAll(appended);
+            boolean complete = cached.complete();
+            if (merged.size() > maxMessagesPerConversation) {
+                merged = merged.subList(merged.size() - maxMessagesPerConversation, merged.size());
+                complete = false;
+            }
+            entries.put(conversationId, new CachedTail(
+                    List.copyOf(merged), sizeAfterAppend, cached.version(), complete, expiresAt()));
+        }
+    }
+
+    /**
+     * 儲存後端改寫或清除對話後呼叫：丟棄本機快取並廣播給其他節點。
+     */
+    public void invalidate(String conversationId) {
+        if (!enabled) {
+            return;
+        }
+        invalidateLocally(conversationId);
+        if (redisTemplate == null) {
+            return;
+        }
+        try {
+            redisTemplate.convertAndSend(CHANNEL, conversationId);
+        } catch (Exception ex) {
+            // 其他節點在 ttl 到期後仍會回源
+            log.warn("Failed to broadcast near-cache invalidation. conversationId={}", conversationId, ex);
+        }
+    }
+
+    /**
+     * 其他節點廣播的失效。本節點自己發出的訊息也會收到，重複失效只會多擋下一次進行中的回源寫入。
+     */
+    @Override
+    public void onMessage(org.springframework.data.redis.connection.Message message, byte[] pattern) {
+        if (!enabled) {
+            return;
+        }
+        invalidateLocally(new String(message.getBody(), StandardCharsets.UTF_8));
+        remoteInvalidations.increment();
+    }
+
+    public ConversationNearCacheMetricsSnapshot getMetricsSnapshot() {
+        long hitCount = hits.sum();
+        long missCount = misses.sum();
+        long lookups = hitCount + missCount;
+        int size;
+        synchronized (entries) {
+            size = entries.size();
+        }
+        return new ConversationNearCacheMetricsSnapshot(
+                hitCount,
+                missCount,
+                lookups == 0 ? 0.0 : (double) hitCount / (double) lookups,
+                evictions.sum(),
+                invalidations.sum(),
+                remoteInvalidations.sum(),
+                staleRejections.sum(),
+                size);
+    }
+
+    private void invalidateLocally(String conversationId) {
+        synchronized (entries) {
+            tombstones.put(conversationId, invalidationSequence.incrementAndGet());
+            if (entries.remove(conversationId) != null) {
+                invalidations.increment();
+            }
+        }
+    }
+
+    private boolean invalidatedSince(String conversationId, long readStamp) {
+        Long invalidatedAt = tombstones.get(conversationId);
+        return evictedTombstoneFloor > readStamp || (invalidatedAt != null && invalidatedAt > readStamp);
+    }
+
+    private boolean isNewer(CachedTail existing, CachedTail candidate) {
+        if (existing == null) {
+            return false;
+        }
+        return existing.version() > candidate.version()
+                || (existing.version() == candidate.version() && existing.totalSize() > candidate.totalSize());
+    }
+
+    private CachedTail lookup(String conversationId) {
+        if (!enabled) {
+            return null;
+        }
+        synchronized (entries) {
+            CachedTail cached = entries.get(conversationId);
+            if (cached != null && cached.expiresAtMillis() <= clock.getAsLong()) {
+                entries.remove(conversationId);
+                return null;
+            }
+            return cached;
+        }
+    }
+
+    private long expiresAt() {
+        return clock.getAsLong() + ttlMillis;
+    }
+
+    /**
+     * 快取的尾端：messages 為最後若干筆，version 為讀取時的結構版本，complete 代表已涵蓋整段對話。
+     */
+    private record CachedTail(
+            List<Message> messages, long totalSize, long version, boolean complete, long expiresAtMillis) {
+
+        boolean covers(int lastN) {
+            return complete || lastN <= messages.size();
+        }
+    }
+}
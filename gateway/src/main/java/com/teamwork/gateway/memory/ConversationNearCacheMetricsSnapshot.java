@@ -0,0 +1,12 @@
+package com.teamwork.gateway.memory;
+
+public record ConversationNearCacheMetricsSnapshot(
+        long hits,
+        long misses,
+        double hitRate,
+        long evictions,
+        long invalidations,
+        long remoteInvalidations,
+        long staleRejections,
+        int size) {
+}
@@ -0,0 +1,909 @@
+package com.teamwork.gateway.memory;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * 單節點部署用的本機對話記憶：每個對話一個目錄，訊息依序寫入 memory-mapped 的 append-only segment 檔，
+ * 每筆位置記在 off-heap 索引（direct buffer，每筆 8 bytes），讀取直接由映射記憶體取出，不經網路。
+ * <p>目錄名稱為對話 id 的 URL-safe Base64；{@code meta} 檔（72 bytes，同樣 mmap）記錄 segment 世代、
+ * 筆數、token 計數、結構版本、最後活動時間、封存標記與位元組數。segment 內每筆為「長度 + 1」的 int 標頭加 UTF-8 內容，
+ * 先寫內容再寫標頭，標頭為 0 代表資料結尾，行程中斷時不會留下半筆資料。</p>
+ * <p>附加只寫入最後一個 segment；區段替換與刪除屬低頻路徑，整個對話寫成新世代的 segment 後
+ * 才切換 meta 的世代並刪除舊檔，重啟時只載入 meta 記錄的世代。改寫同樣以結構版本與快照元素比對，
+ * 語意與 {@link RedisChatMessageStore} 一致。每個對話以讀寫鎖保護，載入的對話超過上限時卸載最久未使用者。</p>
+ * <p>新 segment 由小開始、每次加倍直到 segment-bytes，短對話不必預先佔用整個 segment 的磁碟空間。
+ * 刪除檔案（改寫後的舊世代、clear）與卸載前先明確解除映射：Windows 無法刪除仍在映射中的檔案，
+ * 其他平台也不必等 GC 才釋放位址空間。</p>
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "gateway.chat-memory", name = "store", havingValue = "embedded")
+public class EmbeddedChatMessageStore implements ChatMemoryStore {
+
+    private static final String META_FILE = "meta";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int META_BYTES = 72;
+    /** 加入位元組計數前的 meta 長度，讀取舊檔時仍視為有效。 */
+    private static final int LEGACY_META_BYTES = 64;
+    private static final int META_MAGIC = 0x54574d31;
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_GENERATION = 8;
+    private static final int OFFSET_COUNT = 16;
+    private static final int OFFSET_TOKENS = 24;
+    private static final int OFFSET_VERSION = 32;
+    private static final int OFFSET_LAST_ACTIVE = 40;
+    private static final int OFFSET_ARCHIVED_COUNT = 48;
+    private static final int OFFSET_ARCHIVED_TOKENS = 56;
+    private static final int OFFSET_BYTES = 64;
+    private static final long NOT_ARCHIVED = -1L;
+    private static final int RECORD_HEADER_BYTES = Integer.BYTES;
+    private static final int INITIAL_SEGMENT_BYTES = 16 * 1024;
+    /** sun.misc.Unsafe#invokeCleaner；取不到時退回等待 GC 釋放映射 */
+    private static final MethodHandle UNMAPPER = lookupUnmapper();
+
+    private final Path baseDir;
+    private final int segmentBytes;
+    private final int maxOpenConversations;
+    private final boolean fsync;
+    private final ConcurrentHashMap<String, Conversation> conversations = new ConcurrentHashMap<>();
+    private final LongAdder guardedWrites = new LongAdder();
+    private final LongAdder writeConflicts = new LongAdder();
+
+    public EmbeddedChatMessageStore(
+            @Value("${gateway.chat-memory.embedded.dir:./data/chat-memory}") String dir,
+            @Value("${gateway.chat-memory.embedded.segment-bytes:1048576}") int segmentBytes,
+            @Value("${gateway.chat-memory.embedded.max-open-conversations:1000}") int maxOpenConversations,
+            @Value("${gateway.chat-memory.embedded.fsync:false}") boolean fsync) {
+        this.baseDir = Path.of(dir);
+        this.segmentBytes = Math.max(4096, segmentBytes);
+        this.maxOpenConversations = Math.max(1, maxOpenConversations);
+        this.fsync = fsync;
+        try {
+            Files.createDirectories(baseDir);
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Cannot create chat memory directory: " + baseDir, ex);
+        }
+        log.info("Embedded chat memory store enabled. dir={}, segmentBytes={}", baseDir.toAbsolutePath(), this.segmentBytes);
+    }
+
+    @Override
+    public AppendResult append(String conversationId, List<String> entries, long tokenDelta) {
+        if (entries.isEmpty()) {
+            return new AppendResult(0L, UNKNOWN_TOKENS);
+        }
+        return withConversation(conversationId, true, true, new AppendResult(0L, UNKNOWN_TOKENS), conversation -> {
+            MappedByteBuffer meta = conversation.meta;
+            if (isArchived(conversation)) {
+                return new AppendResult(ARCHIVED, UNKNOWN_TOKENS);
+            }
+            long tokens = meta.getLong(OFFSET_TOKENS);
+            boolean known = conversation.index.size() == 0 || tokens != UNKNOWN_TOKENS;
+            for (String entry : entries) {
+                appendRecord(conversation, entry.getBytes(StandardCharsets.UTF_8));
+            }
+            meta.putLong(OFFSET_COUNT, conversation.index.size());
+            meta.putLong(OFFSET_LAST_ACTIVE, System.currentTimeMillis());
+            long updated = UNKNOWN_TOKENS;
+            if (known) {
+                updated = (tokens == UNKNOWN_TOKENS ? 0L : tokens) + tokenDelta;
+                meta.putLong(OFFSET_TOKENS, updated);
+            }
+            if (fsync) {
+                force(conversation);
+            }
+            return new AppendResult(conversation.index.size(), updated);
+        });
+    }
+
+    @Override
+    public TailSlice tail(String conversationId, int lastN) {
+        if (lastN <= 0) {
+            return TailSlice.EMPTY;
+        }
+        return withConversation(conversationId, false, false, TailSlice.EMPTY, conversation -> {
+            int size = conversation.index.size();
+            if (size == 0) {
+                return isArchived(conversation) ? TailSlice.ARCHIVED_SLICE : TailSlice.EMPTY;
+            }
+            return new TailSlice(size, readEntries(conversation, Math.max(0, size - lastN), size),
+                    conversation.meta.getLong(OFFSET_VERSION));
+        });
+    }
+
+    /**
+     * 由尾端往前累加 token，只解析編碼前綴，超過預算即停止。
+     */
+    @Override
+    public BudgetSlice tailWithinTokenBudget(String conversationId, long maxTokens) {
+        if (maxTokens <= 0) {
+            return BudgetSlice.EMPTY;
+        }
+        return withConversation(conversationId, false, false, BudgetSlice.EMPTY, conversation -> {
+            int size = conversation.index.size();
+            if (size == 0) {
+                return isArchived(conversation) ? BudgetSlice.ARCHIVED_SLICE : BudgetSlice.EMPTY;
+            }
+            long used = 0L;
+            int from = size;
+            while (from > 0) {
+                long tokens = entryTokens(conversation, from - 1);
+                if (used + tokens > maxTokens) {
+                    break;
+                }
+                used += tokens;
+                from--;
+            }
+            return new BudgetSlice(size, readEntries(conversation, from, size), used, conversation.meta.getLong(OFFSET_VERSION));
+        });
+    }
+
+    @Override
+    public VersionedRange readRangeVersioned(String conversationId, long fromIndex, int limit) {
+        if (limit <= 0 || fromIndex < 0) {
+            return VersionedRange.EMPTY;
+        }
+        return withConversation(conversationId, false, false, VersionedRange.EMPTY, conversation -> {
+            int size = conversation.index.size();
+            long version = conversation.meta.getLong(OFFSET_VERSION);
+            if (fromIndex >= size) {
+                return new VersionedRange(version, List.of());
+            }
+            int to = (int) Math.min(size, fromIndex + limit);
+            return new VersionedRange(version, readEntries(conversation, (int) fromIndex, to));
+        });
+    }
+
+    @Override
+    public long size(String conversationId) {
+        return withConversation(conversationId, false, false, 0L, conversation -> (long) conversation.index.size());
+    }
+
+    /**
+     * 目前世代所有 segment 已寫入的位元組（含紀錄標頭），取自 meta 計數。
+     */
+    @Override
+    public long estimateBytes(String conversationId) {
+        return withConversation(conversationId, false, false, 0L, conversation -> conversation.meta.getLong(OFFSET_BYTES));
+    }
+
+    @Override
+    public long getTokenCount(String conversationId) {
+        return withConversation(conversationId, false, false, UNKNOWN_TOKENS,
+                conversation -> conversation.meta.getLong(OFFSET_TOKENS));
+    }
+
+    @Override
+    public void setTokenCount(String conversationId, long tokens) {
+        withConversation(conversationId, false, true, null, conversation -> {
+            conversation.meta.putLong(OFFSET_TOKENS, tokens);
+            return null;
+        });
+    }
+
+    @Override
+    public boolean replaceRange(
+            String conversationId,
+            long fromIndex,
+            List<String> current,
+            List<String> replacement,
+            Long tokenDelta,
+            long expectedVersion) {
+        if (current.isEmpty()) {
+            return true;
+        }
+        return splice(conversationId, fromIndex, fromIndex + current.size(),
+                current.getFirst(), current.getLast(), replacement, tokenDelta, expectedVersion);
+    }
+
+    @Override
+    public boolean removeRange(
+            String conversationId,
+            long fromIndex,
+            long count,
+            String firstEntry,
+            String lastEntry,
+            Long tokenDelta,
+            long expectedVersion) {
+        if (count <= 0) {
+            return true;
+        }
+        return splice(conversationId, fromIndex, fromIndex + count,
+                firstEntry, lastEntry, List.of(), tokenDelta, expectedVersion);
+    }
+
+    @Override
+    public boolean deletePositions(
+            String conversationId, BitSet positions, List<String> expected, Long tokenDelta, long expectedVersion) {
+        if (positions.cardinality() != expected.size()) {
+            throw new IllegalArgumentException("positions and expected entries must have the same size");
+        }
+        if (positions.isEmpty()) {
+            return true;
+        }
+        boolean applied = withConversation(conversationId, false, true, false, conversation -> {
+            int size = conversation.index.size();
+            if (!versionMatches(conversation, expectedVersion) || positions.length() > size) {
+                return false;
+            }
+            int entry = 0;
+            for (int position = positions.nextSetBit(0); position >= 0; position = positions.nextSetBit(position + 1)) {
+                if (!readEntry(conversation, position).equals(expected.get(entry++))) {
+                    return false;
+                }
+            }
+            List<String> content = new ArrayList<>(size - expected.size());
+            for (int index = 0; index < size; index++) {
+                if (!positions.get(index)) {
+                    content.add(readEntry(conversation, index));
+                }
+            }
+            rewrite(conversation, content);
+            applyTokenDelta(conversation, tokenDelta);
+            bumpVersion(conversation);
+            return true;
+        });
+        return recordGuardedWrite(applied);
+    }
+
+    @Override
+    public ChatMemoryContentionMetricsSnapshot getContentionMetricsSnapshot() {
+        long writes = guardedWrites.sum();
+        long conflicts = writeConflicts.sum();
+        return new ChatMemoryContentionMetricsSnapshot(
+                writes, conflicts, writes == 0 ? 0.0 : (double) conflicts / (double) writes);
+    }
+
+    @Override
+    public Long getLastActiveAt(String conversationId) {
+        return withConversation(conversationId, false, true, null, conversation -> {
+            long lastActive = conversation.meta.getLong(OFFSET_LAST_ACTIVE);
+            if (lastActive == 0L) {
+                conversation.meta.putLong(OFFSET_LAST_ACTIVE, System.currentTimeMillis());
+                return null;
+            }
+            return lastActive;
+        });
+    }
+
+    @Override
+    public void touch(String conversationId, long activeAt) {
+        withConversation(conversationId, false, true, null, conversation -> {
+            long lastActive = conversation.meta.getLong(OFFSET_LAST_ACTIVE);
+            if (!isArchived(conversation) && lastActive != 0L && lastActive < activeAt) {
+                conversation.meta.putLong(OFFSET_LAST_ACTIVE, activeAt);
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public boolean evictArchived(String conversationId, long lastActiveAt, long size) {
+        return withConversation(conversationId, false, true, false, conversation -> {
+            MappedByteBuffer meta = conversation.meta;
+            if (isArchived(conversation)
+                    || meta.getLong(OFFSET_LAST_ACTIVE) != lastActiveAt
+                    || conversation.index.size() != size) {
+                return false;
+            }
+            meta.putLong(OFFSET_ARCHIVED_COUNT, size);
+            meta.putLong(OFFSET_ARCHIVED_TOKENS, meta.getLong(OFFSET_TOKENS));
+            rewrite(conversation, List.of());
+            meta.putLong(OFFSET_TOKENS, UNKNOWN_TOKENS);
+            meta.putLong(OFFSET_LAST_ACTIVE, 0L);
+            meta.force();
+            return true;
+        });
+    }
+
+    @Override
+    public boolean restoreArchived(String conversationId, List<String> entries, Long tokens) {
+        return withConversation(conversationId, false, true, false, conversation -> {
+            if (!isArchived(conversation)) {
+                return false;
+            }
+            MappedByteBuffer meta = conversation.meta;
+            meta.putLong(OFFSET_ARCHIVED_COUNT, NOT_ARCHIVED);
+            for (String entry : entries) {
+                appendRecord(conversation, entry.getBytes(StandardCharsets.UTF_8));
+            }
+            meta.putLong(OFFSET_COUNT, conversation.index.size());
+            meta.putLong(OFFSET_LAST_ACTIVE, System.currentTimeMillis());
+            meta.putLong(OFFSET_TOKENS, tokens == null ? UNKNOWN_TOKENS : tokens);
+            bumpVersion(conversation);
+            force(conversation);
+            return true;
+        });
+    }
+
+    /**
+     * 已載入的對話直接讀取記憶體中的 meta；未載入者只讀 meta 檔，不映射 segment。
+     */
+    @Override
+    public Map<String, ConversationStats> getStats(List<String> conversationIds) {
+        Map<String, ConversationStats> stats = new LinkedHashMap<>(conversationIds.size() * 2);
+        for (String conversationId : conversationIds) {
+            Conversation loaded = conversations.get(conversationId);
+            ConversationStats value = null;
+            if (loaded != null) {
+                Lock lock = loaded.lock.readLock();
+                lock.lock();
+                try {
+                    if (!loaded.closed) {
+                        value = toStats(loaded.meta, true);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+            stats.put(conversationId, value != null ? value : readStats(conversationId));
+        }
+        return stats;
+    }
+
+    @Override
+    public void scanConversationIds(int batchHint, Predicate<String> visitor) {
+        try (DirectoryStream<Path> directories = Files.newDirectoryStream(baseDir, Files::isDirectory)) {
+            for (Path directory : directories) {
+                String conversationId;
+                try {
+                    conversationId = new String(
+                            Base64.getUrlDecoder().decode(directory.getFileName().toString()), StandardCharsets.UTF_8);
+                } catch (IllegalArgumentException ex) {
+                    continue;
+                }
+                if (!visitor.test(conversationId)) {
+                    return;
+                }
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Cannot scan chat memory directory: " + baseDir, ex);
+        }
+    }
+
+    @Override
+    public void clear(String conversationId) {
+        withConversation(conversationId, false, true, null, conversation -> {
+            // 先刪檔再移出快取：等待中的呼叫者看到 closed 後重新開啟時目錄已不存在
+            conversation.closed = true;
+            release(conversation);
+            deleteDirectory(conversation.dir);
+            conversations.remove(conversationId, conversation);
+            return null;
+        });
+    }
+
+    @PreDestroy
+    public void flush() {
+        for (Conversation conversation : conversations.values()) {
+            Lock lock = conversation.lock.readLock();
+            lock.lock();
+            try {
+                if (!conversation.closed) {
+                    force(conversation);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private boolean splice(
+            String conversationId,
+            long fromIndex,
+            long toIndex,
+            String firstEntry,
+            String lastEntry,
+            List<String> replacement,
+            Long tokenDelta,
+            long expectedVersion) {
+        boolean applied = withConversation(conversationId, false, true, false, conversation -> {
+            int size = conversation.index.size();
+            if (!versionMatches(conversation, expectedVersion)
+                    || fromIndex < 0 || toIndex > size
+                    || !readEntry(conversation, (int) fromIndex).equals(firstEntry)
+                    || !readEntry(conversation, (int) toIndex - 1).equals(lastEntry)) {
+                return false;
+            }
+            List<String> content = new ArrayList<>(size - (int) (toIndex - fromIndex) + replacement.size());
+            content.addAll(readEntries(conversation, 0, (int) fromIndex));
+            content.addAll(replacement);
+            content.addAll(readEntries(conversation, (int) toIndex, size));
+            rewrite(conversation, content);
+            applyTokenDelta(conversation, tokenDelta);
+            bumpVersion(conversation);
+            return true;
+        });
+        return recordGuardedWrite(applied);
+    }
+
+    /**
+     * 取得對話並在對應的鎖內執行 action；對話在等待鎖期間被清除或卸載時重新取得。
+     *
+     * @param create    對話不存在時是否建立
+     * @param exclusive 是否需要寫入鎖
+     * @param absent    對話不存在且不建立時的回傳值
+     */
+    private <T> T withConversation(
+            String conversationId, boolean create, boolean exclusive, T absent, Function<Conversation, T> action) {
+        while (true) {
+            Conversation conversation = conversations.computeIfAbsent(
+                    conversationId, id -> create ? openOrCreate(id) : openIfExists(id));
+            if (conversation == null) {
+                return absent;
+            }
+            if (conversations.size() > maxOpenConversations) {
+                unloadIdle(conversationId);
+            }
+            Lock lock = exclusive ? conversation.lock.writeLock() : conversation.lock.readLock();
+            lock.lock();
+            try {
+                if (conversation.closed) {
+                    continue;
+                }
+                conversation.lastAccess = System.nanoTime();
+                return action.apply(conversation);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 卸載最久未使用的對話，只釋放映射與索引，檔案保留；正在使用中的對話（取不到鎖）略過。
+     */
+    private void unloadIdle(String keepId) {
+        List<Map.Entry<String, Conversation>> candidates = conversations.entrySet().stream()
+                .filter(entry -> !entry.getKey().equals(keepId))
+                .sorted(Comparator.comparingLong(entry -> entry.getValue().lastAccess))
+                .toList();
+        int excess = conversations.size() - maxOpenConversations;
+        for (Map.Entry<String, Conversation> candidate : candidates) {
+            if (excess <= 0) {
+                return;
+            }
+            Conversation conversation = candidate.getValue();
+            Lock lock = conversation.lock.writeLock();
+            if (!lock.tryLock()) {
+                continue;
+            }
+            try {
+                if (!conversation.closed) {
+                    force(conversation);
+                    conversation.closed = true;
+                    release(conversation);
+                    conversations.remove(candidate.getKey(), conversation);
+                    excess--;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private Conversation openIfExists(String conversationId) {
+        Path dir = directoryOf(conversationId);
+        if (!Files.isRegularFile(dir.resolve(META_FILE))) {
+            return null;
+        }
+        return load(dir);
+    }
+
+    private Conversation openOrCreate(String conversationId) {
+        Path dir = directoryOf(conversationId);
+        try {
+            Files.createDirectories(dir);
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Cannot create chat memory directory: " + dir, ex);
+        }
+        return load(dir);
+    }
+
+    /**
+     * 映射 meta 與目前世代的 segment，逐筆掃描標頭重建 off-heap 索引；其他世代的殘留檔案直接刪除。
+     */
+    private Conversation load(Path dir) {
+        Conversation conversation = new Conversation(dir);
+        Path metaPath = dir.resolve(META_FILE);
+        boolean fresh = !Files.exists(metaPath);
+        conversation.meta = map(metaPath, META_BYTES);
+        if (fresh || conversation.meta.getInt(OFFSET_MAGIC) != META_MAGIC) {
+            initializeMeta(conversation.meta);
+        }
+        conversation.generation = conversation.meta.getLong(OFFSET_GENERATION);
+
+        String currentPrefix = conversation.generation + "-";
+        List<Path> segmentPaths = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : files.toList()) {
+                String name = file.getFileName().toString();
+                if (!name.endsWith(SEGMENT_SUFFIX)) {
+                    continue;
+                }
+                if (name.startsWith(currentPrefix)) {
+                    segmentPaths.add(file);
+                } else {
+                    Files.deleteIfExists(file);
+                }
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Cannot load chat memory directory: " + dir, ex);
+        }
+        segmentPaths.sort(Comparator.comparing(path -> path.getFileName().toString()));
+
+        long bytes = 0L;
+        for (Path segmentPath : segmentPaths) {
+            Segment segment = new Segment(segmentPath, map(segmentPath, 0));
+            int ordinal = conversation.segments.size();
+            conversation.segments.add(segment);
+            ByteBuffer buffer = segment.buffer;
+            int position = 0;
+            while (position + RECORD_HEADER_BYTES <= buffer.capacity()) {
+                int header = buffer.getInt(position);
+                int length = header - 1;
+                if (header <= 0 || position + RECORD_HEADER_BYTES + length > buffer.capacity()) {
+                    break;
+                }
+                conversation.index.add(pack(ordinal, position));
+                position += RECORD_HEADER_BYTES + length;
+            }
+            segment.writePosition = position;
+            bytes += position;
+        }
+        conversation.meta.putLong(OFFSET_COUNT, conversation.index.size());
+        conversation.meta.putLong(OFFSET_BYTES, bytes);
+        return conversation;
+    }
+
+    private void initializeMeta(MappedByteBuffer meta) {
+        meta.putInt(OFFSET_MAGIC, META_MAGIC);
+        meta.putLong(OFFSET_GENERATION, 0L);
+        meta.putLong(OFFSET_COUNT, 0L);
+        meta.putLong(OFFSET_TOKENS, UNKNOWN_TOKENS);
+        meta.putLong(OFFSET_VERSION, 0L);
+        meta.putLong(OFFSET_LAST_ACTIVE, 0L);
+        meta.putLong(OFFSET_ARCHIVED_COUNT, NOT_ARCHIVED);
+        meta.putLong(OFFSET_ARCHIVED_TOKENS, UNKNOWN_TOKENS);
+        meta.putLong(OFFSET_BYTES, 0L);
+        meta.force();
+    }
+
+    /**
+     * 寫入最後一個 segment，空間不足時開新 segment：大小為前一個的兩倍，上限 segment-bytes
+     * （單筆超過時以該筆大小建立）。
+     */
+    private void appendRecord(Conversation conversation, byte[] bytes) {
+        int needed = RECORD_HEADER_BYTES + bytes.length;
+        Segment tail = conversation.segments.isEmpty() ? null : conversation.segments.getLast();
+        if (tail == null || tail.buffer.capacity() - tail.writePosition < needed) {
+            String name = "%d-%08d%s".formatted(conversation.generation, conversation.segments.size(), SEGMENT_SUFFIX);
+            Path path = conversation.dir.resolve(name);
+            tail = new Segment(path, map(path, Math.max(nextSegmentBytes(tail), needed)));
+            conversation.segments.add(tail);
+        }
+        int offset = tail.writePosition;
+        tail.buffer.put(offset + RECORD_HEADER_BYTES, bytes);
+        tail.buffer.putInt(offset, bytes.length + 1);
+        tail.writePosition = offset + needed;
+        conversation.index.add(pack(conversation.segments.size() - 1, offset));
+        conversation.meta.putLong(OFFSET_BYTES, conversation.meta.getLong(OFFSET_BYTES) + needed);
+    }
+
+    private int nextSegmentBytes(Segment previous) {
+        if (previous == null) {
+            return Math.min(segmentBytes, INITIAL_SEGMENT_BYTES);
+        }
+        return (int) Math.min(segmentBytes, Math.max(INITIAL_SEGMENT_BYTES, 2L * previous.buffer.capacity()));
+    }
+
+    /**
+     * 將整個對話寫成新世代的 segment，落盤後才切換 meta 的世代，解除舊檔映射後刪除。
+     */
+    private void rewrite(Conversation conversation, List<String> content) {
+        List<Segment> previous = new ArrayList<>(conversation.segments);
+        conversation.segments.clear();
+        conversation.index.clear();
+        conversation.meta.putLong(OFFSET_BYTES, 0L);
+        conversation.generation++;
+        for (String entry : content) {
+            appendRecord(conversation, entry.getBytes(StandardCharsets.UTF_8));
+        }
+        for (Segment segment : conversation.segments) {
+            segment.buffer.force();
+        }
+        MappedByteBuffer meta = conversation.meta;
+        meta.putLong(OFFSET_GENERATION, conversation.generation);
+        meta.putLong(OFFSET_COUNT, conversation.index.size());
+        meta.force();
+        for (Segment segment : previous) {
+            unmap(segment.buffer);
+            try {
+                Files.deleteIfExists(segment.path);
+            } catch (IOException ex) {
+                log.warn("Failed to delete stale chat memory segment. path={}", segment.path, ex);
+            }
+        }
+    }
+
+    private List<String> readEntries(Conversation conversation, int from, int to) {
+        List<String> entries = new ArrayList<>(Math.max(0, to - from));
+        for (int index = from; index < to; index++) {
+            entries.add(readEntry(conversation, index));
+        }
+        return entries;
+    }
+
+    private String readEntry(Conversation conversation, int index) {
+        long location = conversation.index.get(index);
+        ByteBuffer buffer = conversation.segments.get((int) (location >>> 32)).buffer;
+        int offset = (int) location;
+        byte[] bytes = new byte[buffer.getInt(offset) - 1];
+        buffer.get(offset + RECORD_HEADER_BYTES, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * compact v2 編碼的 token 數位於固定前綴（{@code \u0001 2 type tokens ;}），直接由映射記憶體解析；
+     * 無法取得時（舊資料）以位元組長度 /4 粗估，與 Redis 端的預算讀取一致。
+     */
+    private long entryTokens(Conversation conversation, int index) {
+        long location = conversation.index.get(index);
+        ByteBuffer buffer = conversation.segments.get((int) (location >>> 32)).buffer;
+        int start = (int) location + RECORD_HEADER_BYTES;
+        int length = buffer.getInt((int) location) - 1;
+        if (length > 4 && buffer.get(start) == 1 && buffer.get(start + 1) == '2') {
+            long tokens = 0L;
+            boolean digits = false;
+            for (int position = start + 3; position < start + length; position++) {
+                byte value = buffer.get(position);
+                if (value == ';') {
+                    if (digits) {
+                        return tokens;
+                    }
+                    break;
+                }
+                if (value < '0' || value > '9') {
+                    break;
+                }
+                tokens = tokens * 10 + (value - '0');
+                digits = true;
+            }
+        }
+        return (length + 3) / 4;
+    }
+
+    private boolean versionMatches(Conversation conversation, long expectedVersion) {
+        return expectedVersion == ANY_VERSION || conversation.meta.getLong(OFFSET_VERSION) == expectedVersion;
+    }
+
+    private void bumpVersion(Conversation conversation) {
+        conversation.meta.putLong(OFFSET_VERSION, conversation.meta.getLong(OFFSET_VERSION) + 1);
+    }
+
+    private void applyTokenDelta(Conversation conversation, Long tokenDelta) {
+        long tokens = conversation.meta.getLong(OFFSET_TOKENS);
+        if (tokenDelta == null) {
+            conversation.meta.putLong(OFFSET_TOKENS, UNKNOWN_TOKENS);
+        } else if (tokens != UNKNOWN_TOKENS) {
+            conversation.meta.putLong(OFFSET_TOKENS, tokens + tokenDelta);
+        }
+    }
+
+    private boolean isArchived(Conversation conversation) {
+        return conversation.meta.getLong(OFFSET_ARCHIVED_COUNT) != NOT_ARCHIVED;
+    }
+
+    private boolean recordGuardedWrite(boolean applied) {
+        guardedWrites.increment();
+        if (!applied) {
+            writeConflicts.increment();
+        }
+        return applied;
+    }
+
+    private ConversationStats readStats(String conversationId) {
+        Path metaPath = directoryOf(conversationId).resolve(META_FILE);
+        if (!Files.isRegularFile(metaPath)) {
+            return new ConversationStats(0L, UNKNOWN_TOKENS, 0L, false);
+        }
+        try (FileChannel channel = FileChannel.open(metaPath, StandardOpenOption.READ)) {
+            ByteBuffer meta = ByteBuffer.allocate(META_BYTES);
+            while (meta.hasRemaining() && channel.read(meta) >= 0) {
+                // 讀滿 meta 或到檔尾
+            }
+            if (meta.position() < LEGACY_META_BYTES || meta.getInt(OFFSET_MAGIC) != META_MAGIC) {
+                return new ConversationStats(0L, UNKNOWN_TOKENS, 0L, false);
+            }
+            return toStats(meta, meta.position() >= META_BYTES);
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Cannot read chat memory meta: " + metaPath, ex);
+        }
+    }
+
+    /**
+     * @param bytesKnown meta 是否包含位元組計數（舊格式的 meta 檔沒有，直到下次載入時補上）
+     */
+    private ConversationStats toStats(ByteBuffer meta, boolean bytesKnown) {
+        long archivedCount = meta.getLong(OFFSET_ARCHIVED_COUNT);
+        if (archivedCount != NOT_ARCHIVED) {
+            return new ConversationStats(archivedCount, meta.getLong(OFFSET_ARCHIVED_TOKENS), 0L, true);
+        }
+        return new ConversationStats(meta.getLong(OFFSET_COUNT), meta.getLong(OFFSET_TOKENS),
+                bytesKnown ? meta.getLong(OFFSET_BYTES) : UNKNOWN_BYTES, false);
+    }
+
+    private void force(Conversation conversation) {
+        conversation.meta.force();
+        if (!conversation.segments.isEmpty()) {
+            conversation.segments.getLast().buffer.force();
+        }
+    }
+
+    /**
+     * 以讀寫模式映射檔案；size 為 0 時沿用檔案現有大小，否則延伸至 size（新增部分補 0）。
+     */
+    private MappedByteBuffer map(Path path, int size) {
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long length = size > 0 ? Math.max(size, channel.size()) : channel.size();
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Cannot map chat memory file: " + path, ex);
+        }
+    }
+
+    /**
+     * 解除對話所有檔案的映射；呼叫端須持有寫入鎖並已將對話標為 closed，之後不得再存取這些 buffer。
+     */
+    private void release(Conversation conversation) {
+        for (Segment segment : conversation.segments) {
+            unmap(segment.buffer);
+        }
+        conversation.segments.clear();
+        conversation.index.clear();
+        unmap(conversation.meta);
+    }
+
+    private static void unmap(MappedByteBuffer buffer) {
+        if (UNMAPPER == null || buffer == null) {
+            return;
+        }
+        try {
+            UNMAPPER.invokeExact((ByteBuffer) buffer);
+        } catch (Throwable ex) {
+            log.warn("Failed to unmap chat memory buffer, leaving it to GC", ex);
+        }
+    }
+
+    private static MethodHandle lookupUnmapper() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return MethodHandles.lookup()
+                    .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                    .bindTo(field.get(null));
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            log.warn("Explicit unmapping unavailable; mapped chat memory files are released by GC", ex);
+            return null;
+        }
+    }
+
+    private void deleteDirectory(Path dir) {
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : files.toList()) {
+                Files.deleteIfExists(file);
+            }
+            Files.deleteIfExists(dir);
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Cannot delete chat memory directory: " + dir, ex);
+        }
+    }
+
+    private Path directoryOf(String conversationId) {
+        return baseDir.resolve(Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(conversationId.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static long pack(int segment, int offset) {
+        return ((long) segment << 32) | (offset & 0xffffffffL);
+    }
+
+    private static final class Conversation {
+        private final Path dir;
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private final List<Segment> segments = new ArrayList<>();
+        private final OffHeapIndex index = new OffHeapIndex();
+        private MappedByteBuffer meta;
+        private long generation;
+        private volatile long lastAccess = System.nanoTime();
+        private boolean closed;
+
+        private Conversation(Path dir) {
+            this.dir = dir;
+        }
+    }
+
+    private static final class Segment {
+        private final Path path;
+        private final MappedByteBuffer buffer;
+        private int writePosition;
+
+        private Segment(Path path, MappedByteBuffer buffer) {
+            this.path = path;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * 每筆訊息位置（segment 序號 << 32 | offset）存在 direct buffer，不佔用 heap，容量不足時倍增。
+     */
+    private static final class OffHeapIndex {
+        private static final int INITIAL_CAPACITY = 64;
+
+        private LongBuffer entries = allocate(INITIAL_CAPACITY);
+        private int size;
+
+        private void add(long location) {
+            if (size == entries.capacity()) {
+                LongBuffer grown = allocate(entries.capacity() * 2);
+                grown.put(0, entries, 0, size);
+                entries = grown;
+            }
+            entries.put(size++, location);
+        }
+
+        private long get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException(index);
+            }
+            return entries.get(index);
+        }
+
+        private int size() {
+            return size;
+        }
+
+        private void clear() {
+            size = 0;
+        }
+
+        private static LongBuffer allocate(int capacity) {
+            return ByteBuffer.allocateDirect(capacity * Long.BYTES).order(ByteOrder.nativeOrder()).asLongBuffer();
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.teamwork.gateway.memory;
+
+import org.springframework.ai.embedding.EmbeddingModel;
+
+/**
+ * 以 Spring AI {@link EmbeddingModel} 產生向量；維度取自模型，第一次呼叫時解析並快取。
+ */
+public class EmbeddingModelTextEmbedder implements TextEmbedder {
+
+    private final EmbeddingModel embeddingModel;
+    private volatile int dimensions = -1;
+
+    public EmbeddingModelTextEmbedder(EmbeddingModel embeddingModel) {
+        this.embeddingModel = embeddingModel;
+    }
+
+    @Override
+    public float[] embed(String text) {
+        return embeddingModel.embed(text);
+    }
+
+    @Override
+    public int dimensions() {
+        int resolved = dimensions;
+        if (resolved < 0) {
+            resolved = embeddingModel.dimensions();
+            dimensions = resolved;
+        }
+        return resolved;
+    }
+
+    @Override
+    public String name() {
+        return "model";
+    }
+}
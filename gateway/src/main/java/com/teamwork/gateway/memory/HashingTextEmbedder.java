@@ -0,0 +1,92 @@
+package com.teamwork.gateway.memory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * 不需外部模型的本機 embedder：以 feature hashing 將詞彙與字元 bigram 映射到固定維度並做 log 縮放。
+ * <p>英數字以連續字元為一個詞，CJK 等無空白語言以相鄰兩字為特徵，讓中文片段也能依用字重疊程度比對。
+ * 語意能力不及 embedding 模型，但零延遲、可重現，適合單節點部署與測試。</p>
+ */
+public class HashingTextEmbedder implements TextEmbedder {
+
+    private final int dimensions;
+
+    public HashingTextEmbedder(int dimensions) {
+        this.dimensions = Math.max(16, dimensions);
+    }
+
+    @Override
+    public float[] embed(String text) {
+        float[] vector = new float[dimensions];
+        if (text == null || text.isEmpty()) {
+            return vector;
+        }
+        String normalized = text.toLowerCase(Locale.ROOT);
+        StringBuilder word = new StringBuilder();
+        int previous = -1;
+        for (int offset = 0; offset < normalized.length(); ) {
+            int codePoint = normalized.codePointAt(offset);
+            offset += Character.charCount(codePoint);
+            if (Character.isLetterOrDigit(codePoint) && isWordCharacter(codePoint)) {
+                word.appendCodePoint(codePoint);
+                previous = -1;
+                continue;
+            }
+            flushWord(vector, word);
+            if (Character.isLetterOrDigit(codePoint)) {
+                addFeature(vector, new String(Character.toChars(codePoint)));
+                if (previous >= 0) {
+                    addFeature(vector, new String(Character.toChars(previous)) + new String(Character.toChars(codePoint)));
+                }
+                previous = codePoint;
+            } else {
+                previous = -1;
+            }
+        }
+        flushWord(vector, word);
+        for (int index = 0; index < vector.length; index++) {
+            float value = vector[index];
+            vector[index] = (float) (Math.signum(value) * Math.log1p(Math.abs(value)));
+        }
+        return vector;
+    }
+
+    @Override
+    public int dimensions() {
+        return dimensions;
+    }
+
+    @Override
+    public String name() {
+        return "hashing";
+    }
+
+    private boolean isWordCharacter(int codePoint) {
+        Character.UnicodeScript script = Character.UnicodeScript.of(codePoint);
+        return script == Character.UnicodeScript.LATIN
+                || script == Character.UnicodeScript.COMMON
+                || script == Character.UnicodeScript.CYRILLIC
+                || script == Character.UnicodeScript.GREEK;
+    }
+
+    private void flushWord(float[] vector, StringBuilder word) {
+        if (word.length() > 1) {
+            addFeature(vector, word.toString());
+        }
+        word.setLength(0);
+    }
+
+    /**
+     * 以 FNV-1a 雜湊的低 31 位元決定維度、最高位元決定正負號，降低碰撞造成的偏差。
+     */
+    private void addFeature(float[] vector, String feature) {
+        int hash = 0x811c9dc5;
+        for (byte value : feature.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= value & 0xff;
+            hash *= 0x01000193;
+        }
+        int index = (hash & 0x7fffffff) % dimensions;
+        vector[index] += (hash >>> 31) == 0 ? 1f : -1f;
+    }
+}
@@ -0,0 +1,134 @@
+package com.teamwork.gateway.memory;
+
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 以關鍵字逐行分類的本機摘要器；不呼叫模型，作為 LLM 摘要逾時或失敗時的後備。
+ */
+@Component
+public class HeuristicContextSummarizer implements ContextSummarizer {
+
+    /** 合併上一層摘要時略過的固定行：摘要標頭、Stage A 統計與章節標題。 */
+    private static final List<String> SUMMARY_SCAFFOLD_PREFIXES = List.of(
+            "[AUTO_COMPRESSED]", "stageA=", "1. 目標與範圍", "2. 已完成", "3. 進行中", "4. 風險與限制", "5. 下一步");
+
+    @Override
+    public String summarize(ContextSummaryRequest request) {
+        CompressionExtraction extraction = extractKeyInformation(request.messages());
+        StringBuilder builder = new StringBuilder();
+        builder.append(request.header())
+                .append("\n")
+                .append("stageA=facts=").append(extraction.facts().size())
+                .append(", decisions=").append(extraction.decisions().size())
+                .append(", constraints=").append(extraction.constraints().size())
+                .append(", open_questions=").append(extraction.openQuestions().size())
+                .append(", errors_and_fixes=").append(extraction.errorsAndFixes().size())
+                .append(", pending_todos=").append(extraction.pendingTodos().size())
+                .append("\n")
+                .append("1. 目標與範圍\n")
+                .append(formatList(extraction.facts(), "- 無可用目標資訊"))
+                .append("2. 已完成\n")
+                .append(formatList(extraction.decisions(), "- 無明確完成決策"))
+                .append("3. 進行中\n")
+                .append(formatList(extraction.pendingTodos(), "- 無待辦項目"))
+                .append("4. 風險與限制\n")
+                .append(formatList(extraction.constraints(), "- 無明確限制"))
+                .append(formatList(extraction.errorsAndFixes(), "- 無錯誤修正記錄"))
+                .append("5. 下一步\n")
+                .append(formatList(extraction.openQuestions(), "- 依既有任務流程續行"));
+        return builder.toString();
+    }
+
+    @Override
+    public String name() {
+        return "heuristic";
+    }
+
+    private CompressionExtraction extractKeyInformation(List<ChatMessageDto> messages) {
+        Map<String, List<String>> bucket = new LinkedHashMap<>();
+        bucket.put("facts", new ArrayList<>());
+        bucket.put("decisions", new ArrayList<>());
+        bucket.put("constraints", new ArrayList<>());
+        bucket.put("open_questions", new ArrayList<>());
+        bucket.put("errors_and_fixes", new ArrayList<>());
+        bucket.put("pending_todos", new ArrayList<>());
+
+        for (ChatMessageDto message : messages) {
+            if (message.getContent() == null || message.getContent().isBlank()) {
+                continue;
+            }
+            String[] lines = message.getContent().split("\\r?\\n");
+            for (String rawLine : lines) {
+                String line = rawLine == null ? "" : rawLine.trim();
+                if (line.isBlank() || isSummaryScaffold(line)) {
+                    continue;
+                }
+                String lower = line.toLowerCase(Locale.ROOT);
+                if (lower.contains("todo") || lower.contains("待辦") || lower.contains("next")) {
+                    addLimited(bucket.get("pending_todos"), line, 4);
+                } else if (lower.contains("error") || lower.contains("exception") || lower.contains("修正") || lower.contains("fix")) {
+                    addLimited(bucket.get("errors_and_fixes"), line, 4);
+                } else if (lower.contains("?") || lower.contains("請問") || lower.contains("是否")) {
+                    addLimited(bucket.get("open_questions"), line, 4);
+                } else if (lower.contains("must") || lower.contains("限制") || lower.contains("required") || lower.contains("不可")) {
+                    addLimited(bucket.get("constraints"), line, 4);
+                } else if (lower.contains("決定") || lower.contains("adopt") || lower.contains("choose") || lower.contains("採用")) {
+                    addLimited(bucket.get("decisions"), line, 4);
+                } else {
+                    addLimited(bucket.get("facts"), line, 6);
+                }
+            }
+        }
+        return new CompressionExtraction(
+                bucket.get("facts"),
+                bucket.get("decisions"),
+                bucket.get("constraints"),
+                bucket.get("open_questions"),
+                bucket.get("errors_and_fixes"),
+                bucket.get("pending_todos"));
+    }
+
+    private boolean isSummaryScaffold(String line) {
+        for (String prefix : SUMMARY_SCAFFOLD_PREFIXES) {
+            if (line.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String formatList(List<String> items, String fallback) {
+        if (items == null || items.isEmpty()) {
+            return fallback + "\n";
+        }
+        StringBuilder builder = new StringBuilder();
+        for (String item : items) {
+            builder.append("- ").append(item).append("\n");
+        }
+        return builder.toString();
+    }
+
+    private void addLimited(List<String> bucket, String value, int maxItems) {
+        if (bucket.size() >= maxItems) {
+            return;
+        }
+        if (!bucket.contains(value)) {
+            bucket.add(value);
+        }
+    }
+
+    private record CompressionExtraction(
+            List<String> facts,
+            List<String> decisions,
+            List<String> constraints,
+            List<String> openQuestions,
+            List<String> errorsAndFixes,
+            List<String> pendingTodos) {
+    }
+}
@@ -0,0 +1,240 @@
+package com.teamwork.gateway.memory;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * JVM 內的 HNSW（Hierarchical Navigable Small World）近似最近鄰索引，以 cosine 相似度排序。
+ * <p>向量寫入時正規化，相似度即內積。每個節點依指數分佈抽出層級，上層稀疏、第 0 層連接所有節點；
+ * 查詢由最高層貪婪下降到第 0 層，再以 efSearch 大小的候選集合展開，成本約為 O(log n)。</p>
+ * <p>寫入互斥、查詢共用讀鎖；節點不刪除，容量上限由呼叫端控制。</p>
+ *
+ * @param <T> 節點附帶的內容
+ */
+public class HnswVectorIndex<T> {
+
+    private final int dimensions;
+    private final int maxConnections;
+    private final int maxConnectionsLayerZero;
+    private final int efConstruction;
+    private final int efSearch;
+    private final double levelMultiplier;
+    private final List<Node<T>> nodes = new ArrayList<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+
+    public HnswVectorIndex(int dimensions, int maxConnections, int efConstruction, int efSearch) {
+        if (dimensions <= 0) {
+            throw new IllegalArgumentException("dimensions must be positive");
+        }
+        this.dimensions = dimensions;
+        this.maxConnections = Math.max(2, maxConnections);
+        this.maxConnectionsLayerZero = this.maxConnections * 2;
+        this.efConstruction = Math.max(this.maxConnections, efConstruction);
+        this.efSearch = Math.max(1, efSearch);
+        this.levelMultiplier = 1.0 / Math.log(this.maxConnections);
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return nodes.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void add(float[] vector, T payload) {
+        float[] normalized = normalize(vector);
+        int level = (int) Math.floor(-Math.log(1.0 - ThreadLocalRandom.current().nextDouble()) * levelMultiplier);
+
+        lock.writeLock().lock();
+        try {
+            int id = nodes.size();
+            Node<T> node = new Node<>(normalized, payload, level);
+            nodes.add(node);
+            if (entryPoint < 0) {
+                entryPoint = id;
+                maxLevel = level;
+                return;
+            }
+
+            int current = entryPoint;
+            for (int layer = maxLevel; layer > level; layer--) {
+                current = greedyClosest(normalized, current, layer);
+            }
+            for (int layer = Math.min(level, maxLevel); layer >= 0; layer--) {
+                List<Candidate> candidates = searchLayer(normalized, current, efConstruction, layer);
+                int limit = layer == 0 ? maxConnectionsLayerZero : maxConnections;
+                List<Candidate> selected = candidates.subList(0, Math.min(maxConnections, candidates.size()));
+                for (Candidate neighbor : selected) {
+                    node.neighbors.get(layer).add(neighbor.id());
+                    List<Integer> reverse = nodes.get(neighbor.id()).neighbors.get(layer);
+                    reverse.add(id);
+                    if (reverse.size() > limit) {
+                        prune(nodes.get(neighbor.id()), layer, limit);
+                    }
+                }
+                current = candidates.getFirst().id();
+            }
+            if (level > maxLevel) {
+                maxLevel = level;
+                entryPoint = id;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 取得與 query 最相似的 k 筆，依相似度由高到低排列。
+     */
+    public List<Match<T>> search(float[] query, int k) {
+        if (k <= 0) {
+            return List.of();
+        }
+        float[] normalized = normalize(query);
+        lock.readLock().lock();
+        try {
+            if (entryPoint < 0) {
+                return List.of();
+            }
+            int current = entryPoint;
+            for (int layer = maxLevel; layer > 0; layer--) {
+                current = greedyClosest(normalized, current, layer);
+            }
+            List<Candidate> candidates = searchLayer(normalized, current, Math.max(efSearch, k), 0);
+            List<Match<T>> matches = new ArrayList<>(Math.min(k, candidates.size()));
+            for (Candidate candidate : candidates.subList(0, Math.min(k, candidates.size()))) {
+                matches.add(new Match<>(nodes.get(candidate.id()).payload, candidate.similarity()));
+            }
+            return matches;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private int greedyClosest(float[] query, int start, int layer) {
+        int current = start;
+        double best = similarity(query, nodes.get(current).vector);
+        boolean improved = true;
+        while (improved) {
+            improved = false;
+            for (int neighbor : nodes.get(current).neighbors(layer)) {
+                double score = similarity(query, nodes.get(neighbor).vector);
+                if (score > best) {
+                    best = score;
+                    current = neighbor;
+                    improved = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * 在單一層以 ef 大小的候選集合做 best-first 搜尋，回傳依相似度遞減排序的結果。
+     */
+    private List<Candidate> searchLayer(float[] query, int start, int ef, int layer) {
+        BitSet visited = new BitSet(nodes.size());
+        visited.set(start);
+        Candidate first = new Candidate(start, similarity(query, nodes.get(start).vector));
+        PriorityQueue<Candidate> frontier = new PriorityQueue<>(Comparator.comparingDouble(Candidate::similarity).reversed());
+        PriorityQueue<Candidate> results = new PriorityQueue<>(Comparator.comparingDouble(Candidate::similarity));
+        frontier.add(first);
+        results.add(first);
+
+        while (!frontier.isEmpty()) {
+            Candidate candidate = frontier.poll();
+            if (results.size() >= ef && candidate.similarity() < results.peek().similarity()) {
+                break;
+            }
+            for (int neighbor : nodes.get(candidate.id()).neighbors(layer)) {
+                if (visited.get(neighbor)) {
+                    continue;
+                }
+                visited.set(neighbor);
+                double score = similarity(query, nodes.get(neighbor).vector);
+                if (results.size() < ef || score > results.peek().similarity()) {
+                    Candidate next = new Candidate(neighbor, score);
+                    frontier.add(next);
+                    results.add(next);
+                    if (results.size() > ef) {
+                        results.poll();
+                    }
+                }
+            }
+        }
+        List<Candidate> ordered = new ArrayList<>(results);
+        ordered.sort(Comparator.comparingDouble(Candidate::similarity).reversed());
+        return ordered;
+    }
+
+    /**
+     * 鄰居數超過上限時只保留最相似的 limit 個。
+     */
+    private void prune(Node<T> node, int layer, int limit) {
+        List<Integer> neighbors = node.neighbors.get(layer);
+        neighbors.sort(Comparator.comparingDouble(
+                (Integer neighbor) -> similarity(node.vector, nodes.get(neighbor).vector)).reversed());
+        neighbors.subList(limit, neighbors.size()).clear();
+    }
+
+    private float[] normalize(float[] vector) {
+        if (vector.length != dimensions) {
+            throw new IllegalArgumentException("expected " + dimensions + " dimensions but got " + vector.length);
+        }
+        double norm = 0.0;
+        for (float value : vector) {
+            norm += value * value;
+        }
+        float[] normalized = new float[vector.length];
+        if (norm == 0.0) {
+            return normalized;
+        }
+        float scale = (float) (1.0 / Math.sqrt(norm));
+        for (int index = 0; index < vector.length; index++) {
+            normalized[index] = vector[index] * scale;
+        }
+        return normalized;
+    }
+
+    private static double similarity(float[] left, float[] right) {
+        double dot = 0.0;
+        for (int index = 0; index < left.length; index++) {
+            dot += left[index] * right[index];
+        }
+        return dot;
+    }
+
+    public record Match<T>(T payload, double similarity) {
+    }
+
+    private record Candidate(int id, double similarity) {
+    }
+
+    private static final class Node<T> {
+        private final float[] vector;
+        private final T payload;
+        private final List<List<Integer>> neighbors;
+
+        private Node(float[] vector, T payload, int level) {
+            this.vector = vector;
+            this.payload = payload;
+            this.neighbors = new ArrayList<>(level + 1);
+            for (int layer = 0; layer <= level; layer++) {
+                neighbors.add(new ArrayList<>());
+            }
+        }
+
+        private List<Integer> neighbors(int layer) {
+            return layer < neighbors.size() ? neighbors.get(layer) : List.of();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.teamwork.gateway.memory;
+
+import org.springframework.ai.chat.client.ChatClientRequest;
+import org.springframework.ai.chat.client.ChatClientResponse;
+import org.springframework.ai.chat.client.advisor.api.AdvisorChain;
+import org.springframework.ai.chat.client.advisor.api.BaseAdvisor;
+import org.springframework.ai.chat.messages.UserMessage;
+
+import java.util.List;
+
+/**
+ * 在對話記憶 advisor 之前執行：以本次使用者訊息檢索長期記憶，把命中的片段附加到 system message。
+ * 沒有命中時 prompt 保持不變。
+ */
+public class LongTermMemoryAdvisor implements BaseAdvisor {
+
+    static final String BLOCK_HEADER =
+            "[LONG_TERM_MEMORY] 以下是本對話較早、已被摘要取代的原始內容片段，僅在與目前問題相關時參考：";
+
+    private final LongTermMemoryService longTermMemoryService;
+    private final String conversationId;
+    private final int order;
+
+    public LongTermMemoryAdvisor(LongTermMemoryService longTermMemoryService, String conversationId, int order) {
+        this.longTermMemoryService = longTermMemoryService;
+        this.conversationId = conversationId;
+        this.order = order;
+    }
+
+    @Override
+    public ChatClientRequest before(ChatClientRequest chatClientRequest, AdvisorChain advisorChain) {
+        UserMessage userMessage = chatClientRequest.prompt().getUserMessage();
+        String query = userMessage == null ? null : userMessage.getText();
+        List<MemorySnippet> snippets = longTermMemoryService.retrieve(conversationId, query);
+        if (snippets.isEmpty()) {
+            return chatClientRequest;
+        }
+
+        StringBuilder block = new StringBuilder(BLOCK_HEADER);
+        for (int index = 0; index < snippets.size(); index++) {
+            block.append("\n--- ").append(index + 1).append(" ---\n").append(snippets.get(index).content());
+        }
+        return chatClientRequest.mutate()
+                .prompt(chatClientRequest.prompt().augmentSystemMessage(systemMessage -> {
+                    String existing = systemMessage.getText();
+                    String text = existing == null || existing.isBlank() ? block.toString() : existing + "\n\n" + block;
+                    return systemMessage.mutate().text(text).build();
+                }))
+                .build();
+    }
+
+    @Override
+    public ChatClientResponse after(ChatClientResponse chatClientResponse, AdvisorChain advisorChain) {
+        return chatClientResponse;
+    }
+
+    @Override
+    public int getOrder() {
+        return order;
+    }
+}
@@ -0,0 +1,13 @@
+package com.teamwork.gateway.memory;
+
+public record LongTermMemoryMetricsSnapshot(
+        String embedder,
+        long loadedConversations,
+        long indexedChunks,
+        long rebuilds,
+        long retrievals,
+        long hits,
+        long rejected,
+        long errors,
+        double averageRetrievalLatencyMs) {
+}
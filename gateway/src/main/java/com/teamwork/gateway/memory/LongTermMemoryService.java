@@ -0,0 +1,351 @@
+package com.teamwork.gateway.memory;
+
+import com.teamwork.gateway.entity.ChatMessageArchive;
+import com.teamwork.gateway.event.ContextSegmentCompactedEvent;
+import com.teamwork.gateway.repository.ChatMessageArchiveRepository;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 長期記憶：壓縮時被摘要取代的原始訊息切成片段寫入每個對話的 HNSW 索引，
+ * 對話時以使用者訊息檢索最相關的 top-k 片段補回 prompt，讓摘要遺失的細節仍可被引用。
+ * <p>索引只存在於 JVM 內，以 LRU 限制同時載入的對話數；被淘汰或重啟後第一次檢索時
+ * 由 PostgreSQL 的 COMPACTED 封存非同步重建，重建完成前該次檢索回傳空結果。
+ * 索引寫入與重建都在單一 worker 上依序執行，不與請求路徑競爭，也不會互相覆蓋。</p>
+ * <p>向量預設由本機 feature hashing 產生；有 {@link EmbeddingModel} bean 時（{@code embedder=auto}）改用模型。
+ * 任何錯誤只記錄並回傳空結果，不影響對話本身。</p>
+ */
+@Slf4j
+@Service
+public class LongTermMemoryService {
+
+    private final TextEmbedder embedder;
+    private final ChatMessageArchiveRepository archiveRepository;
+    private final ChatMessageCodec messageCodec;
+    private final boolean enabled;
+    private final int topK;
+    private final double minSimilarity;
+    private final int chunkChars;
+    private final int maxEntriesPerConversation;
+    private final int hnswM;
+    private final int efConstruction;
+    private final int efSearch;
+    /** 索引寫入與重建的執行者；null 代表在呼叫端直接執行（測試用）。 */
+    private final ThreadPoolTaskExecutor indexExecutor;
+    private final Map<String, HnswVectorIndex<String>> indexes;
+    private final Set<String> rebuilding = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder indexedChunks = new LongAdder();
+    private final LongAdder rebuilds = new LongAdder();
+    private final LongAdder retrievals = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder totalRetrievalLatencyMs = new LongAdder();
+
+    @Autowired
+    public LongTermMemoryService(
+            ObjectProvider<EmbeddingModel> embeddingModel,
+            ChatMessageArchiveRepository archiveRepository,
+            ChatMessageCodec messageCodec,
+            @Value("${gateway.long-term-memory.enabled:true}") boolean enabled,
+            @Value("${gateway.long-term-memory.embedder:auto}") String embedderType,
+            @Value("${gateway.long-term-memory.dimensions:256}") int dimensions,
+            @Value("${gateway.long-term-memory.top-k:4}") int topK,
+            @Value("${gateway.long-term-memory.min-similarity:0.2}") double minSimilarity,
+            @Value("${gateway.long-term-memory.chunk-chars:800}") int chunkChars,
+            @Value("${gateway.long-term-memory.max-entries-per-conversation:5000}") int maxEntriesPerConversation,
+            @Value("${gateway.long-term-memory.max-conversations:1000}") int maxConversations,
+            @Value("${gateway.long-term-memory.hnsw.m:16}") int hnswM,
+            @Value("${gateway.long-term-memory.hnsw.ef-construction:100}") int efConstruction,
+            @Value("${gateway.long-term-memory.hnsw.ef-search:64}") int efSearch,
+            @Value("${gateway.long-term-memory.queue-capacity:500}") int queueCapacity) {
+        this(resolveEmbedder(embedderType, embeddingModel.getIfAvailable(), dimensions),
+                archiveRepository, messageCodec, enabled, topK, minSimilarity, chunkChars,
+                maxEntriesPerConversation, maxConversations, hnswM, efConstruction, efSearch,
+                enabled ? createIndexExecutor(queueCapacity) : null);
+    }
+
+    /** 測試用建構子（indexExecutor 為 null 時索引寫入同步執行） */
+    LongTermMemoryService(
+            TextEmbedder embedder,
+            ChatMessageArchiveRepository archiveRepository,
+            ChatMessageCodec messageCodec,
+            boolean enabled,
+            int topK,
+            double minSimilarity,
+            int chunkChars,
+            int maxEntriesPerConversation,
+            int maxConversations,
+            int hnswM,
+            int efConstruction,
+            int efSearch,
+            ThreadPoolTaskExecutor indexExecutor) {
+        this.embedder = embedder;
+        this.archiveRepository = archiveRepository;
+        this.messageCodec = messageCodec;
+        this.enabled = enabled;
+        this.topK = Math.max(1, topK);
+        this.minSimilarity = minSimilarity;
+        this.chunkChars = Math.max(100, chunkChars);
+        this.maxEntriesPerConversation = Math.max(1, maxEntriesPerConversation);
+        this.hnswM = hnswM;
+        this.efConstruction = efConstruction;
+        this.efSearch = efSearch;
+        this.indexExecutor = indexExecutor;
+        int capacity = Math.max(1, maxConversations);
+        this.indexes = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, HnswVectorIndex<String>> eldest) {
+                return size() > capacity;
+            }
+        });
+        if (enabled) {
+            log.info("Long-term memory enabled. embedder={}, dimensions={}", embedder.name(), embedder.dimensions());
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 壓縮完成後把被取代的原始訊息加入索引；索引尚未載入時改由封存整段重建（封存已包含本段）。
+     */
+    @EventListener
+    public void onSegmentCompacted(ContextSegmentCompactedEvent event) {
+        if (!enabled) {
+            return;
+        }
+        String conversationId = event.getTaskId();
+        List<ChatMessageDto> messages = event.getMessages();
+        submit(conversationId, () -> {
+            HnswVectorIndex<String> index = indexes.get(conversationId);
+            if (index == null) {
+                rebuild(conversationId, messages);
+            } else {
+                addChunks(conversationId, index, messages);
+            }
+        });
+    }
+
+    /**
+     * 以 query 檢索對話的長期記憶，依相似度由高到低回傳不超過 top-k 筆且高於門檻的片段。
+     */
+    public List<MemorySnippet> retrieve(String conversationId, String query) {
+        if (!enabled || conversationId == null || query == null || query.isBlank()) {
+            return List.of();
+        }
+        long startNanos = System.nanoTime();
+        retrievals.increment();
+        try {
+            HnswVectorIndex<String> index = indexes.get(conversationId);
+            if (index == null) {
+                if (rebuilding.add(conversationId)) {
+                    submit(conversationId, () -> {
+                        try {
+                            if (!indexes.containsKey(conversationId)) {
+                                rebuild(conversationId, List.of());
+                            }
+                        } finally {
+                            rebuilding.remove(conversationId);
+                        }
+                    });
+                }
+                return List.of();
+            }
+            if (index.size() == 0) {
+                return List.of();
+            }
+            List<MemorySnippet> snippets = new ArrayList<>(topK);
+            for (HnswVectorIndex.Match<String> match : index.search(embedder.embed(query), topK)) {
+                if (match.similarity() >= minSimilarity) {
+                    snippets.add(new MemorySnippet(match.payload(), match.similarity()));
+                }
+            }
+            if (!snippets.isEmpty()) {
+                hits.increment();
+            }
+            return snippets;
+        } catch (RuntimeException ex) {
+            errors.increment();
+            log.warn("Long-term memory retrieval failed. conversationId={}", conversationId, ex);
+            return List.of();
+        } finally {
+            totalRetrievalLatencyMs.add((System.nanoTime() - startNanos) / 1_000_000L);
+        }
+    }
+
+    /**
+     * 對話清除時移除索引；排在佇列中的寫入之後再移除一次，避免清除前提交的工作把索引建回來。
+     */
+    public void forget(String conversationId) {
+        indexes.remove(conversationId);
+        if (enabled) {
+            submit(conversationId, () -> indexes.remove(conversationId));
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (indexExecutor != null) {
+            indexExecutor.shutdown();
+        }
+    }
+
+    public LongTermMemoryMetricsSnapshot getMetricsSnapshot() {
+        long retrievalCount = retrievals.sum();
+        return new LongTermMemoryMetricsSnapshot(
+                embedder.name(),
+                indexes.size(),
+                indexedChunks.sum(),
+                rebuilds.sum(),
+                retrievalCount,
+                hits.sum(),
+                rejected.sum(),
+                errors.sum(),
+                retrievalCount == 0 ? 0.0 : (double) totalRetrievalLatencyMs.sum() / retrievalCount);
+    }
+
+    /**
+     * 由 COMPACTED 封存重建索引；pending 為觸發重建的壓縮事件所帶的訊息，封存寫入失敗或停用時
+     * 封存中不會有這段，此時另外補上（封存尾端已是同一段時不重複加入）。
+     */
+    private void rebuild(String conversationId, List<ChatMessageDto> pending) {
+        List<ChatMessageArchive> archives = archiveRepository.findByConversationIdAndReasonOrderBySeqAsc(
+                conversationId, ChatHistoryArchiver.REASON_COMPACTED);
+        List<ChatMessageDto> messages = new ArrayList<>(archives.size() + pending.size());
+        for (ChatMessageArchive archive : archives) {
+            messages.add(messageCodec.decode(archive.getPayload()));
+        }
+        if (!endsWith(messages, pending)) {
+            messages.addAll(pending);
+        }
+        HnswVectorIndex<String> index = new HnswVectorIndex<>(embedder.dimensions(), hnswM, efConstruction, efSearch);
+        addChunks(conversationId, index, messages);
+        indexes.put(conversationId, index);
+        rebuilds.increment();
+        log.debug("Rebuilt long-term memory index. conversationId={}, chunks={}", conversationId, index.size());
+    }
+
+    private static boolean endsWith(List<ChatMessageDto> archived, List<ChatMessageDto> pending) {
+        if (pending.size() > archived.size()) {
+            return false;
+        }
+        int offset = archived.size() - pending.size();
+        for (int i = 0; i < pending.size(); i++) {
+            ChatMessageDto stored = archived.get(offset + i);
+            ChatMessageDto expected = pending.get(i);
+            if (stored == null
+                    || !Objects.equals(stored.getType(), expected.getType())
+                    || !Objects.equals(stored.getContent(), expected.getContent())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void addChunks(String conversationId, HnswVectorIndex<String> index, List<ChatMessageDto> messages) {
+        for (String chunk : chunk(messages)) {
+            if (index.size() >= maxEntriesPerConversation) {
+                rejected.increment();
+                log.debug("Long-term memory index full. conversationId={}", conversationId);
+                return;
+            }
+            index.add(embedder.embed(chunk), chunk);
+            indexedChunks.increment();
+        }
+    }
+
+    /**
+     * 依序把訊息以「TYPE: content」串接，累積到 chunk-chars 即切成一個片段；單則過長的訊息截斷。
+     */
+    List<String> chunk(List<ChatMessageDto> messages) {
+        List<String> chunks = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        for (ChatMessageDto message : messages) {
+            if (message == null || message.getContent() == null || message.getContent().isBlank()) {
+                continue;
+            }
+            String line = message.getType() + ": " + message.getContent().strip();
+            if (line.length() > chunkChars) {
+                line = line.substring(0, chunkChars);
+            }
+            if (!current.isEmpty() && current.length() + 1 + line.length() > chunkChars) {
+                chunks.add(current.toString());
+                current.setLength(0);
+            }
+            if (!current.isEmpty()) {
+                current.append('\n');
+            }
+            current.append(line);
+        }
+        if (!current.isEmpty()) {
+            chunks.add(current.toString());
+        }
+        return chunks;
+    }
+
+    private void submit(String conversationId, Runnable task) {
+        Runnable guarded = () -> {
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                errors.increment();
+                log.warn("Long-term memory indexing failed. conversationId={}", conversationId, ex);
+            }
+        };
+        if (indexExecutor == null) {
+            guarded.run();
+            return;
+        }
+        try {
+            indexExecutor.execute(guarded);
+        } catch (TaskRejectedException ex) {
+            rejected.increment();
+            rebuilding.remove(conversationId);
+            log.warn("Long-term memory indexing queue full. conversationId={}", conversationId);
+        }
+    }
+
+    private static TextEmbedder resolveEmbedder(String type, EmbeddingModel embeddingModel, int dimensions) {
+        boolean wantsModel = "model".equalsIgnoreCase(type) || "auto".equalsIgnoreCase(type);
+        if (wantsModel && embeddingModel != null) {
+            return new EmbeddingModelTextEmbedder(embeddingModel);
+        }
+        if ("model".equalsIgnoreCase(type)) {
+            log.warn("No EmbeddingModel bean available, falling back to hashing embedder");
+        }
+        return new HashingTextEmbedder(dimensions);
+    }
+
+    private static ThreadPoolTaskExecutor createIndexExecutor(int queueCapacity) {
+        // 單一 worker 讓同一對話的寫入、重建與清除依提交順序執行
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(1);
+        executor.setMaxPoolSize(1);
+        executor.setQueueCapacity(Math.max(1, queueCapacity));
+        executor.setThreadNamePrefix("long-term-memory-");
+        executor.setWaitForTasksToCompleteOnShutdown(false);
+        executor.initialize();
+        return executor;
+    }
+}
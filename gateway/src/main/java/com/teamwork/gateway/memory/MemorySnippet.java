@@ -0,0 +1,7 @@
+package com.teamwork.gateway.memory;
+
+/**
+ * 長期記憶檢索結果：被壓縮的原始對話片段與其與查詢的 cosine 相似度。
+ */
+public record MemorySnippet(String content, double score) {
+}
@@ -1,15 +1,12 @@
 package com.teamwork.gateway.memory;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.ai.chat.memory.ChatMemory;
 import org.springframework.ai.chat.messages.Message;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
-import java.util.Collections;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 import java.util.stream.Collectors;
@@ -18,29 +15,58 @@ import java.util.stream.Collectors;
 @Service
 public class RedisChatMemory implements ChatMemory {
 
-    private final StringRedisTemplate redisTemplate;
+    private final ChatMemoryStore messageStore;
     private final ContextCompressionService contextCompressionService;
-    private final ObjectMapper objectMapper = new ObjectMapper();
-
-    public RedisChatMemory(StringRedisTemplate redisTemplate, ContextCompressionService contextCompressionService) {
-        this.redisTemplate = redisTemplate;
+    private final ChatMessageCodec messageCodec;
+    private final ConversationNearCache nearCache;
+    private final ChatHistoryArchiver historyArchiver;
+    private final LongTermMemoryService longTermMemoryService;
+    private final ConversationActivityTracker activityTracker;
+
+    public RedisChatMemory(
+            ChatMemoryStore messageStore,
+            ContextCompressionService contextCompressionService,
+            ChatMessageCodec messageCodec,
+            ConversationNearCache nearCache,
+            ChatHistoryArchiver historyArchiver,
+            LongTermMemoryService longTermMemoryService,
+            ConversationActivityTracker activityTracker) {
+        this.messageStore = messageStore;
         this.contextCompressionService = contextCompressionService;
+        this.messageCodec = messageCodec;
+        this.nearCache = nearCache;
+        this.historyArchiver = historyArchiver;
+        this.longTermMemoryService = longTermMemoryService;
+        this.activityTracker = activityTracker;
     }
 
-    private static final String KEY_PREFIX = "chat:memory:";
-
     @Override
     public void add(String conversationId, List<Message> messages) {
-        String key = KEY_PREFIX + conversationId;
-        List<String> jsonMessages = messages.stream()
-                .map(ChatMessageDto::fromMessage)
-                .map(this::toJson)
-                .filter(Objects::nonNull)
-                .toList();
+        List<String> encodedMessages = new ArrayList<>(messages.size());
+        List<Message> storedMessages = new ArrayList<>(messages.size());
+        long tokenDelta = 0L;
+        for (Message message : messages) {
+            ChatMessageDto dto = ChatMessageDto.fromMessage(message);
+            long tokens = contextCompressionService.estimateTokens(dto.getContent());
+            dto.setTokens(tokens);
+            String encoded = messageCodec.encode(dto);
+            if (encoded != null) {
+                encodedMessages.add(encoded);
+                // 快取存放與 Redis 讀回相同型態的訊息，避免命中與否造成行為差異
+                storedMessages.add(dto.toMessage());
+                tokenDelta += tokens;
+            }
+        }
 
-        if (!jsonMessages.isEmpty()) {
-            redisTemplate.opsForList().rightPushAll(key, jsonMessages);
-            contextCompressionService.compressIfNeeded(conversationId);
+        if (!encodedMessages.isEmpty()) {
+            ChatMemoryStore.AppendResult result = messageStore.append(conversationId, encodedMessages, tokenDelta);
+            if (result.archived()) {
+                // 閒置封存的對話先回填，再附加新訊息以維持順序
+                historyArchiver.rehydrate(conversationId);
+                result = messageStore.append(conversationId, encodedMessages, tokenDelta);
+            }
+            nearCache.append(conversationId, storedMessages, result.size());
+            contextCompressionService.requestCompression(conversationId, result.tokens());
         }
     }
 
@@ -54,48 +80,121 @@ public class RedisChatMemory implements ChatMemory {
     }
 
     public List<Message> getLastN(String conversationId, int lastN) {
-        String key = KEY_PREFIX + conversationId;
-        long size = redisTemplate.opsForList().size(key) != null ? redisTemplate.opsForList().size(key) : 0;
+        return getWindow(conversationId, lastN).messages();
+    }
 
-        if (size == 0) {
-            return Collections.emptyList();
+    /**
+     * 取得最近 lastN 筆訊息與對話總筆數；先查 near-cache，未命中時只對儲存後端查詢一次。
+     * 對話已閒置封存時先由冷儲存回填。讀取（含 near-cache 命中）同樣計為對話活動。
+     */
+    public ChatMemoryWindow getWindow(String conversationId, int lastN) {
+        activityTracker.touch(conversationId);
+        ChatMemoryWindow cached = nearCache.get(conversationId, lastN);
+        if (cached != null) {
+            return cached;
         }
 
-        long start = Math.max(0, size - lastN);
-        List<String> jsonMessages = redisTemplate.opsForList().range(key, start, size - 1);
+        long readStamp = nearCache.readStamp();
+        ChatMemoryStore.TailSlice slice = messageStore.tail(conversationId, lastN);
+        if (slice.archived()) {
+            historyArchiver.rehydrate(conversationId);
+            readStamp = nearCache.readStamp();
+            slice = messageStore.tail(conversationId, lastN);
+        }
+        if (slice.totalSize() <= 0) {
+            return ChatMemoryWindow.empty();
+        }
 
-        if (jsonMessages == null) {
-            return Collections.emptyList();
+        List<Message> messages = slice.entries().stream()
+                .map(messageCodec::decode)
+                .filter(Objects::nonNull)
+                .map(ChatMessageDto::toMessage)
+                .collect(Collectors.toList());
+        ChatMemoryWindow window = new ChatMemoryWindow(messages, slice.totalSize());
+        nearCache.put(conversationId, lastN, window, slice.version(), readStamp);
+        return window;
+    }
+
+    /**
+     * 由最新訊息往前累加每筆訊息的 token 數，在超過 maxTokens 前停止；
+     * 回傳的訊息依時間順序排列，不論單筆訊息多大，總量都不會超過預算。
+     */
+    public ChatMemoryWindow getWithinTokenBudget(String conversationId, long maxTokens) {
+        activityTracker.touch(conversationId);
+        ChatMemoryWindow cached = nearCache.getWithinTokenBudget(
+                conversationId, maxTokens, message -> contextCompressionService.estimateTokens(message.getText()));
+        if (cached != null) {
+            return cached;
         }
 
-        return jsonMessages.stream()
-                .map(this::fromJson)
+        long readStamp = nearCache.readStamp();
+        ChatMemoryStore.BudgetSlice slice = messageStore.tailWithinTokenBudget(conversationId, maxTokens);
+        if (slice.archived()) {
+            historyArchiver.rehydrate(conversationId);
+            readStamp = nearCache.readStamp();
+            slice = messageStore.tailWithinTokenBudget(conversationId, maxTokens);
+        }
+        if (slice.totalSize() <= 0) {
+            return ChatMemoryWindow.empty();
+        }
+        List<Message> messages = slice.entries().stream()
+                .map(messageCodec::decode)
                 .filter(Objects::nonNull)
                 .map(ChatMessageDto::toMessage)
                 .collect(Collectors.toList());
+        ChatMemoryWindow window = new ChatMemoryWindow(messages, slice.totalSize());
+        nearCache.put(conversationId, slice.entries().size(), window, slice.version(), readStamp);
+        return window;
+    }
+
+    /**
+     * 記錄一次不經由本物件讀取的對話活動（例如串流匯出），延後閒置封存與淘汰。
+     */
+    public void touch(String conversationId) {
+        activityTracker.touch(conversationId);
+    }
+
+    /**
+     * 回傳以 token 預算讀取歷史的 ChatMemory 視圖，供 memory advisor 使用；寫入與清除仍委派本物件。
+     * maxTokens <= 0 代表不限制。
+     */
+    public ChatMemory withTokenBudget(long maxTokens) {
+        if (maxTokens <= 0) {
+            return this;
+        }
+        return new TokenBudgetChatMemory(maxTokens);
     }
 
     @Override
     public void clear(String conversationId) {
-        redisTemplate.delete(KEY_PREFIX + conversationId);
+        messageStore.clear(conversationId);
+        nearCache.invalidate(conversationId);
+        historyArchiver.purge(conversationId);
+        longTermMemoryService.forget(conversationId);
         contextCompressionService.clearCompressionCount(conversationId);
     }
 
-    private String toJson(ChatMessageDto dto) {
-        try {
-            return objectMapper.writeValueAsString(dto);
-        } catch (JsonProcessingException e) {
-            log.error("Failed to serialize ChatMessageDto", e);
-            return null;
+    private final class TokenBudgetChatMemory implements ChatMemory {
+
+        private final long maxTokens;
+
+        private TokenBudgetChatMemory(long maxTokens) {
+            this.maxTokens = maxTokens;
+        }
+
+        @Override
+        public void add(String conversationId, List<Message> messages) {
+            RedisChatMemory.this.add(conversationId, messages);
+        }
+
+        @Override
+        public List<Message> get(String conversationId) {
+            return getWithinTokenBudget(conversationId, maxTokens).messages();
         }
-    }
 
-    private ChatMessageDto fromJson(String json) {
-        try {
-            return objectMapper.readValue(json, ChatMessageDto.class);
-        } catch (JsonProcessingException e) {
-            log.error("Failed to deserialize ChatMessageDto", e);
-            return null;
+        @Override
+        public void clear(String conversationId) {
+            RedisChatMemory.this.clear(conversationId);
         }
     }
 }
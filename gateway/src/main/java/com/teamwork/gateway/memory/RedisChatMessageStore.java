@@ -0,0 +1,965 @@
+package com.teamwork.gateway.memory;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * 對話記憶的 Redis 存取層：集中分段 list、segment 索引與 per-conversation meta hash 的操作。
+ * <p>每個對話切成固定大小的 segment list（{@code chat:memory:seg:<id>:<segId>}），
+ * 依序記錄在索引 list（{@code chat:memory:segments:<id>}）；meta hash 維護總筆數、
+ * 下一個 segment 編號、running token 計數與訊息位元組數（{@code bytes}）。尾端讀取、區段替換與壓縮只會碰觸相關的 segment，
+ * 長對話不會因整串 LRANGE 造成 Redis 延遲尖峰。</p>
+ * <p>升級前的單一 list（{@code chat:memory:<id>}）在讀取時直接當成單一 segment，
+ * 第一次寫入時以 RENAME 轉為 segment 0。segment key 由 Lua script 動態組出，適用單一節點 Redis。</p>
+ * <p>meta hash 的 {@code ver} 是結構版本：改寫既有訊息的操作（區段替換、位置刪除、回填）成功時遞增，
+ * 尾端附加不遞增。區段讀取會一併回傳版本，改寫時帶入比對，讀取後若有其他改寫即以衝突拒絕，
+ * 不會讓最後寫入者默默覆蓋；不同對話互不影響，不需要全域鎖。</p>
+ * <p>閒置對話封存至 PostgreSQL 後只留下 {@code chat:memory:archived:<id>} 標記；
+ * 讀取與附加在標記存在時回報 archived，由呼叫端先回填再重試。</p>
+ */
+@Component
+@ConditionalOnProperty(prefix = "gateway.chat-memory", name = "store", havingValue = "redis", matchIfMissing = true)
+public class RedisChatMessageStore implements ChatMemoryStore {
+
+    private static final String CHAT_KEY_PREFIX = "chat:memory:";
+    private static final String META_KEY_PREFIX = "chat:memory:meta:";
+    private static final String INDEX_KEY_PREFIX = "chat:memory:segments:";
+    private static final String SEGMENT_KEY_PREFIX = "chat:memory:seg:";
+    private static final String ARCHIVED_KEY_PREFIX = "chat:memory:archived:";
+    private static final String FIELD_TOKENS = "tokens";
+    /** 刪除時暫時標記元素的值，附加隨機尾碼避免與真實訊息相同。 */
+    private static final String TOMBSTONE_PREFIX = "chat:memory:tombstone:";
+    private static final String FIELD_COUNT = "count";
+    private static final String FIELD_NEXT_SEGMENT = "nextSeg";
+    private static final String FIELD_BYTES = "bytes";
+    private static final List<Object> STATS_FIELDS = List.of(FIELD_NEXT_SEGMENT, FIELD_COUNT, FIELD_TOKENS, FIELD_BYTES);
+    private static final String FIELD_LAST_ACTIVE = "lastActive";
+
+    /**
+     * 各 script 共用的 segment 輔助函式。KEYS：meta, index, legacy, archived；ARGV[1]：segment key 前綴。
+     */
+    private static final String SEGMENT_PRELUDE = """
+            local meta, index, legacy, archived = KEYS[1], KEYS[2], KEYS[3], KEYS[4]
+            local segPrefix = ARGV[1]
+            local function segKey(id)
+              return segPrefix .. id
+            end
+            local function isSegmented()
+              return redis.call('HEXISTS', meta, 'nextSeg') == 1
+            end
+            local function segmentKeys()
+              if isSegmented() then
+                local ids = redis.call('LRANGE', index, 0, -1)
+                local keys = {}
+                for i = 1, #ids do
+                  keys[i] = segKey(ids[i])
+                end
+                return keys
+              end
+              if redis.call('EXISTS', legacy) == 1 then
+                return {legacy}
+              end
+              return {}
+            end
+            local function totalCount()
+              if isSegmented() then
+                return tonumber(redis.call('HGET', meta, 'count') or '0')
+              end
+              return redis.call('LLEN', legacy)
+            end
+            local function ensureSegmented()
+              if isSegmented() then
+                return
+              end
+              if redis.call('EXISTS', legacy) == 1 then
+                local count = redis.call('LLEN', legacy)
+                redis.call('RENAME', legacy, segKey(0))
+                redis.call('RPUSH', index, 0)
+                redis.call('HSET', meta, 'nextSeg', 1, 'count', count)
+              else
+                redis.call('HSET', meta, 'nextSeg', 0, 'count', 0)
+              end
+            end
+            local function newSegment()
+              return redis.call('HINCRBY', meta, 'nextSeg', 1) - 1
+            end
+            local function appendEntries(segSize, first)
+              local tailId = redis.call('LINDEX', index, -1)
+              local i = first
+              while i <= #ARGV do
+                local room = 0
+                if tailId then
+                  room = segSize - redis.call('LLEN', segKey(tailId))
+                end
+                if room <= 0 then
+                  tailId = newSegment()
+                  redis.call('RPUSH', index, tailId)
+                  room = segSize
+                end
+                local last = math.min(#ARGV, i + room - 1)
+                redis.call('RPUSH', segKey(tailId), unpack(ARGV, i, last))
+                i = last + 1
+              end
+              return redis.call('HINCRBY', meta, 'count', #ARGV - first + 1)
+            end
+            local function versionMatches(expected)
+              return expected == '' or (redis.call('HGET', meta, 'ver') or '0') == expected
+            end
+            local function bumpVersion()
+              return redis.call('HINCRBY', meta, 'ver', 1)
+            end
+            local function argBytes(first, step)
+              local bytes = 0
+              for i = first, #ARGV, step do
+                bytes = bytes + #ARGV[i]
+              end
+              return bytes
+            end
+            local function addBytes(delta)
+              if redis.call('HEXISTS', meta, 'bytes') == 1 then
+                redis.call('HINCRBY', meta, 'bytes', delta)
+              end
+            end
+            local function deleteAll()
+              local ids = redis.call('LRANGE', index, 0, -1)
+              for _, id in ipairs(ids) do
+                redis.call('DEL', segKey(id))
+              end
+              redis.call('DEL', index, meta, legacy)
+              return #ids
+            end
+            """;
+
+    /**
+     * 由最後一個 segment 往前取尾端 N 筆，並回傳總筆數。
+     * ARGV[2]：lastN；回傳格式：{totalSize, [entry...], version}，totalSize 為 -1 代表已封存。
+     */
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> TAIL_WINDOW_SCRIPT = new DefaultRedisScript<>(SEGMENT_PRELUDE + """
+            local keys = segmentKeys()
+            local count = totalCount()
+            if count == 0 and redis.call('EXISTS', archived) == 1 then
+              return {-1, {}}
+            end
+            local need = tonumber(ARGV[2])
+            local chunks = {}
+            local k = #keys
+            while need > 0 and k >= 1 do
+              local len = redis.call('LLEN', keys[k])
+              local chunk
+              if len > need then
+                chunk = redis.call('LRANGE', keys[k], len - need, -1)
+              else
+                chunk = redis.call('LRANGE', keys[k], 0, -1)
+              end
+              chunks[#chunks + 1] = chunk
+              need = need - #chunk
+              k = k - 1
+            end
+            local entries = {}
+            for c = #chunks, 1, -1 do
+              for _, entry in ipairs(chunks[c]) do
+                entries[#entries + 1] = entry
+              end
+            end
+            return {count, entries, tonumber(redis.call('HGET', meta, 'ver') or '0')}
+            """, List.class);
+
+    /**
+     * 由尾端往前以固定批次 LRANGE，累加每筆的 token 數，超過預算即停止。
+     * compact v2 編碼的 token 數位於固定前綴（{@code \u0001 2 type tokens ;}）；
+     * 無法取得時（舊資料）以位元組長度 /4 粗估。
+     * ARGV[2]：maxTokens；回傳格式：{totalSize, [entry...（時間順序）], usedTokens, version}，totalSize 為 -1 代表已封存。
+     */
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> TAIL_WITHIN_BUDGET_SCRIPT = new DefaultRedisScript<>(SEGMENT_PRELUDE + """
+            local keys = segmentKeys()
+            local count = totalCount()
+            if count == 0 and redis.call('EXISTS', archived) == 1 then
+              return {-1, {}, 0}
+            end
+            local budget = tonumber(ARGV[2])
+            local used = 0
+            local taken = {}
+            local exhausted = false
+            local k = #keys
+            while k >= 1 and not exhausted do
+              local stop = redis.call('LLEN', keys[k]) - 1
+              while stop >= 0 and not exhausted do
+                local start = math.max(0, stop - 63)
+                local items = redis.call('LRANGE', keys[k], start, stop)
+                for i = #items, 1, -1 do
+                  local entry = items[i]
+                  local tokens = nil
+                  if string.byte(entry, 1) == 1 and string.sub(entry, 2, 2) == '2' then
+                    local separator = string.find(entry, ';', 4, true)
+                    if separator then
+                      tokens = tonumber(string.sub(entry, 4, separator - 1))
+                    end
+                  end
+                  if tokens == nil then
+                    tokens = math.floor((#entry + 3) / 4)
+                  end
+                  if used + tokens > budget then
+                    exhausted = true
+                    break
+                  end
+                  used = used + tokens
+                  taken[#taken + 1] = entry
+                end
+                stop = start - 1
+              end
+              k = k - 1
+            end
+            local ordered = {}
+            for i = #taken, 1, -1 do
+              ordered[#ordered + 1] = taken[i]
+            end
+            return {count, ordered, used, tonumber(redis.call('HGET', meta, 'ver') or '0')}
+            """, List.class);
+
+    /**
+     * 讀取 [from, from + limit) 範圍，只 LRANGE 與範圍重疊的 segment。
+     * ARGV[2]：from；ARGV[3]：limit；回傳格式：{version, [entry...]}
+     */
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> READ_RANGE_SCRIPT = new DefaultRedisScript<>(SEGMENT_PRELUDE + """
+            local keys = segmentKeys()
+            local from = tonumber(ARGV[2])
+            local remaining = tonumber(ARGV[3])
+            local entries = {}
+            local pos = 0
+            for k = 1, #keys do
+              if remaining <= 0 then
+                break
+              end
+              local len = redis.call('LLEN', keys[k])
+              if from < pos + len then
+                local startOffset = math.max(0, from - pos)
+                local stopOffset = math.min(len - 1, startOffset + remaining - 1)
+                local chunk = redis.call('LRANGE', keys[k], startOffset, stopOffset)
+                for _, entry in ipairs(chunk) do
+                  entries[#entries + 1] = entry
+                end
+                remaining = remaining - #chunk
+              end
+              pos = pos + len
+            end
+            return {tonumber(redis.call('HGET', meta, 'ver') or '0'), entries}
+            """, List.class);
+
+    private static final RedisScript<Long> SIZE_SCRIPT = new DefaultRedisScript<>(SEGMENT_PRELUDE + """
+            return totalCount()
+            """, Long.class);
+
+    /**
+     * 補上舊對話的位元組計數：只有計數仍不存在、版本與筆數都與計算時的快照一致才寫入，
+     * 計算期間有附加或改寫即放棄，留待下一次計算。
+     * ARGV[2]：預期版本；ARGV[3]：預期筆數；ARGV[4]：位元組數。回傳 1 代表已寫入。
+     */
+    private static final RedisScript<Long> INIT_BYTES_SCRIPT = new DefaultRedisScript<>(SEGMENT_PRELUDE + """
+            if redis.call('HEXISTS', meta, 'bytes') == 1 or redis.call('EXISTS', archived) == 1
+                or not versionMatches(ARGV[2]) or tostring(totalCount()) ~= ARGV[3] then
+              return 0
+            end
+            redis.call('HSET', meta, 'bytes', ARGV[4])
+            return 1
+            """, Long.class);
+
+    /**
+     * 附加至最後一個 segment，滿了就開新 segment，並同步累加 token 計數、位元組數與最後活動時間；
+     * 若對話已有資料但計數器不存在（升級前的舊對話），不建立計數器並回傳 -1，交由壓縮服務整串重算後補上；
+     * 位元組數同理，由 {@link #estimateBytes} 分批計算後補上。
+     * 對話已封存時不寫入，回傳 {-1, -1}。
+     * ARGV[2]：segment 大小；ARGV[3]：tokenDelta；ARGV[4]：現在時間（毫秒）；ARGV[5..]：entries。回傳格式：{size, tokens}
+     */
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> APPEND_SCRIPT = new DefaultRedisScript<>(SEGMENT_PRELUDE + """
+            if redis.call('EXISTS', archived) == 1 then
+              return {-1, -1}
+            end
+            ensureSegmented()
+            local before = tonumber(redis.call('HGET', meta, 'count'))
+            local known = before == 0 or redis.call('HEXISTS', meta, 'tokens') == 1
+            if before == 0 then
+              redis.call('HSET', meta, 'bytes', 0)
+            end
+            addBytes(argBytes(5, 1))
+            local count = appendEntries(tonumber(ARGV[2]), 5)
+            redis.call('HSET', meta, 'lastActive', ARGV[4])
+            local tokens = -1
+            if known then
+              tokens = redis.call('HINCRBY', meta, 'tokens', ARGV[3])
+            end
+            return {count, tokens}
+            """, List.class);
+
+    /**
+     * 封存後清除 Redis 資料並留下標記；以讀取時的最後活動時間與筆數為快照，期間有新寫入則放棄。
+     * 標記值為「筆數:token 數」，供用量查詢不必回填即可回報。
+     * ARGV[2]：lastActive 快照；ARGV[3]：筆數快照。回傳 1 代表已清除。
+     */
+    private static final RedisScript<Long> EVICT_ARCHIVED_SCRIPT = new DefaultRedisScript<>(SEGMENT_PRELUDE + """
+            if redis.call('HGET', meta, 'lastActive') ~= ARGV[2] or tostring(totalCount()) ~= ARGV[3] then
+              return 0
+            end
+            local tokens = redis.call('HGET', meta, 'tokens') or ''
+            deleteAll()
+            redis.call('SET', archived, ARGV[3] .. ':' .. tokens)
+            return 1
+            """, Long.class);
+
+    /**
+     * 讀取時延後最後活動時間；對話不存在（沒有 lastActive）或已封存時不寫入。KEYS：meta, index, legacy, archived；
+     * ARGV[1]：現在時間（毫秒）。
+     */
+    private static final RedisScript<Long> TOUCH_SCRIPT = new DefaultRedisScript<>("""
+            if redis.call('EXISTS', KEYS[4]) == 1 then
+              return 0
+            end
+            local current = tonumber(redis.call('HGET', KEYS[1], 'lastActive'))
+            if current == nil or current >= tonumber(ARGV[1]) then
+              return 0
+            end
+            redis.call('HSET', KEYS[1], 'lastActive', ARGV[1])
+            return 1
+            """, Long.class);
+
+    /**
+     * 由冷儲存回填：只有成功移除封存標記的呼叫者會寫入，避免並行回填重複附加。
+     * ARGV[2]：segment 大小；ARGV[3]：token 總數（空字串代表未知）；ARGV[4]：現在時間；ARGV[5..]：entries。
+     * 回傳回填後的總筆數，或 -1 代表標記已不存在。
+     */
+    private static final RedisScript<Long> RESTORE_ARCHIVED_SCRIPT = new DefaultRedisScript<>(SEGMENT_PRELUDE + """
+            if redis.call('DEL', archived) == 0 then
+              return -1
+            end
+            ensureSegmented()
+            if tonumber(redis.call('HGET', meta, 'count')) == 0 then
+              redis.call('HSET', meta, 'bytes', 0)
+            end
+            addBytes(argBytes(5, 1))
+            local count = appendEntries(tonumber(ARGV[2]), 5)
+            redis.call('HSET', meta, 'lastActive', ARGV[4])
+            if ARGV[3] ~= '' then
+              redis.call('HSET', meta, 'tokens', ARGV[3])
+            end
+            bumpVersion()
+            return count
+            """, Long.class);
+
+    /**
+     * 原子替換 [from, to) 區段：只重寫區段首尾所在 segment 的內容，其餘 segment 原封不動，
+     * 之後（含並行新增）的訊息不受影響。以結構版本與區段首尾元素比對快照，若已被其他寫入改寫則回傳 -1。
+     * 有位元組計數時，以被移除元素與 replacement 的長度差更新（只讀取本來就要重寫的區段）。
+     * ARGV[2]：segment 大小；ARGV[3]/[4]：from/to；ARGV[5]/[6]：區段首／尾元素；
+     * ARGV[7]：tokenDelta（空字串代表清除計數器）；ARGV[8]：預期版本（空字串代表不檢查）；ARGV[9..]：replacement。
+     * 回傳替換後的總筆數，或 -1 代表衝突。
+     */
+    private static final RedisScript<Long> REPLACE_RANGE_SCRIPT = new DefaultRedisScript<>(SEGMENT_PRELUDE + """
+            ensureSegmented()
+            if not versionMatches(ARGV[8]) then
+              return -1
+            end
+            local segSize = tonumber(ARGV[2])
+            local from = tonumber(ARGV[3])
+            local to = tonumber(ARGV[4])
+            local ids = redis.call('LRANGE', index, 0, -1)
+            local pos = 0
+            local startIdx, startOffset, endIdx, endOffset
+            for j = 1, #ids do
+              local len = redis.call('LLEN', segKey(ids[j]))
+              if startIdx == nil and from < pos + len then
+                startIdx = j
+                startOffset = from - pos
+              end
+              if startIdx ~= nil and to <= pos + len then
+                endIdx = j
+                endOffset = to - pos
+                break
+              end
+              pos = pos + len
+            end
+            if startIdx == nil or endIdx == nil
+                or redis.call('LINDEX', segKey(ids[startIdx]), startOffset) ~= ARGV[5]
+                or redis.call('LINDEX', segKey(ids[endIdx]), endOffset - 1) ~= ARGV[6] then
+              return -1
+            end
+
+            if redis.call('HEXISTS', meta, 'bytes') == 1 then
+              local delta = argBytes(9, 1)
+              for j = startIdx, endIdx do
+                local first, last = 0, -1
+                if j == startIdx then
+                  first = startOffset
+                end
+                if j == endIdx then
+                  last = endOffset - 1
+                end
+                for _, entry in ipairs(redis.call('LRANGE', segKey(ids[j]), first, last)) do
+                  delta = delta - #entry
+                end
+              end
+              redis.call('HINCRBY', meta, 'bytes', delta)
+            end
+
+            local content = {}
+            if startOffset > 0 then
+              for _, entry in ipairs(redis.call('LRANGE', segKey(ids[startIdx]), 0, startOffset - 1)) do
+                content[#content + 1] = entry
+              end
+            end
+            for i = 9, #ARGV do
+              content[#content + 1] = ARGV[i]
+            end
+            for _, entry in ipairs(redis.call('LRANGE', segKey(ids[endIdx]), endOffset, -1)) do
+              content[#content + 1] = entry
+            end
+            for j = startIdx, endIdx do
+              redis.call('DEL', segKey(ids[j]))
+            end
+
+            local rebuilt = {}
+            for j = 1, startIdx - 1 do
+              rebuilt[#rebuilt + 1] = ids[j]
+            end
+            local i = 1
+            while i <= #content do
+              local id = newSegment()
+              local last = math.min(#content, i + segSize - 1)
+              redis.call('RPUSH', segKey(id), unpack(content, i, last))
+              rebuilt[#rebuilt + 1] = id
+              i = last + 1
+            end
+            for j = endIdx + 1, #ids do
+              rebuilt[#rebuilt + 1] = ids[j]
+            end
+            redis.call('DEL', index)
+            i = 1
+            while i <= #rebuilt do
+              local last = math.min(#rebuilt, i + 999)
+              redis.call('RPUSH', index, unpack(rebuilt, i, last))
+              i = last + 1
+            end
+
+            local count = redis.call('HINCRBY', meta, 'count', (#ARGV - 8) - (to - from))
+            if ARGV[7] == '' then
+              redis.call('HDEL', meta, 'tokens')
+            elseif redis.call('HEXISTS', meta, 'tokens') == 1 then
+              redis.call('HINCRBY', meta, 'tokens', ARGV[7])
+            end
+            bumpVersion()
+            return count
+            """, Long.class);
+
+    /**
+     * 刪除指定位置的元素：先比對每個位置的快照，全部一致才以 tombstone 標記（LSET），
+     * 再對受影響的 segment 各做一次 LREM，只碰觸被刪元素所在的 segment；清空的 segment 自索引移除。
+     * ARGV[2]：tombstone 值；ARGV[3]：tokenDelta（空字串代表清除計數器）；ARGV[4]：預期版本（空字串代表不檢查）；
+     * ARGV[5..]：位置與快照值成對排列，位置需遞增。回傳刪除後總筆數，或 -1 代表版本或快照不符。
+     */
+    private static final RedisScript<Long> DELETE_POSITIONS_SCRIPT = new DefaultRedisScript<>(SEGMENT_PRELUDE + """
+            ensureSegmented()
+            if not versionMatches(ARGV[4]) then
+              return -1
+            end
+            local tombstone = ARGV[2]
+            local ids = redis.call('LRANGE', index, 0, -1)
+            local j, pos, len = 1, 0, 0
+            if #ids > 0 then
+              len = redis.call('LLEN', segKey(ids[1]))
+            end
+            local targets = {}
+            for i = 5, #ARGV, 2 do
+              local p = tonumber(ARGV[i])
+              while j <= #ids and p >= pos + len do
+                pos = pos + len
+                j = j + 1
+                if j <= #ids then
+                  len = redis.call('LLEN', segKey(ids[j]))
+                end
+              end
+              if j > #ids or redis.call('LINDEX', segKey(ids[j]), p - pos) ~= ARGV[i + 1] then
+                return -1
+              end
+              targets[#targets + 1] = {j, p - pos}
+            end
+
+            local touched = {}
+            for _, target in ipairs(targets) do
+              redis.call('LSET', segKey(ids[target[1]]), target[2], tombstone)
+              touched[target[1]] = true
+            end
+            for segIdx, _ in pairs(touched) do
+              redis.call('LREM', segKey(ids[segIdx]), 0, tombstone)
+              if redis.call('LLEN', segKey(ids[segIdx])) == 0 then
+                redis.call('LREM', index, 1, ids[segIdx])
+              end
+            end
+
+            addBytes(-argBytes(6, 2))
+            local count = redis.call('HINCRBY', meta, 'count', -#targets)
+            if ARGV[3] == '' then
+              redis.call('HDEL', meta, 'tokens')
+            elseif redis.call('HEXISTS', meta, 'tokens') == 1 then
+              redis.call('HINCRBY', meta, 'tokens', ARGV[3])
+            end
+            bumpVersion()
+            return count
+            """, Long.class);
+
+    private static final RedisScript<Long> CLEAR_SCRIPT = new DefaultRedisScript<>(SEGMENT_PRELUDE + """
+            redis.call('DEL', archived)
+            return deleteAll()
+            """, Long.class);
+
+    private final StringRedisTemplate redisTemplate;
+    private final int segmentSize;
+    private final LongAdder guardedWrites = new LongAdder();
+    private final LongAdder writeConflicts = new LongAdder();
+
+    public RedisChatMessageStore(
+            StringRedisTemplate redisTemplate,
+            @Value("${gateway.chat-memory.segment-size:256}") int segmentSize) {
+        this.redisTemplate = redisTemplate;
+        this.segmentSize = Math.max(1, segmentSize);
+    }
+
+    /**
+     * 附加訊息並回傳附加後的總筆數與 token 計數；對話已封存時回傳 size 為 {@link #ARCHIVED} 的結果且不寫入。
+     */
+    @Override
+    public AppendResult append(String conversationId, List<String> entries, long tokenDelta) {
+        if (entries.isEmpty()) {
+            return new AppendResult(0L, UNKNOWN_TOKENS);
+        }
+        List<String> args = new ArrayList<>(entries.size() + 4);
+        args.add(segmentKeyPrefix(conversationId));
+        args.add(String.valueOf(segmentSize));
+        args.add(String.valueOf(tokenDelta));
+        args.add(String.valueOf(System.currentTimeMillis()));
+        args.addAll(entries);
+
+        List<?> result = redisTemplate.execute(APPEND_SCRIPT, keys(conversationId), args.toArray());
+        if (result == null || result.size() < 2) {
+            return new AppendResult(0L, UNKNOWN_TOKENS);
+        }
+        return new AppendResult(toLong(result.get(0), 0L), toLong(result.get(1), UNKNOWN_TOKENS));
+    }
+
+    /**
+     * 取得最近 lastN 筆原始資料與總筆數，單次 round trip，只讀取尾端的 segment。
+     */
+    @Override
+    public TailSlice tail(String conversationId, int lastN) {
+        if (lastN <= 0) {
+            return TailSlice.EMPTY;
+        }
+        List<?> result = redisTemplate.execute(
+                TAIL_WINDOW_SCRIPT,
+                keys(conversationId),
+                segmentKeyPrefix(conversationId),
+                String.valueOf(lastN));
+        if (result == null || result.size() < 2) {
+            return TailSlice.EMPTY;
+        }
+        long totalSize = toLong(result.get(0), 0L);
+        if (totalSize == ARCHIVED) {
+            return TailSlice.ARCHIVED_SLICE;
+        }
+        if (totalSize == 0 || !(result.get(1) instanceof List<?> rawEntries)) {
+            return TailSlice.EMPTY;
+        }
+        long version = result.size() > 2 ? toLong(result.get(2), 0L) : 0L;
+        return new TailSlice(totalSize, rawEntries.stream().map(String::valueOf).toList(), version);
+    }
+
+    /**
+     * 由尾端往前取訊息直到 token 預算用盡，單次 round trip；只傳回預算內的資料。
+     */
+    @Override
+    public BudgetSlice tailWithinTokenBudget(String conversationId, long maxTokens) {
+        if (maxTokens <= 0) {
+            return BudgetSlice.EMPTY;
+        }
+        List<?> result = redisTemplate.execute(
+                TAIL_WITHIN_BUDGET_SCRIPT,
+                keys(conversationId),
+                segmentKeyPrefix(conversationId),
+                String.valueOf(maxTokens));
+        if (result == null || result.size() < 3) {
+            return BudgetSlice.EMPTY;
+        }
+        long totalSize = toLong(result.get(0), 0L);
+        if (totalSize == ARCHIVED) {
+            return BudgetSlice.ARCHIVED_SLICE;
+        }
+        if (totalSize == 0 || !(result.get(1) instanceof List<?> rawEntries)) {
+            return BudgetSlice.EMPTY;
+        }
+        long version = result.size() > 3 ? toLong(result.get(3), 0L) : 0L;
+        return new BudgetSlice(
+                totalSize, rawEntries.stream().map(String::valueOf).toList(), toLong(result.get(2), 0L), version);
+    }
+
+    /**
+     * 讀取 [fromIndex, fromIndex + limit) 範圍與結構版本，只碰觸與範圍重疊的 segment。
+     */
+    @Override
+    public VersionedRange readRangeVersioned(String conversationId, long fromIndex, int limit) {
+        if (limit <= 0 || fromIndex < 0) {
+            return VersionedRange.EMPTY;
+        }
+        List<?> result = redisTemplate.execute(
+                READ_RANGE_SCRIPT,
+                keys(conversationId),
+                segmentKeyPrefix(conversationId),
+                String.valueOf(fromIndex),
+                String.valueOf(limit));
+        if (result == null || result.size() < 2 || !(result.get(1) instanceof List<?> entries)) {
+            return VersionedRange.EMPTY;
+        }
+        return new VersionedRange(toLong(result.get(0), 0L), entries.stream().map(String::valueOf).toList());
+    }
+
+    /**
+     * 對話總筆數，取自 meta hash 計數，不必讀取 segment。
+     */
+    @Override
+    public long size(String conversationId) {
+        Long size = redisTemplate.execute(SIZE_SCRIPT, keys(conversationId), segmentKeyPrefix(conversationId));
+        return size == null ? 0L : size;
+    }
+
+    /**
+     * 讀取 meta hash 的位元組計數（O(1)）；升級前的舊對話沒有計數時，以每次一個 segment 大小的區段讀取
+     * 分批加總後補上，不會以單一 script 走訪整個對話而阻塞 Redis。
+     */
+    @Override
+    public long estimateBytes(String conversationId) {
+        long bytes = parseLong(redisTemplate.opsForHash().get(metaKey(conversationId), FIELD_BYTES), UNKNOWN_BYTES);
+        return bytes >= 0 ? bytes : initializeBytes(conversationId);
+    }
+
+    private long initializeBytes(String conversationId) {
+        long size = size(conversationId);
+        long bytes = 0L;
+        long version = -1L;
+        long position = 0L;
+        while (position < size) {
+            VersionedRange range = readRangeVersioned(conversationId, position, segmentSize);
+            if (range.entries().isEmpty() || (version >= 0 && range.version() != version)) {
+                // 讀取期間被改寫：回傳目前的估計值，不寫入計數
+                return bytes;
+            }
+            version = range.version();
+            for (String entry : range.entries()) {
+                bytes += entry.getBytes(StandardCharsets.UTF_8).length;
+            }
+            position += range.entries().size();
+        }
+        if (size > 0) {
+            redisTemplate.execute(INIT_BYTES_SCRIPT, keys(conversationId), segmentKeyPrefix(conversationId),
+                    String.valueOf(version), String.valueOf(size), String.valueOf(bytes));
+        }
+        return bytes;
+    }
+
+    /**
+     * 讀取 running token 計數；計數器不存在時回傳 -1。
+     */
+    @Override
+    public long getTokenCount(String conversationId) {
+        Object value = redisTemplate.opsForHash().get(metaKey(conversationId), FIELD_TOKENS);
+        if (value == null) {
+            return UNKNOWN_TOKENS;
+        }
+        try {
+            return Long.parseLong(value.toString());
+        } catch (NumberFormatException ex) {
+            return UNKNOWN_TOKENS;
+        }
+    }
+
+    @Override
+    public void setTokenCount(String conversationId, long tokens) {
+        redisTemplate.opsForHash().put(metaKey(conversationId), FIELD_TOKENS, String.valueOf(tokens));
+    }
+
+    /**
+     * 以 replacement 原子替換自 fromIndex 起的區段，只重寫區段首尾所在的 segment。
+     */
+    @Override
+    public boolean replaceRange(
+            String conversationId,
+            long fromIndex,
+            List<String> current,
+            List<String> replacement,
+            Long tokenDelta,
+            long expectedVersion) {
+        if (current.isEmpty()) {
+            return true;
+        }
+        return executeReplaceRange(conversationId, fromIndex, fromIndex + current.size(),
+                current.getFirst(), current.getLast(), replacement, tokenDelta, expectedVersion);
+    }
+
+    @Override
+    public boolean removeRange(
+            String conversationId,
+            long fromIndex,
+            long count,
+            String firstEntry,
+            String lastEntry,
+            Long tokenDelta,
+            long expectedVersion) {
+        if (count <= 0) {
+            return true;
+        }
+        return executeReplaceRange(conversationId, fromIndex, fromIndex + count,
+                firstEntry, lastEntry, List.of(), tokenDelta, expectedVersion);
+    }
+
+    /**
+     * 刪除散落的多個位置，以 tombstone + LREM 只改動被刪元素所在的 segment。
+     */
+    @Override
+    public boolean deletePositions(
+            String conversationId, BitSet positions, List<String> expected, Long tokenDelta, long expectedVersion) {
+        if (positions.cardinality() != expected.size()) {
+            throw new IllegalArgumentException("positions and expected entries must have the same size");
+        }
+        if (positions.isEmpty()) {
+            return true;
+        }
+        List<String> args = new ArrayList<>(3 + expected.size() * 2);
+        args.add(segmentKeyPrefix(conversationId));
+        args.add(TOMBSTONE_PREFIX + UUID.randomUUID());
+        args.add(tokenDelta == null ? "" : String.valueOf(tokenDelta));
+        args.add(versionArg(expectedVersion));
+        int entry = 0;
+        for (int position = positions.nextSetBit(0); position >= 0; position = positions.nextSetBit(position + 1)) {
+            args.add(String.valueOf(position));
+            args.add(expected.get(entry++));
+        }
+
+        Long size = redisTemplate.execute(DELETE_POSITIONS_SCRIPT, keys(conversationId), args.toArray());
+        return recordGuardedWrite(size != null && size >= 0);
+    }
+
+    private boolean executeReplaceRange(
+            String conversationId,
+            long fromIndex,
+            long toIndex,
+            String firstEntry,
+            String lastEntry,
+            List<String> replacement,
+            Long tokenDelta,
+            long expectedVersion) {
+        List<String> args = new ArrayList<>(replacement.size() + 8);
+        args.add(segmentKeyPrefix(conversationId));
+        args.add(String.valueOf(segmentSize));
+        args.add(String.valueOf(fromIndex));
+        args.add(String.valueOf(toIndex));
+        args.add(firstEntry);
+        args.add(lastEntry);
+        args.add(tokenDelta == null ? "" : String.valueOf(tokenDelta));
+        args.add(versionArg(expectedVersion));
+        args.addAll(replacement);
+
+        Long size = redisTemplate.execute(REPLACE_RANGE_SCRIPT, keys(conversationId), args.toArray());
+        return recordGuardedWrite(size != null && size >= 0);
+    }
+
+    private String versionArg(long expectedVersion) {
+        return expectedVersion == ANY_VERSION ? "" : String.valueOf(expectedVersion);
+    }
+
+    private boolean recordGuardedWrite(boolean applied) {
+        guardedWrites.increment();
+        if (!applied) {
+            writeConflicts.increment();
+        }
+        return applied;
+    }
+
+    @Override
+    public ChatMemoryContentionMetricsSnapshot getContentionMetricsSnapshot() {
+        long writes = guardedWrites.sum();
+        long conflicts = writeConflicts.sum();
+        return new ChatMemoryContentionMetricsSnapshot(
+                writes, conflicts, writes == 0 ? 0.0 : (double) conflicts / (double) writes);
+    }
+
+    @Override
+    public Long getLastActiveAt(String conversationId) {
+        Object value = redisTemplate.opsForHash().get(metaKey(conversationId), FIELD_LAST_ACTIVE);
+        if (value == null) {
+            redisTemplate.opsForHash().putIfAbsent(
+                    metaKey(conversationId), FIELD_LAST_ACTIVE, String.valueOf(System.currentTimeMillis()));
+            return null;
+        }
+        try {
+            return Long.parseLong(value.toString());
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    @Override
+    public void touch(String conversationId, long activeAt) {
+        redisTemplate.execute(TOUCH_SCRIPT, keys(conversationId), String.valueOf(activeAt));
+    }
+
+    @Override
+    public boolean evictArchived(String conversationId, long lastActiveAt, long size) {
+        Long evicted = redisTemplate.execute(
+                EVICT_ARCHIVED_SCRIPT,
+                keys(conversationId),
+                segmentKeyPrefix(conversationId),
+                String.valueOf(lastActiveAt),
+                String.valueOf(size));
+        return evicted != null && evicted == 1L;
+    }
+
+    @Override
+    public boolean restoreArchived(String conversationId, List<String> entries, Long tokens) {
+        List<String> args = new ArrayList<>(entries.size() + 4);
+        args.add(segmentKeyPrefix(conversationId));
+        args.add(String.valueOf(segmentSize));
+        args.add(tokens == null ? "" : String.valueOf(tokens));
+        args.add(String.valueOf(System.currentTimeMillis()));
+        args.addAll(entries);
+
+        Long size = redisTemplate.execute(RESTORE_ARCHIVED_SCRIPT, keys(conversationId), args.toArray());
+        return size != null && size >= 0;
+    }
+
+    /**
+     * 以單次 pipeline 取得多個對話的筆數、token 計數與位元組數：每個對話一個 HMGET meta，
+     * 加上舊格式 list 的 LLEN 與封存標記 GET，不讀取任何訊息內容。回傳順序與輸入一致。
+     */
+    @Override
+    public Map<String, ConversationStats> getStats(List<String> conversationIds) {
+        if (conversationIds.isEmpty()) {
+            return Map.of();
+        }
+        List<Object> results = redisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public <K, V> Object execute(RedisOperations<K, V> operations) {
+                RedisOperations<String, String> ops = (RedisOperations<String, String>) operations;
+                for (String conversationId : conversationIds) {
+                    ops.opsForHash().multiGet(metaKey(conversationId), STATS_FIELDS);
+                    ops.opsForList().size(CHAT_KEY_PREFIX + conversationId);
+                    ops.opsForValue().get(ARCHIVED_KEY_PREFIX + conversationId);
+                }
+                return null;
+            }
+        });
+
+        Map<String, ConversationStats> stats = new LinkedHashMap<>(conversationIds.size() * 2);
+        for (int index = 0; index < conversationIds.size(); index++) {
+            int offset = index * 3;
+            stats.put(conversationIds.get(index), toStats(
+                    results.size() > offset ? results.get(offset) : null,
+                    results.size() > offset + 1 ? results.get(offset + 1) : null,
+                    results.size() > offset + 2 ? results.get(offset + 2) : null));
+        }
+        return stats;
+    }
+
+    private ConversationStats toStats(Object metaValues, Object legacySize, Object archivedMarker) {
+        if (archivedMarker != null) {
+            String marker = archivedMarker.toString();
+            int separator = marker.indexOf(':');
+            return new ConversationStats(
+                    parseLong(separator < 0 ? marker : marker.substring(0, separator), 0L),
+                    separator < 0 ? UNKNOWN_TOKENS : parseLong(marker.substring(separator + 1), UNKNOWN_TOKENS),
+                    0L,
+                    true);
+        }
+        List<?> values = metaValues instanceof List<?> list ? list : List.of();
+        Object nextSegment = values.isEmpty() ? null : values.get(0);
+        Object count = values.size() > 1 ? values.get(1) : null;
+        Object tokens = values.size() > 2 ? values.get(2) : null;
+        Object bytes = values.size() > 3 ? values.get(3) : null;
+        long messageCount = nextSegment != null
+                ? parseLong(count, 0L)
+                : (legacySize instanceof Number number ? number.longValue() : 0L);
+        return new ConversationStats(
+                messageCount,
+                parseLong(tokens, UNKNOWN_TOKENS),
+                messageCount == 0 ? 0L : parseLong(bytes, UNKNOWN_BYTES),
+                false);
+    }
+
+    private long parseLong(Object value, long fallback) {
+        if (value == null || value.toString().isEmpty()) {
+            return fallback;
+        }
+        try {
+            return Long.parseLong(value.toString());
+        } catch (NumberFormatException ex) {
+            return fallback;
+        }
+    }
+
+    /**
+     * 逐一走訪有 meta hash 的對話 id（SCAN，不阻塞 Redis）；visitor 回傳 false 即停止。
+     */
+    @Override
+    public void scanConversationIds(int batchHint, Predicate<String> visitor) {
+        ScanOptions options = ScanOptions.scanOptions().match(META_KEY_PREFIX + "*").count(batchHint).build();
+        try (Cursor<String> cursor = redisTemplate.scan(options)) {
+            while (cursor.hasNext()) {
+                if (!visitor.test(cursor.next().substring(META_KEY_PREFIX.length()))) {
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void clear(String conversationId) {
+        redisTemplate.execute(CLEAR_SCRIPT, keys(conversationId), segmentKeyPrefix(conversationId));
+    }
+
+    private List<String> keys(String conversationId) {
+        return List.of(
+                metaKey(conversationId),
+                INDEX_KEY_PREFIX + conversationId,
+                CHAT_KEY_PREFIX + conversationId,
+                ARCHIVED_KEY_PREFIX + conversationId);
+    }
+
+    private String segmentKeyPrefix(String conversationId) {
+        return SEGMENT_KEY_PREFIX + conversationId + ":";
+    }
+
+    private String metaKey(String conversationId) {
+        return META_KEY_PREFIX + conversationId;
+    }
+
+    private long toLong(Object value, long fallback) {
+        return value instanceof Number number ? number.longValue() : fallback;
+    }
+}
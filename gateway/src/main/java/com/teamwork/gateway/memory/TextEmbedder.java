@@ -0,0 +1,14 @@
+package com.teamwork.gateway.memory;
+
+/**
+ * 將文字轉成固定維度的向量，供長期記憶索引與檢索使用。
+ */
+public interface TextEmbedder {
+
+    float[] embed(String text);
+
+    int dimensions();
+
+    /** 記錄於 metrics 與 log 的名稱 */
+    String name();
+}
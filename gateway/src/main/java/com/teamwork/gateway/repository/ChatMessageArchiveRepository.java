@@ -0,0 +1,53 @@
+package com.teamwork.gateway.repository;
+
+import com.teamwork.gateway.entity.ChatMessageArchive;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+/** 對話訊息冷儲存資料存取層 */
+@Repository
+public interface ChatMessageArchiveRepository extends JpaRepository<ChatMessageArchive, String> {
+
+    /** 依封存順序取得指定原因的封存訊息（回填閒置對話用） */
+    List<ChatMessageArchive> findByConversationIdAndReasonOrderBySeqAsc(String conversationId, String reason);
+
+    /** 取得對話最後一筆封存，用於延續 seq */
+    Optional<ChatMessageArchive> findTopByConversationIdOrderBySeqDesc(String conversationId);
+
+    /** 刪除指定批次的封存；重複呼叫無副作用 */
+    @Transactional
+    @Modifying
+    @Query("delete from ChatMessageArchive a where a.conversationId = :conversationId and a.batchId in :batchIds")
+    int deleteBatches(
+            @Param("conversationId") String conversationId,
+            @Param("batchIds") Collection<String> batchIds);
+
+    /** 刪除加入批次 id 前寫入（batch_id 為 null）的指定原因封存 */
+    @Transactional
+    @Modifying
+    @Query("delete from ChatMessageArchive a where a.conversationId = :conversationId and a.reason = :reason and a.batchId is null")
+    int deleteLegacyArchived(@Param("conversationId") String conversationId, @Param("reason") String reason);
+
+    /** 刪除內容與 payloads 相同的指定原因封存 */
+    @Transactional
+    @Modifying
+    @Query("delete from ChatMessageArchive a where a.conversationId = :conversationId and a.reason = :reason and a.payload in :payloads")
+    int deleteByPayloads(
+            @Param("conversationId") String conversationId,
+            @Param("reason") String reason,
+            @Param("payloads") Collection<String> payloads);
+
+    /** 清除對話的所有封存 */
+    @Transactional
+    @Modifying
+    @Query("delete from ChatMessageArchive a where a.conversationId = :conversationId")
+    int deleteByConversation(@Param("conversationId") String conversationId);
+}
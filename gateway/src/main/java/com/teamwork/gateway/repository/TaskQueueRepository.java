@@ -0,0 +1,74 @@
+package com.teamwork.gateway.repository;
+
+import com.teamwork.gateway.entity.TaskQueueEntry;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.Collection;
+import java.util.List;
+
+/** 持久化任務佇列資料存取層（認領依賴 PostgreSQL 的 SKIP LOCKED） */
+@Repository
+public interface TaskQueueRepository extends JpaRepository<TaskQueueEntry, String> {
+
+    /**
+     * 鎖定可認領的項目：尚未認領且已到可執行時間，或 lease 已逾期。
+     * 其他節點正在認領的列會被略過而不是等待；必須在交易內呼叫，鎖到交易結束。
+     */
+    @Query(value = "select task_id from task_queue"
+            + " where (lease_owner is null and available_at <= :now)"
+            + " or (lease_owner is not null and lease_expires_at <= :now)"
+            + " order by available_at limit :limit for update skip locked", nativeQuery = true)
+    List<String> lockClaimable(@Param("now") long now, @Param("limit") int limit);
+
+    /** 將已鎖定的項目記為本節點持有 */
+    @Modifying(clearAutomatically = true)
+    @Query("update TaskQueueEntry e set e.leaseOwner = :owner, e.leaseExpiresAt = :leaseExpiresAt,"
+            + " e.attempts = e.attempts + 1 where e.taskId in :taskIds")
+    int lease(
+            @Param("taskIds") Collection<String> taskIds,
+            @Param("owner") String owner,
+            @Param("leaseExpiresAt") long leaseExpiresAt);
+
+    /** 心跳：延長本節點仍持有的 lease */
+    @Transactional
+    @Modifying
+    @Query("update TaskQueueEntry e set e.leaseExpiresAt = :leaseExpiresAt"
+            + " where e.leaseOwner = :owner and e.taskId in :taskIds")
+    int renewLeases(
+            @Param("taskIds") Collection<String> taskIds,
+            @Param("owner") String owner,
+            @Param("leaseExpiresAt") long leaseExpiresAt);
+
+    /** 執行結束後移除；lease 已被其他節點接手時不動作 */
+    @Transactional
+    @Modifying
+    @Query("delete from TaskQueueEntry e where e.taskId = :taskId and e.leaseOwner = :owner")
+    int complete(@Param("taskId") String taskId, @Param("owner") String owner);
+
+    /** 放棄 lease，讓任務在 availableAt 之後重新被認領 */
+    @Transactional
+    @Modifying
+    @Query("update TaskQueueEntry e set e.leaseOwner = null, e.leaseExpiresAt = null, e.availableAt = :availableAt"
+            + " where e.taskId = :taskId and e.leaseOwner = :owner")
+    int release(@Param("taskId") String taskId, @Param("owner") String owner, @Param("availableAt") long availableAt);
+
+    /**
+     * 為沒有佇列項目的 PENDING 任務補上項目，已存在者（其他節點同時補上）略過，回傳新增筆數。
+     */
+    @Transactional
+    @Modifying
+    @Query(value = "insert into task_queue (task_id, attempts, available_at, enqueued_at)"
+            + " select t.id, 0, :now, current_timestamp from task_records t"
+            + " where t.status = 'PENDING'"
+            + " and not exists (select 1 from task_queue q where q.task_id = t.id)"
+            + " on conflict (task_id) do nothing", nativeQuery = true)
+    int enqueueOrphanedPending(@Param("now") long now);
+
+    /** 尚未被認領的項目數 */
+    long countByLeaseOwnerIsNull();
+}
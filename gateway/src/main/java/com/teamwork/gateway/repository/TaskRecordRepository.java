@@ -1,6 +1,8 @@
 package com.teamwork.gateway.repository;
 
 import com.teamwork.gateway.entity.*;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.stereotype.Repository;
 
@@ -9,4 +11,9 @@ import java.util.List;
 @Repository
 public interface TaskRecordRepository extends JpaRepository<TaskRecord, String> {
     List<TaskRecord> findByParentTaskId(String parentTaskId);
+
+    /** 分頁讀取任務（Slice 不額外發出 count 查詢） */
+    Slice<TaskRecord> findSliceBy(Pageable pageable);
+
+    Slice<TaskRecord> findByStatusIgnoreCase(String status, Pageable pageable);
 }
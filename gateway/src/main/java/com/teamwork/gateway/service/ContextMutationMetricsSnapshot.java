@@ -0,0 +1,7 @@
+package com.teamwork.gateway.service;
+
+public record ContextMutationMetricsSnapshot(
+        long attempts,
+        long retries,
+        long exhausted) {
+}
@@ -1,34 +1,46 @@
 package com.teamwork.gateway.service;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.teamwork.gateway.dto.ContextDeleteRequest;
 import com.teamwork.gateway.dto.ContextDeleteResponse;
 import com.teamwork.gateway.entity.ContextDeletionAudit;
+import com.teamwork.gateway.memory.ChatHistoryArchiver;
+import com.teamwork.gateway.memory.ChatMemoryStore;
+import com.teamwork.gateway.memory.ChatMessageCodec;
 import com.teamwork.gateway.memory.ChatMessageDto;
+import com.teamwork.gateway.memory.ConversationNearCache;
+import com.teamwork.gateway.memory.LongTermMemoryService;
 import com.teamwork.gateway.repository.ContextDeletionAuditRepository;
 import com.teamwork.gateway.repository.TaskRecordRepository;
 import lombok.RequiredArgsConstructor;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Locale;
-import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 
 @Service
 @RequiredArgsConstructor
 public class ContextMutationService {
 
-    private static final String CHAT_KEY_PREFIX = "chat:memory:";
     private static final String OPERATOR_ID_SYSTEM = "system";
+    /** 依內容刪除時每次讀取的筆數 */
+    private static final int SCAN_WINDOW_SIZE = 256;
+    /** 讀取後遇到並行改寫時的最多嘗試次數（含第一次） */
+    private static final int MAX_ATTEMPTS = 3;
 
     private final TaskRecordRepository taskRecordRepository;
     private final ContextDeletionAuditRepository contextDeletionAuditRepository;
-    private final StringRedisTemplate redisTemplate;
-
-    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final ChatMemoryStore messageStore;
+    private final ChatMessageCodec messageCodec;
+    private final ConversationNearCache nearCache;
+    private final ChatHistoryArchiver historyArchiver;
+    private final LongTermMemoryService longTermMemoryService;
+    private final LongAdder attempts = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder exhausted = new LongAdder();
 
     public ContextDeleteResponse deleteContext(String taskId, ContextDeleteRequest request) {
         taskRecordRepository.findById(taskId)
@@ -39,40 +51,15 @@ public class ContextMutationService {
         }
 
         String mode = request.mode().trim().toUpperCase(Locale.ROOT);
-        String key = CHAT_KEY_PREFIX + taskId;
-        Long size = redisTemplate.opsForList().size(key);
-        if (size == null || size <= 0) {
-            ContextDeletionAudit audit = saveAudit(taskId, mode, 0, null, null, request.reason());
-            return new ContextDeleteResponse(taskId, false, 0, audit.getId());
-        }
-
-        List<String> rawMessages = redisTemplate.opsForList().range(key, 0, size - 1);
-        if (rawMessages == null || rawMessages.isEmpty()) {
-            ContextDeletionAudit audit = saveAudit(taskId, mode, 0, null, null, request.reason());
-            return new ContextDeleteResponse(taskId, false, 0, audit.getId());
-        }
-
-        List<ChatMessageDto> messages = rawMessages.stream()
-                .map(this::fromJson)
-                .filter(Objects::nonNull)
-                .toList();
-
-        DeletePlan deletePlan = buildDeletePlan(mode, request, messages);
-        List<ChatMessageDto> retained = new ArrayList<>();
-        for (int index = 0; index < messages.size(); index++) {
-            if (!deletePlan.deleteIndexes().contains(index)) {
-                retained.add(messages.get(index));
-            }
-        }
-
-        redisTemplate.delete(key);
-        List<String> retainedJson = retained.stream()
-                .map(this::toJson)
-                .filter(Objects::nonNull)
-                .toList();
-        if (!retainedJson.isEmpty()) {
-            redisTemplate.opsForList().rightPushAll(key, retainedJson);
-        }
+        rehydrateIfArchived(taskId);
+        DeletePlan deletePlan = switch (mode) {
+            case "SINGLE_MESSAGE" -> withRetry(taskId, () -> deleteSingleMessage(taskId, request));
+            case "RANGE" -> withRetry(taskId, () -> deleteRange(taskId, request));
+            case "ALL_HISTORY" -> withRetry(taskId, () -> deleteAllHistory(taskId));
+            case "SUMMARY" -> withRetry(taskId, () -> deleteSummaries(taskId));
+            default -> throw new IllegalArgumentException("Unsupported delete mode: " + mode);
+        };
+        forgetDeletedHistory(taskId, mode, deletePlan);
 
         ContextDeletionAudit audit = saveAudit(
                 taskId,
@@ -85,47 +72,89 @@ public class ContextMutationService {
         return new ContextDeleteResponse(taskId, deletePlan.removedCount() > 0, deletePlan.removedCount(), audit.getId());
     }
 
-    private DeletePlan buildDeletePlan(String mode, ContextDeleteRequest request, List<ChatMessageDto> messages) {
-        return switch (mode) {
-            case "ALL_HISTORY" -> buildAllHistoryDeletePlan(messages.size());
-            case "SUMMARY" -> buildSummaryDeletePlan(messages);
-            case "SINGLE_MESSAGE" -> buildSingleMessageDeletePlan(request, messages.size());
-            case "RANGE" -> buildRangeDeletePlan(request, messages.size());
-            default -> throw new IllegalArgumentException("Unsupported delete mode: " + mode);
-        };
+    public ContextMutationMetricsSnapshot getMetricsSnapshot() {
+        return new ContextMutationMetricsSnapshot(attempts.sum(), retries.sum(), exhausted.sum());
     }
 
-    private DeletePlan buildAllHistoryDeletePlan(int size) {
-        List<Integer> deleteIndexes = new ArrayList<>();
-        for (int index = 0; index < size; index++) {
-            deleteIndexes.add(index);
+    /**
+     * 已封存的對話在 Redis 只剩標記，讀到的筆數為 0；先回填再改寫，否則刪除請求會被當成空對話而略過，
+     * 之後回填時被刪的訊息又會回來。
+     */
+    private void rehydrateIfArchived(String taskId) {
+        ChatMemoryStore.ConversationStats stats = messageStore.getStats(List.of(taskId)).get(taskId);
+        if (stats != null && stats.archived()) {
+            historyArchiver.rehydrate(taskId);
         }
-        return new DeletePlan(deleteIndexes, size, 1, size);
     }
 
-    private DeletePlan buildSummaryDeletePlan(List<ChatMessageDto> messages) {
-        List<Integer> deleteIndexes = new ArrayList<>();
-        for (int index = 0; index < messages.size(); index++) {
-            ChatMessageDto dto = messages.get(index);
-            boolean isSystem = "SYSTEM".equalsIgnoreCase(dto.getType());
-            boolean isCompressedSummary = dto.getContent() != null && dto.getContent().contains("[AUTO_COMPRESSED]");
-            if (isSystem && isCompressedSummary) {
-                deleteIndexes.add(index);
+    /**
+     * 長期記憶索引由 COMPACTED 封存重建，刪除後若不一併處理，被刪的內容仍會被檢索出來放進 system prompt。
+     * ALL_HISTORY 清除整個對話的封存與索引；部分刪除移除內容相同的封存列，並讓索引下次檢索時依封存重建。
+     * 封存先刪、索引後清，避免重建時讀到尚未刪除的封存。
+     */
+    private void forgetDeletedHistory(String taskId, String mode, DeletePlan deletePlan) {
+        if ("ALL_HISTORY".equals(mode)) {
+            historyArchiver.purge(taskId);
+            longTermMemoryService.forget(taskId);
+            return;
+        }
+        if (deletePlan.removedCount() > 0) {
+            historyArchiver.purgeEntries(taskId, deletePlan.removedEntries());
+            longTermMemoryService.forget(taskId);
+        }
+    }
+
+    /**
+     * 每次嘗試都重新讀取快照與結構版本；attempt 回傳 null 代表讀取後對話被其他寫入改寫，
+     * 重新讀取後再試，超過 MAX_ATTEMPTS 才回報衝突。
+     */
+    private DeletePlan withRetry(String taskId, Supplier<DeletePlan> attempt) {
+        for (int i = 0; i < MAX_ATTEMPTS; i++) {
+            attempts.increment();
+            if (i > 0) {
+                retries.increment();
+            }
+            DeletePlan plan = attempt.get();
+            if (plan != null) {
+                return plan;
             }
         }
-        Integer from = deleteIndexes.isEmpty() ? null : deleteIndexes.getFirst() + 1;
-        Integer to = deleteIndexes.isEmpty() ? null : deleteIndexes.getLast() + 1;
-        return new DeletePlan(deleteIndexes, deleteIndexes.size(), from, to);
+        exhausted.increment();
+        throw concurrentModification(taskId);
     }
 
-    private DeletePlan buildSingleMessageDeletePlan(ContextDeleteRequest request, int size) {
+    /**
+     * 刪除單筆：只讀取該位置的元素作為快照，於 Redis 端以 tombstone + LREM 移除，只改動所在 segment。
+     * 位置即 Redis 中的儲存順序（與 getFullContext 的 index 一致）。
+     */
+    private DeletePlan deleteSingleMessage(String taskId, ContextDeleteRequest request) {
+        int size = storedSize(taskId);
+        if (size == 0) {
+            return DeletePlan.EMPTY;
+        }
         Integer index = extractFromIndex(request);
         validateIndex(index, size);
-        int zeroBased = index - 1;
-        return new DeletePlan(List.of(zeroBased), 1, index, index);
+
+        ChatMemoryStore.VersionedRange current = messageStore.readRangeVersioned(taskId, index - 1, 1);
+        if (current.entries().isEmpty()) {
+            return null;
+        }
+        BitSet positions = new BitSet();
+        positions.set(index - 1);
+        if (!applyDeletePositions(taskId, positions, current.entries(), current.version())) {
+            return null;
+        }
+        return new DeletePlan(1, index, index, current.entries());
     }
 
-    private DeletePlan buildRangeDeletePlan(ContextDeleteRequest request, int size) {
+    /**
+     * 刪除連續區段：讀取區段內容（供清除長期記憶中相同的封存），以首尾兩筆與版本作為快照，由 Lua 在 Redis 端剪接。
+     */
+    private DeletePlan deleteRange(String taskId, ContextDeleteRequest request) {
+        int size = storedSize(taskId);
+        if (size == 0) {
+            return DeletePlan.EMPTY;
+        }
         Integer from = extractFromIndex(request);
         Integer to = extractToIndex(request);
         validateIndex(from, size);
@@ -133,11 +162,118 @@ public class ContextMutationService {
         if (from > to) {
             throw new IllegalArgumentException("range.fromIndex must be <= range.toIndex");
         }
-        List<Integer> deleteIndexes = new ArrayList<>();
-        for (int index = from - 1; index <= to - 1; index++) {
-            deleteIndexes.add(index);
+        int count = to - from + 1;
+        ChatMemoryStore.VersionedRange range = messageStore.readRangeVersioned(taskId, from - 1, count);
+        if (range.entries().size() != count) {
+            return null;
+        }
+        boolean applied = messageStore.removeRange(taskId, from - 1, count,
+                range.entries().getFirst(), range.entries().getLast(), tokenDelta(range.entries()), range.version());
+        nearCache.invalidate(taskId);
+        if (!applied) {
+            return null;
+        }
+        return new DeletePlan(count, from, to, range.entries());
+    }
+
+    private DeletePlan deleteAllHistory(String taskId) {
+        int size = storedSize(taskId);
+        if (size == 0) {
+            return DeletePlan.EMPTY;
+        }
+        if (!applyRemoveRange(taskId, 0, size)) {
+            return null;
         }
-        return new DeletePlan(deleteIndexes, deleteIndexes.size(), from, to);
+        return new DeletePlan(size, 1, size, List.of());
+    }
+
+    /**
+     * 刪除壓縮摘要：需逐筆解碼判斷，以固定視窗分批讀取並以 BitSet 記錄命中位置，
+     * 再一次刪除所有命中的位置；記憶體只保留一個視窗與命中的摘要。
+     * 各視窗讀到的版本不同代表掃描途中已被改寫，直接視為衝突重新掃描。
+     */
+    private DeletePlan deleteSummaries(String taskId) {
+        BitSet positions = new BitSet();
+        List<String> expected = new ArrayList<>();
+        long version = ChatMemoryStore.ANY_VERSION;
+        int position = 0;
+        while (true) {
+            ChatMemoryStore.VersionedRange range =
+                    messageStore.readRangeVersioned(taskId, position, SCAN_WINDOW_SIZE);
+            if (version != ChatMemoryStore.ANY_VERSION && range.version() != version) {
+                return null;
+            }
+            version = range.version();
+            List<String> window = range.entries();
+            for (String raw : window) {
+                if (isCompressedSummary(messageCodec.decode(raw))) {
+                    positions.set(position);
+                    expected.add(raw);
+                }
+                position++;
+            }
+            if (window.size() < SCAN_WINDOW_SIZE) {
+                break;
+            }
+        }
+        if (positions.isEmpty()) {
+            return DeletePlan.EMPTY;
+        }
+        if (!applyDeletePositions(taskId, positions, expected, version)) {
+            return null;
+        }
+        return new DeletePlan(positions.cardinality(), positions.nextSetBit(0) + 1, positions.length(), expected);
+    }
+
+    private boolean isCompressedSummary(ChatMessageDto dto) {
+        return dto != null
+                && "SYSTEM".equalsIgnoreCase(dto.getType())
+                && dto.getContent() != null
+                && dto.getContent().contains("[AUTO_COMPRESSED]");
+    }
+
+    private boolean applyRemoveRange(String taskId, int fromIndex, int count) {
+        ChatMemoryStore.VersionedRange first = messageStore.readRangeVersioned(taskId, fromIndex, 1);
+        ChatMemoryStore.VersionedRange last = count == 1
+                ? first
+                : messageStore.readRangeVersioned(taskId, fromIndex + count - 1, 1);
+        if (first.entries().isEmpty() || last.entries().isEmpty() || first.version() != last.version()) {
+            return false;
+        }
+        // 未讀取區段內容，token 計數器交由下一次壓縮檢查整串重算
+        boolean applied = messageStore.removeRange(taskId, fromIndex, count,
+                first.entries().getFirst(), last.entries().getFirst(), null, first.version());
+        nearCache.invalidate(taskId);
+        return applied;
+    }
+
+    private boolean applyDeletePositions(String taskId, BitSet positions, List<String> expected, long version) {
+        boolean applied = messageStore.deletePositions(taskId, positions, expected, tokenDelta(expected), version);
+        nearCache.invalidate(taskId);
+        return applied;
+    }
+
+    /**
+     * 被刪訊息的 token 數取自編碼前綴；任一筆未知時回傳 null，讓計數器待下次重算。
+     */
+    private Long tokenDelta(List<String> deleted) {
+        long tokens = 0L;
+        for (String raw : deleted) {
+            ChatMessageDto dto = messageCodec.decode(raw);
+            if (dto == null || dto.getTokens() == null) {
+                return null;
+            }
+            tokens += dto.getTokens();
+        }
+        return -tokens;
+    }
+
+    private int storedSize(String taskId) {
+        return (int) Math.min(messageStore.size(taskId), Integer.MAX_VALUE);
+    }
+
+    private IllegalStateException concurrentModification(String taskId) {
+        return new IllegalStateException("Context changed concurrently, please retry: " + taskId);
     }
 
     private Integer extractFromIndex(ContextDeleteRequest request) {
@@ -178,22 +314,10 @@ public class ContextMutationService {
         return contextDeletionAuditRepository.save(audit);
     }
 
-    private String toJson(ChatMessageDto dto) {
-        try {
-            return objectMapper.writeValueAsString(dto);
-        } catch (JsonProcessingException e) {
-            return null;
-        }
-    }
-
-    private ChatMessageDto fromJson(String json) {
-        try {
-            return objectMapper.readValue(json, ChatMessageDto.class);
-        } catch (JsonProcessingException e) {
-            return null;
-        }
-    }
-
-    private record DeletePlan(List<Integer> deleteIndexes, int removedCount, Integer fromIndex, Integer toIndex) {
+    /**
+     * @param removedEntries 被刪除的原始資料；ALL_HISTORY 整段清除時不保留
+     */
+    private record DeletePlan(int removedCount, Integer fromIndex, Integer toIndex, List<String> removedEntries) {
+        static final DeletePlan EMPTY = new DeletePlan(0, null, null, List.of());
     }
 }
@@ -1,23 +1,36 @@
 package com.teamwork.gateway.service;
 
+import com.teamwork.gateway.ai.TokenEstimatorRegistry;
 import com.teamwork.gateway.dto.AgentContextDetailResponse;
 import com.teamwork.gateway.dto.AgentContextUsageItem;
+import com.teamwork.gateway.dto.AgentContextUsageResponse;
 import com.teamwork.gateway.dto.ContextMessageItem;
-import com.teamwork.gateway.memory.ContextCompressionService;
 import com.teamwork.gateway.entity.TaskRecord;
+import com.teamwork.gateway.memory.ChatHistoryArchiver;
+import com.teamwork.gateway.memory.ChatMemoryStore;
+import com.teamwork.gateway.memory.ChatMessageCodec;
+import com.teamwork.gateway.memory.ChatMessageDto;
+import com.teamwork.gateway.memory.ContextCompressionService;
 import com.teamwork.gateway.memory.RedisChatMemory;
 import com.teamwork.gateway.repository.TaskRecordRepository;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.RequiredArgsConstructor;
 import org.springframework.ai.chat.messages.AssistantMessage;
 import org.springframework.ai.chat.messages.Message;
 import org.springframework.ai.chat.messages.SystemMessage;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
+import org.springframework.data.domain.SliceImpl;
+import org.springframework.data.domain.Sort;
 import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.time.LocalDateTime;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
 
 @Service
@@ -25,23 +38,44 @@ import java.util.Optional;
 public class ContextQueryService {
 
     private static final String DEFAULT_AGENT_NAME = "master-agent";
+    private static final int MAX_PAGE_SIZE = 200;
+    /** 串流匯出時每次向 Redis 讀取的筆數 */
+    private static final int EXPORT_WINDOW_SIZE = 200;
+    private static final Sort USAGE_SORT = Sort.by(Sort.Order.desc("createdAt"), Sort.Order.asc("id"));
 
     private final TaskRecordRepository taskRecordRepository;
     private final RedisChatMemory redisChatMemory;
+    private final ChatMemoryStore messageStore;
+    private final ChatMessageCodec messageCodec;
+    private final ChatHistoryArchiver historyArchiver;
     private final ContextCompressionService contextCompressionService;
+    private final TokenEstimatorRegistry tokenEstimatorRegistry;
+    private final ObjectMapper objectMapper;
 
     /**
-     * 查詢上下文用量統計，支援 agentName/taskId/status 篩選。
+     * 分頁查詢上下文用量統計，支援 agentName/taskId/status 篩選。
+     * <p>筆數與 token 數取自寫入時維護的對話統計，整頁只需一次 pipeline 與一次 MGET，
+     * 不讀取訊息內容；只有尚無 token 計數的舊對話才退回逐筆估算。</p>
      */
-    public List<AgentContextUsageItem> findUsage(String agentName, String taskId, String status) {
+    public AgentContextUsageResponse findUsage(String agentName, String taskId, String status, int page, int size) {
+        int pageNumber = Math.max(0, page);
+        int pageSize = Math.clamp(size, 1, MAX_PAGE_SIZE);
         if (isSpecified(agentName) && !DEFAULT_AGENT_NAME.equalsIgnoreCase(agentName)) {
-            return Collections.emptyList();
+            return new AgentContextUsageResponse(List.of(), pageNumber, pageSize, false);
         }
 
-        List<TaskRecord> taskRecords = resolveTaskRecords(taskId, status);
-        return taskRecords.stream()
-                .map(this::toUsageItem)
+        Slice<TaskRecord> taskRecords = resolveTaskRecords(taskId, status, PageRequest.of(pageNumber, pageSize, USAGE_SORT));
+        List<String> taskIds = taskRecords.getContent().stream().map(TaskRecord::getId).toList();
+        Map<String, ChatMemoryStore.ConversationStats> stats = messageStore.getStats(taskIds);
+        Map<String, Long> compressionCounts = contextCompressionService.getCompressionCounts(taskIds);
+
+        List<AgentContextUsageItem> items = taskRecords.getContent().stream()
+                .map(taskRecord -> toUsageItem(
+                        taskRecord,
+                        stats.get(taskRecord.getId()),
+                        compressionCounts.getOrDefault(taskRecord.getId(), 0L)))
                 .toList();
+        return new AgentContextUsageResponse(items, pageNumber, pageSize, taskRecords.hasNext());
     }
 
     /**
@@ -71,27 +105,95 @@ public class ContextQueryService {
                 List.of());
     }
 
-    private List<TaskRecord> resolveTaskRecords(String taskId, String status) {
+    /**
+     * 以 NDJSON 串流匯出上下文：每行一筆 {@link ContextMessageItem}，依儲存順序以固定大小視窗分批讀取 Redis，
+     * 讀一批寫一批，記憶體用量只與視窗大小有關。index 為訊息在 Redis 中的位置（1 起算），與刪除 API 一致。
+     * <p>任務不存在時立即拋出例外，讓呼叫端在開始輸出前回應錯誤。</p>
+     * <p>第一個視窗記下結構版本，之後每個視窗版本不同代表匯出途中有刪除或壓縮改寫了位置，
+     * 已輸出的內容無法撤回，因此直接中止串流（回應不會正常結束），呼叫端應重新匯出。</p>
+     *
+     * @param offset 起始位置（0 起算）
+     * @param limit  最多輸出筆數；null 或非正數代表不限制
+     */
+    public StreamingResponseBody streamFullContext(String taskId, long offset, Long limit) {
+        taskRecordRepository.findById(taskId)
+                .orElseThrow(() -> new IllegalArgumentException("Task not found: " + taskId));
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset must be >= 0");
+        }
+        long maxItems = limit == null || limit <= 0 ? Long.MAX_VALUE : limit;
+
+        ChatMemoryStore.ConversationStats stats = messageStore.getStats(List.of(taskId)).get(taskId);
+        if (stats != null && stats.archived()) {
+            historyArchiver.rehydrate(taskId);
+        }
+        redisChatMemory.touch(taskId);
+
+        return outputStream -> {
+            long position = offset;
+            long remaining = maxItems;
+            long version = ChatMemoryStore.ANY_VERSION;
+            while (remaining > 0) {
+                int window = (int) Math.min(EXPORT_WINDOW_SIZE, remaining);
+                ChatMemoryStore.VersionedRange range = messageStore.readRangeVersioned(taskId, position, window);
+                if (version != ChatMemoryStore.ANY_VERSION && range.version() != version) {
+                    throw new IllegalStateException("Context changed during export: " + taskId
+                            + " (position " + position + ")");
+                }
+                version = range.version();
+                List<String> entries = range.entries();
+                for (String raw : entries) {
+                    position++;
+                    ChatMessageDto dto = messageCodec.decode(raw);
+                    if (dto == null) {
+                        continue;
+                    }
+                    String content = Optional.ofNullable(dto.getContent()).orElse("");
+                    ContextMessageItem item = new ContextMessageItem(
+                            (int) Math.min(position, Integer.MAX_VALUE),
+                            resolveRole(dto.getType()),
+                            content,
+                            dto.getTokens() != null ? dto.getTokens() : estimateTokens(content));
+                    outputStream.write(objectMapper.writeValueAsBytes(item));
+                    outputStream.write('\n');
+                }
+                remaining -= entries.size();
+                outputStream.flush();
+                if (entries.size() < window) {
+                    return;
+                }
+            }
+        };
+    }
+
+    private Slice<TaskRecord> resolveTaskRecords(String taskId, String status, Pageable pageable) {
         if (isSpecified(taskId)) {
-            return taskRecordRepository.findById(taskId).stream().toList();
+            List<TaskRecord> records = pageable.getPageNumber() == 0
+                    ? taskRecordRepository.findById(taskId).stream().toList()
+                    : List.of();
+            return new SliceImpl<>(records, pageable, false);
         }
 
         if (isSpecified(status)) {
-            String normalizedStatus = status.trim().toUpperCase(Locale.ROOT);
-            return taskRecordRepository.findAll().stream()
-                    .filter(record -> normalizedStatus.equalsIgnoreCase(record.getStatus()))
-                    .toList();
+            return taskRecordRepository.findByStatusIgnoreCase(status.trim().toUpperCase(Locale.ROOT), pageable);
         }
 
-        return taskRecordRepository.findAll();
+        return taskRecordRepository.findSliceBy(pageable);
     }
 
-    private AgentContextUsageItem toUsageItem(TaskRecord taskRecord) {
-        List<Message> messages = redisChatMemory.get(taskRecord.getId());
-        long estimatedTokens = messages.stream()
-                .map(Message::getText)
-                .mapToLong(this::estimateTokens)
-                .sum();
+    private AgentContextUsageItem toUsageItem(
+            TaskRecord taskRecord, ChatMemoryStore.ConversationStats stats, long compressionCount) {
+        long messageCount = stats == null ? 0L : stats.messageCount();
+        long estimatedTokens = stats == null ? 0L : Math.max(0L, stats.tokens());
+        if (stats != null && stats.tokens() < 0 && stats.messageCount() > 0 && !stats.archived()) {
+            // 升級前的對話尚無 token 計數，只有這類對話需要讀取內容估算
+            List<Message> messages = redisChatMemory.get(taskRecord.getId());
+            messageCount = messages.size();
+            estimatedTokens = messages.stream()
+                    .map(Message::getText)
+                    .mapToLong(this::estimateTokens)
+                    .sum();
+        }
 
         LocalDateTime lastUpdatedAt = taskRecord.getUpdatedAt() != null
                 ? taskRecord.getUpdatedAt()
@@ -100,12 +202,22 @@ public class ContextQueryService {
         return new AgentContextUsageItem(
                 DEFAULT_AGENT_NAME,
                 taskRecord.getId(),
-                messages.size(),
+                messageCount,
                 estimatedTokens,
-            contextCompressionService.getCompressionCount(taskRecord.getId()),
+                compressionCount,
                 lastUpdatedAt);
     }
 
+    private String resolveRole(String type) {
+        if ("SYSTEM".equalsIgnoreCase(type)) {
+            return "system";
+        }
+        if ("ASSISTANT".equalsIgnoreCase(type)) {
+            return "assistant";
+        }
+        return "user";
+    }
+
     private String resolveRole(Message message) {
         if (message instanceof SystemMessage) {
             return "system";
@@ -117,10 +229,7 @@ public class ContextQueryService {
     }
 
     private long estimateTokens(String content) {
-        if (content == null || content.isBlank()) {
-            return 0;
-        }
-        return Math.max(1, (content.length() + 3L) / 4L);
+        return tokenEstimatorRegistry.estimate(content);
     }
 
     private boolean isSpecified(String value) {
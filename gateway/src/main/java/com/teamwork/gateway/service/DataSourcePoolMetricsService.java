@@ -0,0 +1,86 @@
+package com.teamwork.gateway.service;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.sql.DataSource;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hikari 連線池使用率：定期取樣使用中連線數與等待連線的執行緒數，記錄高峰與飽和（有人在等連線）的取樣次數。
+ * 任務執行不持有連線後，高峰應遠低於上限；飽和取樣持續增加代表仍有長交易佔用連線。
+ */
+@Slf4j
+@Service
+public class DataSourcePoolMetricsService {
+
+    private final ObjectProvider<DataSource> dataSourceProvider;
+    private final AtomicInteger peakActive = new AtomicInteger();
+    private final LongAdder samples = new LongAdder();
+    private final LongAdder saturatedSamples = new LongAdder();
+
+    public DataSourcePoolMetricsService(ObjectProvider<DataSource> dataSourceProvider) {
+        this.dataSourceProvider = dataSourceProvider;
+    }
+
+    @Scheduled(
+            initialDelayString = "${gateway.datasource.pool-metrics.sample-interval-ms:5000}",
+            fixedRateString = "${gateway.datasource.pool-metrics.sample-interval-ms:5000}")
+    public void sample() {
+        HikariDataSource hikari = resolveHikari();
+        HikariPoolMXBean pool = hikari == null ? null : hikari.getHikariPoolMXBean();
+        if (pool == null) {
+            return;
+        }
+        samples.increment();
+        peakActive.accumulateAndGet(pool.getActiveConnections(), Math::max);
+        int waiting = pool.getThreadsAwaitingConnection();
+        if (waiting > 0) {
+            saturatedSamples.increment();
+            log.warn("Connection pool saturated. active={}, max={}, waiting={}",
+                    pool.getActiveConnections(), hikari.getMaximumPoolSize(), waiting);
+        }
+    }
+
+    public DataSourcePoolMetricsSnapshot getMetricsSnapshot() {
+        HikariDataSource hikari = resolveHikari();
+        HikariPoolMXBean pool = hikari == null ? null : hikari.getHikariPoolMXBean();
+        if (pool == null) {
+            return DataSourcePoolMetricsSnapshot.UNAVAILABLE;
+        }
+        int active = pool.getActiveConnections();
+        int maximum = hikari.getMaximumPoolSize();
+        return new DataSourcePoolMetricsSnapshot(
+                true,
+                active,
+                pool.getIdleConnections(),
+                pool.getTotalConnections(),
+                maximum,
+                pool.getThreadsAwaitingConnection(),
+                maximum == 0 ? 0.0 : (double) active / maximum,
+                Math.max(peakActive.get(), active),
+                samples.sum(),
+                saturatedSamples.sum());
+    }
+
+    private HikariDataSource resolveHikari() {
+        DataSource dataSource = dataSourceProvider.getIfAvailable();
+        if (dataSource == null) {
+            return null;
+        }
+        if (dataSource instanceof HikariDataSource hikari) {
+            return hikari;
+        }
+        try {
+            return dataSource.isWrapperFor(HikariDataSource.class) ? dataSource.unwrap(HikariDataSource.class) : null;
+        } catch (SQLException ex) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.teamwork.gateway.service;
+
+/**
+ * 資料庫連線池快照；available 為 false 代表目前的 DataSource 不是 Hikari 或連線池尚未啟動。
+ */
+public record DataSourcePoolMetricsSnapshot(
+        boolean available,
+        int active,
+        int idle,
+        int total,
+        int maximum,
+        int threadsAwaitingConnection,
+        double utilization,
+        int peakActive,
+        long samples,
+        long saturatedSamples) {
+
+    static final DataSourcePoolMetricsSnapshot UNAVAILABLE =
+            new DataSourcePoolMetricsSnapshot(false, 0, 0, 0, 0, 0, 0.0, 0, 0L, 0L);
+}
@@ -1,5 +1,6 @@
 package com.teamwork.gateway.service;
 
+import com.teamwork.gateway.ai.TokenEstimatorRegistry;
 import com.teamwork.gateway.dto.ScheduleCreateResponse;
 import com.teamwork.gateway.dto.ScheduleListResponse;
 import com.teamwork.gateway.dto.ScheduleRunItemResponse;
@@ -37,6 +38,7 @@ public class ScheduleService {
     private final ScheduleRuntimeExecutor scheduleRuntimeExecutor;
     private final ScheduleTargetDispatchService scheduleTargetDispatchService;
     private final ScheduleObservabilityService scheduleObservabilityService;
+    private final TokenEstimatorRegistry tokenEstimatorRegistry;
     /** 通知派送引擎（T21），新增後不影響既有排程邏輯 */
     @Nullable
     private final NotificationDispatchService notificationDispatchService;
@@ -246,7 +248,9 @@ public class ScheduleService {
         if (summary == null || summary.isBlank()) {
             return "";
         }
-        int maxChars = Math.max(80, maxTokens * 4);
+        // 以本段文字實際的字元/token 比例換算字元上限，CJK 內容不會因固定 4 chars/token 而超出預算
+        long summaryTokens = Math.max(1L, tokenEstimatorRegistry.estimate(summary));
+        int maxChars = (int) Math.max(80L, (long) maxTokens * summary.length() / summaryTokens);
         if (summary.length() <= maxChars) {
             return summary;
         }
@@ -290,10 +294,7 @@ public class ScheduleService {
     }
 
     private int estimateTokens(String text) {
-        if (text == null || text.isBlank()) {
-            return 0;
-        }
-        return (int) Math.max(1, (text.length() + 3L) / 4L);
+        return (int) Math.min(Integer.MAX_VALUE, tokenEstimatorRegistry.estimate(text));
     }
 
     private TaskSchedule getScheduleOrThrow(String scheduleId) {
@@ -1,6 +1,5 @@
 package com.teamwork.gateway.service;
 
-import com.teamwork.gateway.agent.MasterAgent;
 import com.teamwork.gateway.agent.SkillsCatalogService;
 import com.teamwork.gateway.entity.ScheduleContextSnapshot;
 import com.teamwork.gateway.entity.TaskRecord;
@@ -11,6 +10,7 @@ import com.teamwork.gateway.repository.TaskRecordRepository;
 import com.teamwork.gateway.repository.ToolConfigRepository;
 import lombok.RequiredArgsConstructor;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.util.Locale;
 import java.util.Optional;
@@ -26,11 +26,12 @@ public class ScheduleTargetDispatchService {
     private final ToolConfigRepository toolConfigRepository;
     private final SkillsCatalogService skillsCatalogService;
     private final TaskRecordRepository taskRecordRepository;
-    private final MasterAgent masterAgent;
+    private final TaskQueueService taskQueueService;
 
     /**
-     * 依 schedule.targetType 分派執行目標。
+     * 依 schedule.targetType 分派執行目標。任務與佇列項目在同一交易寫入，不會只留下任務而永遠不被派發。
      */
+    @Transactional
     public DispatchResult dispatch(TaskSchedule schedule, Optional<ScheduleContextSnapshot> previousSnapshot) {
         String targetType = normalize(schedule.getTargetType());
         return switch (targetType) {
@@ -57,7 +58,7 @@ public class ScheduleTargetDispatchService {
         task.setInputPayload(buildScheduleInput(schedule, previousSnapshot, "AGENT", null));
         TaskRecord saved = taskRecordRepository.save(task);
 
-        masterAgent.processTask(saved.getId(), saved.getInputPayload());
+        taskQueueService.enqueue(saved);
 
         return new DispatchResult(
                 saved.getId(),
@@ -82,7 +83,7 @@ public class ScheduleTargetDispatchService {
         task.setInputPayload(buildScheduleInput(schedule, previousSnapshot, "TOOL", tool.getName()));
         TaskRecord saved = taskRecordRepository.save(task);
 
-        masterAgent.processTask(saved.getId(), saved.getInputPayload());
+        taskQueueService.enqueue(saved);
 
         return new DispatchResult(
                 saved.getId(),
@@ -106,7 +107,7 @@ public class ScheduleTargetDispatchService {
         task.setInputPayload(buildScheduleInput(schedule, previousSnapshot, "SKILL", skillContent));
         TaskRecord saved = taskRecordRepository.save(task);
 
-        masterAgent.processTask(saved.getId(), saved.getInputPayload());
+        taskQueueService.enqueue(saved);
 
         return new DispatchResult(
                 saved.getId(),
@@ -0,0 +1,15 @@
+package com.teamwork.gateway.service;
+
+public record TaskQueueMetricsSnapshot(
+        String nodeId,
+        int inFlight,
+        long enqueued,
+        long claimed,
+        long redelivered,
+        long completed,
+        long released,
+        long exhausted,
+        long heartbeats,
+        long claimErrors,
+        long backfilled) {
+}
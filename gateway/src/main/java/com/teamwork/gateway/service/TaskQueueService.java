@@ -0,0 +1,357 @@
+package com.teamwork.gateway.service;
+
+import com.teamwork.gateway.agent.MasterAgent;
+import com.teamwork.gateway.entity.TaskQueueEntry;
+import com.teamwork.gateway.entity.TaskRecord;
+import com.teamwork.gateway.repository.TaskQueueRepository;
+import com.teamwork.gateway.repository.TaskRecordRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionOperations;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+
+/**
+ * 持久化任務佇列：取代直接呼叫 {@link MasterAgent#processTask} 的 fire-and-forget 派發。
+ * <p>建立任務時在同一交易寫入 {@code task_queue}，提交後喚醒本節點的派發執行緒；派發執行緒以
+ * {@code FOR UPDATE SKIP LOCKED} 批次認領（多個節點共用同一佇列、互不阻塞），取得 lease 後交給 MasterAgent 執行。
+ * 執行期間由專屬的心跳執行緒定期延長 lease（不與其他 {@code @Scheduled} 工作共用排程器，不會被長時間的 sweep 延誤）；
+ * 節點當機或部署中斷時 lease 逾期（visibility timeout），由其他節點重新認領。</p>
+ * <p>啟動時補上沒有佇列項目的 PENDING 任務（升級前建立、或舊版非交易寫入時只存了任務），避免永遠不被派發。</p>
+ * <p>語意為 at-least-once：執行結束才刪除佇列項目，重新認領到已是終態的任務直接移除；
+ * 認領次數超過 max-attempts 的任務標記為 FAILED。關閉時先停止認領，讓 MasterAgent 把尚未開始的任務退回佇列。</p>
+ */
+@Slf4j
+@Service
+public class TaskQueueService implements SmartLifecycle {
+
+    private static final Set<String> TERMINAL_STATUSES = Set.of("COMPLETED", "FAILED", "CANCELLED");
+
+    private final TaskQueueRepository taskQueueRepository;
+    private final TaskRecordRepository taskRecordRepository;
+    private final MasterAgent masterAgent;
+    private final TransactionOperations transactionOperations;
+    private final String nodeId;
+    private final int batchSize;
+    private final int maxInFlight;
+    private final long leaseMillis;
+    private final long heartbeatIntervalMillis;
+    private final long pollIntervalMillis;
+    private final int maxAttempts;
+    private final long retryDelayMillis;
+    private final LongSupplier clock;
+
+    /** 本節點持有 lease 且尚未結束的任務 */
+    private final Set<String> held = ConcurrentHashMap.newKeySet();
+    private final Semaphore wakeUp = new Semaphore(0);
+    private volatile boolean running;
+    private Thread dispatcher;
+    private Thread heartbeater;
+
+    private final LongAdder enqueued = new LongAdder();
+    private final LongAdder claimed = new LongAdder();
+    private final LongAdder redelivered = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder released = new LongAdder();
+    private final LongAdder exhausted = new LongAdder();
+    private final LongAdder heartbeats = new LongAdder();
+    private final LongAdder claimErrors = new LongAdder();
+    private final LongAdder backfilled = new LongAdder();
+
+    @Autowired
+    public TaskQueueService(
+            TaskQueueRepository taskQueueRepository,
+            TaskRecordRepository taskRecordRepository,
+            MasterAgent masterAgent,
+            PlatformTransactionManager transactionManager,
+            @Value("${gateway.task-queue.node-id:}") String nodeId,
+            @Value("${gateway.task-queue.batch-size:20}") int batchSize,
+            @Value("${gateway.task-queue.max-in-flight:200}") int maxInFlight,
+            @Value("${gateway.task-queue.lease-ms:60000}") long leaseMillis,
+            @Value("${gateway.task-queue.heartbeat-interval-ms:15000}") long heartbeatIntervalMillis,
+            @Value("${gateway.task-queue.poll-interval-ms:1000}") long pollIntervalMillis,
+            @Value("${gateway.task-queue.max-attempts:3}") int maxAttempts,
+            @Value("${gateway.task-queue.retry-delay-ms:5000}") long retryDelayMillis) {
+        this(taskQueueRepository, taskRecordRepository, masterAgent, new TransactionTemplate(transactionManager),
+                nodeId, batchSize, maxInFlight, leaseMillis, heartbeatIntervalMillis, pollIntervalMillis,
+                maxAttempts, retryDelayMillis, System::currentTimeMillis);
+    }
+
+    /** 測試用建構子：可替換交易與時鐘。 */
+    TaskQueueService(
+            TaskQueueRepository taskQueueRepository,
+            TaskRecordRepository taskRecordRepository,
+            MasterAgent masterAgent,
+            TransactionOperations transactionOperations,
+            String nodeId,
+            int batchSize,
+            int maxInFlight,
+            long leaseMillis,
+            long heartbeatIntervalMillis,
+            long pollIntervalMillis,
+            int maxAttempts,
+            long retryDelayMillis,
+            LongSupplier clock) {
+        this.taskQueueRepository = taskQueueRepository;
+        this.taskRecordRepository = taskRecordRepository;
+        this.masterAgent = masterAgent;
+        this.transactionOperations = transactionOperations;
+        this.nodeId = nodeId == null || nodeId.isBlank() ? UUID.randomUUID().toString() : nodeId.trim();
+        this.batchSize = Math.max(1, batchSize);
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.leaseMillis = Math.max(1000L, leaseMillis);
+        this.heartbeatIntervalMillis = Math.clamp(heartbeatIntervalMillis, 100L, this.leaseMillis / 2);
+        this.pollIntervalMillis = Math.max(10L, pollIntervalMillis);
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.retryDelayMillis = Math.max(0L, retryDelayMillis);
+        this.clock = clock;
+    }
+
+    /**
+     * 將已儲存的任務放入佇列。呼叫端若在交易內，佇列項目與任務一起提交，提交後才喚醒派發。
+     */
+    @Transactional
+    public void enqueue(TaskRecord task) {
+        TaskQueueEntry entry = new TaskQueueEntry();
+        entry.setTaskId(task.getId());
+        entry.setAvailableAt(clock.getAsLong());
+        taskQueueRepository.save(entry);
+        enqueued.increment();
+
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    wakeUp.release();
+                }
+            });
+        } else {
+            wakeUp.release();
+        }
+    }
+
+    /**
+     * 認領一批任務並交給 MasterAgent，回傳派發的筆數。本節點執行中的任務達 max-in-flight 時不認領。
+     */
+    int dispatchOnce() {
+        int capacity = Math.min(batchSize, maxInFlight - held.size());
+        if (capacity <= 0) {
+            return 0;
+        }
+        long now = clock.getAsLong();
+        List<TaskQueueEntry> entries = transactionOperations.execute(status -> {
+            List<String> taskIds = taskQueueRepository.lockClaimable(now, capacity);
+            if (taskIds.isEmpty()) {
+                return List.of();
+            }
+            taskQueueRepository.lease(taskIds, nodeId, now + leaseMillis);
+            return taskQueueRepository.findAllById(taskIds);
+        });
+        if (entries == null || entries.isEmpty()) {
+            return 0;
+        }
+
+        Map<String, TaskRecord> records = taskRecordRepository.findAllById(
+                        entries.stream().map(TaskQueueEntry::getTaskId).toList())
+                .stream()
+                .collect(Collectors.toMap(TaskRecord::getId, Function.identity()));
+        int dispatched = 0;
+        for (TaskQueueEntry entry : entries) {
+            claimed.increment();
+            if (entry.getAttempts() > 1) {
+                redelivered.increment();
+            }
+            if (dispatch(entry, records.get(entry.getTaskId()))) {
+                dispatched++;
+            }
+        }
+        return dispatched;
+    }
+
+    /**
+     * 補上沒有佇列項目的 PENDING 任務，回傳補上的筆數；多個節點同時啟動時以主鍵衝突略過重複者。
+     */
+    int backfillPendingTasks() {
+        int inserted = taskQueueRepository.enqueueOrphanedPending(clock.getAsLong());
+        if (inserted > 0) {
+            backfilled.add(inserted);
+            log.info("Enqueued pending tasks missing from task queue. nodeId={}, tasks={}", nodeId, inserted);
+        }
+        return inserted;
+    }
+
+    /**
+     * 心跳：延長本節點持有的 lease，間隔最多為 lease-ms 的一半。
+     */
+    void heartbeat() {
+        if (held.isEmpty()) {
+            return;
+        }
+        try {
+            taskQueueRepository.renewLeases(Set.copyOf(held), nodeId, clock.getAsLong() + leaseMillis);
+            heartbeats.increment();
+        } catch (Exception ex) {
+            log.warn("Task queue heartbeat failed. nodeId={}, held={}", nodeId, held.size(), ex);
+        }
+    }
+
+    public TaskQueueMetricsSnapshot getMetricsSnapshot() {
+        return new TaskQueueMetricsSnapshot(
+                nodeId,
+                held.size(),
+                enqueued.sum(),
+                claimed.sum(),
+                redelivered.sum(),
+                completed.sum(),
+                released.sum(),
+                exhausted.sum(),
+                heartbeats.sum(),
+                claimErrors.sum(),
+                backfilled.sum());
+    }
+
+    /** 尚未被任何節點認領的任務數（佇列深度） */
+    public long countReady() {
+        return taskQueueRepository.countByLeaseOwnerIsNull();
+    }
+
+    @Override
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        try {
+            backfillPendingTasks();
+        } catch (Exception ex) {
+            log.warn("Task queue backfill failed. nodeId={}", nodeId, ex);
+        }
+        heartbeater = Thread.ofPlatform().daemon().name("task-queue-heartbeat").start(this::heartbeatLoop);
+        dispatcher = Thread.ofVirtual().name("task-queue-dispatcher").start(this::dispatchLoop);
+        log.info("Task queue dispatcher started. nodeId={}", nodeId);
+    }
+
+    /**
+     * 停止認領；已派發的任務由 TaskAdmissionController 與 executor 的 drain 處理，
+     * 未結束的任務 lease 逾期後由其他節點接手。
+     */
+    @Override
+    public synchronized void stop() {
+        running = false;
+        wakeUp.release();
+        if (heartbeater != null) {
+            heartbeater.interrupt();
+        }
+        if (dispatcher != null) {
+            try {
+                dispatcher.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        log.info("Task queue dispatcher stopped. nodeId={}, inFlight={}", nodeId, held.size());
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    private void dispatchLoop() {
+        while (running) {
+            int dispatched = 0;
+            try {
+                dispatched = dispatchOnce();
+            } catch (Exception ex) {
+                claimErrors.increment();
+                log.warn("Task queue claim failed. nodeId={}", nodeId, ex);
+            }
+            if (dispatched > 0) {
+                continue;
+            }
+            try {
+                wakeUp.tryAcquire(pollIntervalMillis, TimeUnit.MILLISECONDS);
+                wakeUp.drainPermits();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void heartbeatLoop() {
+        while (running) {
+            try {
+                Thread.sleep(heartbeatIntervalMillis);
+            } catch (InterruptedException ex) {
+                return;
+            }
+            heartbeat();
+        }
+    }
+
+    private boolean dispatch(TaskQueueEntry entry, TaskRecord record) {
+        String taskId = entry.getTaskId();
+        if (record == null || TERMINAL_STATUSES.contains(record.getStatus())) {
+            // 任務已刪除，或前一個持有者已執行完但來不及移除佇列項目
+            taskQueueRepository.complete(taskId, nodeId);
+            return false;
+        }
+        if (entry.getAttempts() > maxAttempts) {
+            log.error("Task exceeded max queue attempts. taskId={}, attempts={}", taskId, entry.getAttempts());
+            record.setStatus("FAILED");
+            taskRecordRepository.save(record);
+            taskQueueRepository.complete(taskId, nodeId);
+            exhausted.increment();
+            return false;
+        }
+
+        held.add(taskId);
+        CompletableFuture<Void> execution;
+        try {
+            execution = masterAgent.processTask(taskId, record.getInputPayload());
+        } catch (RuntimeException ex) {
+            execution = CompletableFuture.failedFuture(ex);
+        }
+        execution.whenComplete((ignored, error) -> finish(taskId, error));
+        return true;
+    }
+
+    private void finish(String taskId, Throwable error) {
+        try {
+            if (error == null) {
+                taskQueueRepository.complete(taskId, nodeId);
+                completed.increment();
+            } else {
+                log.warn("Task returned to queue. taskId={}, reason={}", taskId, error.toString());
+                taskQueueRepository.release(taskId, nodeId, clock.getAsLong() + retryDelayMillis);
+                released.increment();
+            }
+        } catch (Exception ex) {
+            // lease 逾期後會由其他節點重新認領
+            log.warn("Failed to settle task queue entry. taskId={}", taskId, ex);
+        } finally {
+            held.remove(taskId);
+            wakeUp.release();
+        }
+    }
+}
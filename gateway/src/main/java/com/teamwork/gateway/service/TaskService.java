@@ -1,6 +1,5 @@
 package com.teamwork.gateway.service;
 
-import com.teamwork.gateway.agent.MasterAgent;
 import com.teamwork.gateway.config.IdentityPolicyProperties;
 import com.teamwork.gateway.dto.TaskRequest;
 import com.teamwork.gateway.entity.AccountToolPermission;
@@ -31,10 +30,10 @@ public class TaskService {
     private final UserAccountRepository userAccountRepository;
     private final AccountToolPermissionRepository accountToolPermissionRepository;
     private final ToolConfigRepository toolConfigRepository;
-    private final MasterAgent masterAgent;
+    private final TaskQueueService taskQueueService;
 
     /**
-     * 建立新任務並觸發非同步執行。
+     * 建立新任務並放入任務佇列，交易提交後非同步執行。
      */
     @Transactional
     public TaskRecord createNewTask(TaskRequest request) {
@@ -51,8 +50,8 @@ public class TaskService {
         TaskRecord savedTask = taskRecordRepository.save(task);
         log.info("Task created successfully with ID: {}", savedTask.getId());
 
-        // 觸發 MasterAgent 進行非同步任務處理
-        masterAgent.processTask(savedTask.getId(), request.getInputPayload());
+        // 與任務同一交易放入持久化佇列，提交後由派發執行緒交給 MasterAgent
+        taskQueueService.enqueue(savedTask);
 
         return savedTask;
     }
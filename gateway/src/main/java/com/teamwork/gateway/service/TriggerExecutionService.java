@@ -1,6 +1,5 @@
 package com.teamwork.gateway.service;
 
-import com.teamwork.gateway.agent.MasterAgent;
 import com.teamwork.gateway.dto.WebhookTriggerRequest;
 import com.teamwork.gateway.dto.WebhookTriggerResponse;
 import com.teamwork.gateway.entity.TaskRecord;
@@ -25,7 +24,7 @@ public class TriggerExecutionService {
     private final TaskTriggerRepository taskTriggerRepository;
     private final AgentProfileRepository agentProfileRepository;
     private final TaskRecordRepository taskRecordRepository;
-    private final MasterAgent masterAgent;
+    private final TaskQueueService taskQueueService;
     private final WebhookSecurityService webhookSecurityService;
     /** 通知派送服務，可選注入（避免既有測試破壞）*/
     @Nullable
@@ -79,7 +78,7 @@ public class TriggerExecutionService {
         taskRecord.setStatus("PENDING");
 
         TaskRecord saved = taskRecordRepository.save(taskRecord);
-        masterAgent.processTask(saved.getId(), saved.getInputPayload());
+        taskQueueService.enqueue(saved);
 
         // 若觸發器設定了通知策略，則派送通知
         if (notificationDispatchService != null && trigger.getNotificationPolicyId() != null) {
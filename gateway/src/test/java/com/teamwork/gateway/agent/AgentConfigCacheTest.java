@@ -0,0 +1,134 @@
+package com.teamwork.gateway.agent;
+
+import com.teamwork.gateway.ai.ChatModelFactory;
+import com.teamwork.gateway.entity.AgentProfile;
+import com.teamwork.gateway.entity.AiModel;
+import com.teamwork.gateway.event.AgentConfigChangedEvent;
+import com.teamwork.gateway.repository.AgentProfileRepository;
+import com.teamwork.gateway.repository.AiModelRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.redis.connection.DefaultMessage;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class AgentConfigCacheTest {
+
+    @Mock
+    private AiModelRepository aiModelRepository;
+
+    @Mock
+    private AgentProfileRepository agentProfileRepository;
+
+    @Mock
+    private ChatModelFactory chatModelFactory;
+
+    @Mock
+    private StringRedisTemplate redisTemplate;
+
+    private final AtomicLong now = new AtomicLong(1_000_000L);
+    private AgentConfigCache cache;
+
+    @BeforeEach
+    void setUp() {
+        cache = new AgentConfigCache(aiModelRepository, agentProfileRepository, chatModelFactory, redisTemplate,
+                60_000L, 100, now::get);
+    }
+
+    @Test
+    void resolveModel_ShouldPreferProfileDefaultModelAndServeFromCache() {
+        AiModel first = model("model-1");
+        AiModel preferred = model("model-2");
+        when(aiModelRepository.findByActiveTrue()).thenReturn(List.of(first, preferred));
+        when(agentProfileRepository.findById("profile-1")).thenReturn(Optional.of(profile("profile-1", "model-2")));
+        when(agentProfileRepository.findById("profile-2")).thenReturn(Optional.of(profile("profile-2", "inactive")));
+
+        assertThat(cache.resolveModel("profile-1")).isSameAs(preferred);
+        assertThat(cache.resolveModel("profile-1")).isSameAs(preferred);
+        assertThat(cache.resolveModel("profile-2")).isSameAs(first);
+        assertThat(cache.resolveModel(null)).isSameAs(first);
+
+        verify(aiModelRepository, times(1)).findByActiveTrue();
+        verify(agentProfileRepository, times(1)).findById("profile-1");
+        assertThat(cache.getMetricsSnapshot().loads()).isEqualTo(3L);
+    }
+
+    @Test
+    void resolveModel_ShouldThrowWhenNoActiveModel() {
+        when(aiModelRepository.findByActiveTrue()).thenReturn(List.of());
+
+        assertThatThrownBy(() -> cache.resolveModel(null))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("No active AI model");
+    }
+
+    @Test
+    void findProfile_ShouldReloadAfterTtl() {
+        when(agentProfileRepository.findById("profile-1")).thenReturn(Optional.empty());
+
+        assertThat(cache.findProfile("profile-1")).isEmpty();
+        assertThat(cache.findProfile("profile-1")).isEmpty();
+        now.addAndGet(60_000L);
+        assertThat(cache.findProfile("profile-1")).isEmpty();
+
+        verify(agentProfileRepository, times(2)).findById("profile-1");
+    }
+
+    @Test
+    void onAgentConfigChanged_ShouldInvalidateAndBroadcast() {
+        when(aiModelRepository.findByActiveTrue()).thenReturn(List.of(model("model-1")));
+        cache.resolveModel(null);
+
+        cache.onAgentConfigChanged(new AgentConfigChangedEvent(this, AgentConfigChangedEvent.AI_MODEL, "model-1"));
+        cache.resolveModel(null);
+
+        verify(aiModelRepository, times(2)).findByActiveTrue();
+        verify(chatModelFactory).invalidate("model-1");
+        verify(redisTemplate).convertAndSend(AgentConfigCache.CHANNEL, "AI_MODEL:model-1");
+    }
+
+    @Test
+    void onMessage_ShouldInvalidateProfileFromOtherNode() {
+        when(agentProfileRepository.findById("profile-1")).thenReturn(Optional.of(profile("profile-1", null)));
+        cache.findProfile("profile-1");
+
+        cache.onMessage(new DefaultMessage(
+                AgentConfigCache.CHANNEL.getBytes(StandardCharsets.UTF_8),
+                "AGENT_PROFILE:profile-1".getBytes(StandardCharsets.UTF_8)), null);
+        cache.findProfile("profile-1");
+
+        verify(agentProfileRepository, times(2)).findById("profile-1");
+        assertThat(cache.getMetricsSnapshot().remoteInvalidations()).isEqualTo(1L);
+    }
+
+    private static AiModel model(String id) {
+        AiModel model = new AiModel();
+        model.setId(id);
+        model.setName(id);
+        model.setProvider("OPENAI");
+        model.setActive(true);
+        return model;
+    }
+
+    private static AgentProfile profile(String id, String defaultModelId) {
+        AgentProfile profile = new AgentProfile();
+        profile.setId(id);
+        profile.setName(id);
+        profile.setDefaultModelId(defaultModelId);
+        return profile;
+    }
+}
@@ -1,5 +1,6 @@
 package com.teamwork.gateway.agent;
 
+import com.teamwork.gateway.exception.TaskAdmissionRejectedException;
 import org.junit.jupiter.api.Test;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -31,6 +32,7 @@ class AgentObservabilityServiceTest {
         assertThat(service.classifyError(new IllegalStateException("x"))).isEqualTo("CONFIGURATION");
         assertThat(service.classifyError(new RuntimeException("timeout while calling model"))).isEqualTo("TIMEOUT");
         assertThat(service.classifyError(new RuntimeException("random runtime"))).isEqualTo("RUNTIME");
+        assertThat(service.classifyError(new TaskAdmissionRejectedException("Task admission timeout"))).isEqualTo("ADMISSION");
         assertThat(service.classifyError(new Exception("x"))).isEqualTo("INTERNAL");
         assertThat(service.classifyError(null)).isEqualTo("UNKNOWN");
     }
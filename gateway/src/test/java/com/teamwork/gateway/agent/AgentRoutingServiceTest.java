@@ -2,7 +2,6 @@ package com.teamwork.gateway.agent;
 
 import com.teamwork.gateway.entity.AgentProfile;
 import com.teamwork.gateway.entity.AiModel;
-import com.teamwork.gateway.repository.AgentProfileRepository;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.InjectMocks;
@@ -26,7 +25,7 @@ class AgentRoutingServiceTest {
     private SubAgentRouter subAgentRouter;
 
     @Mock
-    private AgentProfileRepository agentProfileRepository;
+    private AgentConfigCache agentConfigCache;
 
     @Mock
     private UnifiedAgentRegistry unifiedAgentRegistry;
@@ -65,7 +64,7 @@ class AgentRoutingServiceTest {
 
         when(subAgentDescriptorRepository.findEnabledDescriptors()).thenReturn(List.of(descriptor));
         when(subAgentRouter.route("hello", chatModel, List.of(descriptor))).thenReturn(decision);
-        when(agentProfileRepository.findById("profile-1")).thenReturn(Optional.empty());
+        when(agentConfigCache.findProfile("profile-1")).thenReturn(Optional.empty());
         when(unifiedAgentRegistry.resolve(org.mockito.ArgumentMatchers.any(AgentExecutionContext.class)))
                 .thenReturn(unifiedAgentProvider);
 
@@ -113,7 +112,7 @@ class AgentRoutingServiceTest {
 
         when(subAgentDescriptorRepository.findEnabledDescriptors()).thenReturn(List.of(descriptor));
         when(subAgentRouter.route(payload, chatModel, List.of(descriptor))).thenReturn(decision);
-        when(agentProfileRepository.findById("profile-2")).thenReturn(Optional.of(profile));
+        when(agentConfigCache.findProfile("profile-2")).thenReturn(Optional.of(profile));
         when(unifiedAgentRegistry.resolve(org.mockito.ArgumentMatchers.any(AgentExecutionContext.class)))
                 .thenReturn(unifiedAgentProvider);
 
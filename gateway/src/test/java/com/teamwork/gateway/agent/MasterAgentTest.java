@@ -4,20 +4,24 @@ import com.teamwork.gateway.entity.TaskRecord;
 import com.teamwork.gateway.repository.TaskRecordRepository;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InOrder;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.context.ApplicationEventPublisher;
 import com.teamwork.gateway.event.TaskStatusChangeEvent;
+import com.teamwork.gateway.exception.TaskAdmissionRejectedException;
 import java.util.Optional;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import com.teamwork.gateway.ai.ChatModelFactory;
 import com.teamwork.gateway.entity.AiModel;
-import com.teamwork.gateway.repository.AiModelRepository;
 import org.springframework.ai.chat.model.ChatModel;
 import org.mockito.ArgumentCaptor;
+import org.springframework.transaction.annotation.Transactional;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.*;
 
@@ -31,7 +35,7 @@ class MasterAgentTest {
     private ApplicationEventPublisher eventPublisher;
 
     @Mock
-    private AiModelRepository aiModelRepository;
+    private AgentConfigCache agentConfigCache;
 
     @Mock
     private ChatModelFactory chatModelFactory;
@@ -42,6 +46,9 @@ class MasterAgentTest {
     @Mock
     private AgentObservabilityService agentObservabilityService;
 
+    @Mock
+    private TaskAdmissionController taskAdmissionController;
+
     @Mock
     private UnifiedAgentProvider unifiedAgentProvider;
 
@@ -51,6 +58,14 @@ class MasterAgentTest {
     @InjectMocks
     private MasterAgent masterAgent;
 
+    @Test
+    void processTask_ShouldNotHoldTransactionAcrossExecution() throws NoSuchMethodException {
+        // LLM 執行期間不得持有資料庫連線：只允許 repository 各自的短交易
+        assertThat(MasterAgent.class.getMethod("processTask", String.class, String.class)
+                .isAnnotationPresent(Transactional.class)).isFalse();
+        assertThat(MasterAgent.class.isAnnotationPresent(Transactional.class)).isFalse();
+    }
+
     @Test
     void processTask_WhenTaskNotFound_ShouldAbort() {
         // Arrange
@@ -65,7 +80,27 @@ class MasterAgentTest {
     }
 
     @Test
-    void processTask_WhenTaskExists_ShouldCompleteSuccessfully() {
+    void processTask_WhenAdmissionClosedForShutdown_ShouldReturnTaskToQueue() throws Exception {
+        TaskRecord mockRecord = new TaskRecord();
+        when(taskRecordRepository.findById("task-123")).thenReturn(Optional.of(mockRecord));
+        AiModel mockAiModel = new AiModel();
+        mockAiModel.setActive(true);
+        when(agentConfigCache.resolveModel(any())).thenReturn(mockAiModel);
+        when(taskAdmissionController.acquire(any(), any()))
+                .thenThrow(new TaskAdmissionRejectedException("shutting down", true));
+
+        CompletableFuture<Void> result = masterAgent.processTask("task-123", "payload");
+
+        assertThat(result).isCompletedExceptionally();
+        assertThat(mockRecord.getStatus()).isEqualTo("PENDING");
+        // 未取得名額前不標記 RUNNING：只保存一次（退回 PENDING）
+        verify(taskRecordRepository, times(1)).save(mockRecord);
+        verify(chatModelFactory, never()).createChatModel(any());
+        verify(agentObservabilityService, never()).recordTaskFailed(any(), any());
+    }
+
+    @Test
+    void processTask_WhenTaskExists_ShouldCompleteSuccessfully() throws Exception {
         // Arrange
         TaskRecord mockRecord = new TaskRecord();
         // Simulate DB finding the task
@@ -76,9 +111,11 @@ class MasterAgentTest {
         mockAiModel.setName("mock-model");
         mockAiModel.setProvider("OPENAI");
         mockAiModel.setActive(true);
-        when(aiModelRepository.findAll()).thenReturn(List.of(mockAiModel));
+        when(agentConfigCache.resolveModel(any())).thenReturn(mockAiModel);
 
         when(chatModelFactory.createChatModel(mockAiModel)).thenReturn(chatModel);
+        TaskAdmissionController.Permit permit = mock(TaskAdmissionController.Permit.class);
+        when(taskAdmissionController.acquire(any(), any())).thenReturn(permit);
         SubAgentDescriptor selected = new SubAgentDescriptor(
             "general-researcher",
             "desc",
@@ -119,6 +156,10 @@ class MasterAgentTest {
 
         // Assert
         verify(taskRecordRepository, atLeastOnce()).save(mockRecord);
+        InOrder admission = inOrder(taskAdmissionController, eventPublisher, permit);
+        admission.verify(taskAdmissionController).acquire(any(), any());
+        admission.verify(eventPublisher).publishEvent(any(TaskStatusChangeEvent.class));
+        admission.verify(permit).close();
         // Ensure final status is COMPLETED
         assert mockRecord.getStatus().equals("COMPLETED");
 
@@ -139,12 +180,15 @@ class MasterAgentTest {
     }
 
     @Test
-    void processTask_WhenExceptionOccurs_ShouldMarkFailed() {
+    void processTask_WhenExceptionOccurs_ShouldMarkFailed() throws Exception {
         // Arrange
         TaskRecord mockRecord = new TaskRecord();
         mockRecord.setId("task-456");
         // Simulate DB finding the task
         when(taskRecordRepository.findById("task-456")).thenReturn(Optional.of(mockRecord));
+        when(agentConfigCache.resolveModel(any())).thenReturn(new AiModel());
+        TaskAdmissionController.Permit permit = mock(TaskAdmissionController.Permit.class);
+        when(taskAdmissionController.acquire(any(), any())).thenReturn(permit);
         // Simulate a DB error ONLY on the first try (when setting to RUNNING)
         // On the second save attempt inside catch block (setting to FAILED), it should
         // succeed.
@@ -161,6 +205,7 @@ class MasterAgentTest {
         // Normalmente first save throws, so catch block runs, changing status to
         // FAILED and calls save again.
         assert mockRecord.getStatus().equals("FAILED");
+        verify(permit).close();
 
         // Verify that event was published correctly
         verify(eventPublisher, atLeastOnce()).publishEvent(any(TaskStatusChangeEvent.class));
@@ -190,7 +235,7 @@ class MasterAgentTest {
         testThread.join();
 
         // Assert
-        verify(taskRecordRepository, atLeast(2)).save(mockRecord);
+        verify(taskRecordRepository, atLeastOnce()).save(mockRecord);
         assert mockRecord.getStatus().equals("FAILED");
         verify(eventPublisher, atLeastOnce()).publishEvent(any(TaskStatusChangeEvent.class));
         verify(agentObservabilityService).recordTaskStarted("task-789");
@@ -0,0 +1,92 @@
+package com.teamwork.gateway.agent;
+
+import com.teamwork.gateway.ai.TokenEstimatorRegistry;
+import com.teamwork.gateway.entity.AiModel;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.tool.ToolCallback;
+import org.springframework.ai.tool.ToolCallbackProvider;
+import org.springframework.ai.tool.annotation.Tool;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PromptPrefixCacheTest {
+
+    private final AtomicLong now = new AtomicLong(1_000_000L);
+    private final PromptPrefixCache cache =
+            new PromptPrefixCache(new TokenEstimatorRegistry("heuristic"), 8, 8, 300_000L, now::get);
+    private final Object tools = new SampleTools();
+
+    @Test
+    void resolve_WhenLaterTaskSendsSamePrefixToSameModel_ShouldReusePrefixAndCountCachedTokens() {
+        AtomicInteger built = new AtomicInteger();
+        Supplier<ToolCallbackProvider> subAgentTools = () -> {
+            built.incrementAndGet();
+            return () -> new ToolCallback[0];
+        };
+        AiModel model = model("m1");
+
+        PromptPrefix first = cache.resolve(
+                "t1", model, "You are a helpful agent.", new Object[]{tools}, "k", subAgentTools);
+        now.addAndGet(60_000L);
+        PromptPrefix second = cache.resolve(
+                "t2", model, new String("You are a helpful agent."), new Object[]{tools}, "k", subAgentTools);
+
+        assertThat(second).isSameAs(first);
+        assertThat(built).hasValue(1);
+        assertThat(first.systemTokens()).isPositive();
+        assertThat(first.toolTokens()).isPositive();
+        assertThat(cache.getTaskMetrics("t1")).isEqualTo(new PromptPrefixTaskMetrics(1L, 0L, first.totalTokens()));
+        assertThat(cache.getTaskMetrics("t2")).isEqualTo(new PromptPrefixTaskMetrics(1L, first.totalTokens(), 0L));
+        assertThat(cache.getMetricsSnapshot().hits()).isEqualTo(1L);
+        assertThat(cache.getMetricsSnapshot().misses()).isEqualTo(1L);
+        assertThat(cache.getMetricsSnapshot().cachedPrefixTokens()).isEqualTo(first.totalTokens());
+    }
+
+    @Test
+    void resolve_WhenOtherModelOrProviderCacheExpired_ShouldCountUncached() {
+        cache.resolve("t1", model("m1"), "prompt", new Object[]{tools}, "k", null);
+        cache.resolve("t2", model("m2"), "prompt", new Object[]{tools}, "k", null);
+        now.addAndGet(300_000L);
+        cache.resolve("t3", model("m1"), "prompt", new Object[]{tools}, "k", null);
+
+        assertThat(cache.getTaskMetrics("t2").cachedPrefixTokens()).isZero();
+        assertThat(cache.getTaskMetrics("t3").cachedPrefixTokens()).isZero();
+        assertThat(cache.getMetricsSnapshot().cachedPrefixTokens()).isZero();
+    }
+
+    @Test
+    void resolve_ShouldSortToolsByNameAndTreatChangedPromptAsUncached() {
+        PromptPrefix first = cache.resolve("t1", model("m1"), null, new Object[]{tools}, "k", null);
+        cache.resolve("t2", model("m1"), "changed", new Object[]{tools}, "k", null);
+
+        assertThat(first.hasSystemText()).isFalse();
+        assertThat(Arrays.stream(first.toolCallbacks()).map(callback -> callback.getToolDefinition().name()))
+                .containsExactly("alphaTool", "zetaTool");
+        assertThat(cache.getTaskMetrics("t2").cachedPrefixTokens()).isZero();
+        assertThat(cache.getTaskMetrics("missing")).isEqualTo(PromptPrefixTaskMetrics.EMPTY);
+    }
+
+    private static AiModel model(String id) {
+        AiModel model = new AiModel();
+        model.setId(id);
+        return model;
+    }
+
+    static class SampleTools {
+
+        @Tool(description = "Last tool alphabetically")
+        public String zetaTool(String input) {
+            return input;
+        }
+
+        @Tool(description = "First tool alphabetically")
+        public String alphaTool(String input) {
+            return input;
+        }
+    }
+}
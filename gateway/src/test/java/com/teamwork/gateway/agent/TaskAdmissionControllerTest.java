@@ -0,0 +1,95 @@
+package com.teamwork.gateway.agent;
+
+import com.teamwork.gateway.exception.TaskAdmissionRejectedException;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class TaskAdmissionControllerTest {
+
+    @Test
+    void acquire_ShouldLimitConcurrencyPerTenant() throws Exception {
+        TaskAdmissionController controller = new TaskAdmissionController(1, 0, 200L, 1000L);
+
+        TaskAdmissionController.Permit permit = controller.acquire("tenant-a", "model-1");
+        TaskAdmissionController.Permit other = controller.acquire("tenant-b", "model-1");
+        assertThat(controller.getMetricsSnapshot().inFlight()).isEqualTo(2);
+        other.close();
+
+        assertThatThrownBy(() -> controller.acquire("tenant-a", "model-2"))
+                .isInstanceOf(TaskAdmissionRejectedException.class)
+                .hasMessageContaining("timeout");
+        permit.close();
+        permit.close();
+
+        try (TaskAdmissionController.Permit again = controller.acquire("tenant-a", "model-2")) {
+            assertThat(again).isNotNull();
+        }
+        TaskAdmissionMetricsSnapshot snapshot = controller.getMetricsSnapshot();
+        assertThat(snapshot.admitted()).isEqualTo(3L);
+        assertThat(snapshot.timedOut()).isEqualTo(1L);
+        assertThat(snapshot.inFlight()).isZero();
+        assertThat(snapshot.waiting()).isZero();
+    }
+
+    @Test
+    void acquire_ShouldReleaseTenantPermitWhenModelIsSaturated() throws Exception {
+        TaskAdmissionController controller = new TaskAdmissionController(1, 1, 100L, 1000L);
+        TaskAdmissionController.Permit modelHolder = controller.acquire("tenant-a", "model-1");
+
+        assertThatThrownBy(() -> controller.acquire("tenant-b", "model-1"))
+                .isInstanceOf(TaskAdmissionRejectedException.class);
+
+        // tenant-b 的名額已歸還，換個模型可以立刻取得
+        TaskAdmissionController.Permit permit = controller.acquire("tenant-b", "model-2");
+        assertThat(controller.getMetricsSnapshot().inFlight()).isEqualTo(2);
+        permit.close();
+        modelHolder.close();
+    }
+
+    @Test
+    void acquire_ShouldWaitForReleasedPermit() throws Exception {
+        TaskAdmissionController controller = new TaskAdmissionController(1, 0, 5000L, 1000L);
+        TaskAdmissionController.Permit first = controller.acquire("tenant-a", "model-1");
+
+        CompletableFuture<TaskAdmissionController.Permit> waiter = CompletableFuture.supplyAsync(() -> {
+            try {
+                return controller.acquire("tenant-a", "model-1");
+            } catch (InterruptedException ex) {
+                throw new IllegalStateException(ex);
+            }
+        });
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (controller.getMetricsSnapshot().waiting() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertThat(controller.getMetricsSnapshot().waiting()).isEqualTo(1);
+
+        first.close();
+        waiter.get(5, TimeUnit.SECONDS).close();
+        assertThat(controller.getMetricsSnapshot().admitted()).isEqualTo(2L);
+    }
+
+    @Test
+    void stop_ShouldRejectNewTasksAndWaitForInFlight() throws Exception {
+        TaskAdmissionController controller = new TaskAdmissionController(0, 0, 1000L, 5000L);
+        controller.start();
+        TaskAdmissionController.Permit inFlight = controller.acquire("tenant-a", "model-1");
+
+        CompletableFuture<Void> stopping = CompletableFuture.runAsync(controller::stop);
+        Thread.sleep(200L);
+        assertThat(stopping).isNotDone();
+        assertThatThrownBy(() -> controller.acquire("tenant-a", "model-1"))
+                .isInstanceOf(TaskAdmissionRejectedException.class)
+                .hasMessageContaining("shutting down");
+
+        inFlight.close();
+        stopping.get(5, TimeUnit.SECONDS);
+        assertThat(controller.isRunning()).isFalse();
+        assertThat(controller.getMetricsSnapshot().rejectedWhileDraining()).isEqualTo(1L);
+    }
+}
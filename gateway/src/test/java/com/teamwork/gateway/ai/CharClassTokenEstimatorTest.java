@@ -0,0 +1,46 @@
+package com.teamwork.gateway.ai;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CharClassTokenEstimatorTest {
+
+    private final CharClassTokenEstimator standard =
+            new CharClassTokenEstimator(CharClassTokenEstimator.Profile.STANDARD);
+    private final CharClassTokenEstimator compact =
+            new CharClassTokenEstimator(CharClassTokenEstimator.Profile.COMPACT);
+
+    @Test
+    void estimate_WhenBlank_ShouldReturnZero() {
+        assertThat(standard.estimate(null)).isZero();
+        assertThat(standard.estimate("")).isZero();
+        assertThat(standard.estimate("  \t ")).isZero();
+    }
+
+    @Test
+    void estimate_English_ShouldCountWordsAndPunctuation() {
+        // hello / world / , / !  → 4
+        assertThat(standard.estimate("hello, world!")).isEqualTo(4);
+        // 長字詞拆成多個 token
+        assertThat(standard.estimate("internationalization")).isEqualTo(4);
+        // 數字每 3 位一個 token
+        assertThat(standard.estimate("1234567")).isEqualTo(3);
+    }
+
+    @Test
+    void estimate_TraditionalChinese_ShouldNotUnderestimateLikeCharHeuristic() {
+        String text = "請協助整理本週的排程任務";
+
+        long heuristic = HeuristicTokenEstimator.INSTANCE.estimate(text);
+
+        assertThat(standard.estimate(text)).isEqualTo(17);
+        assertThat(compact.estimate(text)).isEqualTo(12);
+        assertThat(standard.estimate(text)).isGreaterThan(heuristic * 3);
+    }
+
+    @Test
+    void estimate_EmojiAndNewlines_ShouldCountAsSeparateTokens() {
+        assertThat(standard.estimate("ok\n\n😀")).isEqualTo(4);
+    }
+}
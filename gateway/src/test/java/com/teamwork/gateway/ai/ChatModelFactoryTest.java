@@ -2,14 +2,35 @@ package com.teamwork.gateway.ai;
 
 import com.teamwork.gateway.entity.AiModel;
 import org.junit.jupiter.api.Test;
+import org.springframework.ai.chat.client.ChatClient;
 import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.mock.http.client.MockClientHttpRequest;
+import org.springframework.web.reactive.function.client.ClientRequest;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.ExchangeFilterFunction;
+import org.springframework.web.reactive.function.client.ExchangeFunction;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyNoInteractions;
 
 class ChatModelFactoryTest {
 
-    private final ChatModelFactory chatModelFactory = new ChatModelFactory();
+    private final ChatModelFactory chatModelFactory = new ChatModelFactory(1_000L, 5_000L, 4, 30_000L, 2);
 
     @Test
     void createChatModel_ShouldThrowWhenModelInactive() {
@@ -63,4 +84,118 @@ class ChatModelFactoryTest {
 
         assertThat(chatModel).isNotNull();
     }
+
+    @Test
+    void createChatModel_ShouldReuseCachedInstanceUntilConfigChanges() {
+        AiModel model = openAiModel("model-1");
+
+        ChatModel first = chatModelFactory.createChatModel(model);
+        ChatModel second = chatModelFactory.createChatModel(model);
+        model.setApiKey("rotated-key");
+        ChatModel rebuilt = chatModelFactory.createChatModel(model);
+
+        assertThat(second).isSameAs(first);
+        assertThat(rebuilt).isNotSameAs(first);
+        assertThat(chatModelFactory.getMetricsSnapshot())
+                .isEqualTo(new ChatModelCacheMetricsSnapshot(1, 1L, 2L, 1L, 0L));
+    }
+
+    @Test
+    void chatClient_ShouldReuseClientForCachedModel() {
+        AiModel model = openAiModel("model-1");
+        ChatModel chatModel = chatModelFactory.createChatModel(model);
+
+        ChatClient client = chatModelFactory.chatClient(chatModel);
+
+        assertThat(chatModelFactory.chatClient(chatModel)).isSameAs(client);
+        chatModelFactory.invalidate(model.getId());
+        assertThat(chatModelFactory.createChatModel(model)).isNotSameAs(chatModel);
+    }
+
+    @Test
+    void createChatModel_ShouldEvictLeastRecentlyUsedModel() {
+        AiModel first = openAiModel("model-1");
+        ChatModel firstModel = chatModelFactory.createChatModel(first);
+        chatModelFactory.createChatModel(openAiModel("model-2"));
+        chatModelFactory.createChatModel(openAiModel("model-3"));
+
+        assertThat(chatModelFactory.getMetricsSnapshot().cachedModels()).isEqualTo(2);
+        assertThat(chatModelFactory.createChatModel(first)).isNotSameAs(firstModel);
+    }
+
+    private static AiModel openAiModel(String id) {
+        AiModel model = new AiModel();
+        model.setId(id);
+        model.setName("gpt-4o-mini");
+        model.setProvider("OPENAI");
+        model.setApiKey("test-key");
+        model.setActive(true);
+        return model;
+    }
+
+    @Test
+    void httpClientFor_ShouldUseHttp2OnlyForHttps() {
+        assertThat(chatModelFactory.httpClientFor("https://api.openai.com").version())
+                .isEqualTo(HttpClient.Version.HTTP_2);
+        assertThat(chatModelFactory.httpClientFor("HTTPS://example.local").version())
+                .isEqualTo(HttpClient.Version.HTTP_2);
+        assertThat(chatModelFactory.httpClientFor("http://localhost:11434").version())
+                .isEqualTo(HttpClient.Version.HTTP_1_1);
+    }
+
+    @Test
+    void reactiveEndpointLimiter_ShouldHoldPermitUntilResponseBodyCompletes() throws Exception {
+        ChatModelFactory limited = new ChatModelFactory(1_000L, 5_000L, 1, 30_000L, 2);
+        ExchangeFilterFunction limiter = limited.reactiveEndpointLimiter();
+        ClientRequest request = ClientRequest.create(HttpMethod.POST, URI.create("http://localhost:8080/v1/chat"))
+                .build();
+        Sinks.Many<DataBuffer> firstBody = Sinks.many().unicast().onBackpressureBuffer();
+        AtomicInteger exchanges = new AtomicInteger();
+        ExchangeFunction next = ignored -> {
+            Sinks.Many<DataBuffer> body = exchanges.incrementAndGet() == 1
+                    ? firstBody
+                    : Sinks.many().unicast().onBackpressureBuffer();
+            return Mono.just(ClientResponse.create(HttpStatus.OK).body(body.asFlux()).build());
+        };
+
+        ClientResponse first = limiter.filter(request, next).block();
+        CompletableFuture<ClientResponse> second = limiter.filter(request, next).toFuture();
+
+        TimeUnit.MILLISECONDS.sleep(100L);
+        assertThat(second).isNotDone();
+        assertThat(exchanges).hasValue(1);
+
+        firstBody.tryEmitComplete();
+        first.releaseBody().block();
+
+        assertThat(second.get(5, TimeUnit.SECONDS)).isNotNull();
+        assertThat(exchanges).hasValue(2);
+        limited.shutdown();
+    }
+
+    @Test
+    void endpointLimiters_WhenPermitNotFreedWithinTimeout_ShouldFailTheCall() {
+        ChatModelFactory limited = new ChatModelFactory(1_000L, 5_000L, 1, 100L, 2);
+        ExchangeFilterFunction reactive = limited.reactiveEndpointLimiter();
+        ClientRequest request = ClientRequest.create(HttpMethod.POST, URI.create("http://localhost:8080/v1/chat"))
+                .build();
+        ExchangeFunction next = ignored -> Mono.just(ClientResponse.create(HttpStatus.OK)
+                .body(Sinks.many().unicast().<DataBuffer>onBackpressureBuffer().asFlux())
+                .build());
+        ClientHttpRequestExecution execution = mock(ClientHttpRequestExecution.class);
+
+        ClientResponse holder = reactive.filter(request, next).block();
+
+        assertThatThrownBy(() -> reactive.filter(request, next).block())
+                .hasCauseInstanceOf(HttpTimeoutException.class);
+        assertThatThrownBy(() -> limited.endpointLimiter().intercept(
+                new MockClientHttpRequest(HttpMethod.POST, URI.create("http://localhost:8080/v1/chat")),
+                new byte[0], execution))
+                .isInstanceOf(HttpTimeoutException.class)
+                .hasMessageContaining("http://localhost:8080");
+        verifyNoInteractions(execution);
+        assertThat(limited.getMetricsSnapshot().endpointPermitTimeouts()).isEqualTo(2L);
+        assertThat(holder).isNotNull();
+        limited.shutdown();
+    }
 }
@@ -0,0 +1,67 @@
+package com.teamwork.gateway.ai;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TokenEstimator 微基準測試，確認字元類別估算不會成為 chat 熱路徑的 CPU 瓶頸。
+ * <p>執行方式：{@code mvn -q test-compile exec:exec -Dexec.classpathScope=test -Dexec.executable=java
+ * "-Dexec.args=-cp %classpath com.teamwork.gateway.ai.TokenEstimatorBenchmark"}</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TokenEstimatorBenchmark {
+
+    @Param({"ENGLISH", "TRADITIONAL_CHINESE", "MIXED_CODE"})
+    public String corpus;
+
+    private String text;
+    private TokenEstimator heuristic;
+    private TokenEstimator charClass;
+
+    @Setup
+    public void setUp() {
+        String unit = switch (corpus) {
+            case "ENGLISH" -> "The gateway compresses long conversations before they reach the model context window. ";
+            case "TRADITIONAL_CHINESE" -> "請協助整理本週的排程任務，並在壓縮上下文時保留所有待辦事項與決策紀錄。";
+            default -> "呼叫 `messageStore.append(id, entries, 42)` 後回傳 {size: 12, tokens: 3456}；\n";
+        };
+        text = unit.repeat(64);
+        heuristic = HeuristicTokenEstimator.INSTANCE;
+        charClass = new CharClassTokenEstimator(CharClassTokenEstimator.Profile.STANDARD);
+    }
+
+    @Benchmark
+    public long heuristic() {
+        return heuristic.estimate(text);
+    }
+
+    @Benchmark
+    public long charClass() {
+        return charClass.estimate(text);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(TokenEstimatorBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
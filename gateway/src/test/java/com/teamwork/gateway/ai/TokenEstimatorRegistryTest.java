@@ -0,0 +1,43 @@
+package com.teamwork.gateway.ai;
+
+import com.teamwork.gateway.entity.AiModel;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class TokenEstimatorRegistryTest {
+
+    @Test
+    void forModel_ShouldSelectProfileByModelName() {
+        TokenEstimatorRegistry registry = new TokenEstimatorRegistry("char-class", "standard");
+
+        assertThat(registry.forModel(model("gpt-4o-mini")).name()).isEqualTo("char-class-compact");
+        assertThat(registry.forModel(model("GPT-4-turbo")).name()).isEqualTo("char-class-standard");
+        assertThat(registry.forModel(model("llama3")).name()).isEqualTo("char-class-standard");
+        assertThat(registry.forModel(null)).isSameAs(registry.defaultEstimator());
+        assertThat(registry.forModel(model("gpt-4o"))).isSameAs(registry.forModel(model("gpt-4o")));
+    }
+
+    @Test
+    void heuristicMode_ShouldUseCharacterHeuristicEverywhere() {
+        TokenEstimatorRegistry registry = new TokenEstimatorRegistry("heuristic");
+
+        assertThat(registry.defaultEstimator()).isSameAs(HeuristicTokenEstimator.INSTANCE);
+        assertThat(registry.forModel(model("gpt-4o"))).isSameAs(HeuristicTokenEstimator.INSTANCE);
+        assertThat(registry.estimate("12345678")).isEqualTo(2);
+    }
+
+    @Test
+    void constructor_WhenProfileUnknown_ShouldThrow() {
+        assertThatThrownBy(() -> new TokenEstimatorRegistry("char-class", "p50k"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("p50k");
+    }
+
+    private AiModel model(String name) {
+        AiModel aiModel = new AiModel();
+        aiModel.setName(name);
+        return aiModel;
+    }
+}
@@ -2,16 +2,19 @@ package com.teamwork.gateway.config;
 
 import org.junit.jupiter.api.Test;
 import org.springframework.aop.interceptor.AsyncUncaughtExceptionHandler;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 
 import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
 class AsyncConfigTest {
 
-    private final AsyncConfig asyncConfig = new AsyncConfig();
+    private final AsyncConfig asyncConfig = new AsyncConfig("platform", 5, 20, 100, 1000L);
 
     @Test
     void getAsyncExecutor_ShouldReturnConfiguredThreadPool() {
@@ -24,6 +27,23 @@ class AsyncConfigTest {
         assertThat(threadPool.getCorePoolSize()).isEqualTo(5);
         assertThat(threadPool.getMaxPoolSize()).isEqualTo(20);
         assertThat(threadPool.getThreadNamePrefix()).isEqualTo("MasterAgent-Worker-");
+        assertThat(asyncConfig.getAsyncExecutor()).isSameAs(executor);
+        asyncConfig.destroy();
+    }
+
+    @Test
+    void getAsyncExecutor_ShouldRunTasksOnVirtualThreadsByDefault() throws Exception {
+        AsyncConfig virtualConfig = new AsyncConfig("virtual", 5, 20, 100, 1000L);
+
+        Executor executor = virtualConfig.getAsyncExecutor();
+        CompletableFuture<Thread> worker = new CompletableFuture<>();
+        executor.execute(() -> worker.complete(Thread.currentThread()));
+
+        assertThat(executor).isInstanceOf(SimpleAsyncTaskExecutor.class);
+        Thread thread = worker.get(5, TimeUnit.SECONDS);
+        assertThat(thread.isVirtual()).isTrue();
+        assertThat(thread.getName()).startsWith("MasterAgent-Worker-");
+        virtualConfig.destroy();
     }
 
     @Test
@@ -12,6 +12,9 @@ import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.time.LocalDateTime;
 import java.util.List;
@@ -40,10 +43,10 @@ class ContextControllerTest {
                 21,
                 0,
                 LocalDateTime.of(2026, 2, 23, 12, 30, 0));
-        given(contextQueryService.findUsage("master-agent", "task-1", "COMPLETED"))
-                .willReturn(List.of(usageItem));
+        given(contextQueryService.findUsage("master-agent", "task-1", "COMPLETED", 0, 50))
+                .willReturn(new AgentContextUsageResponse(List.of(usageItem), 0, 50, false));
 
-        AgentContextUsageResponse response = contextController.getContextUsage("master-agent", "task-1", "COMPLETED");
+        AgentContextUsageResponse response = contextController.getContextUsage("master-agent", "task-1", "COMPLETED", 0, 50);
 
         assertThat(response.items()).hasSize(1);
         assertThat(response.items().getFirst().taskId()).isEqualTo("task-1");
@@ -66,6 +69,17 @@ class ContextControllerTest {
         assertThat(response.agentName()).isEqualTo("master-agent");
     }
 
+    @Test
+    void streamContextMessages_ShouldReturnNdjsonBodyFromService() {
+        StreamingResponseBody body = outputStream -> outputStream.write("{}\n".getBytes());
+        given(contextQueryService.streamFullContext("task-1", 10L, 5L)).willReturn(body);
+
+        ResponseEntity<StreamingResponseBody> response = contextController.streamContextMessages("task-1", 10L, 5L);
+
+        assertThat(response.getHeaders().getContentType()).isEqualTo(MediaType.APPLICATION_NDJSON);
+        assertThat(response.getBody()).isSameAs(body);
+    }
+
     @Test
     void deleteContext_ShouldReturnDeleteResponseFromService() {
         ContextDeleteRequest request = new ContextDeleteRequest("ALL_HISTORY", null, "cleanup");
@@ -0,0 +1,263 @@
+package com.teamwork.gateway.memory;
+
+import com.teamwork.gateway.entity.ChatMessageArchive;
+import com.teamwork.gateway.repository.ChatMessageArchiveRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionOperations;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+class ChatHistoryArchiverTest {
+
+    private static final long IDLE_TTL_MILLIS = 60_000L;
+
+    @Mock
+    private ChatMemoryStore messageStore;
+
+    @Mock
+    private ChatMessageArchiveRepository archiveRepository;
+
+    @Mock
+    private ConversationNearCache nearCache;
+
+    private final ChatMessageCodec messageCodec = new ChatMessageCodec("compact");
+    private long now = 1_000_000L;
+    private int transactionCount;
+    private final TransactionOperations transactions = new TransactionOperations() {
+        @Override
+        public <T> T execute(TransactionCallback<T> action) {
+            transactionCount++;
+            return action.doInTransaction(null);
+        }
+    };
+    private ChatHistoryArchiver archiver;
+
+    @BeforeEach
+    void setUp() {
+        archiver = new ChatHistoryArchiver(
+                messageStore, archiveRepository, messageCodec, nearCache, transactions, true, 2, IDLE_TTL_MILLIS, 10,
+                () -> now);
+        when(archiveRepository.findTopByConversationIdOrderBySeqDesc(anyString())).thenReturn(Optional.empty());
+    }
+
+    @Test
+    void archiveCompacted_ShouldWriteInBatchesWithContinuousSeq() {
+        ChatMessageArchive last = new ChatMessageArchive();
+        last.setSeq(4L);
+        when(archiveRepository.findTopByConversationIdOrderBySeqDesc("c1")).thenReturn(Optional.of(last));
+        String encoded = messageCodec.encode(ChatMessageDto.builder().type("USER").content("a").tokens(3L).build());
+
+        archiver.archiveCompacted("c1", List.of(encoded, "b", "c"));
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<ChatMessageArchive>> captor = ArgumentCaptor.forClass(List.class);
+        verify(archiveRepository, times(2)).saveAll(captor.capture());
+        List<ChatMessageArchive> first = captor.getAllValues().get(0);
+        assertThat(first).hasSize(2);
+        assertThat(first.get(0).getSeq()).isEqualTo(5L);
+        assertThat(first.get(0).getTokens()).isEqualTo(3L);
+        assertThat(first.get(0).getReason()).isEqualTo(ChatHistoryArchiver.REASON_COMPACTED);
+        assertThat(captor.getAllValues().get(1)).extracting(ChatMessageArchive::getSeq).containsExactly(7L);
+        assertThat(archiver.getMetricsSnapshot().archivedMessages()).isEqualTo(3L);
+        assertThat(transactionCount).isEqualTo(1);
+    }
+
+    @Test
+    void archiveCompacted_WhenLaterBatchFails_ShouldNotCountPartialWrite() {
+        when(archiveRepository.saveAll(anyList())).thenReturn(List.of()).thenThrow(new IllegalStateException("db down"));
+
+        archiver.archiveCompacted("c1", List.of("a", "b", "c"));
+
+        verify(archiveRepository, times(2)).saveAll(anyList());
+        assertThat(transactionCount).isEqualTo(1);
+        assertThat(archiver.getMetricsSnapshot().archivedMessages()).isZero();
+        assertThat(archiver.getMetricsSnapshot().failures()).isEqualTo(1L);
+    }
+
+    @Test
+    void archiveCompacted_WhenDatabaseFails_ShouldCountFailureWithoutThrowing() {
+        when(archiveRepository.saveAll(anyList())).thenThrow(new RuntimeException("db down"));
+
+        archiver.archiveCompacted("c1", List.of("a"));
+
+        assertThat(archiver.getMetricsSnapshot().failures()).isEqualTo(1L);
+    }
+
+    @Test
+    void purgeEntries_ShouldDeleteMatchingCompactedRowsInBatches() {
+        archiver.purgeEntries("c1", List.of("a", "b", "c"));
+        archiver.purgeEntries("c1", List.of());
+
+        verify(archiveRepository).deleteByPayloads("c1", ChatHistoryArchiver.REASON_COMPACTED, List.of("a", "b"));
+        verify(archiveRepository).deleteByPayloads("c1", ChatHistoryArchiver.REASON_COMPACTED, List.of("c"));
+        verifyNoMoreInteractions(archiveRepository);
+    }
+
+    @Test
+    void archiveIfIdle_WhenRecentlyActive_ShouldSkip() {
+        when(messageStore.getLastActiveAt("c1")).thenReturn(now - 1_000L);
+
+        assertThat(archiver.archiveIfIdle("c1", now)).isFalse();
+
+        verify(messageStore, never()).readAll(anyString());
+    }
+
+    @Test
+    void archiveIfIdle_WhenIdle_ShouldWriteThenEvict() {
+        long lastActive = now - IDLE_TTL_MILLIS;
+        when(messageStore.getLastActiveAt("c1")).thenReturn(lastActive);
+        when(messageStore.readAll("c1")).thenReturn(List.of("a", "b", "c"));
+        when(messageStore.evictArchived("c1", lastActive, 3L)).thenReturn(true);
+
+        assertThat(archiver.archiveIfIdle("c1", now)).isTrue();
+
+        verify(archiveRepository, times(2)).saveAll(anyList());
+        verify(nearCache).invalidate("c1");
+        assertThat(archiver.getMetricsSnapshot().archivedConversations()).isEqualTo(1L);
+    }
+
+    @Test
+    void archiveIfIdle_WhenWrittenConcurrently_ShouldDropWrittenArchive() {
+        long lastActive = now - IDLE_TTL_MILLIS;
+        when(messageStore.getLastActiveAt("c1")).thenReturn(lastActive);
+        when(messageStore.readAll("c1")).thenReturn(List.of("a"));
+        when(messageStore.evictArchived("c1", lastActive, 1L)).thenReturn(false);
+
+        assertThat(archiver.archiveIfIdle("c1", now)).isFalse();
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<ChatMessageArchive>> captor = ArgumentCaptor.forClass(List.class);
+        verify(archiveRepository).saveAll(captor.capture());
+        String batchId = captor.getValue().getFirst().getBatchId();
+        assertThat(batchId).isNotNull();
+        // 只刪除本次寫入的批次，其他封存者以相同 seq 範圍寫入的資料不受影響
+        verify(archiveRepository).deleteBatches("c1", List.of(batchId));
+        verify(nearCache, never()).invalidate(anyString());
+    }
+
+    @Test
+    void archiveIfIdle_WhenSeqCollides_ShouldRetryWithFreshBatch() {
+        long lastActive = now - IDLE_TTL_MILLIS;
+        when(messageStore.getLastActiveAt("c1")).thenReturn(lastActive);
+        when(messageStore.readAll("c1")).thenReturn(List.of("a"));
+        when(messageStore.evictArchived("c1", lastActive, 1L)).thenReturn(true);
+        doThrow(new DataIntegrityViolationException("uk_chat_message_archives_conversation_seq"))
+                .doNothing()
+                .when(archiveRepository).flush();
+
+        assertThat(archiver.archiveIfIdle("c1", now)).isTrue();
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<ChatMessageArchive>> captor = ArgumentCaptor.forClass(List.class);
+        verify(archiveRepository, times(2)).saveAll(captor.capture());
+        assertThat(captor.getAllValues().get(0).getFirst().getBatchId())
+                .isNotEqualTo(captor.getAllValues().get(1).getFirst().getBatchId());
+        assertThat(transactionCount).isEqualTo(2);
+        assertThat(archiver.getMetricsSnapshot().archivedMessages()).isEqualTo(1L);
+    }
+
+    @Test
+    void sweepIdleConversations_ShouldStopAtPerSweepLimit() {
+        archiver = new ChatHistoryArchiver(
+                messageStore, archiveRepository, messageCodec, nearCache, transactions, true, 2, IDLE_TTL_MILLIS, 1,
+                () -> now);
+        doAnswer(invocation -> {
+            Predicate<String> visitor = invocation.getArgument(1);
+            for (String id : List.of("c1", "c2")) {
+                if (!visitor.test(id)) {
+                    break;
+                }
+            }
+            return null;
+        }).when(messageStore).scanConversationIds(anyInt(), any());
+        when(messageStore.getLastActiveAt(anyString())).thenReturn(0L);
+        when(messageStore.readAll(anyString())).thenReturn(List.of("a"));
+        when(messageStore.evictArchived(anyString(), anyLong(), anyLong())).thenReturn(true);
+
+        archiver.sweepIdleConversations();
+
+        verify(messageStore).evictArchived(eq("c1"), anyLong(), anyLong());
+        verify(messageStore, never()).evictArchived(eq("c2"), anyLong(), anyLong());
+    }
+
+    @Test
+    void rehydrate_ShouldRestoreEntriesAndTokensThenDeleteArchive() {
+        ChatMessageArchive first = archive(3L, "a", 2L, "b1");
+        ChatMessageArchive second = archive(4L, "b", 5L, "b1");
+        when(archiveRepository.findByConversationIdAndReasonOrderBySeqAsc("c1", ChatHistoryArchiver.REASON_IDLE))
+                .thenReturn(List.of(first, second));
+        when(messageStore.restoreArchived("c1", List.of("a", "b"), 7L)).thenReturn(true);
+
+        assertThat(archiver.rehydrate("c1")).isTrue();
+
+        verify(archiveRepository).deleteBatches("c1", Set.of("b1"));
+        verify(archiveRepository, never()).deleteLegacyArchived(anyString(), anyString());
+        assertThat(archiver.getMetricsSnapshot().rehydratedConversations()).isEqualTo(1L);
+    }
+
+    @Test
+    void rehydrate_WhenEarlierRestoreCrashedBeforeDelete_ShouldRestoreOnlyLatestBatch() {
+        // 舊批次（含加入 batch id 前的資料）已回填過，內容包含在之後重新封存的 b2 中
+        when(archiveRepository.findByConversationIdAndReasonOrderBySeqAsc("c1", ChatHistoryArchiver.REASON_IDLE))
+                .thenReturn(List.of(
+                        archive(0L, "a", 1L, null),
+                        archive(1L, "a", 1L, "b1"),
+                        archive(2L, "a", 1L, "b2"),
+                        archive(3L, "b", 2L, "b2")));
+        when(messageStore.restoreArchived("c1", List.of("a", "b"), 3L)).thenReturn(true);
+
+        assertThat(archiver.rehydrate("c1")).isTrue();
+
+        verify(archiveRepository).deleteBatches("c1", Set.of("b1", "b2"));
+        verify(archiveRepository).deleteLegacyArchived("c1", ChatHistoryArchiver.REASON_IDLE);
+    }
+
+    @Test
+    void rehydrate_WhenAnotherCallerRestored_ShouldKeepArchive() {
+        when(archiveRepository.findByConversationIdAndReasonOrderBySeqAsc("c1", ChatHistoryArchiver.REASON_IDLE))
+                .thenReturn(List.of(archive(0L, "a", null)));
+        when(messageStore.restoreArchived("c1", List.of("a"), null)).thenReturn(false);
+
+        assertThat(archiver.rehydrate("c1")).isFalse();
+
+        verify(archiveRepository, never()).deleteBatches(anyString(), anyCollection());
+        verify(archiveRepository, never()).deleteLegacyArchived(anyString(), anyString());
+    }
+
+    private ChatMessageArchive archive(long seq, String payload, Long tokens) {
+        return archive(seq, payload, tokens, null);
+    }
+
+    private ChatMessageArchive archive(long seq, String payload, Long tokens, String batchId) {
+        ChatMessageArchive archive = new ChatMessageArchive();
+        archive.setSeq(seq);
+        archive.setBatchId(batchId);
+        archive.setPayload(payload);
+        archive.setTokens(tokens);
+        return archive;
+    }
+}
@@ -0,0 +1,283 @@
+package com.teamwork.gateway.memory;
+
+import com.teamwork.gateway.entity.TaskRecord;
+import com.teamwork.gateway.event.ContextSegmentCompactedEvent;
+import com.teamwork.gateway.repository.TaskRecordRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+import org.springframework.context.ApplicationEventPublisher;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+class ChatMemoryRetentionServiceTest {
+
+    private static final long NOW = 10_000_000L;
+    private static final long IDLE_TTL_MILLIS = 60_000L;
+
+    @Mock
+    private ChatMemoryStore messageStore;
+
+    @Mock
+    private ChatHistoryArchiver historyArchiver;
+
+    @Mock
+    private RedisChatMemory chatMemory;
+
+    @Mock
+    private ConversationNearCache nearCache;
+
+    @Mock
+    private ContextCompressionService compressionService;
+
+    @Mock
+    private TaskRecordRepository taskRecordRepository;
+
+    @Mock
+    private ApplicationEventPublisher eventPublisher;
+
+    private final ChatMessageCodec messageCodec = new ChatMessageCodec("compact");
+
+    @BeforeEach
+    void setUp() {
+        when(historyArchiver.isEnabled()).thenReturn(true);
+        when(historyArchiver.evict(anyString())).thenReturn(true);
+        when(taskRecordRepository.findAllById(anyList())).thenReturn(List.of());
+        when(messageStore.estimateBytes(anyString())).thenReturn(100L);
+    }
+
+    @Test
+    void sweep_ShouldEvictIdleConversationsOnly() {
+        givenConversations(Map.of("idle", NOW - IDLE_TTL_MILLIS, "active", NOW - 1_000L));
+        when(historyArchiver.isEnabled()).thenReturn(false);
+        ChatMemoryRetentionService service = newService(0L, 0);
+
+        service.sweep();
+
+        verify(chatMemory).clear("idle");
+        verify(chatMemory, never()).clear("active");
+        assertThat(service.getMetricsSnapshot().idleEvictions()).isEqualTo(1L);
+        assertThat(service.getMetricsSnapshot().scannedConversations()).isEqualTo(2L);
+    }
+
+    @Test
+    void sweep_WhenColdStorageEnabled_ShouldLeaveIdleConversationsToArchiveSweeper() {
+        givenConversations(Map.of("idle", NOW - IDLE_TTL_MILLIS));
+        ChatMemoryRetentionService service = newService(0L, 0);
+
+        service.sweep();
+
+        verify(historyArchiver, never()).evict(anyString());
+        verify(chatMemory, never()).clear(anyString());
+        assertThat(service.getMetricsSnapshot().idleEvictions()).isZero();
+    }
+
+    @Test
+    void sweep_ShouldSkipArchivedConversations() {
+        givenConversations(Map.of("archived", NOW - IDLE_TTL_MILLIS));
+        when(messageStore.getStats(anyList())).thenReturn(
+                Map.of("archived", new ChatMemoryStore.ConversationStats(0L, -1L, 0L, true)));
+
+        newService(0L, 0).sweep();
+
+        verify(historyArchiver, never()).evict(anyString());
+        verify(messageStore, never()).getLastActiveAt(anyString());
+    }
+
+    @Test
+    void sweep_ShouldEvictLeastRecentlyActiveConversationsOverTenantLimit() {
+        givenConversations(Map.of("oldest", NOW - 3_000L, "older", NOW - 2_000L, "newest", NOW - 1_000L));
+        TaskRecord oldest = task("oldest", "p1");
+        TaskRecord older = task("older", "p1");
+        TaskRecord newest = task("newest", "p1");
+        when(taskRecordRepository.findAllById(anyList())).thenReturn(List.of(oldest, older, newest));
+        ChatMemoryRetentionService service = newService(0L, 1);
+
+        service.sweep();
+
+        verify(historyArchiver).evict("oldest");
+        verify(historyArchiver).evict("older");
+        verify(historyArchiver, never()).evict("newest");
+        assertThat(service.getMetricsSnapshot().tenantEvictions()).isEqualTo(2L);
+        assertThat(service.getMetricsSnapshot().bytesReclaimed()).isEqualTo(200L);
+    }
+
+    @Test
+    void sweep_ShouldDeleteInsteadOfArchiveWhenColdStorageDisabled() {
+        givenConversations(Map.of("idle", NOW - IDLE_TTL_MILLIS));
+        when(historyArchiver.isEnabled()).thenReturn(false);
+
+        newService(0L, 0).sweep();
+
+        verify(chatMemory).clear("idle");
+        verify(historyArchiver, never()).evict(anyString());
+    }
+
+    @Test
+    void sweep_ShouldTrimOldestMessagesOfOversizedConversationIntoArchive() {
+        String first = encode("a".repeat(40), 10L);
+        String second = encode("b".repeat(40), 10L);
+        String third = encode("c".repeat(40), 10L);
+        givenConversations(Map.of("big", NOW - 1_000L));
+        when(messageStore.estimateBytes("big")).thenReturn(150L);
+        when(messageStore.size("big")).thenReturn(3L);
+        when(messageStore.readRangeVersioned("big", 0L, ChatMemoryRetentionService.TRIM_WINDOW))
+                .thenReturn(new ChatMemoryStore.VersionedRange(7L, List.of(first, second, third)));
+        when(messageStore.removeRange(anyString(), anyLong(), anyLong(), anyString(), anyString(), any(), anyLong()))
+                .thenReturn(true);
+        ChatMemoryRetentionService service = newService(100L, 0);
+
+        service.sweep();
+
+        // 目標為 75 bytes，需移除 75 bytes 以上：前兩筆
+        verify(compressionService).compressIfNeeded("big");
+        verify(messageStore).removeRange("big", 0L, 2L, first, second, -20L, 7L);
+        verify(historyArchiver).archiveCompacted("big", List.of(first, second));
+        verify(eventPublisher).publishEvent(any(ContextSegmentCompactedEvent.class));
+        verify(nearCache).invalidate("big");
+        assertThat(service.getMetricsSnapshot().trimmedMessages()).isEqualTo(2L);
+    }
+
+    @Test
+    void sweep_ShouldUseByteCounterFromStatsWithoutEstimating() {
+        givenConversations(Map.of("small", NOW - 1_000L));
+        when(messageStore.getStats(anyList())).thenReturn(
+                Map.of("small", new ChatMemoryStore.ConversationStats(3L, 30L, 80L, false)));
+
+        newService(100L, 0).sweep();
+
+        verify(messageStore, never()).estimateBytes(anyString());
+        verify(compressionService, never()).compressIfNeeded(anyString());
+    }
+
+    @Test
+    void sweep_ShouldNotTrimWhenCompressionBringsConversationUnderLimit() {
+        givenConversations(Map.of("big", NOW - 1_000L));
+        when(messageStore.estimateBytes("big")).thenReturn(150L, 60L);
+        ChatMemoryRetentionService service = newService(100L, 0);
+
+        service.sweep();
+
+        verify(compressionService).compressIfNeeded("big");
+        verify(messageStore, never()).readRangeVersioned(anyString(), anyLong(), anyInt());
+        verify(messageStore, never()).removeRange(anyString(), anyLong(), anyLong(), anyString(), anyString(), any(), anyLong());
+        assertThat(service.getMetricsSnapshot().bytesReclaimed()).isEqualTo(90L);
+    }
+
+    @Test
+    void sweep_ShouldTrimRawMessagesAfterLeadingSummaries() {
+        String summary = messageCodec.encode(ChatMessageDto.builder()
+                .type("SYSTEM").content("[AUTO_COMPRESSED] s").tokens(5L)
+                .metadata(Map.of("compressed", true, "summaryLevel", 1)).build());
+        String first = encode("a".repeat(40), 10L);
+        String second = encode("b".repeat(40), 10L);
+        String third = encode("c".repeat(40), 10L);
+        givenConversations(Map.of("big", NOW - 1_000L));
+        when(messageStore.estimateBytes("big")).thenReturn(150L);
+        when(messageStore.size("big")).thenReturn(4L);
+        when(messageStore.readRangeVersioned("big", 0L, ChatMemoryRetentionService.TRIM_WINDOW))
+                .thenReturn(new ChatMemoryStore.VersionedRange(7L, List.of(summary, first, second, third)));
+        when(messageStore.removeRange(anyString(), anyLong(), anyLong(), anyString(), anyString(), any(), anyLong()))
+                .thenReturn(true);
+
+        newService(100L, 0).sweep();
+
+        verify(messageStore).removeRange("big", 1L, 2L, first, second, -20L, 7L);
+        verify(historyArchiver).archiveCompacted("big", List.of(first, second));
+    }
+
+    @Test
+    void sweep_ShouldTrimUndecodableEntriesWithUnknownTokenDelta() {
+        String broken = "{not-json";
+        String first = encode("a".repeat(40), 10L);
+        String second = encode("b".repeat(40), 10L);
+        String third = encode("c".repeat(40), 10L);
+        givenConversations(Map.of("big", NOW - 1_000L));
+        when(messageStore.estimateBytes("big")).thenReturn(150L);
+        when(messageStore.size("big")).thenReturn(4L);
+        when(messageStore.readRangeVersioned("big", 0L, ChatMemoryRetentionService.TRIM_WINDOW))
+                .thenReturn(new ChatMemoryStore.VersionedRange(7L, List.of(broken, first, second, third)));
+        when(messageStore.removeRange(anyString(), anyLong(), anyLong(), anyString(), anyString(), any(), anyLong()))
+                .thenReturn(true);
+        ArgumentCaptor<ContextSegmentCompactedEvent> event = ArgumentCaptor.forClass(ContextSegmentCompactedEvent.class);
+
+        newService(100L, 0).sweep();
+
+        verify(messageStore).removeRange("big", 0L, 3L, broken, second, null, 7L);
+        verify(eventPublisher).publishEvent(event.capture());
+        assertThat(event.getValue().getMessages()).hasSize(2).doesNotContainNull();
+    }
+
+    @Test
+    void sweep_ShouldNotArchiveWhenTrimLosesRace() {
+        String first = encode("a".repeat(200), 10L);
+        givenConversations(Map.of("big", NOW - 1_000L));
+        when(messageStore.estimateBytes("big")).thenReturn(400L);
+        when(messageStore.size("big")).thenReturn(2L);
+        when(messageStore.readRangeVersioned("big", 0L, ChatMemoryRetentionService.TRIM_WINDOW))
+                .thenReturn(new ChatMemoryStore.VersionedRange(1L, List.of(first, first)));
+        when(messageStore.removeRange(anyString(), anyLong(), anyLong(), anyString(), anyString(), any(), anyLong()))
+                .thenReturn(false);
+
+        newService(100L, 0).sweep();
+
+        verify(messageStore).removeRange(eq("big"), eq(0L), eq(1L), anyString(), anyString(), any(), eq(1L));
+        verify(historyArchiver, never()).archiveCompacted(anyString(), anyList());
+    }
+
+    private ChatMemoryRetentionService newService(long maxBytes, int maxPerTenant) {
+        return new ChatMemoryRetentionService(messageStore, historyArchiver, chatMemory, messageCodec, nearCache,
+                compressionService, taskRecordRepository, eventPublisher, true, IDLE_TTL_MILLIS, maxBytes, maxPerTenant, 2, 10, () -> NOW);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void givenConversations(Map<String, Long> lastActive) {
+        doAnswer(invocation -> {
+            Predicate<String> visitor = invocation.getArgument(1);
+            for (String id : lastActive.keySet()) {
+                if (!visitor.test(id)) {
+                    break;
+                }
+            }
+            return null;
+        }).when(messageStore).scanConversationIds(anyInt(), any(Predicate.class));
+        when(messageStore.getStats(anyList())).thenAnswer(invocation -> {
+            Map<String, ChatMemoryStore.ConversationStats> stats = new LinkedHashMap<>();
+            for (String id : invocation.<List<String>>getArgument(0)) {
+                stats.put(id, new ChatMemoryStore.ConversationStats(3L, 30L, ChatMemoryStore.UNKNOWN_BYTES, false));
+            }
+            return stats;
+        });
+        lastActive.forEach((id, at) -> when(messageStore.getLastActiveAt(id)).thenReturn(at));
+    }
+
+    private static TaskRecord task(String id, String profileId) {
+        TaskRecord record = new TaskRecord();
+        record.setId(id);
+        record.setProfileId(profileId);
+        return record;
+    }
+
+    private String encode(String content, long tokens) {
+        return messageCodec.encode(ChatMessageDto.builder().type("USER").content(content).tokens(tokens).build());
+    }
+}
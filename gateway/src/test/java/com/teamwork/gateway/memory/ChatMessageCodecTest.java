@@ -0,0 +1,80 @@
+package com.teamwork.gateway.memory;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ChatMessageCodecTest {
+
+    private final ChatMessageCodec compactCodec = new ChatMessageCodec("compact");
+
+    @Test
+    void encode_Compact_ShouldRoundTripAndBeSmallerThanJson() {
+        ChatMessageDto dto = ChatMessageDto.builder()
+                .type("ASSISTANT")
+                .content("多語內容 with \"quotes\" and : separators\n")
+                .metadata(Map.of("messageType", "ASSISTANT"))
+                .build();
+
+        String encoded = compactCodec.encode(dto);
+        String json = new ChatMessageCodec("json").encode(dto);
+
+        assertThat(encoded.charAt(0)).isEqualTo(ChatMessageCodec.COMPACT_MARKER);
+        assertThat(encoded.length()).isLessThan(json.length());
+        ChatMessageDto decoded = compactCodec.decode(encoded);
+        assertThat(decoded.getType()).isEqualTo("ASSISTANT");
+        assertThat(decoded.getContent()).isEqualTo(dto.getContent());
+        assertThat(decoded.getMetadata()).isNull();
+    }
+
+    @Test
+    void encode_Compact_ShouldKeepCustomMetadata() {
+        ChatMessageDto dto = ChatMessageDto.builder()
+                .type("USER")
+                .content("")
+                .metadata(Map.of("source", "webhook"))
+                .build();
+
+        ChatMessageDto decoded = compactCodec.decode(compactCodec.encode(dto));
+
+        assertThat(decoded.getContent()).isEmpty();
+        assertThat(decoded.getMetadata()).containsEntry("source", "webhook");
+    }
+
+    @Test
+    void encode_Compact_ShouldCarryTokenCountInHeader() {
+        ChatMessageDto dto = ChatMessageDto.builder().type("USER").content("hello").tokens(42L).build();
+
+        String encoded = compactCodec.encode(dto);
+
+        assertThat(encoded).startsWith("\u00012U42;5:");
+        assertThat(compactCodec.decode(encoded).getTokens()).isEqualTo(42L);
+    }
+
+    @Test
+    void decode_ShouldReadVersionOneEntries() {
+        ChatMessageDto decoded = compactCodec.decode("\u00011A5:hello");
+
+        assertThat(decoded.getType()).isEqualTo("ASSISTANT");
+        assertThat(decoded.getContent()).isEqualTo("hello");
+        assertThat(decoded.getTokens()).isNull();
+    }
+
+    @Test
+    void decode_ShouldReadLegacyJsonEntries() {
+        ChatMessageDto decoded = compactCodec.decode("{\"type\":\"SYSTEM\",\"content\":\"legacy\",\"metadata\":{}}");
+
+        assertThat(decoded.getType()).isEqualTo("SYSTEM");
+        assertThat(decoded.getContent()).isEqualTo("legacy");
+    }
+
+    @Test
+    void decode_WhenMalformed_ShouldReturnNull() {
+        assertThat(compactCodec.decode("invalid json")).isNull();
+        assertThat(compactCodec.decode("\u00019U3:ab")).isNull();
+        assertThat(compactCodec.decode("\u00011U9:ab")).isNull();
+        assertThat(compactCodec.decode("\u00012U1;9:ab")).isNull();
+    }
+}
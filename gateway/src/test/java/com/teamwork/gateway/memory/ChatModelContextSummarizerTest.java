@@ -0,0 +1,110 @@
+package com.teamwork.gateway.memory;
+
+import com.teamwork.gateway.agent.AgentConfigCache;
+import com.teamwork.gateway.ai.ChatModelFactory;
+import com.teamwork.gateway.entity.AiModel;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.model.Generation;
+import org.springframework.ai.chat.prompt.Prompt;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class ChatModelContextSummarizerTest {
+
+    @Mock
+    private AgentConfigCache agentConfigCache;
+
+    @Mock
+    private ChatModelFactory chatModelFactory;
+
+    @Mock
+    private ChatModel chatModel;
+
+    private ChatModelContextSummarizer summarizer;
+
+    @BeforeEach
+    void setUp() {
+        summarizer = new ChatModelContextSummarizer(agentConfigCache, chatModelFactory, 1000, 800);
+    }
+
+    @Test
+    void summarize_WhenTranscriptExceedsLimit_ShouldExtractEveryChunkBeforeFinalSummary() {
+        AiModel model = new AiModel();
+        when(agentConfigCache.resolveModel(null)).thenReturn(model);
+        when(chatModelFactory.createChatModel(model)).thenReturn(chatModel);
+        when(chatModel.call(any(Prompt.class))).thenReturn(response("extract"));
+        List<ChatMessageDto> messages = List.of(
+                message("USER", "a".repeat(600)),
+                message("ASSISTANT", "b".repeat(600)),
+                message("USER", "c".repeat(600)));
+
+        String summary = summarizer.summarize(new ContextSummaryRequest("task-1", 1, messages, 900L, 100L));
+
+        ArgumentCaptor<Prompt> prompts = ArgumentCaptor.forClass(Prompt.class);
+        verify(chatModel, times(4)).call(prompts.capture());
+        List<String> stageAInputs = prompts.getAllValues().subList(0, 3).stream()
+                .map(prompt -> prompt.getUserMessage().getText())
+                .toList();
+        assertThat(stageAInputs).anySatisfy(input -> assertThat(input).contains("a".repeat(600)));
+        assertThat(stageAInputs).anySatisfy(input -> assertThat(input).contains("b".repeat(600)));
+        assertThat(stageAInputs).anySatisfy(input -> assertThat(input).contains("c".repeat(600)));
+        assertThat(summary).startsWith("[AUTO_COMPRESSED]").endsWith("extract");
+    }
+
+    @Test
+    void summarize_ShouldUseProfileModelResolvedByConfigCache() {
+        AiModel model = new AiModel();
+        when(agentConfigCache.resolveModel("profile-a")).thenReturn(model);
+        when(chatModelFactory.createChatModel(model)).thenReturn(chatModel);
+        when(chatModel.call(any(Prompt.class))).thenReturn(response("extract"));
+
+        summarizer.summarize(new ContextSummaryRequest("task-1", 1, List.of(message("USER", "hello")), 10L, 5L)
+                .withProfileId("profile-a"));
+
+        verify(agentConfigCache).resolveModel("profile-a");
+        verify(chatModel, times(2)).call(any(Prompt.class));
+    }
+
+    @Test
+    void estimatedModelCalls_ShouldCountEveryStageAChunkPlusStageB() {
+        List<ChatMessageDto> messages = List.of(
+                message("USER", "a".repeat(600)),
+                message("ASSISTANT", "b".repeat(600)),
+                message("USER", "c".repeat(600)));
+
+        assertThat(summarizer.estimatedModelCalls(new ContextSummaryRequest("task-1", 1, messages, 900L, 100L)))
+                .isEqualTo(4);
+    }
+
+    @Test
+    void renderTranscriptChunks_WhenSingleMessageTooLong_ShouldSplitWithoutDroppingContent() {
+        String content = "x".repeat(2500);
+
+        List<String> chunks = summarizer.renderTranscriptChunks(List.of(message("TOOL", content)));
+
+        assertThat(chunks).hasSize(3).allSatisfy(chunk -> assertThat(chunk.length()).isLessThanOrEqualTo(1001));
+        assertThat(String.join("", chunks).replaceAll("[^x]", "")).isEqualTo(content);
+        assertThat(chunks.get(1)).startsWith("[TOOL] (續) ");
+    }
+
+    private ChatMessageDto message(String type, String content) {
+        return ChatMessageDto.builder().type(type).content(content).build();
+    }
+
+    private ChatResponse response(String text) {
+        return new ChatResponse(List.of(new Generation(new AssistantMessage(text))));
+    }
+}
@@ -1,5 +1,6 @@
 package com.teamwork.gateway.memory;
 
+import com.teamwork.gateway.ai.TokenEstimatorRegistry;
 import org.springframework.context.ApplicationEventPublisher;
 import com.teamwork.gateway.event.ContextCompressedEvent;
 import org.junit.jupiter.api.BeforeEach;
@@ -10,13 +11,18 @@ import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.mockito.junit.jupiter.MockitoSettings;
 import org.mockito.quality.Strictness;
-import org.springframework.data.redis.core.ListOperations;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ValueOperations;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
@@ -29,32 +35,43 @@ class ContextCompressionServiceTest {
     private StringRedisTemplate redisTemplate;
 
     @Mock
-    private ListOperations<String, String> listOperations;
+    private ChatMemoryStore messageStore;
 
     @Mock
     private ValueOperations<String, String> valueOperations;
 
+    @Mock
+    private ConversationNearCache nearCache;
+
+    @Mock
+    private ChatHistoryArchiver historyArchiver;
+
     @Mock
     private ApplicationEventPublisher eventPublisher;
 
+    private final ChatMessageCodec messageCodec = new ChatMessageCodec("compact");
+
+    private final TokenEstimatorRegistry tokenEstimatorRegistry = new TokenEstimatorRegistry("heuristic");
+
+    private final ContextSummarizationService summarizationService = new ContextSummarizationService(
+            new HeuristicContextSummarizer(), null, null, 1, 1, 1, 1000L);
+
     private ContextCompressionService contextCompressionService;
 
     @BeforeEach
     void setUp() {
-        when(redisTemplate.opsForList()).thenReturn(listOperations);
         when(redisTemplate.opsForValue()).thenReturn(valueOperations);
-        contextCompressionService = new ContextCompressionService(redisTemplate, eventPublisher, true, 10, 5, 1);
+        contextCompressionService = new ContextCompressionService(redisTemplate, messageStore, messageCodec, nearCache, historyArchiver, summarizationService, tokenEstimatorRegistry, eventPublisher, true, 10, 5, 1);
     }
 
     @Test
     void compressIfNeeded_WhenTokenBelowThreshold_ShouldDoNothing() {
-        String key = "chat:memory:task-1";
-        when(listOperations.size(key)).thenReturn(1L);
-        when(listOperations.range(key, 0, 0)).thenReturn(List.of("{\"type\":\"USER\",\"content\":\"hi\"}"));
+        when(messageStore.getTokenCount("task-1")).thenReturn(1L);
 
         contextCompressionService.compressIfNeeded("task-1");
 
-        verify(redisTemplate, never()).delete(key);
+        verify(messageStore, never()).readRangeVersioned(anyString(), anyLong(), eq(Integer.MAX_VALUE));
+        verify(messageStore, never()).replaceRange(anyString(), anyLong(), anyList(), anyList(), any(), anyLong());
         verify(valueOperations, never()).increment(anyString());
         ContextCompressionMetricsSnapshot snapshot = contextCompressionService.getMetricsSnapshot();
         assertThat(snapshot.attempts()).isEqualTo(1);
@@ -62,28 +79,53 @@ class ContextCompressionServiceTest {
     }
 
     @Test
-    void compressIfNeeded_WhenTokenOverThreshold_ShouldReplaceWithSummaryAndRetained() {
-        String key = "chat:memory:task-2";
-        when(listOperations.size(key)).thenReturn(3L);
-        when(listOperations.range(key, 0, 2)).thenReturn(List.of(
+    void compressIfNeeded_WhenKnownTokensBelowThreshold_ShouldNotTouchRedis() {
+        contextCompressionService.compressIfNeeded("task-1", 10L);
+
+        verifyNoInteractions(messageStore);
+        assertThat(contextCompressionService.getMetricsSnapshot().attempts()).isEqualTo(1);
+    }
+
+    @Test
+    void compressIfNeeded_WhenTokensUnknownAndBelowThreshold_ShouldSeedCounter() {
+        when(messageStore.readRangeVersioned("task-legacy", 0L, Integer.MAX_VALUE))
+                .thenReturn(versioned(0L, List.of("{\"type\":\"USER\",\"content\":\"hi\"}")));
+
+        contextCompressionService.compressIfNeeded("task-legacy", ChatMemoryStore.UNKNOWN_TOKENS);
+
+        verify(messageStore).setTokenCount("task-legacy", 1L);
+        verify(messageStore, never()).replaceRange(anyString(), anyLong(), anyList(), anyList(), any(), anyLong());
+    }
+
+    @Test
+    void compressIfNeeded_WhenTokenOverThreshold_ShouldReplacePrefixWithSummary() {
+        List<String> history = List.of(
                 "{\"type\":\"USER\",\"content\":\"12345678901234567890\"}",
                 "{\"type\":\"ASSISTANT\",\"content\":\"abcdefghijabcdefghij\"}",
-                "{\"type\":\"USER\",\"content\":\"retain-me\"}"));
+                "{\"type\":\"USER\",\"content\":\"retain-me\"}");
+        when(messageStore.size("task-2")).thenReturn(3L);
+        when(messageStore.readRangeVersioned("task-2", 0L, 2)).thenReturn(versioned(3L, history.subList(0, 2)));
+        when(messageStore.replaceRange(eq("task-2"), eq(0L), anyList(), anyList(), any(), anyLong())).thenReturn(true);
 
-        contextCompressionService.compressIfNeeded("task-2");
+        contextCompressionService.compressIfNeeded("task-2", 13L);
 
+        verify(messageStore, never()).readRangeVersioned(anyString(), anyLong(), eq(Integer.MAX_VALUE));
         @SuppressWarnings("unchecked")
         ArgumentCaptor<List<String>> captor = ArgumentCaptor.forClass(List.class);
-        verify(redisTemplate).delete(key);
-        verify(listOperations).rightPushAll(eq(key), captor.capture());
+        verify(messageStore).replaceRange(eq("task-2"), eq(0L), eq(history.subList(0, 2)), captor.capture(), any(), eq(3L));
         verify(valueOperations).increment("chat:memory:compression-count:task-2");
+        verify(nearCache).invalidate("task-2");
+        verify(historyArchiver).archiveCompacted("task-2", history.subList(0, 2));
         verify(eventPublisher).publishEvent(any(ContextCompressedEvent.class));
 
         List<String> stored = captor.getValue();
-        assertThat(stored).hasSize(2);
-        assertThat(stored.get(0)).contains("\"type\":\"SYSTEM\"").contains("AUTO_COMPRESSED");
-        assertThat(stored.get(0)).contains("1. 目標與範圍").contains("5. 下一步");
-        assertThat(stored.get(1)).contains("retain-me");
+        assertThat(stored).hasSize(1);
+        ChatMessageDto summary = messageCodec.decode(stored.get(0));
+        assertThat(summary.getType()).isEqualTo("SYSTEM");
+        assertThat(summary.getContent()).contains("AUTO_COMPRESSED");
+        assertThat(summary.getContent()).contains("1. 目標與範圍").contains("5. 下一步");
+        assertThat(summary.getContent()).doesNotContain("retain-me");
+        assertThat(summary.getMetadata()).containsEntry("summarizer", "heuristic").containsEntry("summaryLevel", 1);
 
         ContextCompressionMetricsSnapshot snapshot = contextCompressionService.getMetricsSnapshot();
         assertThat(snapshot.attempts()).isEqualTo(1);
@@ -93,6 +135,76 @@ class ContextCompressionServiceTest {
         assertThat(snapshot.averageSavedRatio()).isBetween(0.0, 1.0);
     }
 
+    @Test
+    void compressIfNeeded_WhenPrefixChangedConcurrently_ShouldSkipWithoutCounting() {
+        when(messageStore.size("task-4")).thenReturn(3L);
+        when(messageStore.readRangeVersioned("task-4", 0L, 2)).thenReturn(versioned(0L, List.of(
+                "{\"type\":\"USER\",\"content\":\"12345678901234567890\"}",
+                "{\"type\":\"ASSISTANT\",\"content\":\"abcdefghijabcdefghij\"}")));
+        when(messageStore.replaceRange(eq("task-4"), anyLong(), anyList(), anyList(), any(), anyLong())).thenReturn(false);
+
+        contextCompressionService.compressIfNeeded("task-4", 13L);
+
+        verify(valueOperations, never()).increment(anyString());
+        verifyNoInteractions(eventPublisher);
+        verifyNoInteractions(historyArchiver);
+        assertThat(contextCompressionService.getMetricsSnapshot().compressed()).isZero();
+        assertThat(contextCompressionService.getMetricsSnapshot().concurrentConflicts()).isEqualTo(1);
+    }
+
+    @Test
+    void compressIfNeeded_WhenPrefixStartsWithSummary_ShouldOnlySummarizeRawMessages() {
+        String previousSummary = encodedSummary(1, "old-summary-line");
+        List<String> history = List.of(
+                previousSummary,
+                "{\"type\":\"USER\",\"content\":\"12345678901234567890\"}",
+                "{\"type\":\"ASSISTANT\",\"content\":\"abcdefghijabcdefghij\"}",
+                "{\"type\":\"USER\",\"content\":\"retain-me\"}");
+        when(messageStore.size("task-5")).thenReturn(4L);
+        when(messageStore.readRangeVersioned("task-5", 0L, 3)).thenReturn(versioned(0L, history.subList(0, 3)));
+        when(messageStore.replaceRange(eq("task-5"), anyLong(), anyList(), anyList(), any(), anyLong())).thenReturn(true);
+
+        contextCompressionService.compressIfNeeded("task-5", 30L);
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<String>> captor = ArgumentCaptor.forClass(List.class);
+        verify(messageStore).replaceRange(eq("task-5"), eq(1L), eq(history.subList(1, 3)), captor.capture(), any(), anyLong());
+        verify(historyArchiver).archiveCompacted("task-5", history.subList(1, 3));
+        ChatMessageDto summary = messageCodec.decode(captor.getValue().get(0));
+        assertThat(summary.getContent()).doesNotContain("old-summary-line");
+        assertThat(ContextCompressionService.summaryLevel(summary)).isEqualTo(1);
+    }
+
+    @Test
+    void compressIfNeeded_WhenSegmentSummariesExceedFanIn_ShouldRollUpIntoLevelTwo() {
+        List<String> history = new ArrayList<>();
+        for (int index = 0; index < ContextCompressionService.DEFAULT_SUMMARY_FAN_IN; index++) {
+            history.add(encodedSummary(1, "segment-" + index));
+        }
+        history.add("{\"type\":\"USER\",\"content\":\"12345678901234567890\"}");
+        history.add("{\"type\":\"USER\",\"content\":\"retain-me\"}");
+        int fanIn = ContextCompressionService.DEFAULT_SUMMARY_FAN_IN;
+        when(messageStore.size("task-6")).thenReturn((long) history.size());
+        when(messageStore.readRangeVersioned("task-6", 0L, fanIn + 1)).thenReturn(versioned(7L, history.subList(0, fanIn + 1)));
+        when(messageStore.replaceRange(eq("task-6"), anyLong(), anyList(), anyList(), any(), anyLong())).thenReturn(true);
+
+        contextCompressionService.compressIfNeeded("task-6", 30L);
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<String>> currentCaptor = ArgumentCaptor.forClass(List.class);
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<String>> replacementCaptor = ArgumentCaptor.forClass(List.class);
+        verify(messageStore).replaceRange(eq("task-6"), eq((long) fanIn), eq(history.subList(fanIn, fanIn + 1)), anyList(), any(), eq(7L));
+        verify(messageStore).replaceRange(eq("task-6"), eq(0L), currentCaptor.capture(), replacementCaptor.capture(), any(), eq(8L));
+
+        // 既有 fan-in 筆 L1 加上本次新增的 L1，合併為一筆 L2
+        assertThat(currentCaptor.getValue()).hasSize(fanIn + 1).startsWith(history.subList(0, fanIn).toArray(String[]::new));
+        ChatMessageDto rolledUp = messageCodec.decode(replacementCaptor.getValue().get(0));
+        assertThat(ContextCompressionService.summaryLevel(rolledUp)).isEqualTo(2);
+        assertThat(rolledUp.getContent()).contains("level=L2").contains("segment-0");
+        verify(valueOperations, times(1)).increment("chat:memory:compression-count:task-6");
+    }
+
     @Test
     void getCompressionCount_WhenMissingOrInvalid_ShouldReturnZero() {
         when(valueOperations.get("chat:memory:compression-count:task-3")).thenReturn(null);
@@ -104,9 +216,8 @@ class ContextCompressionServiceTest {
 
     @Test
     void getMetricsSnapshot_WhenCompressionThrows_ShouldIncreaseFailureRate() {
-        String key = "chat:memory:task-failure";
-        when(listOperations.size(key)).thenReturn(2L);
-        when(listOperations.range(key, 0, 1)).thenThrow(new RuntimeException("redis-io"));
+        when(messageStore.getTokenCount("task-failure")).thenReturn(ChatMemoryStore.UNKNOWN_TOKENS);
+        when(messageStore.readRangeVersioned("task-failure", 0L, Integer.MAX_VALUE)).thenThrow(new RuntimeException("redis-io"));
 
         try {
             contextCompressionService.compressIfNeeded("task-failure");
@@ -118,4 +229,63 @@ class ContextCompressionServiceTest {
         assertThat(snapshot.failures()).isEqualTo(1);
         assertThat(snapshot.failureRate()).isEqualTo(1.0);
     }
+
+    private ChatMemoryStore.VersionedRange versioned(long version, List<String> entries) {
+        return new ChatMemoryStore.VersionedRange(version, entries);
+    }
+
+    private String encodedSummary(int level, String content) {
+        return messageCodec.encode(ChatMessageDto.builder()
+                .type("SYSTEM")
+                .content("[AUTO_COMPRESSED] conversationId=x, level=L" + level + "\n" + content)
+                .metadata(Map.of("compressed", true, "summaryLevel", level))
+                .tokens(5L)
+                .build());
+    }
+
+    @Test
+    void requestCompression_WhenBelowThreshold_ShouldReturnWithoutRedis() {
+        contextCompressionService.requestCompression("task-1", 3L);
+
+        verifyNoInteractions(messageStore);
+        assertThat(contextCompressionService.getMetricsSnapshot().attempts()).isEqualTo(1);
+    }
+
+    @Test
+    void requestCompression_WhenAsync_ShouldCoalesceRequestsForSameConversation() throws Exception {
+        ContextCompressionService asyncService = new ContextCompressionService(
+                redisTemplate, messageStore, messageCodec, nearCache, historyArchiver, summarizationService, tokenEstimatorRegistry, eventPublisher, true, 10, 5, 1, 4, true, 1, 10, 0L);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(messageStore.getTokenCount("task-1")).thenReturn(1L);
+        when(messageStore.readRangeVersioned("task-1", 0L, Integer.MAX_VALUE)).thenReturn(versioned(0L, List.of()));
+        doAnswer(invocation -> {
+            started.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return 1L;
+        }).doReturn(1L).when(messageStore).getTokenCount("task-1");
+
+        try {
+            asyncService.requestCompression("task-1", 50L);
+            assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+            // 執行中再收到兩次請求：合併為一次 dirty 重跑
+            asyncService.requestCompression("task-1", 60L);
+            asyncService.requestCompression("task-1", 70L);
+            release.countDown();
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (asyncService.getMetricsSnapshot().pendingConversations() > 0
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            ContextCompressionMetricsSnapshot snapshot = asyncService.getMetricsSnapshot();
+            assertThat(snapshot.pendingConversations()).isZero();
+            assertThat(snapshot.coalescedRequests()).isEqualTo(2);
+            assertThat(snapshot.rejectedRequests()).isZero();
+            verify(messageStore, times(2)).getTokenCount("task-1");
+        } finally {
+            asyncService.shutdown();
+        }
+    }
 }
@@ -0,0 +1,177 @@
+package com.teamwork.gateway.memory;
+
+import com.teamwork.gateway.entity.TaskRecord;
+import com.teamwork.gateway.repository.TaskRecordRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+class ContextSummarizationServiceTest {
+
+    @Mock
+    private ContextSummarizer modelSummarizer;
+
+    @Mock
+    private TaskRecordRepository taskRecordRepository;
+
+    private final HeuristicContextSummarizer heuristicSummarizer = new HeuristicContextSummarizer();
+
+    private ContextSummarizationService service;
+
+    @AfterEach
+    void tearDown() {
+        if (service != null) {
+            service.shutdown();
+        }
+    }
+
+    @Test
+    void summarize_WhenModelSucceeds_ShouldReturnModelSummary() {
+        when(modelSummarizer.name()).thenReturn("llm");
+        when(modelSummarizer.summarize(any())).thenReturn("[AUTO_COMPRESSED] model summary");
+        service = new ContextSummarizationService(heuristicSummarizer, modelSummarizer, taskRecordRepository, 1, 10, 1, 5000L);
+
+        ContextSummary summary = service.summarize(request("task-1"));
+
+        assertThat(summary.summarizer()).isEqualTo("llm");
+        assertThat(summary.content()).isEqualTo("[AUTO_COMPRESSED] model summary");
+        assertThat(service.getMetricsSnapshot().modelSummaries()).isEqualTo(1);
+        assertThat(service.getMetricsSnapshot().heuristicSummaries()).isZero();
+    }
+
+    @Test
+    void summarize_ShouldPassProfileToModelAndCacheItPerConversation() {
+        TaskRecord task = new TaskRecord();
+        task.setProfileId("profile-a");
+        when(taskRecordRepository.findById("task-1")).thenReturn(Optional.of(task));
+        when(modelSummarizer.name()).thenReturn("llm");
+        when(modelSummarizer.summarize(any())).thenReturn("[AUTO_COMPRESSED] model summary");
+        service = new ContextSummarizationService(heuristicSummarizer, modelSummarizer, taskRecordRepository, 1, 10, 1, 5000L);
+
+        service.summarize(request("task-1"));
+        service.summarize(request("task-1"));
+
+        verify(modelSummarizer, times(2)).summarize(argThat(request -> "profile-a".equals(request.profileId())));
+        verify(taskRecordRepository, times(1)).findById("task-1");
+    }
+
+    @Test
+    void summarize_WhenModelTimesOut_ShouldFallbackToHeuristicAndKeepPermitUntilWorkerExits() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        when(modelSummarizer.name()).thenReturn("llm");
+        when(modelSummarizer.estimatedModelCalls(any())).thenReturn(1);
+        when(modelSummarizer.summarize(any()))
+                .thenAnswer(invocation -> {
+                    // 模擬不理會中斷的 HTTP 呼叫
+                    while (release.getCount() > 0) {
+                        try {
+                            release.await(5, TimeUnit.SECONDS);
+                        } catch (InterruptedException ignored) {
+                            // 繼續等待
+                        }
+                    }
+                    return "late";
+                })
+                .thenReturn("[AUTO_COMPRESSED] second");
+        service = new ContextSummarizationService(heuristicSummarizer, modelSummarizer, taskRecordRepository, 2, 10, 1, 50L);
+
+        ContextSummary first = service.summarize(request("task-1"));
+
+        assertThat(first.summarizer()).isEqualTo("heuristic");
+        assertThat(first.content()).contains("[AUTO_COMPRESSED]").contains("1. 目標與範圍");
+        assertThat(service.getMetricsSnapshot().timeouts()).isEqualTo(1);
+
+        // worker 仍在執行，名額未歸還，同租戶只能使用 heuristic
+        assertThat(service.summarize(request("task-1")).summarizer()).isEqualTo("heuristic");
+        assertThat(service.getMetricsSnapshot().throttled()).isEqualTo(1);
+
+        release.countDown();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (service.availablePermits(ContextSummarizationService.DEFAULT_TENANT) == 0
+                && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertThat(service.summarize(request("task-1")).summarizer()).isEqualTo("llm");
+    }
+
+    @Test
+    void summarize_WhenSummaryNeedsSeveralModelCalls_ShouldScaleTimeout() {
+        when(modelSummarizer.name()).thenReturn("llm");
+        when(modelSummarizer.estimatedModelCalls(any())).thenReturn(20);
+        when(modelSummarizer.summarize(any())).thenAnswer(invocation -> {
+            Thread.sleep(150);
+            return "[AUTO_COMPRESSED] chunked";
+        });
+        service = new ContextSummarizationService(heuristicSummarizer, modelSummarizer, taskRecordRepository, 1, 10, 1, 50L);
+
+        ContextSummary summary = service.summarize(request("task-1"));
+
+        assertThat(summary.summarizer()).isEqualTo("llm");
+        assertThat(service.getMetricsSnapshot().timeouts()).isZero();
+    }
+
+    @Test
+    void summarize_WhenTenantAtCapacity_ShouldThrottleToHeuristic() throws Exception {
+        TaskRecord first = new TaskRecord();
+        first.setProfileId("profile-a");
+        TaskRecord second = new TaskRecord();
+        second.setProfileId("profile-a");
+        when(taskRecordRepository.findById("task-1")).thenReturn(Optional.of(first));
+        when(taskRecordRepository.findById("task-2")).thenReturn(Optional.of(second));
+
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(modelSummarizer.name()).thenReturn("llm");
+        when(modelSummarizer.summarize(any())).thenAnswer(invocation -> {
+            started.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return "[AUTO_COMPRESSED] model";
+        });
+        service = new ContextSummarizationService(heuristicSummarizer, modelSummarizer, taskRecordRepository, 2, 10, 1, 5000L);
+
+        Thread holder = new Thread(() -> service.summarize(request("task-1")));
+        holder.start();
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+
+        ContextSummary throttled = service.summarize(request("task-2"));
+        release.countDown();
+        holder.join(5000);
+
+        assertThat(throttled.summarizer()).isEqualTo("heuristic");
+        assertThat(service.getMetricsSnapshot().throttled()).isEqualTo(1);
+        verify(modelSummarizer, times(1)).summarize(any());
+    }
+
+    @Test
+    void summarize_WhenModelFails_ShouldFallbackToHeuristic() {
+        when(modelSummarizer.summarize(any())).thenThrow(new IllegalStateException("no active model"));
+        service = new ContextSummarizationService(heuristicSummarizer, modelSummarizer, null, 1, 10, 1, 5000L);
+
+        ContextSummary summary = service.summarize(request("task-1"));
+
+        assertThat(summary.summarizer()).isEqualTo("heuristic");
+        assertThat(service.getMetricsSnapshot().errors()).isEqualTo(1);
+    }
+
+    private ContextSummaryRequest request(String conversationId) {
+        return new ContextSummaryRequest(conversationId, 1, List.of(
+                ChatMessageDto.builder().type("USER").content("請整理需求").build(),
+                ChatMessageDto.builder().type("ASSISTANT").content("決定採用 Redis").build()),
+                100L, 50L);
+    }
+}
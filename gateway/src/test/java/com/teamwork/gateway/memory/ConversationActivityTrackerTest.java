@@ -0,0 +1,38 @@
+package com.teamwork.gateway.memory;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class ConversationActivityTrackerTest {
+
+    @Mock
+    private ChatMemoryStore messageStore;
+
+    private final AtomicLong now = new AtomicLong(1_000_000L);
+
+    @Test
+    void touch_ShouldWriteAtMostOncePerIntervalForEachConversation() {
+        ConversationActivityTracker tracker = new ConversationActivityTracker(messageStore, 60_000L, now::get);
+
+        tracker.touch("c1");
+        now.addAndGet(30_000L);
+        tracker.touch("c1");
+        tracker.touch("c2");
+        now.addAndGet(30_000L);
+        tracker.touch("c1");
+
+        verify(messageStore).touch("c1", 1_000_000L);
+        verify(messageStore).touch("c2", 1_030_000L);
+        verify(messageStore).touch("c1", 1_060_000L);
+        verifyNoMoreInteractions(messageStore);
+        assertThat(tracker.getMetricsSnapshot()).isEqualTo(new ConversationActivityMetricsSnapshot(3L, 1L));
+    }
+}
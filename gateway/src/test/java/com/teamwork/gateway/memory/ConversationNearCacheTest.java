@@ -0,0 +1,138 @@
+package com.teamwork.gateway.memory;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.data.redis.connection.DefaultMessage;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+class ConversationNearCacheTest {
+
+    private final AtomicLong now = new AtomicLong(1_000L);
+    private final ConversationNearCache nearCache = new ConversationNearCache(null, true, 2, 100L, 3, now::get);
+
+    @Test
+    void get_WhenPartialTailCached_ShouldOnlyServeCoveredRange() {
+        putFresh("c1", 2, new ChatMemoryWindow(List.of(user("m4"), user("m5")), 5L));
+
+        assertThat(nearCache.get("c1", 1).messages()).extracting(Message::getText).containsExactly("m5");
+        assertThat(nearCache.get("c1", 2).totalSize()).isEqualTo(5L);
+        assertThat(nearCache.get("c1", 3)).isNull();
+
+        ConversationNearCacheMetricsSnapshot snapshot = nearCache.getMetricsSnapshot();
+        assertThat(snapshot.hits()).isEqualTo(2);
+        assertThat(snapshot.misses()).isEqualTo(1);
+    }
+
+    @Test
+    void append_ShouldWriteThroughAndKeepBoundedTail() {
+        putFresh("c1", Integer.MAX_VALUE, new ChatMemoryWindow(List.of(user("m1"), user("m2")), 2L));
+
+        nearCache.append("c1", List.of(user("m3"), new AssistantMessage("m4")), 4L);
+
+        ChatMemoryWindow window = nearCache.get("c1", 3);
+        assertThat(window.messages()).extracting(Message::getText).containsExactly("m2", "m3", "m4");
+        assertThat(window.totalSize()).isEqualTo(4L);
+        // 超過單一對話上限後不再視為完整
+        assertThat(nearCache.get("c1", Integer.MAX_VALUE)).isNull();
+    }
+
+    @Test
+    void getWithinTokenBudget_ShouldStopAtBudgetOrMissWhenTailTooShort() {
+        putFresh("c1", 2, new ChatMemoryWindow(List.of(user("aaaa"), user("bb")), 5L));
+
+        ChatMemoryWindow window = nearCache.getWithinTokenBudget("c1", 3L, message -> message.getText().length());
+        assertThat(window.messages()).extracting(Message::getText).containsExactly("bb");
+
+        // 預算足以吃下整段快取，但快取並非完整對話：必須回源
+        assertThat(nearCache.getWithinTokenBudget("c1", 100L, message -> message.getText().length())).isNull();
+    }
+
+    @Test
+    void append_WhenSizeDiverges_ShouldInvalidate() {
+        putFresh("c1", Integer.MAX_VALUE, new ChatMemoryWindow(List.of(user("m1")), 1L));
+
+        nearCache.append("c1", List.of(user("m3")), 3L);
+
+        assertThat(nearCache.get("c1", 1)).isNull();
+        assertThat(nearCache.getMetricsSnapshot().invalidations()).isEqualTo(1);
+    }
+
+    @Test
+    void get_WhenExpiredOrEvicted_ShouldMiss() {
+        putFresh("c1", 1, new ChatMemoryWindow(List.of(user("a")), 1L));
+        now.addAndGet(100L);
+        assertThat(nearCache.get("c1", 1)).isNull();
+
+        putFresh("c1", 1, new ChatMemoryWindow(List.of(user("a")), 1L));
+        putFresh("c2", 1, new ChatMemoryWindow(List.of(user("b")), 1L));
+        putFresh("c3", 1, new ChatMemoryWindow(List.of(user("c")), 1L));
+
+        assertThat(nearCache.get("c1", 1)).isNull();
+        assertThat(nearCache.get("c3", 1)).isNotNull();
+        assertThat(nearCache.getMetricsSnapshot().evictions()).isEqualTo(1);
+        assertThat(nearCache.getMetricsSnapshot().size()).isEqualTo(2);
+    }
+
+    @Test
+    void put_WhenInvalidatedDuringRead_ShouldRejectStaleWindow() {
+        long stamp = nearCache.readStamp();
+        nearCache.invalidate("c1");
+
+        nearCache.put("c1", 1, new ChatMemoryWindow(List.of(user("old")), 1L), 0L, stamp);
+
+        assertThat(nearCache.get("c1", 1)).isNull();
+        assertThat(nearCache.getMetricsSnapshot().staleRejections()).isEqualTo(1);
+
+        nearCache.put("c1", 1, new ChatMemoryWindow(List.of(user("new")), 1L), 1L, nearCache.readStamp());
+        assertThat(nearCache.get("c1", 1).messages()).extracting(Message::getText).containsExactly("new");
+    }
+
+    @Test
+    void put_WhenOlderVersionOrShorterSnapshot_ShouldKeepNewerEntry() {
+        nearCache.put("c1", 1, new ChatMemoryWindow(List.of(user("v2")), 3L), 2L, nearCache.readStamp());
+
+        nearCache.put("c1", 1, new ChatMemoryWindow(List.of(user("v1")), 5L), 1L, nearCache.readStamp());
+        nearCache.put("c1", 1, new ChatMemoryWindow(List.of(user("short")), 2L), 2L, nearCache.readStamp());
+
+        assertThat(nearCache.get("c1", 1).messages()).extracting(Message::getText).containsExactly("v2");
+        assertThat(nearCache.getMetricsSnapshot().staleRejections()).isEqualTo(2);
+    }
+
+    @Test
+    void invalidate_ShouldBroadcastAndRemoteMessageShouldInvalidateLocally() {
+        StringRedisTemplate redisTemplate = mock(StringRedisTemplate.class);
+        ConversationNearCache broadcasting = new ConversationNearCache(redisTemplate, true, 2, 100L, 3, now::get);
+        broadcasting.put("c1", 1, new ChatMemoryWindow(List.of(user("a")), 1L), 0L, broadcasting.readStamp());
+        broadcasting.put("c2", 1, new ChatMemoryWindow(List.of(user("b")), 1L), 0L, broadcasting.readStamp());
+
+        broadcasting.invalidate("c1");
+        long stamp = broadcasting.readStamp();
+        broadcasting.onMessage(new DefaultMessage(
+                ConversationNearCache.CHANNEL.getBytes(StandardCharsets.UTF_8),
+                "c2".getBytes(StandardCharsets.UTF_8)), null);
+        broadcasting.put("c2", 1, new ChatMemoryWindow(List.of(user("b")), 1L), 0L, stamp);
+
+        verify(redisTemplate).convertAndSend(ConversationNearCache.CHANNEL, "c1");
+        assertThat(broadcasting.get("c1", 1)).isNull();
+        assertThat(broadcasting.get("c2", 1)).isNull();
+        assertThat(broadcasting.getMetricsSnapshot().remoteInvalidations()).isEqualTo(1);
+    }
+
+    private void putFresh(String conversationId, int requestedN, ChatMemoryWindow window) {
+        nearCache.put(conversationId, requestedN, window, 0L, nearCache.readStamp());
+    }
+
+    private Message user(String text) {
+        return new UserMessage(text);
+    }
+}
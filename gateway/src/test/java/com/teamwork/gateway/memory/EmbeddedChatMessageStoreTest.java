@@ -0,0 +1,206 @@
+package com.teamwork.gateway.memory;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class EmbeddedChatMessageStoreTest {
+
+    @TempDir
+    private Path dir;
+
+    private EmbeddedChatMessageStore store;
+
+    @BeforeEach
+    void setUp() {
+        store = newStore();
+    }
+
+    @Test
+    void append_ShouldServeTailRangeAndCountsAcrossSegments() {
+        List<String> entries = new ArrayList<>();
+        for (int index = 0; index < 500; index++) {
+            entries.add("message-" + index + "-" + "x".repeat(20));
+        }
+        ChatMemoryStore.AppendResult result = store.append("c1", entries, 500L);
+
+        assertThat(result.size()).isEqualTo(500L);
+        assertThat(result.tokens()).isEqualTo(500L);
+        assertThat(store.size("c1")).isEqualTo(500L);
+        assertThat(store.tail("c1", 2).entries()).containsExactly(entries.get(498), entries.get(499));
+        assertThat(store.readRange("c1", 250L, 3)).containsExactlyElementsOf(entries.subList(250, 253));
+        assertThat(store.readRange("c1", 600L, 3)).isEmpty();
+        assertThat(store.tail("missing", 5)).isSameAs(ChatMemoryStore.TailSlice.EMPTY);
+        assertThat(store.estimateBytes("c1")).isGreaterThanOrEqualTo(500L * entries.getFirst().length());
+        assertThat(store.estimateBytes("missing")).isZero();
+    }
+
+    @Test
+    void append_ShouldSurviveRestart() {
+        store.append("c1", List.of("a", "b"), 2L);
+        store.flush();
+
+        EmbeddedChatMessageStore reopened = newStore();
+
+        assertThat(reopened.getStats(List.of("c1")).get("c1").bytes()).isEqualTo(10L);
+        assertThat(reopened.readAll("c1")).containsExactly("a", "b");
+        assertThat(reopened.getTokenCount("c1")).isEqualTo(2L);
+        reopened.append("c1", List.of("c"), 1L);
+        assertThat(reopened.readAll("c1")).containsExactly("a", "b", "c");
+        assertThat(reopened.estimateBytes("c1")).isEqualTo(15L);
+    }
+
+    @Test
+    void tailWithinTokenBudget_ShouldUseEncodedTokenPrefix() {
+        ChatMessageCodec codec = new ChatMessageCodec("compact");
+        String first = codec.encode(ChatMessageDto.builder().type("USER").content("first").tokens(6L).build());
+        String second = codec.encode(ChatMessageDto.builder().type("USER").content("second").tokens(5L).build());
+        store.append("c1", List.of(first, second), 11L);
+
+        ChatMemoryStore.BudgetSlice slice = store.tailWithinTokenBudget("c1", 10L);
+
+        assertThat(slice.entries()).containsExactly(second);
+        assertThat(slice.usedTokens()).isEqualTo(5L);
+        assertThat(slice.totalSize()).isEqualTo(2L);
+    }
+
+    @Test
+    void replaceRange_ShouldRejectStaleVersionAndPersistRewrite() {
+        store.append("c1", List.of("a", "b", "c", "d"), 40L);
+        ChatMemoryStore.VersionedRange prefix = store.readRangeVersioned("c1", 0L, 2);
+
+        assertThat(store.replaceRange("c1", 0L, prefix.entries(), List.of("s"), -15L, prefix.version())).isTrue();
+        assertThat(store.replaceRange("c1", 1L, List.of("c"), List.of(), -10L, prefix.version())).isFalse();
+
+        EmbeddedChatMessageStore reopened = newStore();
+        assertThat(reopened.readAll("c1")).containsExactly("s", "c", "d");
+        assertThat(reopened.getTokenCount("c1")).isEqualTo(25L);
+        assertThat(reopened.readRangeVersioned("c1", 0L, 1).version()).isEqualTo(prefix.version() + 1);
+        assertThat(store.getContentionMetricsSnapshot().conflicts()).isEqualTo(1L);
+    }
+
+    @Test
+    void deletePositions_ShouldCompareSnapshotsBeforeDeleting() {
+        store.append("c1", List.of("a", "b", "c", "d"), 4L);
+        BitSet positions = new BitSet();
+        positions.set(1);
+        positions.set(3);
+
+        assertThat(store.deletePositions("c1", positions, List.of("b", "x"), -2L, ChatMemoryStore.ANY_VERSION)).isFalse();
+        assertThat(store.deletePositions("c1", positions, List.of("b", "d"), -2L, 0L)).isTrue();
+        assertThat(store.readAll("c1")).containsExactly("a", "c");
+        assertThat(store.removeRange("c1", 0L, 2L, "a", "c", null, 1L)).isTrue();
+        assertThat(store.size("c1")).isZero();
+        assertThat(store.getTokenCount("c1")).isEqualTo(ChatMemoryStore.UNKNOWN_TOKENS);
+    }
+
+    @Test
+    void evictAndRestore_ShouldKeepArchivedMarkerAndStats() {
+        store.append("c1", List.of("a", "b"), 8L);
+        Long lastActive = store.getLastActiveAt("c1");
+
+        assertThat(store.evictArchived("c1", lastActive, 2L)).isTrue();
+        assertThat(store.tail("c1", 5).archived()).isTrue();
+        assertThat(store.append("c1", List.of("c"), 1L).archived()).isTrue();
+        assertThat(newStore().getStats(List.of("c1")))
+                .containsEntry("c1", new ChatMemoryStore.ConversationStats(2L, 8L, 0L, true));
+
+        assertThat(store.restoreArchived("c1", List.of("a", "b"), 8L)).isTrue();
+        assertThat(store.restoreArchived("c1", List.of("a", "b"), 8L)).isFalse();
+        assertThat(store.readAll("c1")).containsExactly("a", "b");
+        assertThat(store.getStats(List.of("c1", "missing"))).containsExactly(
+                Map.entry("c1", new ChatMemoryStore.ConversationStats(2L, 8L, 10L, false)),
+                Map.entry("missing", new ChatMemoryStore.ConversationStats(0L, ChatMemoryStore.UNKNOWN_TOKENS, 0L, false)));
+    }
+
+    @Test
+    void touch_ShouldOnlyMoveLastActiveForwardOnLiveConversations() {
+        store.append("c1", List.of("a"), 1L);
+        long lastActive = store.getLastActiveAt("c1");
+
+        store.touch("c1", lastActive + 60_000L);
+        store.touch("c1", lastActive);
+        store.touch("missing", lastActive + 60_000L);
+
+        assertThat(store.getLastActiveAt("c1")).isEqualTo(lastActive + 60_000L);
+        assertThat(store.getStats(List.of("missing")).get("missing").messageCount()).isZero();
+        assertThat(store.evictArchived("c1", lastActive + 60_000L, 1L)).isTrue();
+        store.touch("c1", lastActive + 120_000L);
+        assertThat(store.tail("c1", 1).archived()).isTrue();
+    }
+
+    @Test
+    void clear_ShouldRemoveConversationFromScan() {
+        store.append("c1", List.of("a"), 1L);
+        store.append("c2", List.of("b"), 1L);
+
+        store.clear("c1");
+
+        List<String> ids = new ArrayList<>();
+        store.scanConversationIds(10, ids::add);
+        assertThat(ids).containsExactly("c2");
+        assertThat(store.size("c1")).isZero();
+    }
+
+    @Test
+    void append_ShouldGrowSegmentsGeometricallyUpToConfiguredSize() throws Exception {
+        EmbeddedChatMessageStore growing = new EmbeddedChatMessageStore(dir.toString(), 65536, 1, false);
+        String entry = "y".repeat(1020);
+        List<String> entries = new ArrayList<>();
+        for (int index = 0; index < 200; index++) {
+            entries.add(entry);
+        }
+
+        growing.append("c1", entries, 200L);
+
+        List<Long> sizes;
+        try (Stream<Path> files = Files.list(onlyConversationDir())) {
+            sizes = files.filter(file -> file.getFileName().toString().endsWith(".seg"))
+                    .sorted()
+                    .map(file -> file.toFile().length())
+                    .toList();
+        }
+        assertThat(sizes).startsWith(16384L, 32768L, 65536L).allMatch(size -> size <= 65536L);
+        assertThat(growing.readAll("c1")).hasSize(200);
+    }
+
+    @Test
+    void rewriteAndClear_ShouldReleaseAndDeleteMappedFiles() throws Exception {
+        store.append("c1", List.of("a", "b", "c"), 3L);
+        Path conversationDir = onlyConversationDir();
+        ChatMemoryStore.VersionedRange prefix = store.readRangeVersioned("c1", 0L, 2);
+
+        assertThat(store.replaceRange("c1", 0L, prefix.entries(), List.of("s"), 0L, prefix.version())).isTrue();
+
+        try (Stream<Path> files = Files.list(conversationDir)) {
+            assertThat(files.map(file -> file.getFileName().toString()).filter(name -> name.endsWith(".seg")))
+                    .allMatch(name -> name.startsWith("1-"));
+        }
+        assertThat(store.readAll("c1")).containsExactly("s", "c");
+
+        store.clear("c1");
+
+        assertThat(conversationDir).doesNotExist();
+    }
+
+    private Path onlyConversationDir() throws IOException {
+        try (Stream<Path> directories = Files.list(dir)) {
+            return directories.filter(Files::isDirectory).findFirst().orElseThrow();
+        }
+    }
+
+    private EmbeddedChatMessageStore newStore() {
+        return new EmbeddedChatMessageStore(dir.toString(), 4096, 1, false);
+    }
+}
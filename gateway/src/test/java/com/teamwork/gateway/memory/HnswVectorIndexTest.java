@@ -0,0 +1,85 @@
+package com.teamwork.gateway.memory;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.within;
+
+class HnswVectorIndexTest {
+
+    private static final int DIMENSIONS = 32;
+
+    @Test
+    void search_ShouldMatchBruteForceTopResultsForMostQueries() {
+        Random random = new Random(42L);
+        HnswVectorIndex<Integer> index = new HnswVectorIndex<>(DIMENSIONS, 16, 100, 64);
+        List<float[]> vectors = new ArrayList<>();
+        for (int id = 0; id < 2000; id++) {
+            float[] vector = randomVector(random);
+            vectors.add(vector);
+            index.add(vector, id);
+        }
+
+        int found = 0;
+        int queries = 50;
+        for (int query = 0; query < queries; query++) {
+            float[] vector = randomVector(random);
+            List<Integer> expected = bruteForce(vectors, vector, 5);
+            List<Integer> actual = index.search(vector, 5).stream().map(HnswVectorIndex.Match::payload).toList();
+            found += (int) actual.stream().filter(expected::contains).count();
+        }
+
+        assertThat(index.size()).isEqualTo(2000);
+        assertThat(found / (double) (queries * 5)).isGreaterThan(0.9);
+    }
+
+    @Test
+    void search_ShouldReturnExactVectorFirstAndHandleEmptyIndex() {
+        HnswVectorIndex<String> index = new HnswVectorIndex<>(3, 4, 10, 10);
+        assertThat(index.search(new float[]{1f, 0f, 0f}, 3)).isEmpty();
+
+        index.add(new float[]{1f, 0f, 0f}, "x");
+        index.add(new float[]{0f, 1f, 0f}, "y");
+        index.add(new float[]{0f, 0f, 2f}, "z");
+
+        List<HnswVectorIndex.Match<String>> matches = index.search(new float[]{0f, 0f, 5f}, 2);
+        assertThat(matches).hasSize(2);
+        assertThat(matches.getFirst().payload()).isEqualTo("z");
+        assertThat(matches.getFirst().similarity()).isCloseTo(1.0, within(1e-6));
+        assertThatThrownBy(() -> index.add(new float[]{1f}, "bad")).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private static float[] randomVector(Random random) {
+        float[] vector = new float[DIMENSIONS];
+        for (int index = 0; index < DIMENSIONS; index++) {
+            vector[index] = (float) random.nextGaussian();
+        }
+        return vector;
+    }
+
+    private static List<Integer> bruteForce(List<float[]> vectors, float[] query, int k) {
+        return IntStream.range(0, vectors.size()).boxed()
+                .sorted(Comparator.comparingDouble((Integer id) -> cosine(vectors.get(id), query)).reversed())
+                .limit(k)
+                .toList();
+    }
+
+    private static double cosine(float[] left, float[] right) {
+        double dot = 0.0;
+        double leftNorm = 0.0;
+        double rightNorm = 0.0;
+        for (int index = 0; index < left.length; index++) {
+            dot += left[index] * right[index];
+            leftNorm += left[index] * left[index];
+            rightNorm += right[index] * right[index];
+        }
+        return dot / Math.sqrt(leftNorm * rightNorm);
+    }
+}
@@ -0,0 +1,152 @@
+package com.teamwork.gateway.memory;
+
+import com.teamwork.gateway.entity.ChatMessageArchive;
+import com.teamwork.gateway.event.ContextSegmentCompactedEvent;
+import com.teamwork.gateway.repository.ChatMessageArchiveRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+class LongTermMemoryServiceTest {
+
+    @Mock
+    private ChatMessageArchiveRepository archiveRepository;
+
+    private final ChatMessageCodec messageCodec = new ChatMessageCodec("compact");
+    private LongTermMemoryService service;
+
+    @BeforeEach
+    void setUp() {
+        service = newService(true);
+        when(archiveRepository.findByConversationIdAndReasonOrderBySeqAsc(anyString(), anyString()))
+                .thenReturn(List.of());
+    }
+
+    @Test
+    void retrieve_ShouldRebuildFromCompactedArchiveOnFirstUseThenReturnRelevantSnippet() {
+        when(archiveRepository.findByConversationIdAndReasonOrderBySeqAsc("c1", ChatHistoryArchiver.REASON_COMPACTED))
+                .thenReturn(List.of(
+                        archive("USER", "The production database password rotation runs every Friday"),
+                        archive("ASSISTANT", "Noted, rotation happens on Friday night"),
+                        archive("USER", "我們的部署流程使用 Kubernetes 與 Helm chart")));
+
+        // 同步執行下第一次檢索即完成重建；正式環境由背景 worker 重建，這次回傳空結果
+        service.retrieve("c1", "warmup");
+        List<MemorySnippet> snippets = service.retrieve("c1", "when does password rotation run?");
+
+        assertThat(snippets).isNotEmpty();
+        assertThat(snippets.getFirst().content()).contains("password rotation");
+        assertThat(service.retrieve("c1", "Kubernetes 部署").getFirst().content()).contains("Helm");
+        verify(archiveRepository, times(1))
+                .findByConversationIdAndReasonOrderBySeqAsc("c1", ChatHistoryArchiver.REASON_COMPACTED);
+        assertThat(service.getMetricsSnapshot().rebuilds()).isEqualTo(1L);
+    }
+
+    @Test
+    void onSegmentCompacted_ShouldAppendToLoadedIndexWithoutReloadingArchive() {
+        service.retrieve("c1", "warmup");
+
+        service.onSegmentCompacted(new ContextSegmentCompactedEvent(this, "c1", List.of(
+                dto("USER", "Remember that the invoice number is INV-2041"),
+                dto("ASSISTANT", "Invoice INV-2041 saved"))));
+
+        assertThat(service.retrieve("c1", "what is the invoice number").getFirst().content()).contains("INV-2041");
+        verify(archiveRepository, times(1)).findByConversationIdAndReasonOrderBySeqAsc(eq("c1"), anyString());
+        assertThat(service.getMetricsSnapshot().indexedChunks()).isEqualTo(1L);
+    }
+
+    @Test
+    void onSegmentCompacted_WhenIndexNotLoaded_ShouldIndexEventMessagesMissingFromArchive() {
+        service.onSegmentCompacted(new ContextSegmentCompactedEvent(this, "c1", List.of(
+                dto("USER", "Remember that the invoice number is INV-2041"))));
+
+        assertThat(service.retrieve("c1", "what is the invoice number").getFirst().content()).contains("INV-2041");
+        assertThat(service.getMetricsSnapshot().rebuilds()).isEqualTo(1L);
+    }
+
+    @Test
+    void onSegmentCompacted_WhenArchiveAlreadyHoldsSegment_ShouldNotIndexItTwice() {
+        when(archiveRepository.findByConversationIdAndReasonOrderBySeqAsc("c2", ChatHistoryArchiver.REASON_COMPACTED))
+                .thenReturn(List.of(archive("USER", "Deploys are frozen during the December release window")));
+
+        service.onSegmentCompacted(new ContextSegmentCompactedEvent(this, "c2", List.of(
+                dto("USER", "Deploys are frozen during the December release window"))));
+
+        assertThat(service.getMetricsSnapshot().indexedChunks()).isEqualTo(1L);
+    }
+
+    @Test
+    void retrieve_ShouldFilterLowSimilarityAndSkipWhenDisabled() {
+        service.onSegmentCompacted(new ContextSegmentCompactedEvent(this, "c1", List.of(
+                dto("USER", "alpha beta gamma"))));
+
+        assertThat(service.retrieve("c1", "completely unrelated words")).isEmpty();
+        assertThat(newService(false).retrieve("c1", "alpha beta gamma")).isEmpty();
+    }
+
+    @Test
+    void forget_ShouldDropIndex() {
+        service.onSegmentCompacted(new ContextSegmentCompactedEvent(this, "c1", List.of(dto("USER", "alpha beta"))));
+
+        service.forget("c1");
+
+        assertThat(service.getMetricsSnapshot().loadedConversations()).isZero();
+    }
+
+    @Test
+    void retrieve_AfterAllHistoryDeleted_ShouldReturnNothing() {
+        when(archiveRepository.findByConversationIdAndReasonOrderBySeqAsc("c3", ChatHistoryArchiver.REASON_COMPACTED))
+                .thenReturn(List.of(archive("USER", "The staging API key is rotated on Monday")));
+        service.retrieve("c3", "warmup");
+        assertThat(service.retrieve("c3", "when is the staging API key rotated")).isNotEmpty();
+
+        // ALL_HISTORY：先清除封存、再丟棄索引，之後的檢索只能由已清空的封存重建
+        when(archiveRepository.findByConversationIdAndReasonOrderBySeqAsc("c3", ChatHistoryArchiver.REASON_COMPACTED))
+                .thenReturn(List.of());
+        service.forget("c3");
+
+        assertThat(service.retrieve("c3", "when is the staging API key rotated")).isEmpty();
+        assertThat(service.retrieve("c3", "staging API key")).isEmpty();
+    }
+
+    @Test
+    void chunk_ShouldGroupMessagesUpToChunkSizeAndTruncateLongOnes() {
+        List<String> chunks = service.chunk(List.of(
+                dto("USER", "a".repeat(60)),
+                dto("ASSISTANT", "b".repeat(20)),
+                dto("SYSTEM", " "),
+                dto("USER", "c".repeat(500))));
+
+        assertThat(chunks).hasSize(2);
+        assertThat(chunks.getFirst()).startsWith("USER: a").contains("\nASSISTANT: b");
+        assertThat(chunks.get(1)).hasSize(100);
+    }
+
+    private LongTermMemoryService newService(boolean enabled) {
+        return new LongTermMemoryService(new HashingTextEmbedder(256), archiveRepository, messageCodec,
+                enabled, 2, 0.2, 100, 100, 10, 8, 32, 32, null);
+    }
+
+    private ChatMessageArchive archive(String type, String content) {
+        ChatMessageArchive archive = new ChatMessageArchive();
+        archive.setPayload(messageCodec.encode(dto(type, content)));
+        return archive;
+    }
+
+    private static ChatMessageDto dto(String type, String content) {
+        return ChatMessageDto.builder().type(type).content(content).build();
+    }
+}
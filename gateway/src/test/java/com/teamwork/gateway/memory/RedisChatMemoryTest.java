@@ -1,25 +1,25 @@
 package com.teamwork.gateway.memory;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.ai.chat.messages.AssistantMessage;
 import org.springframework.ai.chat.messages.Message;
 import org.springframework.ai.chat.messages.UserMessage;
-import org.springframework.data.redis.core.ListOperations;
-import org.springframework.data.redis.core.StringRedisTemplate;
 
 import java.util.Collections;
 import java.util.List;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 
@@ -27,32 +27,40 @@ import static org.mockito.Mockito.*;
 class RedisChatMemoryTest {
 
     @Mock
-    private StringRedisTemplate redisTemplate;
+    private ChatMemoryStore messageStore;
 
     @Mock
-    private ListOperations<String, String> listOperations;
+    private ContextCompressionService contextCompressionService;
 
     @Mock
-    private ContextCompressionService contextCompressionService;
+    private ConversationNearCache nearCache;
+
+    @Mock
+    private ChatHistoryArchiver historyArchiver;
+
+    @Mock
+    private LongTermMemoryService longTermMemoryService;
+
+    @Mock
+    private ConversationActivityTracker activityTracker;
+
+    @Spy
+    private ChatMessageCodec messageCodec = new ChatMessageCodec("compact");
 
     @InjectMocks
     private RedisChatMemory redisChatMemory;
 
     private static final String CONVERSATION_ID = "test-chat-123";
-    private static final String REDIS_KEY = "chat:memory:" + CONVERSATION_ID;
-
-    @BeforeEach
-    void setUp() {
-        // leniency for the case get() does not need to push
-        lenient().when(redisTemplate.opsForList()).thenReturn(listOperations);
-    }
 
     @Test
-    void add_GivenMessages_ShouldPushToRedisAsJson() {
+    void add_GivenMessages_ShouldPushEncodedMessages() {
         // Arrange
         Message userMessage = new UserMessage("Hello");
         Message aiMessage = new AssistantMessage("Hi there!");
         List<Message> messages = List.of(userMessage, aiMessage);
+        when(contextCompressionService.estimateTokens(anyString())).thenReturn(3L);
+        when(messageStore.append(eq(CONVERSATION_ID), anyList(), eq(6L)))
+                .thenReturn(new ChatMemoryStore.AppendResult(2L, 6L));
 
         // Act
         redisChatMemory.add(CONVERSATION_ID, messages);
@@ -60,19 +68,36 @@ class RedisChatMemoryTest {
         // Assert
         @SuppressWarnings("unchecked")
         ArgumentCaptor<List<String>> captor = ArgumentCaptor.forClass(List.class);
-        verify(listOperations).rightPushAll(eq(REDIS_KEY), captor.capture());
+        verify(messageStore).append(eq(CONVERSATION_ID), captor.capture(), eq(6L));
+
+        List<String> pushed = captor.getValue();
+        assertThat(pushed).hasSize(2);
+        assertThat(messageCodec.decode(pushed.get(0)).getTokens()).isEqualTo(3L);
+        assertThat(messageCodec.decode(pushed.get(0)))
+                .extracting(ChatMessageDto::getType, ChatMessageDto::getContent)
+                .containsExactly("USER", "Hello");
+        assertThat(messageCodec.decode(pushed.get(1)))
+                .extracting(ChatMessageDto::getType, ChatMessageDto::getContent)
+                .containsExactly("ASSISTANT", "Hi there!");
+        verify(contextCompressionService).requestCompression(CONVERSATION_ID, 6L);
+        verify(nearCache).append(eq(CONVERSATION_ID), anyList(), eq(2L));
+    }
+
+    @Test
+    void add_WhenNoMessages_ShouldSkipRedisAndCompression() {
+        // Act
+        redisChatMemory.add(CONVERSATION_ID, List.of());
 
-        List<String> pushedJson = captor.getValue();
-        assertThat(pushedJson).hasSize(2);
-        assertThat(pushedJson.get(0)).contains("\"type\":\"USER\"").contains("\"content\":\"Hello\"");
-        assertThat(pushedJson.get(1)).contains("\"type\":\"ASSISTANT\"").contains("\"content\":\"Hi there!\"");
-        verify(contextCompressionService).compressIfNeeded(CONVERSATION_ID);
+        // Assert
+        verifyNoInteractions(messageStore);
+        verify(contextCompressionService, never()).requestCompression(anyString(), anyLong());
     }
 
     @Test
     void get_WhenMemoryIsEmpty_ShouldReturnEmptyList() {
         // Arrange
-        when(listOperations.size(REDIS_KEY)).thenReturn(0L);
+        when(messageStore.tail(CONVERSATION_ID, 10))
+                .thenReturn(new ChatMemoryStore.TailSlice(0L, List.of(), 0L));
 
         // Act
         List<Message> result = redisChatMemory.get(CONVERSATION_ID, 10);
@@ -86,12 +111,12 @@ class RedisChatMemoryTest {
         // Arrange
         int lastN = 2;
         long totalSize = 5L;
-        when(listOperations.size(REDIS_KEY)).thenReturn(totalSize);
 
         List<String> mockJsons = List.of(
                 "{\"type\":\"USER\",\"content\":\"Message 4\"}",
                 "{\"type\":\"ASSISTANT\",\"content\":\"Message 5\"}");
-        when(listOperations.range(REDIS_KEY, 3L, 4L)).thenReturn(mockJsons);
+        when(messageStore.tail(CONVERSATION_ID, lastN))
+                .thenReturn(new ChatMemoryStore.TailSlice(totalSize, mockJsons, 0L));
 
         // Act
         List<Message> result = redisChatMemory.get(CONVERSATION_ID, lastN);
@@ -104,12 +129,101 @@ class RedisChatMemoryTest {
         assertThat(result.get(1).getText()).isEqualTo("Message 5");
     }
 
+    @Test
+    void getWindow_ShouldExposeTotalSizeFromSingleRoundTrip() {
+        // Arrange
+        when(messageStore.tail(CONVERSATION_ID, 1))
+                .thenReturn(new ChatMemoryStore.TailSlice(
+                        7L, List.of("{\"type\":\"USER\",\"content\":\"latest\"}"), 3L));
+        when(nearCache.readStamp()).thenReturn(11L);
+
+        // Act
+        ChatMemoryWindow window = redisChatMemory.getWindow(CONVERSATION_ID, 1);
+
+        // Assert
+        assertThat(window.totalSize()).isEqualTo(7L);
+        assertThat(window.messages()).extracting(Message::getText).containsExactly("latest");
+        verify(messageStore, times(1)).tail(CONVERSATION_ID, 1);
+        verify(nearCache).put(CONVERSATION_ID, 1, window, 3L, 11L);
+    }
+
+    @Test
+    void getWindow_WhenConversationArchived_ShouldRehydrateAndReadAgain() {
+        // Arrange
+        when(messageStore.tail(CONVERSATION_ID, 5))
+                .thenReturn(new ChatMemoryStore.TailSlice(ChatMemoryStore.ARCHIVED, List.of(), 0L))
+                .thenReturn(new ChatMemoryStore.TailSlice(
+                        1L, List.of("{\"type\":\"USER\",\"content\":\"restored\"}"), 0L));
+
+        // Act
+        ChatMemoryWindow window = redisChatMemory.getWindow(CONVERSATION_ID, 5);
+
+        // Assert
+        verify(historyArchiver).rehydrate(CONVERSATION_ID);
+        assertThat(window.messages()).extracting(Message::getText).containsExactly("restored");
+    }
+
+    @Test
+    void add_WhenConversationArchived_ShouldRehydrateBeforeAppending() {
+        // Arrange
+        when(contextCompressionService.estimateTokens(anyString())).thenReturn(1L);
+        when(messageStore.append(eq(CONVERSATION_ID), anyList(), eq(1L)))
+                .thenReturn(new ChatMemoryStore.AppendResult(ChatMemoryStore.ARCHIVED, -1L))
+                .thenReturn(new ChatMemoryStore.AppendResult(4L, 9L));
+
+        // Act
+        redisChatMemory.add(CONVERSATION_ID, List.of(new UserMessage("back")));
+
+        // Assert
+        InOrder inOrder = inOrder(messageStore, historyArchiver);
+        inOrder.verify(messageStore).append(eq(CONVERSATION_ID), anyList(), eq(1L));
+        inOrder.verify(historyArchiver).rehydrate(CONVERSATION_ID);
+        inOrder.verify(messageStore).append(eq(CONVERSATION_ID), anyList(), eq(1L));
+        verify(contextCompressionService).requestCompression(CONVERSATION_ID, 9L);
+    }
+
+    @Test
+    void getWindow_WhenNearCacheHit_ShouldSkipRedis() {
+        // Arrange
+        ChatMemoryWindow cached = new ChatMemoryWindow(List.of(new UserMessage("cached")), 3L);
+        when(nearCache.get(CONVERSATION_ID, 5)).thenReturn(cached);
+
+        // Act
+        ChatMemoryWindow window = redisChatMemory.getWindow(CONVERSATION_ID, 5);
+
+        // Assert
+        assertThat(window).isSameAs(cached);
+        verifyNoInteractions(messageStore);
+        verify(activityTracker).touch(CONVERSATION_ID);
+    }
+
+    @Test
+    void getWithinTokenBudget_WhenCacheMiss_ShouldReadBudgetSliceFromRedis() {
+        // Arrange
+        String encoded = messageCodec.encode(ChatMessageDto.builder().type("USER").content("recent").tokens(2L).build());
+        when(messageStore.tailWithinTokenBudget(CONVERSATION_ID, 100L))
+                .thenReturn(new ChatMemoryStore.BudgetSlice(9L, List.of(encoded), 2L, 0L));
+
+        // Act
+        List<Message> result = redisChatMemory.withTokenBudget(100L).get(CONVERSATION_ID);
+
+        // Assert
+        assertThat(result).extracting(Message::getText).containsExactly("recent");
+        verify(messageStore, never()).tail(anyString(), anyInt());
+        verify(nearCache).put(eq(CONVERSATION_ID), eq(1), any(ChatMemoryWindow.class), eq(0L), anyLong());
+    }
+
+    @Test
+    void withTokenBudget_WhenUnlimited_ShouldReturnSelf() {
+        assertThat(redisChatMemory.withTokenBudget(0L)).isSameAs(redisChatMemory);
+    }
+
     @Test
     void get_WhenDeserializationFails_ShouldFilterOutNulls() {
         // Arrange
-        when(listOperations.size(REDIS_KEY)).thenReturn(1L);
         // Provide invalid JSON to force Jackson to throw an exception
-        when(listOperations.range(REDIS_KEY, 0L, 0L)).thenReturn(Collections.singletonList("invalid json"));
+        when(messageStore.tail(CONVERSATION_ID, 1))
+                .thenReturn(new ChatMemoryStore.TailSlice(1L, Collections.singletonList("invalid json"), 0L));
 
         // Act
         List<Message> result = redisChatMemory.get(CONVERSATION_ID, 1);
@@ -124,7 +238,10 @@ class RedisChatMemoryTest {
         redisChatMemory.clear(CONVERSATION_ID);
 
         // Assert
-        verify(redisTemplate).delete(REDIS_KEY);
+        verify(messageStore).clear(CONVERSATION_ID);
         verify(contextCompressionService).clearCompressionCount(CONVERSATION_ID);
+        verify(nearCache).invalidate(CONVERSATION_ID);
+        verify(historyArchiver).purge(CONVERSATION_ID);
+        verify(longTermMemoryService).forget(CONVERSATION_ID);
     }
 }
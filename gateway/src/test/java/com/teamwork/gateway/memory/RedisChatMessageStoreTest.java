@@ -0,0 +1,217 @@
+package com.teamwork.gateway.memory;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+class RedisChatMessageStoreTest {
+
+    private static final List<String> KEYS = List.of(
+            "chat:memory:meta:task-1",
+            "chat:memory:segments:task-1",
+            "chat:memory:task-1",
+            "chat:memory:archived:task-1");
+    private static final String SEGMENT_PREFIX = "chat:memory:seg:task-1:";
+
+    @Mock
+    private StringRedisTemplate redisTemplate;
+
+    @Mock
+    private HashOperations<String, Object, Object> hashOperations;
+
+    private RedisChatMessageStore messageStore;
+
+    @BeforeEach
+    void setUp() {
+        messageStore = new RedisChatMessageStore(redisTemplate, 256);
+        when(redisTemplate.opsForHash()).thenReturn(hashOperations);
+    }
+
+    @Test
+    void append_ShouldPushEntriesAndTokenDeltaInOneScript() {
+        when(redisTemplate.execute(any(RedisScript.class), eq(KEYS), eq(SEGMENT_PREFIX), eq("256"), eq("5"), anyString(), eq("a"), eq("b")))
+                .thenReturn(List.of(2L, 5L));
+
+        RedisChatMessageStore.AppendResult result = messageStore.append("task-1", List.of("a", "b"), 5L);
+
+        assertThat(result.size()).isEqualTo(2L);
+        assertThat(result.tokens()).isEqualTo(5L);
+    }
+
+    @Test
+    void append_WhenLegacyConversationWithoutCounter_ShouldReportUnknownTokens() {
+        when(redisTemplate.execute(any(RedisScript.class), eq(KEYS), eq(SEGMENT_PREFIX), eq("256"), eq("1"), anyString(), eq("a")))
+                .thenReturn(List.of(9L, -1L));
+
+        RedisChatMessageStore.AppendResult result = messageStore.append("task-1", List.of("a"), 1L);
+
+        assertThat(result.tokens()).isEqualTo(RedisChatMessageStore.UNKNOWN_TOKENS);
+    }
+
+    @Test
+    void tailWithinTokenBudget_ShouldReturnEntriesWithinBudget() {
+        when(redisTemplate.execute(any(RedisScript.class), eq(KEYS), eq(SEGMENT_PREFIX), eq("50")))
+                .thenReturn(List.of(6L, List.of("b", "c"), 40L));
+
+        RedisChatMessageStore.BudgetSlice slice = messageStore.tailWithinTokenBudget("task-1", 50L);
+
+        assertThat(slice.totalSize()).isEqualTo(6L);
+        assertThat(slice.entries()).containsExactly("b", "c");
+        assertThat(slice.usedTokens()).isEqualTo(40L);
+        assertThat(messageStore.tailWithinTokenBudget("task-1", 0L).entries()).isEmpty();
+    }
+
+    @Test
+    void getTokenCount_WhenMissingOrInvalid_ShouldReturnUnknown() {
+        when(hashOperations.get("chat:memory:meta:task-1", "tokens")).thenReturn(null);
+        assertThat(messageStore.getTokenCount("task-1")).isEqualTo(RedisChatMessageStore.UNKNOWN_TOKENS);
+
+        when(hashOperations.get("chat:memory:meta:task-1", "tokens")).thenReturn("abc");
+        assertThat(messageStore.getTokenCount("task-1")).isEqualTo(RedisChatMessageStore.UNKNOWN_TOKENS);
+
+        when(hashOperations.get("chat:memory:meta:task-1", "tokens")).thenReturn("42");
+        assertThat(messageStore.getTokenCount("task-1")).isEqualTo(42L);
+    }
+
+    @Test
+    void tail_ShouldReadFromTailSegmentsInOneScript() {
+        when(redisTemplate.execute(any(RedisScript.class), eq(KEYS), eq(SEGMENT_PREFIX), eq("2")))
+                .thenReturn(List.of(300L, List.of("y", "z"), 4L));
+
+        RedisChatMessageStore.TailSlice slice = messageStore.tail("task-1", 2);
+
+        assertThat(slice.totalSize()).isEqualTo(300L);
+        assertThat(slice.entries()).containsExactly("y", "z");
+        assertThat(slice.version()).isEqualTo(4L);
+        assertThat(messageStore.tail("task-1", 0)).isSameAs(RedisChatMessageStore.TailSlice.EMPTY);
+    }
+
+    @Test
+    void tail_WhenConversationArchived_ShouldReportArchived() {
+        when(redisTemplate.execute(any(RedisScript.class), eq(KEYS), eq(SEGMENT_PREFIX), eq("2")))
+                .thenReturn(List.of(-1L, List.of()));
+
+        assertThat(messageStore.tail("task-1", 2).archived()).isTrue();
+    }
+
+    @Test
+    void evictArchived_ShouldGuardOnLastActiveAndSize() {
+        when(redisTemplate.execute(any(RedisScript.class), eq(KEYS), eq(SEGMENT_PREFIX), eq("1000"), eq("3")))
+                .thenReturn(1L);
+
+        assertThat(messageStore.evictArchived("task-1", 1000L, 3L)).isTrue();
+        assertThat(messageStore.evictArchived("task-1", 999L, 3L)).isFalse();
+    }
+
+    @Test
+    void readRange_ShouldSendOffsetAndLimit() {
+        when(redisTemplate.execute(any(RedisScript.class), eq(KEYS), eq(SEGMENT_PREFIX), eq("255"), eq("2")))
+                .thenReturn(List.of(6L, List.of("a", "b")));
+
+        assertThat(messageStore.readRange("task-1", 255L, 2)).containsExactly("a", "b");
+        assertThat(messageStore.readRangeVersioned("task-1", 255L, 2).version()).isEqualTo(6L);
+        assertThat(messageStore.readRange("task-1", 0L, 0)).isEmpty();
+    }
+
+    @Test
+    void replacePrefix_ShouldSendGuardElementsDeltaAndReplacementInOneScript() {
+        when(redisTemplate.execute(any(RedisScript.class), eq(KEYS), eq(SEGMENT_PREFIX), eq("256"),
+                eq("0"), eq("3"), eq("a"), eq("c"), eq("-7"), eq(""), eq("s")))
+                .thenReturn(4L);
+
+        boolean applied = messageStore.replacePrefix("task-1", List.of("a", "b", "c"), List.of("s"), -7L);
+
+        assertThat(applied).isTrue();
+    }
+
+    @Test
+    void replaceRange_WhenRangeChangedConcurrently_ShouldReportConflict() {
+        when(redisTemplate.execute(any(RedisScript.class), eq(KEYS), eq(SEGMENT_PREFIX), eq("256"),
+                eq("4"), eq("5"), eq("a"), eq("a"), eq(""), eq("6")))
+                .thenReturn(-1L);
+
+        boolean applied = messageStore.replaceRange("task-1", 4L, List.of("a"), List.of(), null, 6L);
+
+        assertThat(applied).isFalse();
+        ChatMemoryContentionMetricsSnapshot snapshot = messageStore.getContentionMetricsSnapshot();
+        assertThat(snapshot.guardedWrites()).isEqualTo(1);
+        assertThat(snapshot.conflicts()).isEqualTo(1);
+    }
+
+    @Test
+    void deletePositions_ShouldSendAscendingPositionsWithSnapshotsInOneScript() {
+        BitSet positions = new BitSet();
+        positions.set(9);
+        positions.set(2);
+        when(redisTemplate.execute(any(RedisScript.class), eq(KEYS), eq(SEGMENT_PREFIX),
+                startsWith("chat:memory:tombstone:"), eq("-3"), eq("11"), eq("2"), eq("c"), eq("9"), eq("j")))
+                .thenReturn(8L);
+
+        assertThat(messageStore.deletePositions("task-1", positions, List.of("c", "j"), -3L, 11L)).isTrue();
+    }
+
+    @Test
+    void getStats_ShouldMapPipelinedMetaLegacyAndArchivedReplies() {
+        when(redisTemplate.executePipelined(any(SessionCallback.class))).thenReturn(Arrays.asList(
+                Arrays.asList("1", "12", "300", "4096"), 0L, null,
+                Arrays.asList(null, null, null, null), 4L, null,
+                Arrays.asList(null, null, null, null), 0L, "7:90"));
+
+        Map<String, RedisChatMessageStore.ConversationStats> stats =
+                messageStore.getStats(List.of("segmented", "legacy", "archived"));
+
+        assertThat(stats.keySet()).containsExactly("segmented", "legacy", "archived");
+        assertThat(stats.get("segmented")).isEqualTo(new RedisChatMessageStore.ConversationStats(12L, 300L, 4096L, false));
+        assertThat(stats.get("legacy")).isEqualTo(new RedisChatMessageStore.ConversationStats(
+                4L, RedisChatMessageStore.UNKNOWN_TOKENS, RedisChatMessageStore.UNKNOWN_BYTES, false));
+        assertThat(stats.get("archived")).isEqualTo(new RedisChatMessageStore.ConversationStats(7L, 90L, 0L, true));
+        verify(redisTemplate, times(1)).executePipelined(any(SessionCallback.class));
+    }
+
+    @Test
+    void estimateBytes_ShouldReadMetaCounterWithoutScanningSegments() {
+        when(hashOperations.get("chat:memory:meta:task-1", "bytes")).thenReturn("2048");
+
+        assertThat(messageStore.estimateBytes("task-1")).isEqualTo(2048L);
+        verify(redisTemplate, never()).execute(any(RedisScript.class), eq(KEYS), eq(SEGMENT_PREFIX));
+    }
+
+    @Test
+    void estimateBytes_WhenLegacyConversationWithoutCounter_ShouldSumInBatchesAndRecordCounter() {
+        when(redisTemplate.execute(any(RedisScript.class), eq(KEYS), eq(SEGMENT_PREFIX))).thenReturn(3L);
+        when(redisTemplate.execute(any(RedisScript.class), eq(KEYS), eq(SEGMENT_PREFIX), eq("0"), eq("256")))
+                .thenReturn(List.of(5L, List.of("ab", "cde", "f")));
+
+        assertThat(messageStore.estimateBytes("task-1")).isEqualTo(6L);
+        verify(redisTemplate).execute(any(RedisScript.class), eq(KEYS), eq(SEGMENT_PREFIX), eq("5"), eq("3"), eq("6"));
+    }
+
+    @Test
+    void clear_ShouldDeleteSegmentsIndexAndMetaInOneScript() {
+        messageStore.clear("task-1");
+
+        verify(redisTemplate).execute(any(RedisScript.class), eq(KEYS), eq(SEGMENT_PREFIX));
+    }
+}
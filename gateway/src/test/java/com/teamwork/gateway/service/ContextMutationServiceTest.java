@@ -5,28 +5,42 @@ import com.teamwork.gateway.dto.ContextDeleteRequest;
 import com.teamwork.gateway.dto.ContextDeleteResponse;
 import com.teamwork.gateway.entity.ContextDeletionAudit;
 import com.teamwork.gateway.entity.TaskRecord;
+import com.teamwork.gateway.memory.ChatHistoryArchiver;
+import com.teamwork.gateway.memory.ChatMemoryStore;
+import com.teamwork.gateway.memory.ChatMessageCodec;
+import com.teamwork.gateway.memory.ChatMessageDto;
+import com.teamwork.gateway.memory.ConversationNearCache;
+import com.teamwork.gateway.memory.LongTermMemoryService;
 import com.teamwork.gateway.repository.ContextDeletionAuditRepository;
 import com.teamwork.gateway.repository.TaskRecordRepository;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
-import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.mockito.junit.jupiter.MockitoSettings;
 import org.mockito.quality.Strictness;
-import org.springframework.data.redis.core.ListOperations;
-import org.springframework.data.redis.core.StringRedisTemplate;
 
+import java.util.BitSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
 import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -41,20 +55,34 @@ class ContextMutationServiceTest {
     private ContextDeletionAuditRepository contextDeletionAuditRepository;
 
     @Mock
-    private StringRedisTemplate redisTemplate;
+    private ChatMemoryStore messageStore;
 
     @Mock
-    private ListOperations<String, String> listOperations;
+    private ConversationNearCache nearCache;
+
+    @Mock
+    private ChatHistoryArchiver historyArchiver;
+
+    @Mock
+    private LongTermMemoryService longTermMemoryService;
+
+    @Spy
+    private ChatMessageCodec messageCodec = new ChatMessageCodec("compact");
 
     @InjectMocks
     private ContextMutationService contextMutationService;
 
     @BeforeEach
     void setUp() {
-        when(redisTemplate.opsForList()).thenReturn(listOperations);
         ContextDeletionAudit audit = new ContextDeletionAudit();
         audit.setId("audit-1");
         when(contextDeletionAuditRepository.save(any(ContextDeletionAudit.class))).thenReturn(audit);
+        when(messageStore.removeRange(anyString(), anyLong(), anyLong(), anyString(), anyString(), isNull(), anyLong())).thenReturn(true);
+        when(messageStore.deletePositions(anyString(), any(BitSet.class), anyList(), any(), anyLong())).thenReturn(true);
+    }
+
+    private ChatMemoryStore.VersionedRange versioned(List<String> entries) {
+        return new ChatMemoryStore.VersionedRange(4L, entries);
     }
 
     @Test
@@ -72,18 +100,36 @@ class ContextMutationServiceTest {
         taskRecord.setId("task-1");
         given(taskRecordRepository.findById("task-1")).willReturn(Optional.of(taskRecord));
 
-        String key = "chat:memory:task-1";
-        when(listOperations.size(key)).thenReturn(2L);
-        when(listOperations.range(key, 0, 1)).thenReturn(List.of(
-                "{\"type\":\"USER\",\"content\":\"a\"}",
-                "{\"type\":\"ASSISTANT\",\"content\":\"b\"}"));
+        when(messageStore.size("task-1")).thenReturn(2L);
+        when(messageStore.readRangeVersioned("task-1", 0L, 1)).thenReturn(versioned(List.of("{\"type\":\"USER\",\"content\":\"a\"}")));
+        when(messageStore.readRangeVersioned("task-1", 1L, 1)).thenReturn(versioned(List.of("{\"type\":\"ASSISTANT\",\"content\":\"b\"}")));
 
         ContextDeleteResponse response = contextMutationService.deleteContext("task-1", new ContextDeleteRequest("ALL_HISTORY", null, "cleanup"));
 
         assertThat(response.removed()).isTrue();
         assertThat(response.removedCount()).isEqualTo(2);
         assertThat(response.auditId()).isEqualTo("audit-1");
-        verify(redisTemplate).delete(key);
+        verify(messageStore).removeRange(eq("task-1"), eq(0L), eq(2L),
+                eq("{\"type\":\"USER\",\"content\":\"a\"}"),
+                eq("{\"type\":\"ASSISTANT\",\"content\":\"b\"}"), isNull(), eq(4L));
+        InOrder order = inOrder(historyArchiver, longTermMemoryService);
+        order.verify(historyArchiver).purge("task-1");
+        order.verify(longTermMemoryService).forget("task-1");
+    }
+
+    @Test
+    void deleteContext_AllHistoryWhenRedisEmpty_ShouldStillPurgeLongTermMemory() {
+        TaskRecord taskRecord = new TaskRecord();
+        taskRecord.setId("task-7");
+        given(taskRecordRepository.findById("task-7")).willReturn(Optional.of(taskRecord));
+        when(messageStore.size("task-7")).thenReturn(0L);
+
+        ContextDeleteResponse response = contextMutationService.deleteContext(
+                "task-7", new ContextDeleteRequest("ALL_HISTORY", null, "cleanup"));
+
+        assertThat(response.removedCount()).isZero();
+        verify(historyArchiver).purge("task-7");
+        verify(longTermMemoryService).forget("task-7");
     }
 
     @Test
@@ -92,12 +138,9 @@ class ContextMutationServiceTest {
         taskRecord.setId("task-2");
         given(taskRecordRepository.findById("task-2")).willReturn(Optional.of(taskRecord));
 
-        String key = "chat:memory:task-2";
-        when(listOperations.size(key)).thenReturn(3L);
-        when(listOperations.range(key, 0, 2)).thenReturn(List.of(
-                "{\"type\":\"USER\",\"content\":\"m1\"}",
-                "{\"type\":\"USER\",\"content\":\"m2\"}",
-                "{\"type\":\"USER\",\"content\":\"m3\"}"));
+        when(messageStore.size("task-2")).thenReturn(3L);
+        List<String> removed = List.of("{\"type\":\"USER\",\"content\":\"m2\"}", "{\"type\":\"USER\",\"content\":\"m3\"}");
+        when(messageStore.readRangeVersioned("task-2", 1L, 2)).thenReturn(versioned(removed));
 
         ContextDeleteRequest request = new ContextDeleteRequest("RANGE", new ContextDeleteRange(2, 3), "trim");
         ContextDeleteResponse response = contextMutationService.deleteContext("task-2", request);
@@ -105,11 +148,13 @@ class ContextMutationServiceTest {
         assertThat(response.removed()).isTrue();
         assertThat(response.removedCount()).isEqualTo(2);
 
-        @SuppressWarnings("unchecked")
-        ArgumentCaptor<List<String>> captor = ArgumentCaptor.forClass(List.class);
-        verify(listOperations).rightPushAll(eq(key), captor.capture());
-        assertThat(captor.getValue()).hasSize(1);
-        assertThat(captor.getValue().getFirst()).contains("m1");
+        verify(messageStore).removeRange(eq("task-2"), eq(1L), eq(2L),
+                eq("{\"type\":\"USER\",\"content\":\"m2\"}"), eq("{\"type\":\"USER\",\"content\":\"m3\"}"), isNull(), eq(4L));
+        verify(nearCache).invalidate("task-2");
+        InOrder order = inOrder(historyArchiver, longTermMemoryService);
+        order.verify(historyArchiver).purgeEntries("task-2", removed);
+        order.verify(longTermMemoryService).forget("task-2");
+        verify(historyArchiver, never()).purge("task-2");
     }
 
     @Test
@@ -118,15 +163,105 @@ class ContextMutationServiceTest {
         taskRecord.setId("task-3");
         given(taskRecordRepository.findById("task-3")).willReturn(Optional.of(taskRecord));
 
-        String key = "chat:memory:task-3";
-        when(listOperations.size(key)).thenReturn(2L);
-        when(listOperations.range(key, 0, 1)).thenReturn(List.of(
+        when(messageStore.readRangeVersioned("task-3", 0L, 256)).thenReturn(versioned(List.of(
+                "{\"type\":\"USER\",\"content\":\"[AUTO_COMPRESSED] quoted by user\"}",
                 "{\"type\":\"SYSTEM\",\"content\":\"[AUTO_COMPRESSED] summary\"}",
-                "{\"type\":\"USER\",\"content\":\"keep\"}"));
+                "{\"type\":\"USER\",\"content\":\"keep\"}")));
 
         ContextDeleteResponse response = contextMutationService.deleteContext("task-3", new ContextDeleteRequest("SUMMARY", null, "remove summary"));
 
         assertThat(response.removed()).isTrue();
         assertThat(response.removedCount()).isEqualTo(1);
+        BitSet expectedPositions = new BitSet();
+        expectedPositions.set(1);
+        verify(messageStore).deletePositions(eq("task-3"), eq(expectedPositions),
+                eq(List.of("{\"type\":\"SYSTEM\",\"content\":\"[AUTO_COMPRESSED] summary\"}")), isNull(), eq(4L));
+        verify(historyArchiver).purgeEntries("task-3",
+                List.of("{\"type\":\"SYSTEM\",\"content\":\"[AUTO_COMPRESSED] summary\"}"));
+        verify(longTermMemoryService).forget("task-3");
+    }
+
+    @Test
+    void deleteContext_SingleMessage_ShouldDeleteOnePositionWithTokenDelta() {
+        TaskRecord taskRecord = new TaskRecord();
+        taskRecord.setId("task-5");
+        given(taskRecordRepository.findById("task-5")).willReturn(Optional.of(taskRecord));
+
+        String target = messageCodec.encode(ChatMessageDto.builder().type("USER").content("drop").tokens(7L).build());
+        when(messageStore.size("task-5")).thenReturn(10_000L);
+        when(messageStore.readRangeVersioned("task-5", 4_999L, 1)).thenReturn(versioned(List.of(target)));
+
+        ContextDeleteResponse response = contextMutationService.deleteContext(
+                "task-5", new ContextDeleteRequest("SINGLE_MESSAGE", new ContextDeleteRange(5_000, null), "typo"));
+
+        assertThat(response.removedCount()).isEqualTo(1);
+        BitSet expectedPositions = new BitSet();
+        expectedPositions.set(4_999);
+        verify(messageStore).deletePositions("task-5", expectedPositions, List.of(target), -7L, 4L);
+        verify(nearCache).invalidate("task-5");
+        verify(historyArchiver).purgeEntries("task-5", List.of(target));
+        verify(longTermMemoryService).forget("task-5");
+    }
+
+    @Test
+    void deleteContext_WhenConversationArchived_ShouldRehydrateBeforeDeleting() {
+        TaskRecord taskRecord = new TaskRecord();
+        taskRecord.setId("task-6");
+        given(taskRecordRepository.findById("task-6")).willReturn(Optional.of(taskRecord));
+        given(messageStore.getStats(List.of("task-6")))
+                .willReturn(Map.of("task-6", new ChatMemoryStore.ConversationStats(2L, 8L, 0L, true)));
+        String target = messageCodec.encode(ChatMessageDto.builder().type("USER").content("drop").tokens(3L).build());
+        when(messageStore.size("task-6")).thenReturn(2L);
+        when(messageStore.readRangeVersioned("task-6", 0L, 1)).thenReturn(versioned(List.of(target)));
+
+        ContextDeleteResponse response = contextMutationService.deleteContext(
+                "task-6", new ContextDeleteRequest("SINGLE_MESSAGE", new ContextDeleteRange(1, null), "typo"));
+
+        assertThat(response.removedCount()).isEqualTo(1);
+        InOrder order = inOrder(historyArchiver, messageStore);
+        order.verify(historyArchiver).rehydrate("task-6");
+        order.verify(messageStore).deletePositions(eq("task-6"), any(BitSet.class), eq(List.of(target)), eq(-3L), eq(4L));
+    }
+
+    @Test
+    void deleteContext_WhenHistoryChangedConcurrently_ShouldThrow() {
+        TaskRecord taskRecord = new TaskRecord();
+        taskRecord.setId("task-4");
+        given(taskRecordRepository.findById("task-4")).willReturn(Optional.of(taskRecord));
+        when(messageStore.size("task-4")).thenReturn(1L);
+        when(messageStore.readRangeVersioned("task-4", 0L, 1)).thenReturn(versioned(List.of("{\"type\":\"USER\",\"content\":\"m1\"}")));
+        when(messageStore.removeRange(eq("task-4"), anyLong(), anyLong(), anyString(), anyString(), isNull(), anyLong()))
+                .thenReturn(false);
+
+        assertThatThrownBy(() -> contextMutationService.deleteContext("task-4", new ContextDeleteRequest("ALL_HISTORY", null, "x")))
+                .isInstanceOf(IllegalStateException.class);
+        verify(messageStore, times(3)).readRangeVersioned("task-4", 0L, 1);
+        ContextMutationMetricsSnapshot snapshot = contextMutationService.getMetricsSnapshot();
+        assertThat(snapshot.attempts()).isEqualTo(3);
+        assertThat(snapshot.retries()).isEqualTo(2);
+        assertThat(snapshot.exhausted()).isEqualTo(1);
+        verify(contextDeletionAuditRepository, never()).save(any(ContextDeletionAudit.class));
+    }
+
+    @Test
+    void deleteContext_WhenConflictResolvesOnRetry_ShouldRereadVersionAndSucceed() {
+        TaskRecord taskRecord = new TaskRecord();
+        taskRecord.setId("task-6");
+        given(taskRecordRepository.findById("task-6")).willReturn(Optional.of(taskRecord));
+        String first = messageCodec.encode(ChatMessageDto.builder().type("USER").content("m1").tokens(2L).build());
+        String shifted = messageCodec.encode(ChatMessageDto.builder().type("USER").content("m2").tokens(3L).build());
+        when(messageStore.size("task-6")).thenReturn(5L);
+        when(messageStore.readRangeVersioned("task-6", 0L, 1))
+                .thenReturn(new ChatMemoryStore.VersionedRange(4L, List.of(first)))
+                .thenReturn(new ChatMemoryStore.VersionedRange(5L, List.of(shifted)));
+        when(messageStore.deletePositions(eq("task-6"), any(BitSet.class), anyList(), any(), eq(4L))).thenReturn(false);
+
+        ContextDeleteResponse response = contextMutationService.deleteContext(
+                "task-6", new ContextDeleteRequest("SINGLE_MESSAGE", new ContextDeleteRange(1, null), "retry"));
+
+        assertThat(response.removedCount()).isEqualTo(1);
+        verify(messageStore).deletePositions(eq("task-6"), any(BitSet.class), eq(List.of(shifted)), eq(-3L), eq(5L));
+        assertThat(contextMutationService.getMetricsSnapshot().retries()).isEqualTo(1);
+        assertThat(contextMutationService.getMetricsSnapshot().exhausted()).isZero();
     }
 }
@@ -1,28 +1,49 @@
 package com.teamwork.gateway.service;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.teamwork.gateway.ai.TokenEstimatorRegistry;
 import com.teamwork.gateway.dto.AgentContextDetailResponse;
 import com.teamwork.gateway.dto.AgentContextUsageItem;
+import com.teamwork.gateway.dto.AgentContextUsageResponse;
+import com.teamwork.gateway.dto.ContextMessageItem;
 import com.teamwork.gateway.entity.TaskRecord;
+import com.teamwork.gateway.memory.ChatHistoryArchiver;
+import com.teamwork.gateway.memory.ChatMemoryStore;
+import com.teamwork.gateway.memory.ChatMessageCodec;
 import com.teamwork.gateway.memory.ContextCompressionService;
 import com.teamwork.gateway.memory.RedisChatMemory;
 import com.teamwork.gateway.repository.TaskRecordRepository;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.ai.chat.messages.AssistantMessage;
 import org.springframework.ai.chat.messages.Message;
 import org.springframework.ai.chat.messages.SystemMessage;
 import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.SliceImpl;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
 
 @ExtendWith(MockitoExtension.class)
 class ContextQueryServiceTest {
@@ -33,41 +54,101 @@ class ContextQueryServiceTest {
     @Mock
     private RedisChatMemory redisChatMemory;
 
+    @Mock
+    private ChatMemoryStore messageStore;
+
     @Mock
     private ContextCompressionService contextCompressionService;
 
+    @Mock
+    private ChatHistoryArchiver historyArchiver;
+
+    @Spy
+    private ChatMessageCodec messageCodec = new ChatMessageCodec("compact");
+
+    @Spy
+    private TokenEstimatorRegistry tokenEstimatorRegistry = new TokenEstimatorRegistry("heuristic");
+
+    @Spy
+    private ObjectMapper objectMapper = new ObjectMapper();
+
     @InjectMocks
     private ContextQueryService contextQueryService;
 
     @Test
     void findUsage_WhenAgentNameIsNotSupported_ShouldReturnEmpty() {
-        List<AgentContextUsageItem> result = contextQueryService.findUsage("other-agent", null, null);
-        assertThat(result).isEmpty();
+        AgentContextUsageResponse result = contextQueryService.findUsage("other-agent", null, null, 0, 50);
+        assertThat(result.items()).isEmpty();
+        assertThat(result.hasNext()).isFalse();
     }
 
     @Test
-    void findUsage_WhenTaskExists_ShouldReturnUsageWithEstimatedTokens() {
+    void findUsage_WhenTaskExists_ShouldReturnUsageFromStoredStats() {
         TaskRecord taskRecord = new TaskRecord();
         taskRecord.setId("task-1");
         taskRecord.setStatus("COMPLETED");
         taskRecord.setUpdatedAt(LocalDateTime.of(2026, 2, 23, 12, 0, 0));
 
-        List<Message> messages = List.of(new UserMessage("hello world"), new AssistantMessage("ok"));
-
         given(taskRecordRepository.findById("task-1")).willReturn(Optional.of(taskRecord));
-        given(redisChatMemory.get("task-1")).willReturn(messages);
-        given(contextCompressionService.getCompressionCount("task-1")).willReturn(3L);
+        given(messageStore.getStats(List.of("task-1")))
+                .willReturn(Map.of("task-1", new ChatMemoryStore.ConversationStats(2L, 4L, 64L, false)));
+        given(contextCompressionService.getCompressionCounts(List.of("task-1"))).willReturn(Map.of("task-1", 3L));
 
-        List<AgentContextUsageItem> result = contextQueryService.findUsage("master-agent", "task-1", null);
+        AgentContextUsageResponse result = contextQueryService.findUsage("master-agent", "task-1", null, 0, 50);
 
-        assertThat(result).hasSize(1);
-        AgentContextUsageItem item = result.getFirst();
+        assertThat(result.items()).hasSize(1);
+        AgentContextUsageItem item = result.items().getFirst();
         assertThat(item.agentName()).isEqualTo("master-agent");
         assertThat(item.taskId()).isEqualTo("task-1");
         assertThat(item.messageCount()).isEqualTo(2);
         assertThat(item.estimatedTokens()).isEqualTo(4);
         assertThat(item.compressionCount()).isEqualTo(3);
         assertThat(item.lastUpdatedAt()).isEqualTo(LocalDateTime.of(2026, 2, 23, 12, 0, 0));
+        verifyNoInteractions(redisChatMemory);
+    }
+
+    @Test
+    void findUsage_WhenTokenCountUnknown_ShouldEstimateFromMessages() {
+        TaskRecord taskRecord = new TaskRecord();
+        taskRecord.setId("task-legacy");
+        List<Message> messages = List.of(new UserMessage("hello world"), new AssistantMessage("ok"));
+
+        given(taskRecordRepository.findById("task-legacy")).willReturn(Optional.of(taskRecord));
+        given(messageStore.getStats(List.of("task-legacy"))).willReturn(Map.of("task-legacy",
+                new ChatMemoryStore.ConversationStats(2L, ChatMemoryStore.UNKNOWN_TOKENS, 64L, false)));
+        given(contextCompressionService.getCompressionCounts(List.of("task-legacy"))).willReturn(Map.of());
+        given(redisChatMemory.get("task-legacy")).willReturn(messages);
+
+        AgentContextUsageItem item = contextQueryService.findUsage(null, "task-legacy", null, 0, 50).items().getFirst();
+
+        assertThat(item.messageCount()).isEqualTo(2);
+        assertThat(item.estimatedTokens()).isEqualTo(4);
+        assertThat(item.compressionCount()).isZero();
+    }
+
+    @Test
+    void findUsage_WhenListingByStatus_ShouldReadOnePageAndBatchStats() {
+        TaskRecord first = new TaskRecord();
+        first.setId("task-a");
+        TaskRecord second = new TaskRecord();
+        second.setId("task-b");
+        ArgumentCaptor<Pageable> pageable = ArgumentCaptor.forClass(Pageable.class);
+        given(taskRecordRepository.findByStatusIgnoreCase(eq("RUNNING"), pageable.capture()))
+                .willReturn(new SliceImpl<>(List.of(first, second), PageRequest.of(1, 2), true));
+        given(messageStore.getStats(List.of("task-a", "task-b"))).willReturn(Map.of(
+                "task-a", new ChatMemoryStore.ConversationStats(10L, 100L, 400L, false),
+                "task-b", new ChatMemoryStore.ConversationStats(5L, 40L, 0L, true)));
+        given(contextCompressionService.getCompressionCounts(List.of("task-a", "task-b")))
+                .willReturn(Map.of("task-a", 1L, "task-b", 0L));
+
+        AgentContextUsageResponse result = contextQueryService.findUsage("master-agent", null, "running", 1, 2);
+
+        assertThat(pageable.getValue().getPageNumber()).isEqualTo(1);
+        assertThat(pageable.getValue().getPageSize()).isEqualTo(2);
+        assertThat(result.hasNext()).isTrue();
+        assertThat(result.items()).extracting(AgentContextUsageItem::estimatedTokens).containsExactly(100L, 40L);
+        verify(taskRecordRepository, never()).findAll();
+        verifyNoInteractions(redisChatMemory);
     }
 
     @Test
@@ -103,4 +184,91 @@ class ContextQueryServiceTest {
         assertThat(response.compressedSummaries()).isEmpty();
         assertThat(response.toolCalls()).isEmpty();
     }
+
+    @Test
+    void streamFullContext_ShouldWriteNdjsonWindowByWindow() throws Exception {
+        TaskRecord taskRecord = new TaskRecord();
+        taskRecord.setId("task-3");
+        List<String> firstWindow = new ArrayList<>();
+        for (int index = 0; index < 200; index++) {
+            firstWindow.add("{\"type\":\"USER\",\"content\":\"m" + index + "\"}");
+        }
+        given(taskRecordRepository.findById("task-3")).willReturn(Optional.of(taskRecord));
+        given(messageStore.getStats(List.of("task-3")))
+                .willReturn(Map.of("task-3", new ChatMemoryStore.ConversationStats(201L, 400L, 1600L, false)));
+        given(messageStore.readRangeVersioned("task-3", 0L, 200))
+                .willReturn(new ChatMemoryStore.VersionedRange(7L, firstWindow));
+        given(messageStore.readRangeVersioned("task-3", 200L, 200)).willReturn(new ChatMemoryStore.VersionedRange(
+                7L, List.of("{\"type\":\"ASSISTANT\",\"content\":\"last\"}")));
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        contextQueryService.streamFullContext("task-3", 0L, null).writeTo(output);
+
+        List<String> lines = output.toString(StandardCharsets.UTF_8).lines().toList();
+        assertThat(lines).hasSize(201);
+        ContextMessageItem last = objectMapper.readValue(lines.getLast(), ContextMessageItem.class);
+        assertThat(last.index()).isEqualTo(201);
+        assertThat(last.role()).isEqualTo("assistant");
+        assertThat(last.content()).isEqualTo("last");
+        verifyNoInteractions(historyArchiver);
+        verify(redisChatMemory).touch("task-3");
+    }
+
+    @Test
+    void streamFullContext_WithOffsetAndLimit_ShouldReadOnlyRequestedRange() throws Exception {
+        TaskRecord taskRecord = new TaskRecord();
+        taskRecord.setId("task-4");
+        given(taskRecordRepository.findById("task-4")).willReturn(Optional.of(taskRecord));
+        given(messageStore.getStats(List.of("task-4")))
+                .willReturn(Map.of("task-4", new ChatMemoryStore.ConversationStats(3L, 10L, 0L, true)));
+        given(messageStore.readRangeVersioned("task-4", 1L, 2)).willReturn(new ChatMemoryStore.VersionedRange(
+                3L, List.of("{\"type\":\"SYSTEM\",\"content\":\"sys\"}", "{\"type\":\"USER\",\"content\":\"hi\"}")));
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        contextQueryService.streamFullContext("task-4", 1L, 2L).writeTo(output);
+
+        List<String> lines = output.toString(StandardCharsets.UTF_8).lines().toList();
+        assertThat(lines).hasSize(2);
+        ContextMessageItem first = objectMapper.readValue(lines.getFirst(), ContextMessageItem.class);
+        assertThat(first.index()).isEqualTo(2);
+        assertThat(first.role()).isEqualTo("system");
+        verify(historyArchiver).rehydrate("task-4");
+        verify(messageStore).readRangeVersioned("task-4", 1L, 2);
+        verify(redisChatMemory).touch("task-4");
+        verifyNoMoreInteractions(redisChatMemory);
+    }
+
+    @Test
+    void streamFullContext_WhenVersionChangesBetweenWindows_ShouldAbortStream() {
+        TaskRecord taskRecord = new TaskRecord();
+        taskRecord.setId("task-5");
+        List<String> firstWindow = new ArrayList<>();
+        for (int index = 0; index < 200; index++) {
+            firstWindow.add("{\"type\":\"USER\",\"content\":\"m" + index + "\"}");
+        }
+        given(taskRecordRepository.findById("task-5")).willReturn(Optional.of(taskRecord));
+        given(messageStore.readRangeVersioned("task-5", 0L, 200))
+                .willReturn(new ChatMemoryStore.VersionedRange(1L, firstWindow));
+        given(messageStore.readRangeVersioned("task-5", 200L, 200)).willReturn(new ChatMemoryStore.VersionedRange(
+                2L, List.of("{\"type\":\"USER\",\"content\":\"shifted\"}")));
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        assertThatThrownBy(() -> contextQueryService.streamFullContext("task-5", 0L, null).writeTo(output))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("task-5");
+        assertThat(output.toString(StandardCharsets.UTF_8).lines())
+                .hasSize(200)
+                .noneMatch(line -> line.contains("shifted"));
+    }
+
+    @Test
+    void streamFullContext_WhenTaskNotFound_ShouldThrowBeforeStreaming() {
+        given(taskRecordRepository.findById("missing-task")).willReturn(Optional.empty());
+
+        assertThatThrownBy(() -> contextQueryService.streamFullContext("missing-task", 0L, null))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("Task not found: missing-task");
+        verifyNoInteractions(messageStore);
+    }
 }
@@ -0,0 +1,54 @@
+package com.teamwork.gateway.service;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.ObjectProvider;
+
+import javax.sql.DataSource;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class DataSourcePoolMetricsServiceTest {
+
+    @Test
+    void sample_ShouldTrackPeakAndSaturation() {
+        HikariDataSource dataSource = mock(HikariDataSource.class);
+        HikariPoolMXBean pool = mock(HikariPoolMXBean.class);
+        when(dataSource.getHikariPoolMXBean()).thenReturn(pool);
+        when(dataSource.getMaximumPoolSize()).thenReturn(10);
+        when(pool.getActiveConnections()).thenReturn(8, 8, 2);
+        when(pool.getThreadsAwaitingConnection()).thenReturn(3, 0);
+        when(pool.getIdleConnections()).thenReturn(8);
+        when(pool.getTotalConnections()).thenReturn(10);
+        DataSourcePoolMetricsService service = new DataSourcePoolMetricsService(providerOf(dataSource));
+
+        service.sample();
+        DataSourcePoolMetricsSnapshot snapshot = service.getMetricsSnapshot();
+
+        assertThat(snapshot.available()).isTrue();
+        assertThat(snapshot.active()).isEqualTo(2);
+        assertThat(snapshot.utilization()).isEqualTo(0.2);
+        assertThat(snapshot.peakActive()).isEqualTo(8);
+        assertThat(snapshot.samples()).isEqualTo(1L);
+        assertThat(snapshot.saturatedSamples()).isEqualTo(1L);
+    }
+
+    @Test
+    void getMetricsSnapshot_WhenNotHikari_ShouldReportUnavailable() {
+        DataSourcePoolMetricsService service = new DataSourcePoolMetricsService(providerOf(mock(DataSource.class)));
+
+        service.sample();
+
+        assertThat(service.getMetricsSnapshot()).isEqualTo(DataSourcePoolMetricsSnapshot.UNAVAILABLE);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ObjectProvider<DataSource> providerOf(DataSource dataSource) {
+        ObjectProvider<DataSource> provider = mock(ObjectProvider.class);
+        when(provider.getIfAvailable()).thenReturn(dataSource);
+        return provider;
+    }
+}
@@ -1,5 +1,6 @@
 package com.teamwork.gateway.service;
 
+import com.teamwork.gateway.ai.TokenEstimatorRegistry;
 import com.teamwork.gateway.dto.ScheduleRunNowResponse;
 import com.teamwork.gateway.dto.ScheduleUpsertRequest;
 import com.teamwork.gateway.dto.ScheduleSummaryResponse;
@@ -15,6 +16,7 @@ import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.mockito.junit.jupiter.MockitoExtension;
 
 import java.util.List;
@@ -50,6 +52,9 @@ class ScheduleServiceTest {
         @Mock
         private ScheduleObservabilityService scheduleObservabilityService;
 
+    @Spy
+    private TokenEstimatorRegistry tokenEstimatorRegistry = new TokenEstimatorRegistry("heuristic");
+
     @InjectMocks
     private ScheduleService scheduleService;
 
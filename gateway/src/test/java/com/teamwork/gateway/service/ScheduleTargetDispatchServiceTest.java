@@ -1,6 +1,5 @@
 package com.teamwork.gateway.service;
 
-import com.teamwork.gateway.agent.MasterAgent;
 import com.teamwork.gateway.agent.SkillsCatalogService;
 import com.teamwork.gateway.entity.AgentProfile;
 import com.teamwork.gateway.entity.ScheduleContextSnapshot;
@@ -23,6 +22,7 @@ import java.util.Optional;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -42,7 +42,7 @@ class ScheduleTargetDispatchServiceTest {
     private TaskRecordRepository taskRecordRepository;
 
     @Mock
-    private MasterAgent masterAgent;
+    private TaskQueueService taskQueueService;
 
     @InjectMocks
     private ScheduleTargetDispatchService dispatchService;
@@ -65,7 +65,7 @@ class ScheduleTargetDispatchServiceTest {
 
         assertThat(result.targetType()).isEqualTo("AGENT");
         assertThat(result.taskId()).isEqualTo("task-1");
-        verify(masterAgent).processTask("task-1", "payload");
+        verify(taskQueueService).enqueue(argThat(task -> "task-1".equals(task.getId())));
     }
 
     @Test
@@ -100,7 +100,7 @@ class ScheduleTargetDispatchServiceTest {
         ArgumentCaptor<TaskRecord> taskCaptor = ArgumentCaptor.forClass(TaskRecord.class);
         verify(taskRecordRepository).save(taskCaptor.capture());
         assertThat(taskCaptor.getValue().getInputPayload()).contains("[SHARED_CONTEXT]last-context");
-        verify(masterAgent).processTask("task-2", "tool-payload");
+        verify(taskQueueService).enqueue(argThat(task -> "task-2".equals(task.getId())));
     }
 
     @Test
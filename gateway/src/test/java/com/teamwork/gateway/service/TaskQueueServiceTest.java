@@ -0,0 +1,162 @@
+package com.teamwork.gateway.service;
+
+import com.teamwork.gateway.agent.MasterAgent;
+import com.teamwork.gateway.entity.TaskQueueEntry;
+import com.teamwork.gateway.entity.TaskRecord;
+import com.teamwork.gateway.exception.TaskAdmissionRejectedException;
+import com.teamwork.gateway.repository.TaskQueueRepository;
+import com.teamwork.gateway.repository.TaskRecordRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.transaction.support.TransactionOperations;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class TaskQueueServiceTest {
+
+    private static final long NOW = 1_000_000L;
+
+    @Mock
+    private TaskQueueRepository taskQueueRepository;
+
+    @Mock
+    private TaskRecordRepository taskRecordRepository;
+
+    @Mock
+    private MasterAgent masterAgent;
+
+    private TaskQueueService service;
+
+    @BeforeEach
+    void setUp() {
+        service = new TaskQueueService(taskQueueRepository, taskRecordRepository, masterAgent,
+                TransactionOperations.withoutTransaction(), "node-a", 10, 2, 60_000L, 100L, 100L, 3, 5_000L, () -> NOW);
+    }
+
+    @Test
+    void enqueue_ShouldPersistEntryAvailableNow() {
+        service.enqueue(task("task-1", "PENDING"));
+
+        ArgumentCaptor<TaskQueueEntry> captor = ArgumentCaptor.forClass(TaskQueueEntry.class);
+        verify(taskQueueRepository).save(captor.capture());
+        assertThat(captor.getValue().getTaskId()).isEqualTo("task-1");
+        assertThat(captor.getValue().getAvailableAt()).isEqualTo(NOW);
+        assertThat(captor.getValue().getLeaseOwner()).isNull();
+        assertThat(service.getMetricsSnapshot().enqueued()).isEqualTo(1L);
+    }
+
+    @Test
+    void dispatchOnce_ShouldLeaseBatchAndCompleteAfterExecution() {
+        CompletableFuture<Void> execution = new CompletableFuture<>();
+        stubClaim(List.of("task-1"), entry("task-1", 1));
+        when(taskRecordRepository.findAllById(List.of("task-1"))).thenReturn(List.of(task("task-1", "PENDING")));
+        when(masterAgent.processTask("task-1", "payload-task-1")).thenReturn(execution);
+
+        assertThat(service.dispatchOnce()).isEqualTo(1);
+        verify(taskQueueRepository).lease(List.of("task-1"), "node-a", NOW + 60_000L);
+        assertThat(service.getMetricsSnapshot().inFlight()).isEqualTo(1);
+
+        service.heartbeat();
+        verify(taskQueueRepository).renewLeases(Set.of("task-1"), "node-a", NOW + 60_000L);
+
+        execution.complete(null);
+        verify(taskQueueRepository).complete("task-1", "node-a");
+        assertThat(service.getMetricsSnapshot().inFlight()).isZero();
+        assertThat(service.getMetricsSnapshot().completed()).isEqualTo(1L);
+    }
+
+    @Test
+    void dispatchOnce_ShouldReleaseLeaseWhenTaskIsReturned() {
+        stubClaim(List.of("task-1"), entry("task-1", 2));
+        when(taskRecordRepository.findAllById(List.of("task-1"))).thenReturn(List.of(task("task-1", "RUNNING")));
+        when(masterAgent.processTask("task-1", "payload-task-1")).thenReturn(
+                CompletableFuture.failedFuture(new TaskAdmissionRejectedException("shutting down", true)));
+
+        service.dispatchOnce();
+
+        verify(taskQueueRepository).release("task-1", "node-a", NOW + 5_000L);
+        verify(taskQueueRepository, never()).complete(anyString(), anyString());
+        assertThat(service.getMetricsSnapshot().redelivered()).isEqualTo(1L);
+        assertThat(service.getMetricsSnapshot().released()).isEqualTo(1L);
+    }
+
+    @Test
+    void dispatchOnce_ShouldDropFinishedTasksAndFailExhaustedOnes() {
+        TaskRecord finished = task("task-1", "COMPLETED");
+        TaskRecord exhausted = task("task-2", "RUNNING");
+        stubClaim(List.of("task-1", "task-2"), entry("task-1", 2), entry("task-2", 4));
+        when(taskRecordRepository.findAllById(List.of("task-1", "task-2"))).thenReturn(List.of(finished, exhausted));
+
+        assertThat(service.dispatchOnce()).isZero();
+
+        verify(taskQueueRepository).complete("task-1", "node-a");
+        verify(taskQueueRepository).complete("task-2", "node-a");
+        verify(taskRecordRepository).save(exhausted);
+        assertThat(exhausted.getStatus()).isEqualTo("FAILED");
+        verify(masterAgent, never()).processTask(anyString(), any());
+        assertThat(service.getMetricsSnapshot().exhausted()).isEqualTo(1L);
+    }
+
+    @Test
+    void dispatchOnce_ShouldNotClaimBeyondMaxInFlight() {
+        stubClaim(List.of("task-1", "task-2"), entry("task-1", 1), entry("task-2", 1));
+        when(taskRecordRepository.findAllById(List.of("task-1", "task-2")))
+                .thenReturn(List.of(task("task-1", "PENDING"), task("task-2", "PENDING")));
+        when(masterAgent.processTask(anyString(), anyString())).thenReturn(new CompletableFuture<>());
+
+        assertThat(service.dispatchOnce()).isEqualTo(2);
+        assertThat(service.dispatchOnce()).isZero();
+
+        verify(taskQueueRepository).lockClaimable(NOW, 2);
+    }
+
+    @Test
+    void start_ShouldEnqueuePendingTasksMissingFromQueueBeforeDispatching() {
+        when(taskQueueRepository.enqueueOrphanedPending(NOW)).thenReturn(2);
+
+        service.start();
+        try {
+            verify(taskQueueRepository).enqueueOrphanedPending(NOW);
+            assertThat(service.getMetricsSnapshot().backfilled()).isEqualTo(2L);
+        } finally {
+            service.stop();
+        }
+        assertThat(service.isRunning()).isFalse();
+    }
+
+    private void stubClaim(List<String> taskIds, TaskQueueEntry... entries) {
+        when(taskQueueRepository.lockClaimable(NOW, 2)).thenReturn(taskIds);
+        when(taskQueueRepository.findAllById(taskIds)).thenReturn(List.of(entries));
+    }
+
+    private static TaskQueueEntry entry(String taskId, int attempts) {
+        TaskQueueEntry entry = new TaskQueueEntry();
+        entry.setTaskId(taskId);
+        entry.setAttempts(attempts);
+        entry.setLeaseOwner("node-a");
+        return entry;
+    }
+
+    private static TaskRecord task(String id, String status) {
+        TaskRecord record = new TaskRecord();
+        record.setId(id);
+        record.setProfileId("profile-1");
+        record.setStatus(status);
+        record.setInputPayload("payload-" + id);
+        return record;
+    }
+}
@@ -1,6 +1,5 @@
 package com.teamwork.gateway.service;
 
-import com.teamwork.gateway.agent.MasterAgent;
 import com.teamwork.gateway.config.IdentityPolicyProperties;
 import com.teamwork.gateway.dto.TaskRequest;
 import com.teamwork.gateway.entity.AccountToolPermission;
@@ -21,7 +20,7 @@ import java.util.List;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.ArgumentMatchers.any;
-import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -48,7 +47,7 @@ class TaskServiceTest {
     private ToolConfigRepository toolConfigRepository;
 
     @Mock
-    private MasterAgent masterAgent;
+    private TaskQueueService taskQueueService;
 
     @InjectMocks
     private TaskService taskService;
@@ -88,8 +87,8 @@ class TaskServiceTest {
         assertThat(result.getId()).isEqualTo("test-task-123");
         assertThat(result.getStatus()).isEqualTo("PENDING");
 
-        // Verify that MasterAgent.processTask() was called
-        verify(masterAgent).processTask(eq("test-task-123"), eq("Test payload"));
+        // Verify that the task was put on the task queue
+        verify(taskQueueService).enqueue(argThat(task -> "test-task-123".equals(task.getId())));
         verify(taskRecordRepository).save(any(TaskRecord.class));
     }
 
@@ -1,6 +1,5 @@
 package com.teamwork.gateway.service;
 
-import com.teamwork.gateway.agent.MasterAgent;
 import com.teamwork.gateway.dto.WebhookTriggerRequest;
 import com.teamwork.gateway.dto.WebhookTriggerResponse;
 import com.teamwork.gateway.entity.TaskRecord;
@@ -19,6 +18,7 @@ import java.util.Optional;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -35,7 +35,7 @@ class TriggerExecutionServiceTest {
     private TaskRecordRepository taskRecordRepository;
 
     @Mock
-    private MasterAgent masterAgent;
+    private TaskQueueService taskQueueService;
 
     @Mock
     private WebhookSecurityService webhookSecurityService;
@@ -44,7 +44,7 @@ class TriggerExecutionServiceTest {
     private TriggerExecutionService triggerExecutionService;
 
     @Test
-    void executeWebhook_ShouldCreatePendingTaskAndInvokeMasterAgent() {
+    void executeWebhook_ShouldCreatePendingTaskAndEnqueueIt() {
         TaskTrigger trigger = new TaskTrigger();
         trigger.setEnabled(true);
         trigger.setTriggerSource("WEBHOOK");
@@ -80,7 +80,7 @@ class TriggerExecutionServiceTest {
             "1700000000",
             "nonce-1",
             "signature-1");
-        verify(masterAgent).processTask("task-1", "run report");
+        verify(taskQueueService).enqueue(argThat(task -> "task-1".equals(task.getId())));
     }
 
     @Test